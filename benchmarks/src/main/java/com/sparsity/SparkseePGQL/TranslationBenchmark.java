@@ -0,0 +1,361 @@
+package com.sparsity.SparkseePGQL;
+
+import com.sparsity.sparksee.gdb.AttributeKind;
+import com.sparsity.sparksee.gdb.DataType;
+import oracle.pgql.lang.Pgql;
+import oracle.pgql.lang.PgqlException;
+import oracle.pgql.lang.PgqlResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the PGQL to Sparksee Query Algebra translation.
+ * Each corpus of the "corpus" resources folder has queries of a kind (single node lookups, 2 to 6
+ * hop paths, cycles, joins of several groups and heavy GROUP BY/ORDER BY), and each benchmark call
+ * translates the next query of the corpus. The translation is measured end to end, with and without
+ * the plan cache, and by phases: the PGQL parsing, the planning of the parsed query, each planning
+ * phase on its own (the connection groups, the constraints, the translation of the groups, their
+ * joins and the result operators) and the algebra string emission.
+ * The queries are parsed once in the setup for the planning benchmarks. A planning phase changes its
+ * context, so the contexts are prepared up to the previous phase in an invocation setup. Its timing
+ * overhead would be larger than the fastest phases, so each invocation runs the phase on a batch of
+ * PHASE_BATCH contexts and the results are reported per query.
+ * The main method adds the GC profiler to report the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TranslationBenchmark {
+
+    // The planning phases run in batches, so the invocation setup is done once for all of them
+    static final int PHASE_BATCH = 100;
+
+    @Param({"lookups", "paths", "cycles", "joins", "aggregates"})
+    public String corpus;
+
+    // Plan with the statistics of a scaled movie graph, or without statistics
+    @Param({"false", "true"})
+    public boolean statistics;
+
+    private ArrayList<String> queries;
+    private SparkseePGQL translator;
+    private SparkseePGQL cachedTranslator;
+    private Pgql parser;
+    private ArrayList<PgqlResult> parsedQueries;
+    private ArrayList<TranslationContext> translations;
+    private int next;
+
+    /**
+     * A fixed statistics snapshot, the benchmarks don't use a database.
+     */
+    private static class FixedStatisticsCatalog extends StatisticsCatalog {
+        private final GraphStatistics fixed;
+
+        FixedStatisticsCatalog(GraphStatistics fixed) {
+            super(null);
+            this.fixed = fixed;
+        }
+
+        @Override
+        public GraphStatistics getStatistics() {
+            return fixed;
+        }
+    }
+
+    /**
+     * @return Returns the statistics of a movie graph with 100K movies and 1M people.
+     */
+    static GraphStatistics movieGraphStatistics() {
+        Map<String, GraphStatistics.TypeStatistics> types = new HashMap<String, GraphStatistics.TypeStatistics>();
+        types.put("MOVIE", new GraphStatistics.TypeStatistics("MOVIE", true, true, 100000, 0, 0));
+        types.put("PEOPLE", new GraphStatistics.TypeStatistics("PEOPLE", true, true, 1000000, 0, 0));
+        types.put("CAST", new GraphStatistics.TypeStatistics("CAST", false, true, 3000000, 100000, 900000));
+        types.put("DIRECTS", new GraphStatistics.TypeStatistics("DIRECTS", false, true, 100000, 20000, 100000));
+        long[] yearHistogram = new long[20];
+        for (int ii = 0; ii < yearHistogram.length; ii++) {
+            // More recent movies
+            yearHistogram[ii] = 500L * ii;
+        }
+        Map<String, GraphStatistics.AttributeStatistics> attributes = new HashMap<String, GraphStatistics.AttributeStatistics>();
+        attributes.put("YEAR", new GraphStatistics.AttributeStatistics("YEAR", AttributeKind.Indexed, DataType.Integer,
+                100000, 0, 120, 1900, 2020, yearHistogram));
+        attributes.put("TITLE", new GraphStatistics.AttributeStatistics("TITLE", AttributeKind.Indexed, DataType.String,
+                100000, 0, 99000, 0, 0, null));
+        attributes.put("NAME", new GraphStatistics.AttributeStatistics("NAME", AttributeKind.Indexed, DataType.String,
+                1000000, 0, 990000, 0, 0, null));
+        attributes.put("ID", new GraphStatistics.AttributeStatistics("ID", AttributeKind.Unique, DataType.Long,
+                1100000, 0, 1100000, 1, 1100000, new long[] {1100000}));
+        attributes.put("SCORE", new GraphStatistics.AttributeStatistics("SCORE", AttributeKind.Basic, DataType.Double,
+                100000, 0, 100, 0, 1, null));
+        return new GraphStatistics(1, 1100000, 3100000, types, attributes);
+    }
+
+    /**
+     * @param name [in] The corpus name.
+     * @return Returns the queries of the corpus resource.
+     * @throws IOException If the corpus can't be read.
+     */
+    static ArrayList<String> readCorpus(String name) throws IOException {
+        InputStream is = TranslationBenchmark.class.getResourceAsStream("/corpus/"+name+".pgql");
+        if (is == null) {
+            throw new IOException("Unknown query corpus \""+name+"\"");
+        }
+        return PGQLScriptReader.readAll(new InputStreamReader(is, StandardCharsets.UTF_8));
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, PgqlException {
+        queries = readCorpus(corpus);
+        translator = new SparkseePGQL(0);
+        cachedTranslator = new SparkseePGQL(SparkseePGQL.DEFAULT_PLAN_CACHE_CAPACITY);
+        if (statistics) {
+            StatisticsCatalog catalog = new FixedStatisticsCatalog(movieGraphStatistics());
+            translator.setStatisticsCatalog(catalog);
+            cachedTranslator.setStatisticsCatalog(catalog);
+        }
+        parser = new Pgql();
+        parsedQueries = new ArrayList<PgqlResult>();
+        translations = new ArrayList<TranslationContext>();
+        for (String query : queries) {
+            parsedQueries.add(parser.parse(query));
+            TranslationContext ctx = translator.translate(query, false);
+            if (ctx == null) {
+                throw new IllegalStateException("The query of the corpus \""+corpus+"\" can't be translated: "+query);
+            }
+            translations.add(ctx);
+            cachedTranslator.ProcessPGQLQuery(query);
+        }
+        next = 0;
+    }
+
+    private int nextQuery() {
+        int current = next;
+        next = (next + 1) % queries.size();
+        return current;
+    }
+
+    @Benchmark
+    public String endToEnd() {
+        return translator.ProcessPGQLQuery(queries.get(nextQuery()));
+    }
+
+    @Benchmark
+    public String endToEndCached() {
+        return cachedTranslator.ProcessPGQLQuery(queries.get(nextQuery()));
+    }
+
+    @Benchmark
+    public PgqlResult parse() throws PgqlException {
+        return parser.parse(queries.get(nextQuery()));
+    }
+
+    /**
+     * @param lastPhase [in] The last planning phase to run, or PARSE to run none.
+     * @return Returns a new translation context of the next query with its parsed query, planned up to the given phase.
+     */
+    private TranslationContext prepareContext(TranslationMetrics.Phase lastPhase) {
+        TranslationContext ctx = translator.createContext(false, Collections.emptySet());
+        ctx.pgqlResult = parsedQueries.get(nextQuery());
+        ctx.pgqlGraphQuery = ctx.pgqlResult.getGraphQuery();
+        if (lastPhase.compareTo(TranslationMetrics.Phase.CONNECTIONS) >= 0) {
+            translator.buildConnectionGroups(ctx);
+        }
+        if (lastPhase.compareTo(TranslationMetrics.Phase.CONSTRAINTS) >= 0) {
+            translator.buildConstraints(ctx);
+        }
+        if (lastPhase.compareTo(TranslationMetrics.Phase.TRANSLATE_GROUPS) >= 0) {
+            translator.translateGroups(ctx);
+        }
+        if (lastPhase.compareTo(TranslationMetrics.Phase.JOIN_GROUPS) >= 0) {
+            translator.buildBaseQuery(ctx);
+        }
+        return ctx;
+    }
+
+    /**
+     * @param lastPhase [in] The last planning phase to run, or PARSE to run none.
+     * @return Returns the contexts of the next PHASE_BATCH queries, planned up to the given phase.
+     */
+    private TranslationContext[] prepareContexts(TranslationMetrics.Phase lastPhase) {
+        TranslationContext[] contexts = new TranslationContext[PHASE_BATCH];
+        for (int ii = 0; ii < contexts.length; ii++) {
+            contexts[ii] = prepareContext(lastPhase);
+        }
+        return contexts;
+    }
+
+    /**
+     * The contexts of the next parsed queries, before the planning.
+     */
+    @State(Scope.Thread)
+    public static class ParsedContexts {
+        TranslationContext[] contexts;
+
+        @Setup(Level.Invocation)
+        public void setup(TranslationBenchmark benchmark) {
+            contexts = benchmark.prepareContexts(TranslationMetrics.Phase.PARSE);
+        }
+    }
+
+    /**
+     * The contexts of the next queries with their connection groups.
+     */
+    @State(Scope.Thread)
+    public static class GroupedContexts {
+        TranslationContext[] contexts;
+
+        @Setup(Level.Invocation)
+        public void setup(TranslationBenchmark benchmark) {
+            contexts = benchmark.prepareContexts(TranslationMetrics.Phase.CONNECTIONS);
+        }
+    }
+
+    /**
+     * The contexts of the next queries with their connection groups and constraints.
+     */
+    @State(Scope.Thread)
+    public static class ConstrainedContexts {
+        TranslationContext[] contexts;
+
+        @Setup(Level.Invocation)
+        public void setup(TranslationBenchmark benchmark) {
+            contexts = benchmark.prepareContexts(TranslationMetrics.Phase.CONSTRAINTS);
+        }
+    }
+
+    /**
+     * The contexts of the next queries with the algebra of each connection group.
+     */
+    @State(Scope.Thread)
+    public static class TranslatedContexts {
+        TranslationContext[] contexts;
+
+        @Setup(Level.Invocation)
+        public void setup(TranslationBenchmark benchmark) {
+            contexts = benchmark.prepareContexts(TranslationMetrics.Phase.TRANSLATE_GROUPS);
+        }
+    }
+
+    /**
+     * The contexts of the next queries with the base query of the joined groups.
+     */
+    @State(Scope.Thread)
+    public static class JoinedContexts {
+        TranslationContext[] contexts;
+
+        @Setup(Level.Invocation)
+        public void setup(TranslationBenchmark benchmark) {
+            contexts = benchmark.prepareContexts(TranslationMetrics.Phase.JOIN_GROUPS);
+        }
+    }
+
+    /**
+     * All the planning phases of a parsed query.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PHASE_BATCH)
+    public Object plan(ParsedContexts parsed) {
+        for (TranslationContext ctx : parsed.contexts) {
+            translator.buildConnectionGroups(ctx);
+            translator.buildConstraints(ctx);
+            translator.translateGroups(ctx);
+            translator.buildBaseQuery(ctx);
+            translator.buildResult(ctx);
+        }
+        return parsed.contexts;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PHASE_BATCH)
+    public Object connections(ParsedContexts parsed) {
+        for (TranslationContext ctx : parsed.contexts) {
+            translator.buildConnectionGroups(ctx);
+        }
+        return parsed.contexts;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PHASE_BATCH)
+    public Object constraints(GroupedContexts grouped) {
+        for (TranslationContext ctx : grouped.contexts) {
+            translator.buildConstraints(ctx);
+        }
+        return grouped.contexts;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PHASE_BATCH)
+    public Object translateGroups(ConstrainedContexts constrained) {
+        for (TranslationContext ctx : constrained.contexts) {
+            translator.translateGroups(ctx);
+        }
+        return constrained.contexts;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PHASE_BATCH)
+    public Object joinGroups(TranslatedContexts translated) {
+        for (TranslationContext ctx : translated.contexts) {
+            translator.buildBaseQuery(ctx);
+        }
+        return translated.contexts;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PHASE_BATCH)
+    public Object result(JoinedContexts joined) {
+        for (TranslationContext ctx : joined.contexts) {
+            translator.buildResult(ctx);
+        }
+        return joined.contexts;
+    }
+
+    @Benchmark
+    public String emit() {
+        return translations.get(nextQuery()).finalQuery.getQuery();
+    }
+
+    /**
+     * Runs the benchmarks with the GC profiler. It takes the same arguments as the JMH runner.
+     */
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(cmdOptions);
+        if (cmdOptions.getIncludes().isEmpty()) {
+            options.include(TranslationBenchmark.class.getSimpleName());
+        }
+        options.addProfiler(GCProfiler.class);
+        new Runner(options.build()).run();
+    }
+}
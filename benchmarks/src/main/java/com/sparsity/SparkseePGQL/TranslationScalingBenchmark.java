@@ -0,0 +1,97 @@
+package com.sparsity.SparkseePGQL;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the translation throughput with a growing number of threads.
+ * All the threads share a single SparkseePGQL translator (with the plan cache disabled, to measure
+ * the full translation) and each one translates the queries of the corpus starting at a different one.
+ * Each benchmark method runs with a different number of threads, so the speedup is the ratio
+ * between their throughputs. Run it with "java -jar target/benchmarks.jar TranslationScalingBenchmark".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TranslationScalingBenchmark {
+
+    @Param({"lookups", "paths", "cycles", "joins", "aggregates"})
+    public String corpus;
+
+    private ArrayList<String> queries;
+    private SparkseePGQL translator;
+
+    /**
+     * The next query of each thread.
+     */
+    @State(Scope.Thread)
+    public static class QueryCursor {
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setup(ThreadParams threadParams) {
+            next = threadParams.getThreadIndex();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        queries = TranslationBenchmark.readCorpus(corpus);
+        translator = new SparkseePGQL(0);
+    }
+
+    private String translateNext(QueryCursor cursor) {
+        String query = queries.get(cursor.next % queries.size());
+        cursor.next++;
+        return translator.ProcessPGQLQuery(query);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String threads1(QueryCursor cursor) {
+        return translateNext(cursor);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public String threads2(QueryCursor cursor) {
+        return translateNext(cursor);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String threads4(QueryCursor cursor) {
+        return translateNext(cursor);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String threads8(QueryCursor cursor) {
+        return translateNext(cursor);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String threadsMax(QueryCursor cursor) {
+        return translateNext(cursor);
+    }
+}
@@ -0,0 +1,555 @@
+package com.sparsity.SparkseePGQL;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Decides which queries can run, from the memory their plans are expected to need, so a shared
+ * database degrades by queueing or rejecting the biggest queries instead of running out of memory.
+ * <p>
+ * The memory of a query is estimated from its translated operator tree: the rows of each operator
+ * that keeps its result (JOIN, PRODUCT, GROUP, SORT and TOP_K) and of the final result, by the
+ * number of columns and a fixed size for each value. The rows estimated by the translator are used
+ * when there are statistics, otherwise they are derived from the children: a PRODUCT multiplies
+ * them, an EXPLODE or ADJACENT multiplies its child by the average degree and a JOIN multiplies
+ * them by the join selectivity.
+ * <p>
+ * A query above the query budget is rejected at once. A query waits (up to the queue timeout) while
+ * the running queries use too much of the total budget, or while it's heavy and the maximum number
+ * of heavy queries are running, and behind the queries that were queued before it, so the heavy
+ * queries are not starved by the lighter ones. The admitted query gets a Ticket that must be closed
+ * when it ends. With admitAsync the query waits in the queue instead of a blocked thread, and it's
+ * admitted when a running query closes its ticket.
+ */
+public class AdmissionController {
+    final Logger logger = LoggerFactory.getLogger(AdmissionController.class);
+
+    // The bytes of a value in a materialized row, counting the row overhead and short strings
+    public static final long BYTES_PER_VALUE = 32;
+    // The rows of an unknown scan and the edges of a node without statistics
+    public static final double DEFAULT_SCAN_ROWS = 1000000;
+    public static final double DEFAULT_DEGREE = 10;
+    // The fraction of the rows of a PRODUCT of the JOIN inputs that match, most joins are equalities
+    public static final double DEFAULT_JOIN_SELECTIVITY = GraphStatistics.DEFAULT_EQUALITY_SELECTIVITY;
+
+    /**
+     * A query that can't run within the memory budget.
+     */
+    public static class QueryRejectedException extends RuntimeException {
+        public QueryRejectedException( String message ) {
+            super(message);
+        }
+    }
+
+    /**
+     * The expected size of a query.
+     */
+    public static class Estimate {
+        private final double rows;
+        private final double peakRows;
+        private final long bytes;
+
+        private Estimate( double rows, double peakRows, long bytes ) {
+            this.rows = rows;
+            this.peakRows = peakRows;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return Returns the estimated rows of the result.
+         */
+        public double getRows() {
+            return rows;
+        }
+
+        /**
+         * @return Returns the estimated rows of the biggest operator.
+         */
+        public double getPeakRows() {
+            return peakRows;
+        }
+
+        /**
+         * @return Returns the estimated memory of the query in bytes.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.0f rows, %.0f peak rows, %d bytes", rows, peakRows, bytes);
+        }
+    }
+
+    /**
+     * The permission to run an admitted query. Closing it releases its memory for the waiting queries.
+     */
+    public class Ticket implements Closeable {
+        private final long bytes;
+        private final boolean heavy;
+        private boolean released;
+
+        private Ticket( long bytes, boolean heavy ) {
+            this.bytes = bytes;
+            this.heavy = heavy;
+            this.released = false;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public boolean isHeavy() {
+            return heavy;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    /**
+     * A query of admitAsync waiting to be admitted.
+     */
+    private static class PendingAdmission {
+        final long bytes;
+        final boolean heavy;
+        final CompletableFuture<Ticket> future;
+        Ticket ticket;
+
+        PendingAdmission( long bytes, boolean heavy ) {
+            this.bytes = bytes;
+            this.heavy = heavy;
+            this.future = new CompletableFuture<Ticket>();
+        }
+    }
+
+    /**
+     * The estimated rows, widest schema and memory of a subtree.
+     */
+    private static class SubtreeEstimate {
+        double rows;
+        double peakRows;
+        int width;
+        double bytes;
+    }
+
+    private final long queryBudget;
+    private final long heavyQueryBytes;
+    private final int maxHeavyQueries;
+    private long totalBudget;
+    private long queueTimeoutNanos;
+    private volatile StatisticsCatalog statisticsCatalog;
+    private long runningBytes;
+    private int runningQueries;
+    private int runningHeavyQueries;
+    private int waitingQueries;
+    private long rejectedQueries;
+    private final ArrayDeque<PendingAdmission> pendingAdmissions;
+
+    /**
+     * @param queryBudget [in] The maximum estimated memory of a query in bytes, bigger queries are rejected.
+     * @param heavyQueryBytes [in] The estimated memory in bytes from which a query is heavy.
+     * @param maxHeavyQueries [in] The maximum number of heavy queries running at the same time.
+     */
+    public AdmissionController( long queryBudget, long heavyQueryBytes, int maxHeavyQueries ) {
+        if ((queryBudget <= 0) || (heavyQueryBytes <= 0)) {
+            throw new IllegalArgumentException("The memory budgets must be positive");
+        }
+        if (maxHeavyQueries <= 0) {
+            throw new IllegalArgumentException("The maximum number of heavy queries must be positive: "+maxHeavyQueries);
+        }
+        this.queryBudget = queryBudget;
+        this.heavyQueryBytes = heavyQueryBytes;
+        this.maxHeavyQueries = maxHeavyQueries;
+        this.totalBudget = Long.MAX_VALUE;
+        this.queueTimeoutNanos = -1;
+        this.statisticsCatalog = null;
+        this.pendingAdmissions = new ArrayDeque<PendingAdmission>();
+    }
+
+    /**
+     * @param totalBudget [in] The maximum estimated memory in bytes of all the running queries.
+     *                    A query within the query budget can always run alone.
+     */
+    public void setTotalBudget( long totalBudget ) {
+        if (totalBudget <= 0) {
+            throw new IllegalArgumentException("The memory budgets must be positive");
+        }
+        ArrayList<PendingAdmission> admitted;
+        synchronized (this) {
+            this.totalBudget = totalBudget;
+            admitted = admitPending();
+        }
+        completeAdmitted(admitted);
+    }
+
+    public synchronized long getTotalBudget() {
+        return totalBudget;
+    }
+
+    public long getQueryBudget() {
+        return queryBudget;
+    }
+
+    public long getHeavyQueryBytes() {
+        return heavyQueryBytes;
+    }
+
+    public int getMaxHeavyQueries() {
+        return maxHeavyQueries;
+    }
+
+    /**
+     * @param timeout [in] The maximum time a query waits to be admitted before it's rejected,
+     *                or a negative value to wait without limit.
+     * @param unit [in] The time unit.
+     */
+    public synchronized void setQueueTimeout( long timeout, TimeUnit unit ) {
+        this.queueTimeoutNanos = (timeout < 0)? -1 : unit.toNanos(timeout);
+    }
+
+    /**
+     * @return Returns the maximum time a query waits to be admitted in milliseconds, or a negative value for no limit.
+     */
+    public synchronized long getQueueTimeoutMillis() {
+        return (queueTimeoutNanos < 0)? -1 : TimeUnit.NANOSECONDS.toMillis(queueTimeoutNanos);
+    }
+
+    /**
+     * @param catalog [in] The statistics used for the operators without estimated rows, or null for the defaults.
+     */
+    public void setStatisticsCatalog( StatisticsCatalog catalog ) {
+        this.statisticsCatalog = catalog;
+    }
+
+    /**
+     * @return Returns the estimated memory in bytes of the admitted queries that are still running.
+     */
+    public synchronized long getRunningBytes() {
+        return runningBytes;
+    }
+
+    public synchronized int getRunningQueries() {
+        return runningQueries;
+    }
+
+    public synchronized int getRunningHeavyQueries() {
+        return runningHeavyQueries;
+    }
+
+    /**
+     * @return Returns the number of queries waiting to be admitted.
+     */
+    public synchronized int getWaitingQueries() {
+        return waitingQueries;
+    }
+
+    public synchronized long getRejectedQueries() {
+        return rejectedQueries;
+    }
+
+    /**
+     * @param root [in] The root of the translated operator tree.
+     * @return Returns the expected size of the query.
+     */
+    public Estimate estimate( SQAOperator root ) {
+        StatisticsCatalog catalog = statisticsCatalog;
+        GraphStatistics stats = (catalog != null)? catalog.getStatistics() : null;
+        SubtreeEstimate subtree = estimate(root, stats);
+        // The final result is kept by the Sparksee ResultSet
+        double bytes = subtree.bytes + subtree.rows * subtree.width * BYTES_PER_VALUE;
+        return new Estimate(subtree.rows, subtree.peakRows, (bytes >= Long.MAX_VALUE)? Long.MAX_VALUE : (long) bytes);
+    }
+
+    private static SubtreeEstimate estimate( SQAOperator op, GraphStatistics stats ) {
+        SubtreeEstimate result = new SubtreeEstimate();
+        double childRows = 0;
+        double productRows = 1;
+        int childWidth = 0;
+        for (SQAOperator child : op.getChildren()) {
+            SubtreeEstimate childEstimate = estimate(child, stats);
+            childRows = childEstimate.rows;
+            productRows *= childEstimate.rows;
+            childWidth += childEstimate.width;
+            result.peakRows = Math.max(result.peakRows, childEstimate.peakRows);
+            result.bytes += childEstimate.bytes;
+        }
+        double rows = op.getEstimatedRows();
+        if (rows < 0) {
+            switch (op.getKind()) {
+                case SCAN:
+                case GRAPH_SELECT:
+                    rows = (stats != null)? stats.getNumNodes() : DEFAULT_SCAN_ROWS;
+                    break;
+                case EXPLODE:
+                case ADJACENT:
+                    rows = childRows * ((stats != null)? stats.getAverageDegree() : DEFAULT_DEGREE);
+                    break;
+                case PRODUCT:
+                    rows = productRows;
+                    break;
+                case JOIN:
+                    rows = productRows * DEFAULT_JOIN_SELECTIVITY;
+                    break;
+                case SLICE:
+                    long limit = ((SQAOperator.Slice) op).getLimit();
+                    rows = (limit > -1L)? Math.min(childRows, limit) : childRows;
+                    break;
+                default:
+                    rows = op.getChildren().isEmpty()? DEFAULT_SCAN_ROWS : childRows;
+            }
+        }
+        result.rows = rows;
+        result.peakRows = Math.max(result.peakRows, rows);
+        result.width = op.getSchema().isEmpty()? Math.max(1, childWidth) : op.getSchema().size();
+        switch (op.getKind()) {
+            case JOIN:
+            case PRODUCT:
+            case GROUP:
+            case SORT:
+            case TOP_K:
+                result.bytes += rows * result.width * BYTES_PER_VALUE;
+                break;
+            default:
+                break;
+        }
+        return result;
+    }
+
+    /**
+     * Admits a query, waiting up to the queue timeout.
+     * @param plan [in] The root of the translated operator tree.
+     * @return Returns the ticket of the query. It must be closed when the query ends.
+     * @throws QueryRejectedException If the query is over the query budget or it waited too long.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public Ticket admit( SQAOperator plan ) throws InterruptedException {
+        long timeoutNanos;
+        synchronized (this) {
+            timeoutNanos = queueTimeoutNanos;
+        }
+        Estimate estimate = estimate(plan);
+        Ticket ticket = tryAdmit(estimate, timeoutNanos, TimeUnit.NANOSECONDS);
+        if (ticket == null) {
+            throw busy(estimate, TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+        }
+        return ticket;
+    }
+
+    /**
+     * Counts a query that waited too long to be admitted.
+     * @param estimate [in] The expected size of the query.
+     * @param waitMillis [in] The time the query waited.
+     * @return Returns the exception to throw.
+     */
+    QueryRejectedException busy( Estimate estimate, long waitMillis ) {
+        synchronized (this) {
+            rejectedQueries++;
+        }
+        logger.info("Query rejected after waiting "+waitMillis+" ms: "+estimate);
+        return new QueryRejectedException("The server is busy, the query waited "+waitMillis+
+                " ms to be admitted ("+estimate+")");
+    }
+
+    /**
+     * Admits a query, waiting up to the given time. The queue timeout is not used.
+     * @param estimate [in] The expected size of the query.
+     * @param timeout [in] The maximum time to wait, or a negative value to wait without limit.
+     * @param unit [in] The time unit.
+     * @return Returns the ticket of the query or null if it couldn't be admitted in time. It must be closed when the query ends.
+     * @throws QueryRejectedException If the query is over the query budget.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public Ticket tryAdmit( Estimate estimate, long timeout, TimeUnit unit ) throws InterruptedException {
+        // The blocked callers wait in the same queue, so they keep their turn
+        CompletableFuture<Ticket> admitted = admitAsync(estimate);
+        try {
+            if (timeout < 0) {
+                return admitted.get();
+            }
+            return admitted.get(timeout, unit);
+        }
+        catch (TimeoutException ex) {
+            return giveUp(admitted);
+        }
+        catch (InterruptedException ex) {
+            Ticket ticket = giveUp(admitted);
+            if (ticket != null) {
+                ticket.close();
+            }
+            throw ex;
+        }
+        catch (ExecutionException ex) {
+            // The future only fails when giveUp cancels it
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * Removes a query from the queue.
+     * @param admitted [in] The future of admitAsync.
+     * @return Returns the ticket if the query was admitted meanwhile, otherwise null.
+     */
+    private static Ticket giveUp( CompletableFuture<Ticket> admitted ) {
+        if (admitted.cancel(false)) {
+            return null;
+        }
+        return admitted.join();
+    }
+
+    /**
+     * Admits a query without blocking the thread, so a server doesn't keep a thread for each queued query.
+     * The queries are admitted in order: a query that could run waits anyway while older queries are queued.
+     * The queue timeout is not used: the caller gives up by completing or cancelling the future,
+     * and then the query leaves the queue.
+     * @param estimate [in] The expected size of the query.
+     * @return Returns a future with the ticket of the query, completed at once or when the running
+     *         queries release enough memory (in the thread that closes their tickets). The ticket
+     *         must be closed when the query ends.
+     * @throws QueryRejectedException If the query is over the query budget.
+     */
+    public CompletableFuture<Ticket> admitAsync( Estimate estimate ) {
+        checkQueryBudget(estimate);
+        long bytes = estimate.getBytes();
+        boolean heavy = (bytes >= heavyQueryBytes);
+        final PendingAdmission pending;
+        synchronized (this) {
+            if (pendingAdmissions.isEmpty() && canRun(bytes, heavy)) {
+                return CompletableFuture.completedFuture(start(bytes, heavy));
+            }
+            pending = new PendingAdmission(bytes, heavy);
+            pendingAdmissions.add(pending);
+            waitingQueries++;
+        }
+        pending.future.whenComplete(new BiConsumer<Ticket, Throwable>() {
+            @Override
+            public void accept(Ticket ticket, Throwable ex) {
+                if (ex != null) {
+                    removePending(pending);
+                }
+            }
+        });
+        return pending.future;
+    }
+
+    /**
+     * @param estimate [in] The expected size of the query.
+     * @throws QueryRejectedException If the query is over the query budget.
+     */
+    private void checkQueryBudget( Estimate estimate ) {
+        if (estimate.getBytes() > queryBudget) {
+            synchronized (this) {
+                rejectedQueries++;
+            }
+            logger.info("Query rejected over the memory budget: "+estimate);
+            throw new QueryRejectedException("The query needs too much memory ("+estimate+
+                    "), the budget is "+queryBudget+" bytes");
+        }
+    }
+
+    /**
+     * @return Returns true if a query of the given size can run now. It must be called holding the lock.
+     */
+    private boolean canRun( long bytes, boolean heavy ) {
+        return ((runningQueries == 0) || (runningBytes + bytes <= totalBudget)) &&
+                (!heavy || (runningHeavyQueries < maxHeavyQueries));
+    }
+
+    /**
+     * Counts a query as running. It must be called holding the lock.
+     * @return Returns the ticket of the query.
+     */
+    private Ticket start( long bytes, boolean heavy ) {
+        runningBytes += bytes;
+        runningQueries++;
+        if (heavy) {
+            runningHeavyQueries++;
+            logger.debug("Heavy query admitted: "+bytes+" bytes");
+        }
+        return new Ticket(bytes, heavy);
+    }
+
+    /**
+     * Admits the queued queries that can run now, in their queue order. The queue stops at the
+     * first query that can't run yet, so a heavy query is not passed by the lighter ones.
+     * It must be called holding the lock, and the result completed after releasing it.
+     * @return Returns the admitted queries.
+     */
+    private ArrayList<PendingAdmission> admitPending() {
+        ArrayList<PendingAdmission> admitted = new ArrayList<PendingAdmission>();
+        Iterator<PendingAdmission> it = pendingAdmissions.iterator();
+        while (it.hasNext()) {
+            PendingAdmission pending = it.next();
+            if (pending.future.isDone()) {
+                it.remove();
+                waitingQueries--;
+            }
+            else if (canRun(pending.bytes, pending.heavy)) {
+                it.remove();
+                waitingQueries--;
+                pending.ticket = start(pending.bytes, pending.heavy);
+                admitted.add(pending);
+            }
+            else {
+                break;
+            }
+        }
+        return admitted;
+    }
+
+    /**
+     * Gives the tickets to the admitted queries, or releases them if the caller gave up meanwhile.
+     */
+    private void completeAdmitted( ArrayList<PendingAdmission> admitted ) {
+        for (PendingAdmission pending : admitted) {
+            if (!pending.future.complete(pending.ticket)) {
+                pending.ticket.close();
+            }
+        }
+    }
+
+    /**
+     * Removes a query that gave up from the queue, so the queries behind it may run now.
+     */
+    private void removePending( PendingAdmission pending ) {
+        ArrayList<PendingAdmission> admitted;
+        synchronized (this) {
+            if (!pendingAdmissions.remove(pending)) {
+                return;
+            }
+            waitingQueries--;
+            admitted = admitPending();
+        }
+        completeAdmitted(admitted);
+    }
+
+    private void release( Ticket ticket ) {
+        ArrayList<PendingAdmission> admitted;
+        synchronized (this) {
+            if (ticket.released) {
+                return;
+            }
+            ticket.released = true;
+            runningBytes -= ticket.bytes;
+            runningQueries--;
+            if (ticket.heavy) {
+                runningHeavyQueries--;
+            }
+            admitted = admitPending();
+        }
+        completeAdmitted(admitted);
+    }
+}
@@ -0,0 +1,414 @@
+package com.sparsity.SparkseePGQL;
+
+import com.sparsity.sparksee.gdb.DataType;
+import com.sparsity.sparksee.gdb.Value;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes a query result in the Arrow IPC streaming format, to be read with Arrow
+ * (pyarrow.ipc.open_stream, Spark, ...) without parsing text.
+ * The rows are collected in column batches of primitive arrays, reused from batch to batch,
+ * and each full batch is written as a record batch. The Integer columns are written as int32,
+ * the Long and OID columns as int64, the Double columns as float64, the Boolean columns as bool,
+ * the Timestamp columns as millisecond timestamps and the other columns as utf8 strings.
+ */
+public class ArrowResultWriter implements Closeable {
+
+    public static final int DEFAULT_BATCH_ROWS = 64 * 1024;
+
+    // Message header types
+    private static final int HEADER_SCHEMA = 1;
+    private static final int HEADER_RECORD_BATCH = 3;
+    // Field type types
+    private static final int TYPE_INT = 2;
+    private static final int TYPE_FLOATING_POINT = 3;
+    private static final int TYPE_UTF8 = 5;
+    private static final int TYPE_BOOL = 6;
+    private static final int TYPE_TIMESTAMP = 10;
+    private static final int METADATA_VERSION_V5 = 4;
+    private static final int PRECISION_DOUBLE = 2;
+    private static final int TIME_UNIT_MILLISECOND = 1;
+    private static final int CONTINUATION = 0xFFFFFFFF;
+
+    /**
+     * The values of a column of the current batch.
+     */
+    private static class Column {
+        final String name;
+        final DataType type;
+        byte[] validity;
+        int nullCount;
+        int[] ints;             // Integer values or the string offsets
+        long[] longs;           // Long, OID and Timestamp values
+        double[] doubles;
+        byte[] booleans;        // Bit map
+        byte[] bytes;           // UTF-8 string data
+        int bytesLength;
+
+        Column( String name, DataType type, int batchRows ) {
+            this.name = name;
+            this.type = type;
+            this.validity = new byte[(batchRows + 7) / 8];
+            switch (type) {
+                case Integer:
+                    ints = new int[batchRows];
+                    break;
+                case Long:
+                case OID:
+                case Timestamp:
+                    longs = new long[batchRows];
+                    break;
+                case Double:
+                    doubles = new double[batchRows];
+                    break;
+                case Boolean:
+                    booleans = new byte[(batchRows + 7) / 8];
+                    break;
+                default:
+                    ints = new int[batchRows + 1];
+                    bytes = new byte[16 * batchRows];
+            }
+        }
+
+        boolean isString() {
+            return bytes != null;
+        }
+
+        void reset() {
+            Arrays.fill(validity, (byte) 0);
+            if (booleans != null) {
+                Arrays.fill(booleans, (byte) 0);
+            }
+            nullCount = 0;
+            bytesLength = 0;
+        }
+
+        void set( int row, Value v ) {
+            if (v.isNull()) {
+                nullCount++;
+                if (isString()) {
+                    ints[row + 1] = bytesLength;
+                }
+                return;
+            }
+            validity[row >> 3] |= (byte) (1 << (row & 7));
+            switch (type) {
+                case Integer:
+                    ints[row] = v.getInteger();
+                    break;
+                case Long:
+                    longs[row] = v.getLong();
+                    break;
+                case OID:
+                    longs[row] = v.getOID();
+                    break;
+                case Timestamp:
+                    longs[row] = v.getTimestamp().getTime();
+                    break;
+                case Double:
+                    doubles[row] = v.getDouble();
+                    break;
+                case Boolean:
+                    if (v.getBoolean()) {
+                        booleans[row >> 3] |= (byte) (1 << (row & 7));
+                    }
+                    break;
+                default:
+                    appendUTF8(v.getString());
+                    ints[row + 1] = bytesLength;
+            }
+        }
+
+        /**
+         * Encodes the string at the end of the string data without intermediate arrays.
+         */
+        private void appendUTF8( String str ) {
+            int length = str.length();
+            if (bytes.length - bytesLength < 4 * length) {
+                bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, bytesLength + 4 * length));
+            }
+            for (int ii = 0; ii < length; ii++) {
+                int c = str.charAt(ii);
+                if (c < 0x80) {
+                    bytes[bytesLength++] = (byte) c;
+                }
+                else if (c < 0x800) {
+                    bytes[bytesLength++] = (byte) (0xC0 | (c >> 6));
+                    bytes[bytesLength++] = (byte) (0x80 | (c & 0x3F));
+                }
+                else if (Character.isHighSurrogate((char) c) && (ii + 1 < length) &&
+                        Character.isLowSurrogate(str.charAt(ii + 1))) {
+                    int cp = Character.toCodePoint((char) c, str.charAt(++ii));
+                    bytes[bytesLength++] = (byte) (0xF0 | (cp >> 18));
+                    bytes[bytesLength++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    bytes[bytesLength++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    bytes[bytesLength++] = (byte) (0x80 | (cp & 0x3F));
+                }
+                else {
+                    if (Character.isSurrogate((char) c)) {
+                        c = '?';
+                    }
+                    bytes[bytesLength++] = (byte) (0xE0 | (c >> 12));
+                    bytes[bytesLength++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    bytes[bytesLength++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        /**
+         * @return Returns the field of the Arrow schema.
+         */
+        FlatBuffer.Table toField() {
+            FlatBuffer.Table fieldType = new FlatBuffer.Table();
+            int typeType;
+            switch (type) {
+                case Integer:
+                    typeType = TYPE_INT;
+                    fieldType.addInt(0, 32).addBoolean(1, true);
+                    break;
+                case Long:
+                case OID:
+                    typeType = TYPE_INT;
+                    fieldType.addInt(0, 64).addBoolean(1, true);
+                    break;
+                case Double:
+                    typeType = TYPE_FLOATING_POINT;
+                    fieldType.addShort(0, PRECISION_DOUBLE);
+                    break;
+                case Boolean:
+                    typeType = TYPE_BOOL;
+                    break;
+                case Timestamp:
+                    typeType = TYPE_TIMESTAMP;
+                    fieldType.addShort(0, TIME_UNIT_MILLISECOND);
+                    break;
+                default:
+                    typeType = TYPE_UTF8;
+            }
+            return new FlatBuffer.Table()
+                    .addOffset(0, name)
+                    .addBoolean(1, true)
+                    .addByte(2, typeType)
+                    .addOffset(3, fieldType)
+                    .addOffset(5, Collections.emptyList());
+        }
+    }
+
+    private final OutputStream out;
+    private int batchRows;
+    private Column[] columns;
+    private ByteBuffer body;
+    private long batches;
+
+    /**
+     * @param out [in] The output stream. It's closed with the writer.
+     */
+    public ArrowResultWriter( OutputStream out ) {
+        this.out = new BufferedOutputStream(out, 1 << 16);
+        this.batchRows = DEFAULT_BATCH_ROWS;
+        this.columns = null;
+        this.body = null;
+        this.batches = 0;
+    }
+
+    /**
+     * @param batchRows [in] The maximum number of rows of each record batch.
+     */
+    public void setBatchRows( int batchRows ) {
+        if (batchRows <= 0) {
+            throw new IllegalArgumentException("The batch rows must be positive: "+batchRows);
+        }
+        this.batchRows = batchRows;
+    }
+
+    /**
+     * @return Returns the number of record batches written.
+     */
+    public long getBatches() {
+        return batches;
+    }
+
+    /**
+     * Writes the schema and all the rows of a result. A stream has a single result.
+     * @param cursor [in] The result, read until its end.
+     * @return Returns the number of written rows.
+     */
+    public long write( ResultCursor cursor ) throws IOException {
+        if (columns != null) {
+            throw new IllegalStateException("An Arrow stream can only have one result");
+        }
+        columns = new Column[cursor.getNumColumns()];
+        for (int col = 0; col < columns.length; col++) {
+            columns[col] = new Column(cursor.getColumnName(col), cursor.getColumnDataType(col), batchRows);
+        }
+        writeSchema();
+        long rows = 0;
+        int row = 0;
+        while (cursor.next()) {
+            for (int col = 0; col < columns.length; col++) {
+                columns[col].set(row, cursor.getValue(col));
+            }
+            row++;
+            rows++;
+            if (row == batchRows) {
+                writeBatch(row);
+                row = 0;
+            }
+        }
+        if ((row > 0) || (rows == 0)) {
+            writeBatch(row);
+        }
+        return rows;
+    }
+
+    private void writeSchema() throws IOException {
+        ArrayList<FlatBuffer.Table> fields = new ArrayList<FlatBuffer.Table>();
+        for (Column column : columns) {
+            fields.add(column.toField());
+        }
+        FlatBuffer.Table schema = new FlatBuffer.Table()
+                .addShort(0, 0)         // Little endian
+                .addOffset(1, fields);
+        writeMessage(HEADER_SCHEMA, schema, 0);
+    }
+
+    private static int padded( int length ) {
+        return (length + 7) & -8;
+    }
+
+    private void writeBatch( int rows ) throws IOException {
+        int bitmapLength = (rows + 7) / 8;
+        ArrayList<Long> buffers = new ArrayList<Long>();
+        long[] nodes = new long[2 * columns.length];
+        int bodyLength = 0;
+        for (int col = 0; col < columns.length; col++) {
+            Column column = columns[col];
+            nodes[2 * col] = rows;
+            nodes[2 * col + 1] = column.nullCount;
+            bodyLength = addBuffer(buffers, bodyLength, bitmapLength);
+            switch (column.type) {
+                case Integer:
+                    bodyLength = addBuffer(buffers, bodyLength, 4 * rows);
+                    break;
+                case Long:
+                case OID:
+                case Timestamp:
+                case Double:
+                    bodyLength = addBuffer(buffers, bodyLength, 8 * rows);
+                    break;
+                case Boolean:
+                    bodyLength = addBuffer(buffers, bodyLength, bitmapLength);
+                    break;
+                default:
+                    bodyLength = addBuffer(buffers, bodyLength, 4 * (rows + 1));
+                    bodyLength = addBuffer(buffers, bodyLength, column.bytesLength);
+            }
+        }
+        if ((body == null) || (body.capacity() < bodyLength)) {
+            body = ByteBuffer.allocate(Math.max(bodyLength, (body == null)? 0 : 2 * body.capacity()))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        body.clear();
+        for (Column column : columns) {
+            body.put(column.validity, 0, bitmapLength);
+            pad();
+            switch (column.type) {
+                case Integer:
+                    for (int row = 0; row < rows; row++) {
+                        body.putInt(column.ints[row]);
+                    }
+                    break;
+                case Long:
+                case OID:
+                case Timestamp:
+                    for (int row = 0; row < rows; row++) {
+                        body.putLong(column.longs[row]);
+                    }
+                    break;
+                case Double:
+                    for (int row = 0; row < rows; row++) {
+                        body.putDouble(column.doubles[row]);
+                    }
+                    break;
+                case Boolean:
+                    body.put(column.booleans, 0, bitmapLength);
+                    break;
+                default:
+                    column.ints[0] = 0;
+                    for (int row = 0; row <= rows; row++) {
+                        body.putInt(column.ints[row]);
+                    }
+                    pad();
+                    body.put(column.bytes, 0, column.bytesLength);
+            }
+            pad();
+            column.reset();
+        }
+        long[] bufferValues = new long[buffers.size()];
+        for (int ii = 0; ii < bufferValues.length; ii++) {
+            bufferValues[ii] = buffers.get(ii);
+        }
+        FlatBuffer.Table recordBatch = new FlatBuffer.Table()
+                .addLong(0, rows)
+                .addOffset(1, new FlatBuffer.StructVector(nodes, 2))
+                .addOffset(2, new FlatBuffer.StructVector(bufferValues, 2));
+        writeMessage(HEADER_RECORD_BATCH, recordBatch, bodyLength);
+        out.write(body.array(), 0, body.position());
+        batches++;
+    }
+
+    /**
+     * Adds an 8 byte aligned buffer of the record batch body.
+     * @return Returns the body length after the buffer.
+     */
+    private static int addBuffer( List<Long> buffers, int bodyLength, int length ) {
+        buffers.add((long) bodyLength);
+        buffers.add((long) length);
+        return bodyLength + padded(length);
+    }
+
+    private void pad() {
+        while ((body.position() & 7) != 0) {
+            body.put((byte) 0);
+        }
+    }
+
+    private void writeMessage( int headerType, FlatBuffer.Table header, long bodyLength ) throws IOException {
+        FlatBuffer.Table message = new FlatBuffer.Table()
+                .addShort(0, METADATA_VERSION_V5)
+                .addByte(1, headerType)
+                .addOffset(2, header)
+                .addLong(3, bodyLength);
+        byte[] metadata = FlatBuffer.finish(message);
+        writeIntLE(CONTINUATION);
+        writeIntLE(metadata.length);
+        out.write(metadata);
+    }
+
+    private void writeIntLE( int value ) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    /**
+     * Writes the end of the stream and closes it.
+     */
+    @Override
+    public void close() throws IOException {
+        writeIntLE(CONTINUATION);
+        writeIntLE(0);
+        out.close();
+    }
+}
@@ -0,0 +1,810 @@
+package com.sparsity.SparkseePGQL;
+
+import com.sparsity.sparksee.gdb.*;
+import org.apache.commons.cli.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads node and edge CSV files into a Sparksee database.
+ * The files are split in chunks of whole lines that are memory mapped and parsed by several
+ * threads straight from the mapped bytes, and a single session writes the parsed chunks in
+ * order, one transaction per chunk. The external identifiers of the nodes are mapped to their
+ * OIDs with a LongLongHashMap, so the edge endpoints are resolved by the parser threads.
+ * <p>
+ * The first line of each file is the header, one column definition "NAME[:type[:kind]]" per column,
+ * where the type is string (default), int, long, double or boolean and the kind is basic (default),
+ * indexed or unique. The attributes are created as global attributes if they don't exist yet.
+ * The first column of a node file is the node identifier, a long: ":ID" to only use it to link the
+ * edges or an attribute definition to also keep it. The first two columns of an edge file are the
+ * identifiers of the tail and the head nodes (":START_ID" and ":END_ID"). An empty field is a
+ * NULL value. The fields may be quoted, with "" for a quote, but they can't contain line breaks.
+ */
+public class BulkLoader {
+    final Logger logger = LoggerFactory.getLogger(BulkLoader.class);
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final long MISSING_OID = Objects.InvalidOID;
+
+    /**
+     * A column of a CSV file.
+     */
+    private static class ColumnSpec {
+        String name;
+        DataType type;
+        AttributeKind kind;
+        int attribute = Attribute.InvalidAttribute;
+    }
+
+    /**
+     * The parsed values of a column of a chunk.
+     */
+    private static class ColumnData {
+        private final DataType type;
+        private long[] longs;
+        private int[] ints;
+        private double[] doubles;
+        private boolean[] booleans;
+        private String[] strings;
+        private boolean[] nulls;
+
+        ColumnData(DataType type, int capacity) {
+            this.type = type;
+            this.nulls = new boolean[capacity];
+            switch (type) {
+                case Long:
+                    longs = new long[capacity];
+                    break;
+                case Integer:
+                    ints = new int[capacity];
+                    break;
+                case Double:
+                    doubles = new double[capacity];
+                    break;
+                case Boolean:
+                    booleans = new boolean[capacity];
+                    break;
+                default:
+                    strings = new String[capacity];
+            }
+        }
+
+        void ensureCapacity(int capacity) {
+            if (capacity <= nulls.length) {
+                return;
+            }
+            int newCapacity = Math.max(capacity, nulls.length * 2);
+            nulls = Arrays.copyOf(nulls, newCapacity);
+            if (longs != null) {
+                longs = Arrays.copyOf(longs, newCapacity);
+            }
+            if (ints != null) {
+                ints = Arrays.copyOf(ints, newCapacity);
+            }
+            if (doubles != null) {
+                doubles = Arrays.copyOf(doubles, newCapacity);
+            }
+            if (booleans != null) {
+                booleans = Arrays.copyOf(booleans, newCapacity);
+            }
+            if (strings != null) {
+                strings = Arrays.copyOf(strings, newCapacity);
+            }
+        }
+
+        /**
+         * @param row [in] The row.
+         * @param buf [in] The chunk bytes.
+         * @param start [in] The first byte of the unquoted field.
+         * @param end [in] The end of the unquoted field.
+         */
+        void set(int row, ByteBuffer buf, int start, int end) {
+            if (start == end) {
+                nulls[row] = true;
+                return;
+            }
+            switch (type) {
+                case Long:
+                    longs[row] = parseLong(buf, start, end);
+                    break;
+                case Integer:
+                    ints[row] = Math.toIntExact(parseLong(buf, start, end));
+                    break;
+                default:
+                    set(row, decode(buf, start, end));
+            }
+        }
+
+        /**
+         * @param row [in] The row.
+         * @param field [in] The field text.
+         */
+        void set(int row, String field) {
+            switch (type) {
+                case Long:
+                    longs[row] = Long.parseLong(field.trim());
+                    break;
+                case Integer:
+                    ints[row] = Integer.parseInt(field.trim());
+                    break;
+                case Double:
+                    doubles[row] = Double.parseDouble(field.trim());
+                    break;
+                case Boolean:
+                    booleans[row] = field.trim().equalsIgnoreCase("true") || field.trim().equals("1");
+                    break;
+                default:
+                    strings[row] = field;
+            }
+        }
+
+        void write(Graph g, long oid, int attribute, int row, Value value) {
+            if (nulls[row]) {
+                return;
+            }
+            switch (type) {
+                case Long:
+                    g.setAttribute(oid, attribute, value.setLong(longs[row]));
+                    break;
+                case Integer:
+                    g.setAttribute(oid, attribute, value.setInteger(ints[row]));
+                    break;
+                case Double:
+                    g.setAttribute(oid, attribute, value.setDouble(doubles[row]));
+                    break;
+                case Boolean:
+                    g.setAttribute(oid, attribute, value.setBoolean(booleans[row]));
+                    break;
+                default:
+                    g.setAttribute(oid, attribute, value.setString(strings[row]));
+            }
+        }
+    }
+
+    /**
+     * The parsed rows of a chunk of a file.
+     */
+    private static class Chunk {
+        int rows;
+        long[][] keys;          // The node identifiers (one column for nodes, two for edges)
+        ColumnData[] columns;   // null for the columns that are only identifiers
+        long[] tails;           // The resolved edge endpoints
+        long[] heads;
+        long skipped;           // Edges with unknown endpoints
+    }
+
+    private final Session sess;
+    private final Graph g;
+    private final LongLongHashMap oids;
+    private int numThreads;
+    private int chunkSize;
+    private byte separator;
+    private long duplicatedNodes;
+    // The attributes of the columns of the file being loaded
+    private int[] columnAttributes;
+
+    /**
+     * @param sess [in] The session used to write the data.
+     * @param expectedNodes [in] The expected number of nodes, to size the identifiers map.
+     */
+    public BulkLoader( Session sess, long expectedNodes ) {
+        this.sess = sess;
+        this.g = sess.getGraph();
+        this.oids = new LongLongHashMap(expectedNodes, MISSING_OID);
+        this.numThreads = Runtime.getRuntime().availableProcessors();
+        this.chunkSize = DEFAULT_CHUNK_SIZE;
+        this.separator = ',';
+        this.duplicatedNodes = 0;
+    }
+
+    /**
+     * @param numThreads [in] The number of parser threads.
+     */
+    public void setNumThreads( int numThreads ) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * @param chunkSize [in] The approximate size in bytes of each parsed chunk and transaction.
+     */
+    public void setChunkSize( int chunkSize ) {
+        this.chunkSize = Math.max(1024, chunkSize);
+    }
+
+    /**
+     * @param separator [in] The field separator (a comma by default).
+     */
+    public void setSeparator( char separator ) {
+        if ((separator == '"') || (separator == '\n') || (separator == '\r') || (separator > 127)) {
+            throw new IllegalArgumentException("Invalid CSV separator: "+separator);
+        }
+        this.separator = (byte) separator;
+    }
+
+    /**
+     * @return Returns the number of nodes whose identifier was already loaded (the new node gets it).
+     */
+    public long getDuplicatedNodes() {
+        return duplicatedNodes;
+    }
+
+    static long parseLong( ByteBuffer buf, int start, int end ) {
+        int pos = start;
+        while ((pos < end) && (buf.get(pos) == ' ')) {
+            pos++;
+        }
+        while ((end > pos) && (buf.get(end - 1) == ' ')) {
+            end--;
+        }
+        boolean negative = false;
+        if ((pos < end) && ((buf.get(pos) == '-') || (buf.get(pos) == '+'))) {
+            negative = (buf.get(pos) == '-');
+            pos++;
+        }
+        if (pos == end) {
+            throw new NumberFormatException("Invalid number \""+decode(buf, start, end)+"\"");
+        }
+        long result = 0;
+        for (; pos < end; pos++) {
+            int digit = buf.get(pos) - '0';
+            if ((digit < 0) || (digit > 9)) {
+                throw new NumberFormatException("Invalid number \""+decode(buf, start, end)+"\"");
+            }
+            // Accumulated as a negative number so Long.MIN_VALUE is also valid
+            result = Math.subtractExact(Math.multiplyExact(result, 10L), digit);
+        }
+        return negative? result : Math.negateExact(result);
+    }
+
+    static String decode( ByteBuffer buf, int start, int end ) {
+        byte[] bytes = new byte[end - start];
+        for (int ii = start; ii < end; ii++) {
+            bytes[ii - start] = buf.get(ii);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param ch [in] The file.
+     * @param offset [in] A file position.
+     * @return Returns the position after the end of the line that contains the given position, or the file size.
+     */
+    private static long alignToLine( FileChannel ch, long offset ) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        long pos = offset;
+        while (pos < ch.size()) {
+            buf.clear();
+            int read = ch.read(buf, pos);
+            if (read <= 0) {
+                break;
+            }
+            for (int ii = 0; ii < read; ii++) {
+                if (buf.get(ii) == '\n') {
+                    return pos + ii + 1;
+                }
+            }
+            pos += read;
+        }
+        return ch.size();
+    }
+
+    private ColumnSpec[] parseHeader( FileChannel ch, String file, int numKeys, long[] dataStart ) throws IOException {
+        dataStart[0] = alignToLine(ch, 0);
+        int headerLength = (int) Math.min(dataStart[0], Integer.MAX_VALUE);
+        MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, headerLength);
+        String header = decode(buf, 0, headerLength).trim();
+        String[] definitions = header.split(java.util.regex.Pattern.quote(String.valueOf((char) separator)), -1);
+        if (definitions.length < numKeys) {
+            throw new IllegalArgumentException("The header of \""+file+"\" needs at least "+numKeys+" columns");
+        }
+        ColumnSpec[] columns = new ColumnSpec[definitions.length];
+        for (int ii = 0; ii < definitions.length; ii++) {
+            String[] parts = definitions[ii].trim().split(":", -1);
+            ColumnSpec column = new ColumnSpec();
+            column.name = parts[0].trim();
+            column.type = DataType.String;
+            column.kind = AttributeKind.Basic;
+            if ((parts.length > 1) && !parts[1].trim().isEmpty()) {
+                column.type = parseType(parts[1].trim(), file);
+            }
+            if ((parts.length > 2) && !parts[2].trim().isEmpty()) {
+                column.kind = parseKind(parts[2].trim(), file);
+            }
+            if (ii < numKeys) {
+                // Identifier column, only an attribute too if it has a name
+                if ((column.type != DataType.Long) && (column.type != DataType.Integer) && !column.name.isEmpty()) {
+                    throw new IllegalArgumentException("The identifier column of \""+file+"\" must be an int or a long");
+                }
+                column.type = column.name.isEmpty()? DataType.Long : column.type;
+                if (column.name.isEmpty() || (numKeys > 1)) {
+                    column.name = null;
+                }
+            }
+            else if (column.name.isEmpty()) {
+                throw new IllegalArgumentException("The column "+ii+" of \""+file+"\" has no name");
+            }
+            columns[ii] = column;
+        }
+        return columns;
+    }
+
+    private static DataType parseType( String type, String file ) {
+        switch (type.toLowerCase()) {
+            case "string":
+                return DataType.String;
+            case "int":
+            case "integer":
+                return DataType.Integer;
+            case "long":
+                return DataType.Long;
+            case "double":
+                return DataType.Double;
+            case "boolean":
+                return DataType.Boolean;
+            // The identifier column definitions of other tools
+            case "id":
+            case "start_id":
+            case "end_id":
+                return DataType.Long;
+            default:
+                throw new IllegalArgumentException("Unknown column type \""+type+"\" in \""+file+"\"");
+        }
+    }
+
+    private static AttributeKind parseKind( String kind, String file ) {
+        switch (kind.toLowerCase()) {
+            case "basic":
+                return AttributeKind.Basic;
+            case "indexed":
+                return AttributeKind.Indexed;
+            case "unique":
+                return AttributeKind.Unique;
+            default:
+                throw new IllegalArgumentException("Unknown attribute kind \""+kind+"\" in \""+file+"\"");
+        }
+    }
+
+    /**
+     * Finds or creates the global attributes of the columns.
+     */
+    private void prepareAttributes( ColumnSpec[] columns ) {
+        sess.beginUpdate();
+        for (ColumnSpec column : columns) {
+            if (column.name == null) {
+                continue;
+            }
+            column.attribute = g.findAttribute(Type.GlobalType, column.name);
+            if (column.attribute == Attribute.InvalidAttribute) {
+                column.attribute = g.newAttribute(Type.GlobalType, column.name, column.type, column.kind);
+            }
+            else {
+                Attribute attribute = g.getAttribute(column.attribute);
+                if (attribute.getDataType() != column.type) {
+                    sess.commit();
+                    throw new IllegalArgumentException("The attribute "+column.name+" already exists with the type "+
+                            attribute.getDataType());
+                }
+            }
+        }
+        sess.commit();
+    }
+
+    /**
+     * Parses a chunk of whole lines.
+     */
+    private Chunk parseChunk( FileChannel ch, String file, long start, long end, ColumnSpec[] columns, int numKeys )
+            throws IOException {
+        MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        int limit = buf.limit();
+        int capacity = Math.max(16, limit / 32);
+        Chunk chunk = new Chunk();
+        chunk.keys = new long[numKeys][capacity];
+        chunk.columns = new ColumnData[columns.length];
+        for (int ii = 0; ii < columns.length; ii++) {
+            if (columns[ii].name != null) {
+                chunk.columns[ii] = new ColumnData(columns[ii].type, capacity);
+            }
+        }
+        int pos = 0;
+        while (pos < limit) {
+            byte b = buf.get(pos);
+            if ((b == '\n') || (b == '\r')) {
+                // Empty line
+                pos++;
+                continue;
+            }
+            int row = chunk.rows++;
+            if (row >= capacity) {
+                capacity *= 2;
+                for (int kk = 0; kk < numKeys; kk++) {
+                    chunk.keys[kk] = Arrays.copyOf(chunk.keys[kk], capacity);
+                }
+                for (ColumnData data : chunk.columns) {
+                    if (data != null) {
+                        data.ensureCapacity(capacity);
+                    }
+                }
+            }
+            for (int col = 0; col < columns.length; col++) {
+                int fieldStart = pos;
+                String quotedField = null;
+                if ((pos < limit) && (buf.get(pos) == '"')) {
+                    StringBuilder unquoted = new StringBuilder();
+                    int partStart = ++pos;
+                    while (true) {
+                        if (pos >= limit) {
+                            throw new IllegalArgumentException("Unterminated quoted field in \""+file+"\" at byte "+(start+fieldStart));
+                        }
+                        if (buf.get(pos) == '"') {
+                            unquoted.append(decode(buf, partStart, pos));
+                            if ((pos + 1 < limit) && (buf.get(pos + 1) == '"')) {
+                                unquoted.append('"');
+                                pos += 2;
+                                partStart = pos;
+                                continue;
+                            }
+                            pos++;
+                            break;
+                        }
+                        pos++;
+                    }
+                    quotedField = unquoted.toString();
+                }
+                else {
+                    while ((pos < limit) && (buf.get(pos) != separator) && (buf.get(pos) != '\n') && (buf.get(pos) != '\r')) {
+                        pos++;
+                    }
+                }
+                try {
+                    if (col < numKeys) {
+                        chunk.keys[col][row] = (quotedField != null)? Long.parseLong(quotedField.trim()) : parseLong(buf, fieldStart, pos);
+                    }
+                    if (chunk.columns[col] != null) {
+                        if (quotedField != null) {
+                            chunk.columns[col].set(row, quotedField);
+                        }
+                        else {
+                            chunk.columns[col].set(row, buf, fieldStart, pos);
+                        }
+                    }
+                }
+                catch (NumberFormatException | ArithmeticException ex) {
+                    throw new IllegalArgumentException("Invalid "+((col < numKeys)? "identifier" : columns[col].name)+
+                            " value in \""+file+"\" at byte "+(start+fieldStart)+": "+ex.getMessage());
+                }
+                boolean lastColumn = (col == columns.length - 1);
+                if ((pos < limit) && (buf.get(pos) == separator) && !lastColumn) {
+                    pos++;
+                }
+                else if (!lastColumn || ((pos < limit) && (buf.get(pos) != '\n') && (buf.get(pos) != '\r'))) {
+                    throw new IllegalArgumentException("Expected "+columns.length+" columns in \""+file+"\" at byte "+(start+fieldStart));
+                }
+            }
+            // The end of the line
+            while ((pos < limit) && (buf.get(pos) != '\n')) {
+                pos++;
+            }
+            pos++;
+        }
+        return chunk;
+    }
+
+    /**
+     * Splits the data of a file in chunks of whole lines.
+     * @return Returns the start of each chunk and the end of the last one.
+     */
+    private long[] splitChunks( FileChannel ch, long dataStart ) throws IOException {
+        ArrayList<Long> bounds = new ArrayList<Long>();
+        long pos = dataStart;
+        bounds.add(pos);
+        while (pos < ch.size()) {
+            pos = alignToLine(ch, Math.min(ch.size(), pos + chunkSize) - 1);
+            bounds.add(pos);
+        }
+        long[] result = new long[bounds.size()];
+        for (int ii = 0; ii < result.length; ii++) {
+            result[ii] = bounds.get(ii);
+        }
+        return result;
+    }
+
+    /**
+     * Loads a node CSV file.
+     * @param typeName [in] The node type, created if it doesn't exist.
+     * @param file [in] The CSV file.
+     * @return Returns the number of loaded nodes.
+     */
+    public long loadNodes( String typeName, final String file ) throws IOException, InterruptedException {
+        sess.beginUpdate();
+        int type = g.findType(typeName);
+        if (type == Type.InvalidType) {
+            type = g.newNodeType(typeName);
+        }
+        sess.commit();
+        final int nodeType = type;
+        final AtomicLong loaded = new AtomicLong();
+        load(file, 1, new OrderedBatches.Consumer<Chunk>() {
+            private final Value value = new Value();
+
+            @Override
+            public void consume(Chunk chunk) {
+                sess.beginUpdate();
+                for (int row = 0; row < chunk.rows; row++) {
+                    long oid = g.newNode(nodeType);
+                    if (oids.put(chunk.keys[0][row], oid) != MISSING_OID) {
+                        duplicatedNodes++;
+                    }
+                    writeAttributes(chunk, oid, row, value);
+                }
+                sess.commit();
+                loaded.addAndGet(chunk.rows);
+            }
+        }, false);
+        return loaded.get();
+    }
+
+    /**
+     * Loads an edge CSV file, after all the node files.
+     * @param typeName [in] The edge type, created if it doesn't exist.
+     * @param file [in] The CSV file.
+     * @param directed [in] True to create a directed edge type.
+     * @return Returns the number of loaded edges. The edges with an unknown node identifier are skipped.
+     */
+    public long loadEdges( String typeName, final String file, boolean directed ) throws IOException, InterruptedException {
+        sess.beginUpdate();
+        int type = g.findType(typeName);
+        if (type == Type.InvalidType) {
+            type = g.newEdgeType(typeName, directed, true);
+        }
+        sess.commit();
+        final int edgeType = type;
+        final AtomicLong loaded = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+        load(file, 2, new OrderedBatches.Consumer<Chunk>() {
+            private final Value value = new Value();
+
+            @Override
+            public void consume(Chunk chunk) {
+                sess.beginUpdate();
+                for (int row = 0; row < chunk.rows; row++) {
+                    if ((chunk.tails[row] == MISSING_OID) || (chunk.heads[row] == MISSING_OID)) {
+                        continue;
+                    }
+                    long oid = g.newEdge(edgeType, chunk.tails[row], chunk.heads[row]);
+                    writeAttributes(chunk, oid, row, value);
+                }
+                sess.commit();
+                loaded.addAndGet(chunk.rows - chunk.skipped);
+                skipped.addAndGet(chunk.skipped);
+            }
+        }, true);
+        if (skipped.get() > 0) {
+            logger.warn(skipped.get()+" edges of \""+file+"\" skipped because of unknown node identifiers");
+        }
+        return loaded.get();
+    }
+
+    private void writeAttributes( Chunk chunk, long oid, int row, Value value ) {
+        for (int col = 0; col < chunk.columns.length; col++) {
+            if (chunk.columns[col] != null) {
+                chunk.columns[col].write(g, oid, columnAttributes[col], row, value);
+            }
+        }
+    }
+
+    private void load( final String file, final int numKeys, OrderedBatches.Consumer<Chunk> consumer, final boolean resolveEdges )
+            throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        try (final FileChannel ch = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            long[] dataStart = new long[1];
+            final ColumnSpec[] columns = parseHeader(ch, file, numKeys, dataStart);
+            prepareAttributes(columns);
+            columnAttributes = new int[columns.length];
+            for (int ii = 0; ii < columns.length; ii++) {
+                columnAttributes[ii] = columns[ii].attribute;
+            }
+            final long[] bounds = splitChunks(ch, dataStart[0]);
+            ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+            try {
+                OrderedBatches.run(executor, 2 * numThreads, bounds.length - 1, new OrderedBatches.Producer<Chunk>() {
+                    @Override
+                    public Chunk produce(long batch) throws IOException {
+                        Chunk chunk = parseChunk(ch, file, bounds[(int) batch], bounds[(int) batch + 1], columns, numKeys);
+                        if (resolveEdges) {
+                            // The identifiers map is only read while the edges are loaded
+                            chunk.tails = new long[chunk.rows];
+                            chunk.heads = new long[chunk.rows];
+                            for (int row = 0; row < chunk.rows; row++) {
+                                chunk.tails[row] = oids.get(chunk.keys[0][row]);
+                                chunk.heads[row] = oids.get(chunk.keys[1][row]);
+                                if ((chunk.tails[row] == MISSING_OID) || (chunk.heads[row] == MISSING_OID)) {
+                                    chunk.skipped++;
+                                }
+                            }
+                        }
+                        return chunk;
+                    }
+                }, consumer);
+            }
+            finally {
+                executor.shutdownNow();
+            }
+        }
+        logger.info("Loaded \""+file+"\" in "+(System.currentTimeMillis()-start)+" ms");
+    }
+
+    /**
+     * @param spec [in] A "TYPE=file" argument.
+     * @return Returns the type name and the file name.
+     */
+    private static String[] parseFileSpec( String spec ) {
+        int eq = spec.indexOf('=');
+        if ((eq <= 0) || (eq == spec.length() - 1)) {
+            throw new IllegalArgumentException("Expected TYPE=file instead of \""+spec+"\"");
+        }
+        return new String[] {spec.substring(0, eq), spec.substring(eq + 1)};
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Options options = new Options();
+        Option dbFile = Option.builder("db")
+                .required(true)
+                .longOpt("database")
+                .desc( "The Sparksee database file." )
+                .hasArg()
+                .build();
+        options.addOption( dbFile );
+        Option appendOpt = new Option( "a", "append", false, "Load into an existing database instead of creating it" );
+        options.addOption( appendOpt );
+        Option nodesOpt = Option.builder("n")
+                .required(false)
+                .longOpt("nodes")
+                .desc( "A node file as TYPE=file (it can be repeated)." )
+                .hasArg()
+                .build();
+        options.addOption( nodesOpt );
+        Option edgesOpt = Option.builder("e")
+                .required(false)
+                .longOpt("edges")
+                .desc( "An edge file as TYPE=file (it can be repeated)." )
+                .hasArg()
+                .build();
+        options.addOption( edgesOpt );
+        Option undirectedOpt = Option.builder("u")
+                .required(false)
+                .longOpt("undirected")
+                .desc( "The comma separated edge types to create as undirected." )
+                .hasArg()
+                .build();
+        options.addOption( undirectedOpt );
+        Option expectedOpt = Option.builder("en")
+                .required(false)
+                .longOpt("expectedNodes")
+                .desc( "The expected number of nodes, to size the identifiers map (default: 1000000)." )
+                .hasArg()
+                .build();
+        options.addOption( expectedOpt );
+        Option threadsOpt = Option.builder("t")
+                .required(false)
+                .longOpt("threads")
+                .desc( "The number of parser threads (default: the number of available processors)." )
+                .hasArg()
+                .build();
+        options.addOption( threadsOpt );
+        Option chunkOpt = Option.builder("cs")
+                .required(false)
+                .longOpt("chunkSize")
+                .desc( "The size in MB of each parsed chunk and transaction (default: 64)." )
+                .hasArg()
+                .build();
+        options.addOption( chunkOpt );
+        Option separatorOpt = Option.builder("sep")
+                .required(false)
+                .longOpt("separator")
+                .desc( "The field separator (default: ,)." )
+                .hasArg()
+                .build();
+        options.addOption( separatorOpt );
+        Option cacheOpt = Option.builder("cache")
+                .required(false)
+                .desc( "The Sparksee cache size in MB." )
+                .hasArg()
+                .build();
+        options.addOption( cacheOpt );
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine line;
+        try {
+            line = parser.parse( options, args );
+        }
+        catch( ParseException exp ) {
+            System.err.println( "Parsing failed.  Reason: " + exp.getMessage() );
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("SparkseePGQL.BulkLoader", options);
+            System.exit(1);
+            return;
+        }
+
+        HashSet<String> undirected = new HashSet<String>();
+        if (line.hasOption("u")) {
+            for (String type : line.getOptionValue("u").split(",")) {
+                undirected.add(type.trim());
+            }
+        }
+        String databaseFilePath = line.getOptionValue("db");
+        SparkseeConfig cfg = new SparkseeConfig();
+        // A failed load is repeated from scratch, so there is nothing to recover or roll back
+        cfg.setRecoveryEnabled(false);
+        cfg.setRollbackEnabled(false);
+        if (line.hasOption("cache")) {
+            cfg.setCacheMaxSize(Integer.parseInt(line.getOptionValue("cache")));
+        }
+        Sparksee sparksee = new Sparksee(cfg);
+        Database db;
+        try {
+            db = line.hasOption("a")? sparksee.open(databaseFilePath, false) :
+                    sparksee.create(databaseFilePath, "SparkseePGQLBulkLoad");
+        } catch (java.io.FileNotFoundException ex) {
+            System.err.println("Error opening Sparksee database \""+databaseFilePath+"\": "+ex.getMessage());
+            sparksee.close();
+            System.exit(1);
+            return;
+        }
+        Session sess = db.newSession();
+        try {
+            BulkLoader loader = new BulkLoader(sess, Long.parseLong(line.getOptionValue("en", "1000000")));
+            if (line.hasOption("t")) {
+                loader.setNumThreads(Integer.parseInt(line.getOptionValue("t")));
+            }
+            if (line.hasOption("cs")) {
+                loader.setChunkSize(Integer.parseInt(line.getOptionValue("cs")) * 1024 * 1024);
+            }
+            if (line.hasOption("sep")) {
+                String sep = line.getOptionValue("sep");
+                loader.setSeparator(sep.equals("\\t")? '\t' : sep.charAt(0));
+            }
+            long start = System.currentTimeMillis();
+            long nodes = 0;
+            long edges = 0;
+            if (line.hasOption("n")) {
+                for (String spec : line.getOptionValues("n")) {
+                    String[] typeAndFile = parseFileSpec(spec);
+                    nodes += loader.loadNodes(typeAndFile[0], typeAndFile[1]);
+                }
+            }
+            if (line.hasOption("e")) {
+                for (String spec : line.getOptionValues("e")) {
+                    String[] typeAndFile = parseFileSpec(spec);
+                    edges += loader.loadEdges(typeAndFile[0], typeAndFile[1], !undirected.contains(typeAndFile[0]));
+                }
+            }
+            if (loader.getDuplicatedNodes() > 0) {
+                System.err.println(loader.getDuplicatedNodes()+" nodes have a duplicated identifier");
+            }
+            System.out.println("Loaded "+nodes+" nodes and "+edges+" edges in "+(System.currentTimeMillis()-start)+" ms");
+        }
+        catch (IllegalArgumentException ex) {
+            System.err.println("Error loading the data: "+ex.getMessage());
+            System.exit(1);
+        }
+        finally {
+            sess.close();
+            db.close();
+            sparksee.close();
+        }
+    }
+}
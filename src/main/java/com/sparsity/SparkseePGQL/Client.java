@@ -3,9 +3,20 @@ package com.sparsity.SparkseePGQL;
 import com.sparsity.sparksee.gdb.*;
 import org.apache.commons.cli.*;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  */
@@ -14,26 +25,53 @@ public class Client {
     private SparkseePGQL spgql;
     private String dbFilePath;
     private Boolean showAlgebra;
+    private boolean explain;
+    private boolean explainAnalyze;
     private Sparksee sparksee;
     private Database db;
     private Session sess;
     private Graph graph;
+    private StatisticsCatalog statistics;
     private int resultRowsLimit;
+    private String arrowOutputDir;
+    private int maxSessions;
+    private int parallelism;
+    private long queryTimeoutMillis;
+    private SessionPool sessionPool;
+
+    private static final Pattern EXPLAIN_PREFIX =
+            Pattern.compile("^\\s*EXPLAIN\\s+(ANALYZE\\s+)?", Pattern.CASE_INSENSITIVE);
 
 
     public Client() {
         spgql = new SparkseePGQL();
         dbFilePath = null;
         showAlgebra = false;
+        explain = false;
+        explainAnalyze = false;
         sparksee = null;
         db = null;
         sess = null;
         graph = null;
+        statistics = null;
         resultRowsLimit = 10;
+        arrowOutputDir = null;
+        maxSessions = Runtime.getRuntime().availableProcessors();
+        sessionPool = null;
+        parallelism = 1;
+        queryTimeoutMillis = 0;
     }
 
     @Override
     protected void finalize() throws Throwable {
+        if (sessionPool != null) {
+            sessionPool.close();
+            sessionPool = null;
+        }
+        if (statistics != null) {
+            statistics.close();
+            statistics = null;
+        }
         if (sess != null) {
             sess.close();
             sess = null;
@@ -53,6 +91,100 @@ public class Client {
         this.showAlgebra = showAlgebra;
     }
 
+    /**
+     * @return Returns the metrics of the translations done by this client.
+     */
+    public TranslationMetrics getTranslationMetrics() {
+        return spgql.getMetrics();
+    }
+
+    /**
+     * @param explain [in] True to show the plan of the queries with the estimated rows instead of running them.
+     */
+    public void setExplain(boolean explain) {
+        this.explain = explain;
+    }
+
+    /**
+     * @param explainAnalyze [in] True to run the queries showing the actual rows and time of each operator.
+     */
+    public void setExplainAnalyze(boolean explainAnalyze) {
+        this.explainAnalyze = explainAnalyze;
+    }
+
+    /**
+     * @param supported [in] True if the Sparksee engine can run the bounded SORT of the ORDER BY ... LIMIT
+     *                  queries. Otherwise the client keeps the first rows itself.
+     */
+    public void setTopKSortSupported(boolean supported) {
+        spgql.setTopKSortSupported(supported);
+    }
+
+    /**
+     * @param limit [in] The number of result rows printed for each query, or 0 to print all of them.
+     */
+    public void setResultRowsLimit(int limit) {
+        this.resultRowsLimit = limit;
+    }
+
+    /**
+     * @param maxSessions [in] The maximum number of sessions of the session pool, set before using it.
+     */
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * @param parallelism [in] The number of queries of a script translated and run at the same time.
+     *                    The session pool has at least as many sessions.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        this.maxSessions = Math.max(maxSessions, this.parallelism);
+    }
+
+    /**
+     * @param millis [in] The maximum time to read the result of each query, or 0 for no limit.
+     */
+    public void setQueryTimeout(long millis) {
+        this.queryTimeoutMillis = millis;
+    }
+
+    /**
+     * @return Returns the pool of sessions of the open database used to run the queries, or null without a database.
+     */
+    public synchronized SessionPool getSessionPool() {
+        if ((sessionPool == null) && (db != null)) {
+            sessionPool = new SessionPool(db, maxSessions);
+        }
+        return sessionPool;
+    }
+
+    private ResultCursor execute( SessionPool.PooledSession pooled, String queryStr ) {
+        ResultCursor cursor = pooled.execute(queryStr);
+        if (queryTimeoutMillis > 0) {
+            cursor.setTimeout(queryTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        return cursor;
+    }
+
+    private SessionPool.PooledSession checkoutSession() {
+        try {
+            return getSessionPool().checkout();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a session", ex);
+        }
+    }
+
+    /**
+     * @param dir [in] The directory where the results are written as Arrow streams instead of printed, or null.
+     */
+    public void setArrowOutputDirectory(String dir) {
+        this.arrowOutputDir = dir;
+    }
+
 
     /**
      * Opens the given database as read-only
@@ -71,70 +203,211 @@ public class Client {
         }
         sess = db.newSession();
         graph = sess.getGraph();
+        loadStatistics();
         return true;
     }
 
+    /**
+     * Collects the statistics of the open database to be used by the translator.
+     */
+    private void loadStatistics() {
+        statistics = new StatisticsCatalog(db);
+        statistics.refresh();
+        spgql.setStatisticsCatalog(statistics);
+    }
 
+    /**
+     * Refreshes the statistics of the open database periodically.
+     * @param seconds [in] The seconds between refreshes.
+     */
+    public void scheduleStatisticsRefresh( long seconds ) {
+        if (statistics != null) {
+            statistics.scheduleRefresh(seconds, TimeUnit.SECONDS);
+        }
+    }
+
+
+    /**
+     * Runs a query and prints its first rows as they are read.
+     * @param queryStr [in] The Sparksee algebra query.
+     */
     public void runSparkseeQuery( String queryStr ) {
-        Value v = new Value();
-        Query query = sess.newQuery();
-        //System.out.println("Running query: \""+queryStr+"\"");
-        ResultSet rs = query.execute(queryStr);
-        String result = rs.getJSON(resultRowsLimit);
-        System.out.println("Sparksee query execution result:\n"+result);
-        rs.close();
-        query.close();
+        runSparkseeQuery(queryStr, System.out);
     }
 
-    public void processScript( String queriesFile ) {
-        int counter = 0;
-        try (BufferedReader br = new BufferedReader(new FileReader(queriesFile))) {
-            String line;
-            Boolean queryReady = false;
-            StringBuilder pgqlQueryString = new StringBuilder();
-            while ((line = br.readLine()) != null) {
-                // process the line.
-//                line.replace("\n", " ");
-//                line.replace("\r", "");
-                if (line.compareTo("?")==0)
-                {
-                    queryReady = true;
-                }
-                else if (line.startsWith("#"))
-                {
-                    continue;
-                }
-                else if (line.endsWith("?"))
-                {
-                    pgqlQueryString.append(line.substring(0,line.length()-2));
-                    queryReady = true;
-                }
-                else {
-                    if ( pgqlQueryString.length() > 0 ) {
-                        pgqlQueryString.append(" ");
-                    }
-                    pgqlQueryString.append(line);
-                }
-                if (queryReady)
-                {
-                    // Show the original PGQL query:
-                    System.out.println("----------------------------------------------------------------------");
-                    System.out.println("Query "+counter);
-                    System.out.println("----------------------------------------------------------------------");
-                    System.out.println("Source PGQL Query:\n"+pgqlQueryString.toString());
-                    String sqaQuery = spgql.ProcessPGQLQuery(pgqlQueryString.toString());
-                    if (showAlgebra) {
-                        // Shown the algebra translation
-                        System.out.println( "Translated Sparksee Query Algebra:\n"+sqaQuery);
-                    }
-                    if (sess != null) {
-                        // Run the query
-                        runSparkseeQuery(sqaQuery);
+    /**
+     * @param queryStr [in] The Sparksee algebra query.
+     * @param out [in] The output of the result rows.
+     */
+    public void runSparkseeQuery( String queryStr, PrintStream out ) {
+        try (SessionPool.PooledSession pooled = checkoutSession()) {
+            ResultCursor cursor = execute(pooled, queryStr);
+            List<String> columnNames = cursor.getColumnNames();
+            StringBuilder sb = new StringBuilder("Sparksee query execution result:\n[");
+            while (((resultRowsLimit <= 0) || (cursor.getRowNumber() < resultRowsLimit)) && cursor.next()) {
+                sb.append((cursor.getRowNumber() == 1)? "\n  " : ",\n  ");
+                appendRowJSON(sb, columnNames, cursor.getRow());
+                out.print(sb);
+                sb.setLength(0);
+            }
+            out.println(sb.append("\n]"));
+        }
+    }
+
+    /**
+     * Runs a query and writes its result as an Arrow stream.
+     * @param queryStr [in] The Sparksee algebra query.
+     * @param file [in] The output file.
+     */
+    public void exportSparkseeQuery( String queryStr, File file ) throws IOException {
+        exportSparkseeQuery(queryStr, file, System.out);
+    }
+
+    /**
+     * @param queryStr [in] The Sparksee algebra query.
+     * @param file [in] The output file.
+     * @param out [in] The output of the written rows message.
+     */
+    public void exportSparkseeQuery( String queryStr, File file, PrintStream out ) throws IOException {
+        try (SessionPool.PooledSession pooled = checkoutSession();
+             ArrowResultWriter writer = new ArrowResultWriter(new FileOutputStream(file))) {
+            long rows = writer.write(execute(pooled, queryStr));
+            out.println("Sparksee query execution result: "+rows+" rows written to \""+file+"\"");
+        }
+    }
+
+    /**
+     * Runs an ORDER BY ... LIMIT query keeping only its first rows while they are read.
+     * @param topKQuery [in] The translation without the SORT and the LIMIT.
+     */
+    public void runSparkseeTopKQuery( TopKQuery topKQuery ) {
+        runSparkseeTopKQuery(topKQuery, System.out);
+    }
+
+    /**
+     * @param topKQuery [in] The translation without the SORT and the LIMIT.
+     * @param out [in] The output of the result rows.
+     */
+    public void runSparkseeTopKQuery( TopKQuery topKQuery, PrintStream out ) {
+        final List<Integer> sortColumns = topKQuery.getSortColumns();
+        TopKCollector<Object[]> collector = new TopKCollector<Object[]>(new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] row1, Object[] row2) {
+                for (int col : sortColumns) {
+                    int cmp = compareValues(row1[col], row2[col]);
+                    if (cmp != 0) {
+                        return cmp;
                     }
-                    pgqlQueryString.setLength(0);
-                    queryReady = false;
-                    counter++;
                 }
+                return 0;
+            }
+        }, topKQuery.getOffset(), topKQuery.getLimit());
+        List<String> columnNames;
+        try (SessionPool.PooledSession pooled = checkoutSession()) {
+            ResultCursor cursor = execute(pooled, topKQuery.getAlgebra());
+            columnNames = cursor.getColumnNames().subList(0, topKQuery.getNumResultColumns());
+            while (cursor.next()) {
+                collector.add(cursor.getRow());
+            }
+        }
+        out.println("Sparksee query execution result:\n"+
+                rowsToJSON(columnNames, collector.getResult(), resultRowsLimit));
+    }
+
+    /**
+     * Compares two result values with the nulls first. Numbers of any type are compared as numbers.
+     */
+    @SuppressWarnings("unchecked")
+    private static int compareValues( Object v1, Object v2 ) {
+        if ((v1 == null) || (v2 == null)) {
+            return (v1 == null)? ((v2 == null)? 0 : -1) : 1;
+        }
+        if ((v1 instanceof Number) && (v2 instanceof Number)) {
+            return Double.compare(((Number) v1).doubleValue(), ((Number) v2).doubleValue());
+        }
+        if (v1.getClass() == v2.getClass()) {
+            return ((Comparable<Object>) v1).compareTo(v2);
+        }
+        return v1.toString().compareTo(v2.toString());
+    }
+
+    private static String rowsToJSON( List<String> columnNames, List<Object[]> rows, int maxRows ) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int ii = 0; ii < rows.size() && ((maxRows <= 0) || (ii < maxRows)); ii++) {
+            sb.append((ii == 0)? "\n  " : ",\n  ");
+            appendRowJSON(sb, columnNames, rows.get(ii));
+        }
+        return sb.append("\n]").toString();
+    }
+
+    private static void appendRowJSON( StringBuilder sb, List<String> columnNames, Object[] row ) {
+        sb.append("{");
+        for (int col = 0; col < columnNames.size(); col++) {
+            if (col > 0) {
+                sb.append(", ");
+            }
+            sb.append(jsonString(columnNames.get(col))).append(": ");
+            Object value = row[col];
+            if ((value == null) || (value instanceof Number) || (value instanceof Boolean)) {
+                sb.append(value);
+            }
+            else {
+                sb.append(jsonString(value.toString()));
+            }
+        }
+        sb.append("}");
+    }
+
+    private static String jsonString( String str ) {
+        return "\"" + str.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * Shows the plan of a query (EXPLAIN) or runs it showing the measures of each operator (EXPLAIN ANALYZE).
+     * @param pgqlQueryString [in] The PGQL query without the EXPLAIN keywords.
+     * @param analyze [in] True to run the query.
+     */
+    public void explainQuery( String pgqlQueryString, boolean analyze ) {
+        explainQuery(pgqlQueryString, analyze, System.out);
+    }
+
+    /**
+     * @param pgqlQueryString [in] The PGQL query without the EXPLAIN keywords.
+     * @param analyze [in] True to run the query.
+     * @param out [in] The output of the plan.
+     */
+    public void explainQuery( String pgqlQueryString, boolean analyze, PrintStream out ) {
+        SQAOperator plan = spgql.ExplainPGQLQuery(pgqlQueryString);
+        if (plan == null) {
+            out.println("The query could not be translated.");
+            return;
+        }
+        if (analyze && (getSessionPool() != null)) {
+            // Run on a pooled session, like the queries that are not explained
+            try (SessionPool.PooledSession pooled = checkoutSession()) {
+                out.println("Query plan (EXPLAIN ANALYZE):\n"+new QueryProfiler(pooled.getSession()).explainAnalyze(plan));
+            }
+        }
+        else {
+            out.println("Query plan (EXPLAIN):\n"+plan.explain());
+        }
+    }
+
+    /**
+     * Translates and runs the queries of a script, in parallel if the parallelism is greater than 1.
+     * @param queriesFile [in] The script file.
+     */
+    public void processScript( String queriesFile ) {
+        if (parallelism > 1) {
+            processScriptParallel(queriesFile);
+            return;
+        }
+        int counter = 0;
+        try (PGQLScriptReader reader = new PGQLScriptReader(queriesFile)) {
+            String pgqlQueryString;
+            while ((pgqlQueryString = reader.nextQuery()) != null) {
+                processQuery(counter, pgqlQueryString, System.out);
+                counter++;
             }
         }
         catch (IOException ex)
@@ -144,7 +417,125 @@ public class Client {
 
     }
 
-    private static void loadData( com.sparsity.sparksee.gdb.Graph g) {
+    /**
+     * Translates and runs the queries of a script with several threads, printing the output of each
+     * query in the script order. The output of the queries that finish before the previous ones is kept
+     * in memory, for up to twice the parallelism queries.
+     * @param queriesFile [in] The script file.
+     */
+    public void processScriptParallel( String queriesFile ) {
+        final ArrayList<String> queries;
+        try {
+            queries = PGQLScriptReader.readAll(queriesFile);
+        }
+        catch (IOException ex) {
+            System.err.println("Error reading input file \""+queriesFile+"\".");
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            OrderedBatches.run(executor, 2 * parallelism, queries.size(), new OrderedBatches.Producer<String>() {
+                @Override
+                public String produce(long batch) {
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    PrintStream out = new PrintStream(buffer);
+                    try {
+                        processQuery((int) batch, queries.get((int) batch), out);
+                    }
+                    catch (RuntimeException ex) {
+                        // The other queries of the script are still run
+                        out.println("Error running the query: "+ex.getMessage());
+                    }
+                    out.flush();
+                    return buffer.toString();
+                }
+            }, new OrderedBatches.Consumer<String>() {
+                @Override
+                public void consume(String output) {
+                    System.out.print(output);
+                    System.out.flush();
+                }
+            });
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted while running the script \""+queriesFile+"\".");
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Translates a query of a script and runs it or shows its plan.
+     * @param counter [in] The query number in the script.
+     * @param pgqlQueryString [in] The PGQL query.
+     * @param out [in] The output of the query.
+     */
+    private void processQuery( int counter, String pgqlQueryString, PrintStream out ) {
+        // Show the original PGQL query:
+        out.println("----------------------------------------------------------------------");
+        out.println("Query "+counter);
+        out.println("----------------------------------------------------------------------");
+        out.println("Source PGQL Query:\n"+pgqlQueryString);
+        // The queries may start with EXPLAIN or EXPLAIN ANALYZE
+        boolean queryExplain = explain;
+        boolean queryAnalyze = explainAnalyze;
+        Matcher explainMatcher = EXPLAIN_PREFIX.matcher(pgqlQueryString);
+        if (explainMatcher.find()) {
+            queryExplain = true;
+            queryAnalyze = queryAnalyze || (explainMatcher.group(1) != null);
+            pgqlQueryString = pgqlQueryString.substring(explainMatcher.end());
+        }
+        if (queryExplain || queryAnalyze) {
+            explainQuery(pgqlQueryString, queryAnalyze, out);
+            return;
+        }
+        // Without the bounded SORT in the engine, the first rows of the queries run here are kept
+        // by the client, so they are translated for it (only once, and what's shown is what's run)
+        TopKQuery clientQuery = null;
+        String sqaQuery;
+        if ((sess != null) && (arrowOutputDir == null)) {
+            clientQuery = spgql.ProcessPGQLClientQuery(pgqlQueryString);
+            sqaQuery = (clientQuery != null)? clientQuery.getAlgebra() : null;
+        }
+        else {
+            sqaQuery = spgql.ProcessPGQLQuery(pgqlQueryString);
+        }
+        if (showAlgebra) {
+            // Shown the algebra translation
+            out.println( "Translated Sparksee Query Algebra:\n"+sqaQuery);
+        }
+        if (sess != null) {
+            // Run the query
+            if ((sqaQuery != null) && (arrowOutputDir != null)) {
+                File arrowFile = new File(arrowOutputDir, "query"+counter+".arrows");
+                try {
+                    exportSparkseeQuery(sqaQuery, arrowFile, out);
+                }
+                catch (IOException ex) {
+                    out.println("Error writing the result file \""+arrowFile+"\": "+ex.getMessage());
+                }
+                catch (CancellationException ex) {
+                    out.println(ex.getMessage());
+                }
+                return;
+            }
+            try {
+                if ((clientQuery != null) && clientQuery.isClientTopK()) {
+                    runSparkseeTopKQuery(clientQuery, out);
+                }
+                else {
+                    runSparkseeQuery(sqaQuery, out);
+                }
+            }
+            catch (CancellationException ex) {
+                out.println("\n"+ex.getMessage());
+            }
+        }
+    }
+
+    static void loadData( com.sparsity.sparksee.gdb.Graph g) {
         //
         // SCHEMA
         //
@@ -269,6 +660,7 @@ public class Client {
         sess = db.newSession();
         graph = sess.getGraph();
         loadData(graph);
+        loadStatistics();
         return true;
     }
 
@@ -299,6 +691,63 @@ public class Client {
                 .hasArg()
                 .build();
         options.addOption( queriesFile );
+        Option statsRefresh = Option.builder("sr")
+                .required(false)
+                .longOpt("statsRefresh")
+                .desc( "Refresh the database statistics used to plan the queries every given seconds." )
+                .hasArg()
+                .build();
+        options.addOption( statsRefresh );
+        Option topKSort = new Option( "tk", "topKSort", false,
+                "The Sparksee engine supports the bounded SORT of the ORDER BY ... LIMIT queries" );
+        options.addOption( topKSort );
+        Option explainOpt = new Option( "x", "explain", false,
+                "Show the plan of the queries with the estimated rows instead of running them" );
+        options.addOption( explainOpt );
+        Option explainAnalyzeOpt = new Option( "xa", "explainAnalyze", false,
+                "Run the queries showing the actual rows and time of each operator" );
+        options.addOption( explainAnalyzeOpt );
+        Option metricsOpt = new Option( "m", "metrics", false,
+                "Print the translation metrics after running the queries" );
+        options.addOption( metricsOpt );
+        Option metricsPort = Option.builder("mp")
+                .required(false)
+                .longOpt("metricsPort")
+                .desc( "Export the translation metrics at http://localhost:<port>/metrics while running the queries." )
+                .hasArg()
+                .build();
+        options.addOption( metricsPort );
+        Option jmx = new Option( "jmx", "jmx", false,
+                "Register the translation metrics as a JMX MBean" );
+        options.addOption( jmx );
+        Option rowsLimit = Option.builder("rl")
+                .required(false)
+                .longOpt("rowsLimit")
+                .desc( "The number of result rows printed for each query, 0 for all of them (default: 10)." )
+                .hasArg()
+                .build();
+        options.addOption( rowsLimit );
+        Option arrowOutput = Option.builder("ao")
+                .required(false)
+                .longOpt("arrowOutput")
+                .desc( "Write the result of each query to <dir>/query<N>.arrows in the Arrow IPC stream format instead of printing it." )
+                .hasArg()
+                .build();
+        options.addOption( arrowOutput );
+        Option parallelOpt = Option.builder("p")
+                .required(false)
+                .longOpt("parallel")
+                .desc( "Translate and run N queries of the script at the same time, printing them in the script order." )
+                .hasArg()
+                .build();
+        options.addOption( parallelOpt );
+        Option queryTimeout = Option.builder("qt")
+                .required(false)
+                .longOpt("queryTimeout")
+                .desc( "Stop reading the result of a query after the given milliseconds." )
+                .hasArg()
+                .build();
+        options.addOption( queryTimeout );
 
 
 
@@ -313,6 +762,21 @@ public class Client {
 
             Client client = new Client();
             client.setShowAlgebra ( line.hasOption("a"));
+            client.setTopKSortSupported( line.hasOption("tk"));
+            client.setExplain( line.hasOption("x"));
+            client.setExplainAnalyze( line.hasOption("xa"));
+            if (line.hasOption("p")) {
+                client.setParallelism(Integer.parseInt(line.getOptionValue("p")));
+            }
+            if (line.hasOption("qt")) {
+                client.setQueryTimeout(Long.parseLong(line.getOptionValue("qt")));
+            }
+            if (line.hasOption("ao")) {
+                client.setArrowOutputDirectory(line.getOptionValue("ao"));
+            }
+            if (line.hasOption("rl")) {
+                client.setResultRowsLimit(Integer.parseInt(line.getOptionValue("rl")));
+            }
 
             if (line.hasOption( "db")) {
                 databaseFilePath = line.getOptionValue("db");
@@ -341,8 +805,41 @@ public class Client {
                 }
             }
 
+            if (line.hasOption("sr")) {
+                client.scheduleStatisticsRefresh(Long.parseLong(line.getOptionValue("sr")));
+            }
+
+            if (line.hasOption("jmx")) {
+                try {
+                    client.getTranslationMetrics().registerMBean("Client");
+                }
+                catch (javax.management.JMException ex) {
+                    System.err.println("The translation metrics could not be registered: "+ex.getMessage());
+                }
+            }
+            MetricsHttpServer metricsServer = null;
+            if (line.hasOption("mp")) {
+                try {
+                    metricsServer = new MetricsHttpServer(client.getTranslationMetrics(),
+                            Integer.parseInt(line.getOptionValue("mp")));
+                }
+                catch (IOException ex) {
+                    System.err.println("The translation metrics server could not be started: "+ex.getMessage());
+                }
+            }
+
             assert(queriesFilePath != null);
-            client.processScript( queriesFilePath );
+            try {
+                client.processScript( queriesFilePath );
+            }
+            finally {
+                if (metricsServer != null) {
+                    metricsServer.close();
+                }
+            }
+            if (line.hasOption("m")) {
+                System.out.println("Translation metrics:\n"+client.getTranslationMetrics().toPrometheusText());
+            }
         }
         catch( ParseException exp ) {
             // oops, something went wrong
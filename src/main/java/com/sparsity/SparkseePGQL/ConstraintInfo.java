@@ -1,5 +1,6 @@
 package com.sparsity.SparkseePGQL;
 
+import com.sparsity.sparksee.gdb.DataType;
 import oracle.pgql.lang.ir.QueryExpression;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,10 +15,19 @@ public class ConstraintInfo extends ExpressionInfo {
     final Logger logger = LoggerFactory.getLogger(ConstraintInfo.class);
 
     private ArrayList<ConnectionGroup> groups; // List of the groups that contain connections with variables used in the constraint
+    private final GraphStatistics statistics; // The statistics of the translation or null
+    private final Set<Object> parameterSentinels; // The literals that stand for prepared query parameters
 
-    public ConstraintInfo(QueryExpression expr) {
+    /**
+     * @param expr [in] The constraint expression.
+     * @param statistics [in] The statistics used by the translation or null.
+     * @param parameterSentinels [in] The literals that stand for the parameters of the prepared query being translated.
+     */
+    public ConstraintInfo(QueryExpression expr, GraphStatistics statistics, Set<Object> parameterSentinels) {
         super(expr, true);
         groups = new ArrayList<ConnectionGroup>();
+        this.statistics = statistics;
+        this.parameterSentinels = parameterSentinels;
     }
 
     @Override
@@ -55,6 +65,10 @@ public class ConstraintInfo extends ExpressionInfo {
             }
 
             // One var, One attribute, no labels
+            if (expression.getExpType() == AND) {
+                // GRAPH::SELECT( Atribut BETWEEN valor AND valor )
+                return getRangeBounds() != null;
+            }
             if ((expression.getExpType() == EQUAL) ||
                     (expression.getExpType() == NOT_EQUAL) ||
                     (expression.getExpType() == GREATER) ||
@@ -110,9 +124,193 @@ public class ConstraintInfo extends ExpressionInfo {
         }
     }
 
+    /**
+     * @param value [in] A decimal constant.
+     * @return Returns the decimal constant as it's written in a GRAPH::SELECT operation.
+     */
+    public static String sqaDecimalSelectValue( double value ) {
+        return value + "F";
+    }
+
+    /**
+     * Checks if the expression compares an attribute with a constant using >, >=, < or <=.
+     */
+    private static boolean isRangeComparison( QueryExpression exp ) {
+        QueryExpression.ExpressionType expType = exp.getExpType();
+        if ((expType != GREATER) && (expType != GREATER_EQUAL) && (expType != LESS) && (expType != LESS_EQUAL)) {
+            return false;
+        }
+        QueryExpression.BinaryExpression binExp = (QueryExpression.BinaryExpression) exp;
+        QueryExpression.ExpressionType constType = binExp.getExp2().getExpType();
+        return (binExp.getExp1().getExpType() == PROP_ACCESS) &&
+                ((constType == INTEGER) || (constType == DECIMAL) || (constType == STRING));
+    }
+
+    private static boolean isLowerBound( QueryExpression exp ) {
+        return (exp.getExpType() == GREATER) || (exp.getExpType() == GREATER_EQUAL);
+    }
+
+    /**
+     * An inclusive bound can always be used in a BETWEEN, but a strict one only if it's an
+     * integer that can be moved to the next value. That's only right when the statistics say
+     * the attribute is an Integer or a Long (a Double attribute has values between the integers)
+     * and the next value is still of the attribute type. A prepared query parameter must be
+     * written as it is, so a strict bound with a parameter can't be used.
+     */
+    private boolean canBeInclusiveBound( QueryExpression exp ) {
+        if ((exp.getExpType() == GREATER_EQUAL) || (exp.getExpType() == LESS_EQUAL)) {
+            return true;
+        }
+        QueryExpression.BinaryExpression binExp = (QueryExpression.BinaryExpression) exp;
+        QueryExpression constExp = binExp.getExp2();
+        if ((constExp.getExpType() != INTEGER) || (statistics == null)) {
+            return false;
+        }
+        long value = ((QueryExpression.Constant.ConstInteger) constExp).getValue();
+        if (PreparedPGQLQuery.isParameterSentinel(parameterSentinels, value)) {
+            return false;
+        }
+        GraphStatistics.AttributeStatistics attrStats =
+                statistics.getAttribute(((QueryExpression.PropertyAccess) binExp.getExp1()).getPropertyName());
+        if (attrStats == null) {
+            return false;
+        }
+        long min;
+        long max;
+        if (attrStats.getDataType() == DataType.Integer) {
+            min = Integer.MIN_VALUE;
+            max = Integer.MAX_VALUE;
+        }
+        else if (attrStats.getDataType() == DataType.Long) {
+            min = Long.MIN_VALUE;
+            max = Long.MAX_VALUE;
+        }
+        else {
+            return false;
+        }
+        return (exp.getExpType() == GREATER)? (value >= min) && (value < max) : (value > min) && (value <= max);
+    }
+
+    /**
+     * @param bound [in] A range comparison accepted by canBeInclusiveBound.
+     * @return Returns the constant of the comparison as an inclusive BETWEEN bound.
+     */
+    private static String sqaInclusiveBound( QueryExpression.BinaryExpression bound ) {
+        switch (bound.getExp2().getExpType()) {
+            case INTEGER:
+                long value = ((QueryExpression.Constant.ConstInteger) bound.getExp2()).getValue();
+                if (bound.getExpType() == GREATER) {
+                    value++;
+                }
+                else if (bound.getExpType() == LESS) {
+                    value--;
+                }
+                return String.valueOf(value);
+            case DECIMAL:
+                return sqaDecimalSelectValue(((QueryExpression.Constant.ConstDecimal) bound.getExp2()).getValue());
+            default:
+                return "'" + ((QueryExpression.Constant.ConstString) bound.getExp2()).getValue() + "'";
+        }
+    }
+
+    /**
+     * Checks if the two expressions are a lower and an upper bound of the same attribute
+     * of the same variable that can be written as a single BETWEEN.
+     */
+    private boolean areMergeableBounds( QueryExpression exp1, QueryExpression exp2 ) {
+        if (!isRangeComparison(exp1) || !isRangeComparison(exp2) || (isLowerBound(exp1) == isLowerBound(exp2)) ||
+                !canBeInclusiveBound(exp1) || !canBeInclusiveBound(exp2)) {
+            return false;
+        }
+        QueryExpression.BinaryExpression bin1 = (QueryExpression.BinaryExpression) exp1;
+        QueryExpression.BinaryExpression bin2 = (QueryExpression.BinaryExpression) exp2;
+        QueryExpression.PropertyAccess prop1 = (QueryExpression.PropertyAccess) bin1.getExp1();
+        QueryExpression.PropertyAccess prop2 = (QueryExpression.PropertyAccess) bin2.getExp1();
+        return prop1.getVariable().getName().equals(prop2.getVariable().getName()) &&
+                prop1.getPropertyName().equals(prop2.getPropertyName()) &&
+                (bin1.getExp2().getExpType() == bin2.getExp2().getExpType());
+    }
+
+    /**
+     * @return Returns the lower and the upper bound if the expression is a range
+     * "var.attr >(=) low AND var.attr <(=) high" that can be a single BETWEEN, or null otherwise.
+     */
+    private QueryExpression.BinaryExpression[] getRangeBounds() {
+        if (expression.getExpType() != AND) {
+            return null;
+        }
+        QueryExpression.BinaryExpression and = (QueryExpression.BinaryExpression) expression;
+        if (!areMergeableBounds(and.getExp1(), and.getExp2())) {
+            return null;
+        }
+        QueryExpression.BinaryExpression bound1 = (QueryExpression.BinaryExpression) and.getExp1();
+        QueryExpression.BinaryExpression bound2 = (QueryExpression.BinaryExpression) and.getExp2();
+        return isLowerBound(bound1)? new QueryExpression.BinaryExpression[]{ bound1, bound2 } :
+                new QueryExpression.BinaryExpression[]{ bound2, bound1 };
+    }
+
+    /**
+     * Merges each pair of constraints that are the lower and the upper bound of the same attribute
+     * into a single range constraint, so the attribute index is used only once.
+     * @param constraints [in/out] The constraints of a query.
+     */
+    public static void mergeRangeConstraints( ArrayList<ConstraintInfo> constraints ) {
+        for (int ii = 0; ii < constraints.size(); ii++) {
+            ConstraintInfo info1 = constraints.get(ii);
+            QueryExpression exp1 = info1.expression;
+            for (int jj = ii+1; jj < constraints.size(); jj++) {
+                QueryExpression exp2 = constraints.get(jj).expression;
+                if (info1.areMergeableBounds(exp1, exp2)) {
+                    constraints.set(ii, new ConstraintInfo(new QueryExpression.LogicalExpression.And(exp1, exp2),
+                            info1.statistics, info1.parameterSentinels));
+                    constraints.remove(jj);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Returns the attribute used by a basic operation that is not a label scan.
+     */
+    private String getBasicOperationAttribute() {
+        QueryExpression.BinaryExpression binExp = (QueryExpression.BinaryExpression) expression;
+        if (expression.getExpType() == AND) {
+            binExp = (QueryExpression.BinaryExpression) binExp.getExp1();
+        }
+        return ((QueryExpression.PropertyAccess) binExp.getExp1()).getPropertyName();
+    }
+
+    /**
+     * @param constExp [in] The constant of a basic operation.
+     * @return Returns the value of the constant or null if it's a prepared query parameter.
+     */
+    private Object getBasicOperationValue( QueryExpression constExp ) {
+        Object value = null;
+        switch (constExp.getExpType()) {
+            case STRING:
+                value = ((QueryExpression.Constant.ConstString) constExp).getValue();
+                break;
+            case INTEGER:
+                value = ((QueryExpression.Constant.ConstInteger) constExp).getValue();
+                break;
+            case DECIMAL:
+                value = ((QueryExpression.Constant.ConstDecimal) constExp).getValue();
+                break;
+            case BOOLEAN:
+                value = ((QueryExpression.Constant.ConstBoolean) constExp).getValue();
+                break;
+        }
+        if (PreparedPGQLQuery.isParameterSentinel(parameterSentinels, value)) {
+            // A prepared query plan must be good for any bound value
+            value = null;
+        }
+        return value;
+    }
+
     /**
      * Translates the expression as a basic Sparksee Query Albebra operation when possible.
-     * @return Returns the SQA query string or null.
+     * @return Returns the SQA query or null.
      */
     public SQAQueryBuilder getAsBasicSQAOperation() {
         if ((variables.size() != 1) || (labels.size() > 1)) {
@@ -126,7 +324,7 @@ public class ConstraintInfo extends ExpressionInfo {
             QueryExpression.Function.HasLabel hasLabel = (QueryExpression.Function.HasLabel) expression;
             if ((hasLabel.getExp1().getExpType() == VARREF) && (hasLabel.getExp2().getExpType() == STRING)) {
                 // GRAPH::SCAN('LABEL')
-                query.setQuery( "GRAPH::SCAN('"+((QueryExpression.Constant.ConstString) hasLabel.getExp2()).getValue()+ "')");
+                query.setRoot( new SQAOperator.Scan(((QueryExpression.Constant.ConstString) hasLabel.getExp2()).getValue()) );
                 return query;
             }
         } else if (labels.size() == 0) {
@@ -138,6 +336,16 @@ public class ConstraintInfo extends ExpressionInfo {
             }
 
             // One var, One attribute, no labels
+            if (expression.getExpType() == AND) {
+                QueryExpression.BinaryExpression[] bounds = getRangeBounds();
+                if (bounds == null) {
+                    return null;
+                }
+                // GRAPH::SELECT( GLOBAL 'Atribut' BETWEEN valor AND valor ), both bounds included
+                query.setRoot( new SQAOperator.GraphSelect( "GLOBAL '" + getBasicOperationAttribute() + "' BETWEEN " +
+                        sqaInclusiveBound(bounds[0]) + " AND " + sqaInclusiveBound(bounds[1]) ) );
+                return query;
+            }
             if ((expression.getExpType() == EQUAL) ||
                     (expression.getExpType() == NOT_EQUAL) ||
                     (expression.getExpType() == GREATER) ||
@@ -149,31 +357,31 @@ public class ConstraintInfo extends ExpressionInfo {
                     // In Sparksee we must use GLOBAL attributes because PGQL does not bind the attributes to a Type.
                     if (binExp.getExp2().getExpType() == STRING) {
                         QueryExpression.Constant.ConstString constString = ((QueryExpression.Constant.ConstString) binExp.getExp2());
-                        query.setQuery( "GRAPH::SELECT( GLOBAL '" +
+                        query.setRoot( new SQAOperator.GraphSelect( "GLOBAL '" +
                                 ((QueryExpression.PropertyAccess) binExp.getExp1()).getPropertyName() + "' " +
                                 getSQAOPSymbol( expression.getExpType() ) + " '" +
-                                constString.getValue() + "' )" );
+                                constString.getValue() + "'" ) );
                         return query;
                     } else if (binExp.getExp2().getExpType() == INTEGER) {
                         QueryExpression.Constant.ConstInteger constInt = ((QueryExpression.Constant.ConstInteger) binExp.getExp2());
-                        query.setQuery( "GRAPH::SELECT( GLOBAL '" +
+                        query.setRoot( new SQAOperator.GraphSelect( "GLOBAL '" +
                                 ((QueryExpression.PropertyAccess) binExp.getExp1()).getPropertyName() + "' " +
                                 getSQAOPSymbol( expression.getExpType() ) + " " +
-                                constInt.getValue() + " )" );
+                                constInt.getValue() ) );
                         return query;
                     } else if (binExp.getExp2().getExpType() == DECIMAL) {
                         QueryExpression.Constant.ConstDecimal constDec = ((QueryExpression.Constant.ConstDecimal) binExp.getExp2());
-                        query.setQuery(  "GRAPH::SELECT( GLOBAL '" +
+                        query.setRoot( new SQAOperator.GraphSelect( "GLOBAL '" +
                                 ((QueryExpression.PropertyAccess) binExp.getExp1()).getPropertyName() + "' " +
                                 getSQAOPSymbol( expression.getExpType() ) + " " +
-                                constDec.getValue() + "F )" );
+                                sqaDecimalSelectValue(constDec.getValue()) ) );
                         return query;
                     } else if (binExp.getExp2().getExpType() == BOOLEAN) {
                         QueryExpression.Constant.ConstBoolean constBool = ((QueryExpression.Constant.ConstBoolean) binExp.getExp2());
-                        query.setQuery( "GRAPH::SELECT( GLOBAL '" +
+                        query.setRoot( new SQAOperator.GraphSelect( "GLOBAL '" +
                                 ((QueryExpression.PropertyAccess) binExp.getExp1()).getPropertyName() + "' " +
                                 getSQAOPSymbol( expression.getExpType() ) + " " +
-                                (constBool.getValue()? "True" : "False") + " )" );
+                                (constBool.getValue()? "True" : "False") ) );
                         return query;
                     }
                 }
@@ -184,6 +392,166 @@ public class ConstraintInfo extends ExpressionInfo {
     }
 
 
+    /**
+     * Estimates the number of objects returned by the basic operation of this constraint.
+     * The constraint must be a basic operation.
+     * @param stats [in] The graph statistics.
+     * @return Returns the estimated number of objects.
+     */
+    public long estimateBasicOperationRows( GraphStatistics stats ) {
+        assert (isABasicOperation());
+        if (expression.getExpType() == HAS_LABEL) {
+            QueryExpression.Function.HasLabel hasLabel = (QueryExpression.Function.HasLabel) expression;
+            String label = ((QueryExpression.Constant.ConstString) hasLabel.getExp2()).getValue();
+            if (PreparedPGQLQuery.isParameterSentinel(parameterSentinels, label)) {
+                // The label is not known until the query is executed
+                return Math.round(Math.ceil((stats.getNumNodes() + stats.getNumEdges()) * GraphStatistics.DEFAULT_EQUALITY_SELECTIVITY));
+            }
+            return stats.estimateLabelRows(label);
+        }
+        if (expression.getExpType() == AND) {
+            QueryExpression.BinaryExpression[] bounds = getRangeBounds();
+            return stats.estimateAttributeRangeRows(getBasicOperationAttribute(),
+                    getBasicOperationValue(bounds[0].getExp2()), bounds[0].getExpType() == GREATER_EQUAL,
+                    getBasicOperationValue(bounds[1].getExp2()), bounds[1].getExpType() == LESS_EQUAL);
+        }
+        QueryExpression.BinaryExpression binExp = (QueryExpression.BinaryExpression) expression;
+        String attrName = getBasicOperationAttribute();
+        Object value = getBasicOperationValue(binExp.getExp2());
+        return stats.estimateAttributeRows(attrName, getSQAOPSymbol(expression.getExpType()), value);
+    }
+
+    /**
+     * The constraint must be a basic operation.
+     * @param stats [in] The graph statistics.
+     * @return Returns true if the basic operation uses an attribute index.
+     */
+    public boolean isIndexedBasicOperation( GraphStatistics stats ) {
+        assert (isABasicOperation());
+        if (expression.getExpType() == HAS_LABEL) {
+            return false;
+        }
+        GraphStatistics.AttributeStatistics attr = stats.getAttribute(getBasicOperationAttribute());
+        return (attr != null) && attr.isIndexed();
+    }
+
+    /**
+     * Estimates the cost of the basic operation of this constraint as the number of returned
+     * objects plus a tenth of the objects read when the attribute is not indexed.
+     * @param stats [in] The graph statistics.
+     * @return Returns the estimated cost.
+     */
+    public double estimateBasicOperationCost( GraphStatistics stats ) {
+        double cost = estimateBasicOperationRows(stats);
+        if (expression.getExpType() != HAS_LABEL) {
+            cost += stats.estimateAttributeScan(getBasicOperationAttribute()) / 10.0;
+        }
+        return cost;
+    }
+
+
+    /**
+     * Checks if the constraint restricts the label of a node, like "n:MOVIE".
+     * @param varName [in] A node variable name.
+     * @return Returns the label or null if the constraint is not a known label of the node.
+     */
+    public String getNodeLabel( String varName ) {
+        if ((expression.getExpType() != HAS_LABEL) || (variables.size() != 1)) {
+            return null;
+        }
+        QueryExpression.Function.HasLabel hasLabel = (QueryExpression.Function.HasLabel) expression;
+        if ((hasLabel.getExp1().getExpType() != VARREF) || (hasLabel.getExp2().getExpType() != STRING) ||
+                !((QueryExpression.VarRef) hasLabel.getExp1()).getVariable().getName().equals(varName)) {
+            return null;
+        }
+        String label = ((QueryExpression.Constant.ConstString) hasLabel.getExp2()).getValue();
+        return PreparedPGQLQuery.isParameterSentinel(parameterSentinels, label)? null : label;
+    }
+
+    /**
+     * Checks if the constraint only restricts the label of an edge, like "label(e) = 'CAST'" or
+     * "label(e) = 'CAST' OR label(e) = 'DIRECTS'", so it can be done by the edge navigation itself.
+     * @param varName [in] An edge variable name.
+     * @return Returns the allowed labels or null if the constraint is not an edge label restriction.
+     */
+    public ArrayList<String> getEdgeLabels( String varName ) {
+        if (variables.size() != 1) {
+            return null;
+        }
+        ArrayList<String> edgeLabels = new ArrayList<String>();
+        if (collectEdgeLabels(expression, varName, edgeLabels)) {
+            return edgeLabels;
+        }
+        return null;
+    }
+
+    private static boolean collectEdgeLabels( QueryExpression exp, String varName, ArrayList<String> edgeLabels ) {
+        if (exp.getExpType() == OR) {
+            QueryExpression.BinaryExpression or = (QueryExpression.BinaryExpression) exp;
+            return collectEdgeLabels(or.getExp1(), varName, edgeLabels) &&
+                    collectEdgeLabels(or.getExp2(), varName, edgeLabels);
+        }
+        if (exp.getExpType() == EQUAL) {
+            QueryExpression.BinaryExpression binExp = (QueryExpression.BinaryExpression) exp;
+            if ((binExp.getExp1().getExpType() == EDGE_LABEL) && (binExp.getExp2().getExpType() == STRING)) {
+                QueryExpression.Function.EdgeLabel edgeLabel = (QueryExpression.Function.EdgeLabel) binExp.getExp1();
+                if ((edgeLabel.getExp().getExpType() == VARREF) &&
+                        ((QueryExpression.VarRef) edgeLabel.getExp()).getVariable().getName().equals(varName)) {
+                    String label = ((QueryExpression.Constant.ConstString) binExp.getExp2()).getValue();
+                    if (!edgeLabels.contains(label)) {
+                        edgeLabels.add(label);
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param edgeLabels [in] The edge labels returned by getEdgeLabels.
+     * @return Returns true if any of the labels is not known until a prepared query is executed.
+     */
+    public boolean hasParameterLabel( ArrayList<String> edgeLabels ) {
+        for (String label : edgeLabels) {
+            if (PreparedPGQLQuery.isParameterSentinel(parameterSentinels, label)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Estimates the fraction of the rows that pass the constraint.
+     * @param stats [in] The graph statistics.
+     * @return Returns the estimated selectivity between 0 and 1.
+     */
+    public double estimateSelectivity( GraphStatistics stats ) {
+        String varName = getFirstVariableName();
+        ArrayList<String> edgeLabels = (varName != null)? getEdgeLabels(varName) : null;
+        if ((edgeLabels != null) && !hasParameterLabel(edgeLabels)) {
+            double rows = 0;
+            for (String label : edgeLabels) {
+                rows += stats.estimateLabelRows(label);
+            }
+            return Math.min(1.0, rows / Math.max(1L, stats.getNumEdges()));
+        }
+        if (isABasicOperation()) {
+            double rows = estimateBasicOperationRows(stats);
+            long objects;
+            if (expression.getExpType() == HAS_LABEL) {
+                objects = stats.getNumNodes();
+            }
+            else {
+                GraphStatistics.AttributeStatistics attr = stats.getAttribute(getBasicOperationAttribute());
+                objects = (attr != null)? attr.getNonNullCount() : stats.getNumNodes() + stats.getNumEdges();
+            }
+            return Math.min(1.0, rows / Math.max(1L, objects));
+        }
+        return GraphStatistics.DEFAULT_RANGE_SELECTIVITY;
+    }
+
+
     /**
      * Builds a list of the groups with connections that use any of the variables used in the constraint
      * @param connGroups [in] A list of all the connection groups
@@ -260,8 +628,7 @@ public class ConstraintInfo extends ExpressionInfo {
         this.addMissingExpressionColumns(query);
 
         // Apply the constraint
-        query.preppendQuery("SELECT( ");
-        query.appendQuery(", "+this.getQueryConstraintExpression(query, null)+" )");
+        query.setRoot(new SQAOperator.Select(query.getRoot(), this.getQueryConstraintExpression(query, null)));
     }
 
 
@@ -282,9 +649,9 @@ public class ConstraintInfo extends ExpressionInfo {
         this.addMissingExpressionColumns(query2);
 
         // Apply the constraint
-        query.preppendQuery("JOIN( ");
-        query.appendQuery(", " + query2.getQuery()+", "+
-                this.getQueryConstraintExpression(query, query2)+", {'type'='Inner'} )");
+        query2.finish();
+        query.setRoot(new SQAOperator.Join(query.getRoot(), query2.getRoot(),
+                this.getQueryConstraintExpression(query, query2)));
         // Add to the query all the joined columns
         query.addColumnsData(query2);
     }
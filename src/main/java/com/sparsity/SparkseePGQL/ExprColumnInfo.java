@@ -3,6 +3,7 @@ package com.sparsity.SparkseePGQL;
 import oracle.pgql.lang.ir.QueryExpression;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static oracle.pgql.lang.ir.QueryExpression.ExpressionType.PROP_ACCESS;
 import static oracle.pgql.lang.ir.QueryExpression.ExpressionType.VARREF;
@@ -11,7 +12,7 @@ import static oracle.pgql.lang.ir.QueryExpression.ExpressionType.VARREF;
  */
 public class ExprColumnInfo extends ExpressionInfo {
 
-    private static long seqColNumberGenerator = 0;
+    private static final AtomicLong seqColNumberGenerator = new AtomicLong();
 
     public ExprColumnInfo(QueryExpression expr) {
         super(expr, true);
@@ -60,7 +61,7 @@ public class ExprColumnInfo extends ExpressionInfo {
 
     public String GetUniqueName()
     {
-        long num = seqColNumberGenerator++;
+        long num = seqColNumberGenerator.getAndIncrement();
         return "Expression Column "+num;
     }
 
@@ -94,11 +95,9 @@ public class ExprColumnInfo extends ExpressionInfo {
         else {
             // A new column with the expression evaluation must be added
             String extendSQAExpression = this.getSQAExtendExpression(query);
-            query.preppendQuery( "EXTEND( ");
             // TODO: The column type is required for the Sparksee Algebra but we may not be able to know it
             //       I'm setting the result as a STRING for now.
-            query.appendQuery( ", [ STRING ]");
-            query.appendQuery( ", [ STRING(" + extendSQAExpression + ") ] )");
+            query.setRoot( new SQAOperator.Extend( query.getRoot(), "STRING", extendSQAExpression ));
             numCol = query.getNumColumns(); // Get the number before adding the column
             query.addExpressionColumn( this.GetUniqueName() );
         }
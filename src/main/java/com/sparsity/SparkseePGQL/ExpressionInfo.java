@@ -315,6 +315,10 @@ public class ExpressionInfo {
         return null;
     }
 
+    public QueryExpression getExpression() {
+        return expression;
+    }
+
     public String getFirstVariableName() {
         Map.Entry<String, ExprVariableInfo> varEntry = getFirstVariable();
         if (varEntry != null) {
@@ -333,6 +337,27 @@ public class ExpressionInfo {
         expression.accept(new NormalVisitor(this));
     }
 
+    /**
+     * Adds the keys of the query columns that this expression uses: its variables (or alias),
+     * the attributes of the variables and the labels checked.
+     * @param query [in] The query with the columns.
+     * @param keys [in/out] The set of column keys.
+     */
+    public void addRequiredColumnKeys( SQAQueryBuilder query, Set<String> keys ) {
+        for (Map.Entry<String, ExprVariableInfo> varEntry : variables.entrySet()) {
+            keys.add(query.varNameToKey(varEntry.getKey()));
+            for (String attrName : varEntry.getValue().getAttributes()) {
+                keys.add(query.attrNameToKey(varEntry.getKey(), attrName));
+            }
+            if (varEntry.getValue().isLabelChecked()) {
+                keys.add(query.labelNameToKey(varEntry.getKey()));
+            }
+        }
+        for (String varRef : varRefs) {
+            keys.add(query.varNameToKey(varRef));
+        }
+    }
+
     @Override
     public String toString() {
         return "ExpressionInfo{" +
@@ -392,8 +417,7 @@ public class ExpressionInfo {
 
             @Override
             public void visit(QueryExpression.Constant.ConstDecimal constDecimal) {
-                DecimalFormat formatter = new DecimalFormat("#0.0#");
-                sqaExpr.append(formatter.format(constDecimal.getValue()));
+                sqaExpr.append(sqaDecimalExpression(constDecimal.getValue()));
             }
 
             @Override
@@ -655,6 +679,15 @@ public class ExpressionInfo {
     }
 
 
+    /**
+     * @param value [in] A decimal constant.
+     * @return Returns the decimal constant as it's written in a Sparksee Algebra expression.
+     */
+    public static String sqaDecimalExpression(double value) {
+        DecimalFormat formatter = new DecimalFormat("#0.0#");
+        return formatter.format(value);
+    }
+
     protected String sqaTypeExpression(String typeName) {
         return "'"+typeName+"'";
     }
@@ -728,25 +761,17 @@ public class ExpressionInfo {
      * @param attrs [in] The set of attribute names.
      */
     public static void addSQAAttribute( SQAQueryBuilder query, String varName, Set<String> attrs) {
-        boolean attrsAdded = false;
+        ArrayList<String> missingAttrs = new ArrayList<String>();
         for (String attrName : attrs) {
             if (!query.containsAttribute(varName, attrName)) {
-                if (!attrsAdded)
-                {
-                    query.preppendQuery("GRAPH::GET(");
-                    query.appendQuery(", "+query.getVariableColumnIndex(varName)+ ", [");
-                    query.appendQuery(" GLOBAL '"+attrName+"'");
-                    // TODO: We only can use Sparksee GLOBAL attributes with PGQL
-                    attrsAdded = true;
-                }
-                else {
-                    query.appendQuery(", GLOBAL '"+attrName+"'");
-                }
-                query.addAttributeColumn(varName, attrName);
+                missingAttrs.add(attrName);
             }
         }
-        if (attrsAdded) {
-            query.appendQuery(" ])");
+        if (!missingAttrs.isEmpty()) {
+            query.setRoot(new SQAOperator.Get(query.getRoot(), query.getVariableColumnIndex(varName), missingAttrs));
+            for (String attrName : missingAttrs) {
+                query.addAttributeColumn(varName, attrName);
+            }
         }
     }
 
@@ -772,8 +797,7 @@ public class ExpressionInfo {
 
                 // Get the labels of the variables where the label is checked
                 if (exprVarInfo.isLabelChecked() && !query.containsLabel(varName)) {
-                    query.preppendQuery("GRAPH::GET_TYPE( ");
-                    query.appendQuery(", " + query.getVariableColumnIndex(varName) + " )");
+                    query.setRoot(new SQAOperator.GetType(query.getRoot(), query.getVariableColumnIndex(varName)));
                     query.addLabelColumn(varName);
                 }
 
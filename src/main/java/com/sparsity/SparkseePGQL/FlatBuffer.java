@@ -0,0 +1,233 @@
+package com.sparsity.SparkseePGQL;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A minimal FlatBuffers encoder for the small metadata messages of the Arrow IPC format.
+ * The messages are described as a tree of tables, strings and vectors and encoded in one pass
+ * from the root, so each object is written after the object that points to it and all the
+ * offsets point forward as the format requires. Each table has its own vtable (no sharing).
+ */
+class FlatBuffer {
+
+    /**
+     * A table with scalar fields and fields pointing to other objects.
+     */
+    static class Table {
+        private final ArrayList<TableField> fields = new ArrayList<TableField>();
+
+        Table addByte( int index, int value ) {
+            return add(index, 1, value, null);
+        }
+
+        Table addBoolean( int index, boolean value ) {
+            return add(index, 1, value? 1 : 0, null);
+        }
+
+        Table addShort( int index, int value ) {
+            return add(index, 2, value, null);
+        }
+
+        Table addInt( int index, int value ) {
+            return add(index, 4, value, null);
+        }
+
+        Table addLong( int index, long value ) {
+            return add(index, 8, value, null);
+        }
+
+        /**
+         * @param index [in] The field index in the schema.
+         * @param child [in] A Table, a String, a List of tables or strings or a StructVector.
+         */
+        Table addOffset( int index, Object child ) {
+            return add(index, 4, 0, child);
+        }
+
+        private Table add( int index, int size, long value, Object child ) {
+            TableField field = new TableField();
+            field.index = index;
+            field.size = size;
+            field.value = value;
+            field.child = child;
+            fields.add(field);
+            return this;
+        }
+    }
+
+    private static class TableField {
+        int index;
+        int size;
+        long value;
+        Object child;
+        int position;
+    }
+
+    /**
+     * A vector of structs made of longs, like the Arrow FieldNode and Buffer.
+     */
+    static class StructVector {
+        private final long[] values;
+        private final int count;
+
+        /**
+         * @param values [in] The struct fields one after the other.
+         * @param longsPerStruct [in] The number of longs of each struct.
+         */
+        StructVector( long[] values, int longsPerStruct ) {
+            this.values = values;
+            this.count = values.length / longsPerStruct;
+        }
+    }
+
+    private ByteBuffer buf;
+
+    private FlatBuffer() {
+        buf = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @param root [in] The root table.
+     * @return Returns the encoded buffer, padded to a multiple of 8 bytes.
+     */
+    static byte[] finish( Table root ) {
+        FlatBuffer fb = new FlatBuffer();
+        fb.reserve(4);
+        int rootPosition = fb.write(root);
+        fb.buf.putInt(0, rootPosition);
+        fb.reserve(align(fb.buf.position(), 8) - fb.buf.position());
+        return Arrays.copyOf(fb.buf.array(), fb.buf.position());
+    }
+
+    private static int align( int position, int alignment ) {
+        return (position + alignment - 1) & -alignment;
+    }
+
+    /**
+     * Advances the position writing zeros.
+     * @return Returns the previous position.
+     */
+    private int reserve( int bytes ) {
+        if (buf.remaining() < bytes) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + bytes))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buf.flip();
+            bigger.put(buf);
+            buf = bigger;
+        }
+        int position = buf.position();
+        buf.position(position + bytes);
+        return position;
+    }
+
+    private void padTo( int position ) {
+        reserve(position - buf.position());
+    }
+
+    /**
+     * @return Returns the position of the written object.
+     */
+    private int write( Object node ) {
+        if (node instanceof Table) {
+            return writeTable((Table) node);
+        }
+        else if (node instanceof String) {
+            byte[] bytes = ((String) node).getBytes(StandardCharsets.UTF_8);
+            padTo(align(buf.position(), 4));
+            int start = reserve(4 + bytes.length + 1);
+            buf.putInt(start, bytes.length);
+            for (int ii = 0; ii < bytes.length; ii++) {
+                buf.put(start + 4 + ii, bytes[ii]);
+            }
+            return start;
+        }
+        else if (node instanceof List) {
+            List<?> children = (List<?>) node;
+            padTo(align(buf.position(), 4));
+            int start = reserve(4 + 4 * children.size());
+            buf.putInt(start, children.size());
+            for (int ii = 0; ii < children.size(); ii++) {
+                int slot = start + 4 + 4 * ii;
+                // Written first, it may replace buf with a bigger one
+                int childPosition = write(children.get(ii));
+                buf.putInt(slot, childPosition - slot);
+            }
+            return start;
+        }
+        else if (node instanceof StructVector) {
+            StructVector vector = (StructVector) node;
+            // The length is followed by the 8 byte aligned structs
+            padTo(align(buf.position() + 4, 8) - 4);
+            int start = reserve(4 + 8 * vector.values.length);
+            buf.putInt(start, vector.count);
+            for (int ii = 0; ii < vector.values.length; ii++) {
+                buf.putLong(start + 4 + 8 * ii, vector.values[ii]);
+            }
+            return start;
+        }
+        throw new IllegalArgumentException("Invalid FlatBuffer object: "+node);
+    }
+
+    private int writeTable( Table table ) {
+        int numSlots = 0;
+        int tableAlignment = 4;
+        for (TableField field : table.fields) {
+            numSlots = Math.max(numSlots, field.index + 1);
+            tableAlignment = Math.max(tableAlignment, field.size);
+        }
+        // The vtable, then the table starting with the offset to its vtable and the biggest fields first
+        int vtableSize = 4 + 2 * numSlots;
+        int vtableStart = align(buf.position(), 2);
+        int tableStart = align(vtableStart + vtableSize, tableAlignment);
+        List<TableField> sorted = new ArrayList<TableField>(table.fields);
+        Collections.sort(sorted, new Comparator<TableField>() {
+            @Override
+            public int compare(TableField f1, TableField f2) {
+                return Integer.compare(f2.size, f1.size);
+            }
+        });
+        int position = tableStart + 4;
+        for (TableField field : sorted) {
+            position = align(position, field.size);
+            field.position = position;
+            position += field.size;
+        }
+        int tableSize = position - tableStart;
+        padTo(position);
+        buf.putShort(vtableStart, (short) vtableSize);
+        buf.putShort(vtableStart + 2, (short) tableSize);
+        for (TableField field : table.fields) {
+            buf.putShort(vtableStart + 4 + 2 * field.index, (short) (field.position - tableStart));
+        }
+        buf.putInt(tableStart, tableStart - vtableStart);
+        for (TableField field : table.fields) {
+            switch (field.size) {
+                case 1:
+                    buf.put(field.position, (byte) field.value);
+                    break;
+                case 2:
+                    buf.putShort(field.position, (short) field.value);
+                    break;
+                case 4:
+                    buf.putInt(field.position, (int) field.value);
+                    break;
+                default:
+                    buf.putLong(field.position, field.value);
+            }
+        }
+        for (TableField field : table.fields) {
+            if (field.child != null) {
+                int childPosition = write(field.child);
+                buf.putInt(field.position, childPosition - field.position);
+            }
+        }
+        return tableStart;
+    }
+}
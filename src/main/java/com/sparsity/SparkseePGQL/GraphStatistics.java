@@ -0,0 +1,443 @@
+package com.sparsity.SparkseePGQL;
+
+import com.sparsity.sparksee.gdb.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the statistics of a Sparksee graph used to estimate the
+ * cardinality of the translated operations: the number of objects of each type, the
+ * distinct values and a value histogram of each GLOBAL attribute and the average degrees.
+ */
+public class GraphStatistics {
+
+    public static final int HISTOGRAM_BUCKETS = 20;
+    // Selectivity of a range comparison when there is no histogram or the value is unknown
+    public static final double DEFAULT_RANGE_SELECTIVITY = 1.0/3.0;
+    // Selectivity of an equality when the number of distinct values is unknown
+    public static final double DEFAULT_EQUALITY_SELECTIVITY = 0.01;
+
+    /**
+     * Statistics of a node or edge type.
+     */
+    public static class TypeStatistics {
+        private final String name;
+        private final boolean isNode;
+        private final boolean directed;
+        private final long count;
+        private final long distinctTails; // Only for edge types: nodes with at least one edge of the type as tail
+        private final long distinctHeads; // Only for edge types: nodes with at least one edge of the type as head
+
+        public TypeStatistics(String name, boolean isNode, boolean directed, long count, long distinctTails, long distinctHeads) {
+            this.name = name;
+            this.isNode = isNode;
+            this.directed = directed;
+            this.count = count;
+            this.distinctTails = distinctTails;
+            this.distinctHeads = distinctHeads;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isNode() {
+            return isNode;
+        }
+
+        public boolean isDirected() {
+            return directed;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @param outgoing [in] True for the outgoing edges or false for the ingoing edges.
+         * @return Returns the average number of edges of this type of a node that has any, which is
+         * only the degree of a source node when every node of the source domain has edges of this type.
+         */
+        public double getAverageDegree(boolean outgoing) {
+            if (count == 0) {
+                return 0;
+            }
+            if (!directed) {
+                // An undirected edge can be navigated from both ends
+                return (2.0 * count) / Math.max(1L, distinctTails + distinctHeads);
+            }
+            return ((double) count) / Math.max(1L, outgoing? distinctTails : distinctHeads);
+        }
+
+        /**
+         * The nodes of the source domain without edges of this type don't produce any row, so the
+         * average degree of the nodes that have edges is scaled by the fraction of the domain they are.
+         * @param outgoing [in] True for the outgoing edges or false for the ingoing edges.
+         * @param sourceNodes [in] The number of nodes the edges are navigated from (the nodes of a type
+         *                    or all the nodes), or 0 if it's not known.
+         * @return Returns the average number of edges of this type of a node of the source domain.
+         */
+        public double getAverageDegree(boolean outgoing, long sourceNodes) {
+            double degree = getAverageDegree(outgoing);
+            long withEdges = directed? (outgoing? distinctTails : distinctHeads) : distinctTails + distinctHeads;
+            if ((sourceNodes > 0) && (withEdges < sourceNodes)) {
+                degree *= ((double) withEdges) / sourceNodes;
+            }
+            return degree;
+        }
+    }
+
+    /**
+     * Statistics of a GLOBAL attribute.
+     */
+    public static class AttributeStatistics {
+        private final String name;
+        private final AttributeKind kind;
+        private final DataType dataType;
+        private final long total;
+        private final long nulls;
+        private final long distinct;
+        // Equi-width histogram of the numerical attributes, null for the other attributes
+        private final double histogramMin;
+        private final double histogramMax;
+        private final long[] histogram;
+
+        public AttributeStatistics(String name, AttributeKind kind, DataType dataType, long total, long nulls, long distinct,
+                                   double histogramMin, double histogramMax, long[] histogram) {
+            this.name = name;
+            this.kind = kind;
+            this.dataType = dataType;
+            this.total = total;
+            this.nulls = nulls;
+            this.distinct = distinct;
+            this.histogramMin = histogramMin;
+            this.histogramMax = histogramMax;
+            this.histogram = histogram;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public AttributeKind getKind() {
+            return kind;
+        }
+
+        public DataType getDataType() {
+            return dataType;
+        }
+
+        public boolean isIndexed() {
+            return (kind == AttributeKind.Indexed) || (kind == AttributeKind.Unique);
+        }
+
+        /**
+         * @return Returns the number of objects with a non null value.
+         */
+        public long getNonNullCount() {
+            return total;
+        }
+
+        public long getNullCount() {
+            return nulls;
+        }
+
+        public long getDistinct() {
+            return distinct;
+        }
+
+        /**
+         * Estimates the fraction of the non null values that are in the given range using the histogram.
+         * @return Returns the estimated fraction or a negative number if there is no histogram.
+         */
+        double getRangeFraction(double low, boolean includeLow, double high, boolean includeHigh) {
+            if (histogram == null) {
+                return -1;
+            }
+            long sum = 0;
+            for (long bucket : histogram) {
+                sum += bucket;
+            }
+            if (sum == 0) {
+                return 0;
+            }
+            double width = (histogramMax - histogramMin) / histogram.length;
+            if (width <= 0) {
+                // A single value
+                boolean inRange = ((low < histogramMin) || (includeLow && low == histogramMin)) &&
+                        ((high > histogramMin) || (includeHigh && high == histogramMin));
+                return inRange? 1 : 0;
+            }
+            double rows = 0;
+            for (int ii = 0; ii < histogram.length; ii++) {
+                double bucketLow = histogramMin + ii*width;
+                double bucketHigh = bucketLow + width;
+                double overlap = Math.min(high, bucketHigh) - Math.max(low, bucketLow);
+                if (overlap > 0) {
+                    rows += histogram[ii] * (overlap / width);
+                }
+            }
+            return Math.min(1.0, rows / sum);
+        }
+    }
+
+    private final long version;
+    private final long numNodes;
+    private final long numEdges;
+    private final Map<String, TypeStatistics> types;
+    private final Map<String, AttributeStatistics> attributes;
+
+    GraphStatistics(long version, long numNodes, long numEdges,
+                    Map<String, TypeStatistics> types, Map<String, AttributeStatistics> attributes) {
+        this.version = version;
+        this.numNodes = numNodes;
+        this.numEdges = numEdges;
+        this.types = Collections.unmodifiableMap(new HashMap<String, TypeStatistics>(types));
+        this.attributes = Collections.unmodifiableMap(new HashMap<String, AttributeStatistics>(attributes));
+    }
+
+    /**
+     * Reads the statistics of the graph.
+     * The distinct values and the histograms require reading the attribute indexes, so it
+     * should not be called for each query.
+     * @param graph [in] The graph of a Sparksee session.
+     * @param version [in] The version number of the new statistics.
+     * @return Returns the statistics of the graph.
+     */
+    public static GraphStatistics collect( Graph graph, long version ) {
+        HashMap<String, TypeStatistics> types = new HashMap<String, TypeStatistics>();
+        long numNodes = 0;
+        long numEdges = 0;
+        for (Integer typeId : graph.findTypes()) {
+            Type type = graph.getType(typeId);
+            boolean isNode = (type.getObjectType() == ObjectType.Node);
+            long count = type.getNumObjects();
+            long distinctTails = 0;
+            long distinctHeads = 0;
+            if (isNode) {
+                numNodes += count;
+            }
+            else {
+                numEdges += count;
+                Objects edges = graph.select(typeId);
+                Objects tails = graph.tails(edges);
+                Objects heads = graph.heads(edges);
+                distinctTails = tails.count();
+                distinctHeads = heads.count();
+                heads.close();
+                tails.close();
+                edges.close();
+            }
+            types.put(type.getName(), new TypeStatistics(type.getName(), isNode, type.getIsDirected(),
+                    count, distinctTails, distinctHeads));
+        }
+
+        HashMap<String, AttributeStatistics> attributes = new HashMap<String, AttributeStatistics>();
+        // TODO: We only can use Sparksee GLOBAL attributes with PGQL
+        for (Integer attrId : graph.findAttributes(Type.GlobalType)) {
+            Attribute attr = graph.getAttribute(attrId);
+            com.sparsity.sparksee.gdb.AttributeStatistics attrStats = graph.getAttributeStatistics(attrId, false);
+            double min = 0;
+            double max = 0;
+            long[] histogram = null;
+            if (isNumeric(attr.getDataType()) && (attrStats.getTotal() > 0)) {
+                min = numericValue(attrStats.getMin());
+                max = numericValue(attrStats.getMax());
+                histogram = collectHistogram(graph, attrId, attr.getDataType(), min, max);
+            }
+            attributes.put(attr.getName(), new AttributeStatistics(attr.getName(), attr.getKind(), attr.getDataType(),
+                    attrStats.getTotal(), attrStats.getNull(), attrStats.getDistinct(), min, max, histogram));
+        }
+        return new GraphStatistics(version, numNodes, numEdges, types, attributes);
+    }
+
+    private static boolean isNumeric( DataType dataType ) {
+        return (dataType == DataType.Integer) || (dataType == DataType.Long) || (dataType == DataType.Double);
+    }
+
+    private static double numericValue( Value value ) {
+        switch (value.getDataType()) {
+            case Integer:
+                return value.getInteger();
+            case Long:
+                return value.getLong();
+            default:
+                return value.getDouble();
+        }
+    }
+
+    private static Value setNumericValue( Value value, DataType dataType, double number ) {
+        switch (dataType) {
+            case Integer:
+                return value.setInteger((int) Math.floor(number));
+            case Long:
+                return value.setLong((long) Math.floor(number));
+            default:
+                return value.setDouble(number);
+        }
+    }
+
+    private static long[] collectHistogram( Graph graph, int attrId, DataType dataType, double min, double max ) {
+        long[] histogram = new long[HISTOGRAM_BUCKETS];
+        double width = (max - min) / HISTOGRAM_BUCKETS;
+        Value lower = new Value();
+        Value higher = new Value();
+        for (int ii = 0; ii < HISTOGRAM_BUCKETS; ii++) {
+            setNumericValue(lower, dataType, min + ii*width);
+            setNumericValue(higher, dataType, (ii == HISTOGRAM_BUCKETS-1)? max : min + (ii+1)*width);
+            if ((ii > 0) && (lower.compareTo(higher) >= 0)) {
+                // Integer buckets narrower than 1 are empty
+                continue;
+            }
+            histogram[ii] = graph.getAttributeIntervalCount(attrId, lower, ii == 0, higher, true);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return Returns the version number of these statistics, it's increased by each refresh.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public long getNumNodes() {
+        return numNodes;
+    }
+
+    public long getNumEdges() {
+        return numEdges;
+    }
+
+    public Map<String, TypeStatistics> getTypes() {
+        return types;
+    }
+
+    public Map<String, AttributeStatistics> getAttributes() {
+        return attributes;
+    }
+
+    public TypeStatistics getType( String name ) {
+        return types.get(name);
+    }
+
+    public AttributeStatistics getAttribute( String name ) {
+        return attributes.get(name);
+    }
+
+    /**
+     * @param label [in] A node or edge type name.
+     * @return Returns the number of objects of the type (0 if the type does not exist).
+     */
+    public long estimateLabelRows( String label ) {
+        TypeStatistics type = types.get(label);
+        return (type == null)? 0 : type.getCount();
+    }
+
+    /**
+     * Estimates the number of objects returned by a comparison of a GLOBAL attribute with a constant.
+     * @param attrName [in] The attribute name.
+     * @param op [in] The comparison symbol (=, <>, >, >=, <, <=).
+     * @param value [in] The constant (a Number, String or Boolean) or null if it's not known.
+     * @return Returns the estimated number of objects.
+     */
+    public long estimateAttributeRows( String attrName, String op, Object value ) {
+        AttributeStatistics attr = attributes.get(attrName);
+        if (attr == null) {
+            // Nothing is known, assume the worst
+            return numNodes + numEdges;
+        }
+        double nonNull = attr.getNonNullCount();
+        double equalRows = (attr.getDistinct() > 0)? nonNull / attr.getDistinct() : nonNull * DEFAULT_EQUALITY_SELECTIVITY;
+        if ("=".equals(op)) {
+            return Math.round(Math.ceil(equalRows));
+        }
+        if ("<>".equals(op)) {
+            return Math.round(Math.max(0, nonNull - equalRows));
+        }
+        double fraction = -1;
+        if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+            if (">".equals(op)) {
+                fraction = attr.getRangeFraction(number, false, Double.POSITIVE_INFINITY, true);
+            }
+            else if (">=".equals(op)) {
+                fraction = attr.getRangeFraction(number, true, Double.POSITIVE_INFINITY, true);
+            }
+            else if ("<".equals(op)) {
+                fraction = attr.getRangeFraction(Double.NEGATIVE_INFINITY, true, number, false);
+            }
+            else if ("<=".equals(op)) {
+                fraction = attr.getRangeFraction(Double.NEGATIVE_INFINITY, true, number, true);
+            }
+        }
+        if (fraction < 0) {
+            fraction = DEFAULT_RANGE_SELECTIVITY;
+        }
+        return Math.round(Math.ceil(nonNull * fraction));
+    }
+
+    /**
+     * Estimates the number of objects returned by a BETWEEN of a GLOBAL attribute.
+     * @param attrName [in] The attribute name.
+     * @param low [in] The lower bound or null if it's not known.
+     * @param includeLow [in] True if the lower bound is included.
+     * @param high [in] The upper bound or null if it's not known.
+     * @param includeHigh [in] True if the upper bound is included.
+     * @return Returns the estimated number of objects.
+     */
+    public long estimateAttributeRangeRows( String attrName, Object low, boolean includeLow, Object high, boolean includeHigh ) {
+        AttributeStatistics attr = attributes.get(attrName);
+        if (attr == null) {
+            return numNodes + numEdges;
+        }
+        double fraction = -1;
+        if ((low instanceof Number) && (high instanceof Number)) {
+            fraction = attr.getRangeFraction(((Number) low).doubleValue(), includeLow, ((Number) high).doubleValue(), includeHigh);
+        }
+        if (fraction < 0) {
+            // Both bounds are applied, so it's more selective than a single comparison
+            fraction = DEFAULT_RANGE_SELECTIVITY * DEFAULT_RANGE_SELECTIVITY;
+        }
+        return Math.round(Math.ceil(attr.getNonNullCount() * fraction));
+    }
+
+    /**
+     * @param attrName [in] The attribute name.
+     * @return Returns the number of objects read to evaluate a comparison of the attribute.
+     */
+    public long estimateAttributeScan( String attrName ) {
+        AttributeStatistics attr = attributes.get(attrName);
+        if (attr == null) {
+            return numNodes + numEdges;
+        }
+        return attr.isIndexed()? 0 : numNodes + numEdges;
+    }
+
+    /**
+     * The same average applies to the outgoing and the ingoing edges.
+     * @return Returns the average number of edges (of any type) of a node in one direction.
+     */
+    public double getAverageDegree() {
+        double degree = 0;
+        for (TypeStatistics type : types.values()) {
+            if (!type.isNode()) {
+                degree += type.isDirected()? type.getCount() : 2.0 * type.getCount();
+            }
+        }
+        return degree / Math.max(1L, numNodes);
+    }
+
+    @Override
+    public String toString() {
+        return "GraphStatistics{" +
+                "version=" + version +
+                ", nodes=" + numNodes +
+                ", edges=" + numEdges +
+                ", types=" + types.size() +
+                ", attributes=" + attributes.size() +
+                '}';
+    }
+}
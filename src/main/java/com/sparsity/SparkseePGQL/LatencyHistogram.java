@@ -0,0 +1,124 @@
+package com.sparsity.SparkseePGQL;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of latencies in nanoseconds.
+ * Each power of two is split in four buckets, so a percentile is at most 25% above the real value,
+ * with a fixed memory size whatever the number of recorded values.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final AtomicLong max;
+
+    public LatencyHistogram() {
+        this.buckets = new AtomicLongArray(NUM_BUCKETS);
+        this.count = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new AtomicLong();
+    }
+
+    private static int bucketIndex( long value ) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long bucketUpperBound( int index ) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        if (exponent >= 62) {
+            return Long.MAX_VALUE;
+        }
+        long subBucket = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * @param nanos [in] The latency to add (negative values are recorded as 0).
+     */
+    public void record( long nanos ) {
+        long value = Math.max(0L, nanos);
+        buckets.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+        long currentMax = max.get();
+        while ((value > currentMax) && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return Returns the sum of all the recorded latencies in nanoseconds.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return Returns the mean latency in nanoseconds or 0 if nothing has been recorded.
+     */
+    public double getMean() {
+        long n = getCount();
+        return (n == 0)? 0.0 : ((double) getSum()) / n;
+    }
+
+    /**
+     * The recorded values may change while the buckets are read, so the result is approximate
+     * when it's called during the recording.
+     * @param quantile [in] The quantile between 0 and 1 (for example 0.99 for the p99).
+     * @return Returns the upper bound of the bucket with the given quantile in nanoseconds, or 0 if nothing
+     * has been recorded.
+     */
+    public long getPercentile( double quantile ) {
+        long[] snapshot = new long[NUM_BUCKETS];
+        long total = 0;
+        for (int ii = 0; ii < NUM_BUCKETS; ii++) {
+            snapshot[ii] = buckets.get(ii);
+            total += snapshot[ii];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int ii = 0; ii < NUM_BUCKETS; ii++) {
+            seen += snapshot[ii];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(ii), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int ii = 0; ii < NUM_BUCKETS; ii++) {
+            buckets.set(ii, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+}
@@ -0,0 +1,121 @@
+package com.sparsity.SparkseePGQL;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash map from long keys to long values, without boxing.
+ * It uses two plain arrays with linear probing, so it needs 16 bytes per slot and the
+ * loader can map hundreds of millions of external identifiers to Sparksee OIDs.
+ * It's not thread safe, but it can be read by several threads when nobody writes it.
+ */
+public class LongLongHashMap {
+
+    private static final long EMPTY_KEY = Long.MIN_VALUE;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final double MAX_LOAD = 0.7;
+
+    private final long missingValue;
+    private long[] keys;
+    private long[] values;
+    private int size;
+    private int resizeThreshold;
+    // The EMPTY_KEY marks the free slots, so its value is kept apart
+    private boolean hasEmptyKey;
+    private long emptyKeyValue;
+
+    /**
+     * @param expectedSize [in] The expected number of keys, to avoid resizing.
+     * @param missingValue [in] The value returned for the missing keys.
+     */
+    public LongLongHashMap( long expectedSize, long missingValue ) {
+        this.missingValue = missingValue;
+        long capacity = Long.highestOneBit(Math.max(16L, (long) (expectedSize / MAX_LOAD)) * 2 - 1);
+        allocate((int) Math.min(MAX_CAPACITY, capacity));
+    }
+
+    private void allocate( int capacity ) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY_KEY);
+        values = new long[capacity];
+        resizeThreshold = (int) (capacity * MAX_LOAD);
+    }
+
+    private static int hash( long key ) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int slot( long key ) {
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+        while ((keys[index] != EMPTY_KEY) && (keys[index] != key)) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /**
+     * @param key [in] The key.
+     * @return Returns the value of the key or the missing value.
+     */
+    public long get( long key ) {
+        if (key == EMPTY_KEY) {
+            return hasEmptyKey? emptyKeyValue : missingValue;
+        }
+        int index = slot(key);
+        return (keys[index] == key)? values[index] : missingValue;
+    }
+
+    /**
+     * @param key [in] The key.
+     * @param value [in] The new value of the key.
+     * @return Returns the previous value of the key or the missing value.
+     */
+    public long put( long key, long value ) {
+        if (key == EMPTY_KEY) {
+            long previous = hasEmptyKey? emptyKeyValue : missingValue;
+            if (!hasEmptyKey) {
+                hasEmptyKey = true;
+                size++;
+            }
+            emptyKeyValue = value;
+            return previous;
+        }
+        int index = slot(key);
+        if (keys[index] == key) {
+            long previous = values[index];
+            values[index] = value;
+            return previous;
+        }
+        keys[index] = key;
+        values[index] = value;
+        size++;
+        if (size >= resizeThreshold) {
+            grow();
+        }
+        return missingValue;
+    }
+
+    private void grow() {
+        if (keys.length >= MAX_CAPACITY) {
+            if (size >= keys.length - 1) {
+                throw new IllegalStateException("Too many keys for a LongLongHashMap: "+size);
+            }
+            return;
+        }
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(keys.length * 2);
+        for (int ii = 0; ii < oldKeys.length; ii++) {
+            if (oldKeys[ii] != EMPTY_KEY) {
+                int index = slot(oldKeys[ii]);
+                keys[index] = oldKeys[ii];
+                values[index] = oldValues[ii];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,70 @@
+package com.sparsity.SparkseePGQL;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A small HTTP server that exports the TranslationMetrics at "/metrics" in the Prometheus text format.
+ * It only listens on the loopback address.
+ */
+public class MetricsHttpServer implements Closeable {
+    final Logger logger = LoggerFactory.getLogger(MetricsHttpServer.class);
+
+    public static final String METRICS_PATH = "/metrics";
+
+    private final HttpServer server;
+
+    /**
+     * Starts the server.
+     * @param metrics [in] The metrics to export.
+     * @param port [in] The local port (0 to use any free port).
+     * @throws IOException If the server can not be started.
+     */
+    public MetricsHttpServer( final TranslationMetrics metrics, int port ) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext(METRICS_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (!"GET".equals(exchange.getRequestMethod())) {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+                    byte[] body = metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(body);
+                    }
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        logger.info("Translation metrics exported at http://localhost:"+getPort()+METRICS_PATH);
+    }
+
+    /**
+     * @return Returns the port the server listens on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,452 @@
+package com.sparsity.SparkseePGQL;
+
+import com.sparsity.sparksee.gdb.*;
+import org.apache.commons.cli.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Generates a synthetic movie graph with the schema of the client sample database
+ * (MOVIE and PEOPLE nodes, CAST and DIRECTS edges and the ID, TITLE, YEAR, NAME and
+ * CHARACTER attributes) scaled to any size.
+ * The cast size of the movies and the popularity of the actors and the directors follow
+ * power-law distributions. The data is generated in batches by several threads and written
+ * in order by a single session, one transaction per batch, so the same seed and batch size
+ * always generate the same graph.
+ */
+public class MovieGraphGenerator {
+    final Logger logger = LoggerFactory.getLogger(MovieGraphGenerator.class);
+
+    // Elements for a scale factor of 1 (about 1.8 million nodes and edges)
+    public static final long MOVIES_PER_SCALE = 100000;
+    public static final long PEOPLE_PER_SCALE = 500000;
+
+    private static final int FIRST_YEAR = 1920;
+    private static final int LAST_YEAR = 2020;
+
+    private static final String[] FIRST_NAMES = {
+            "Anna", "Bill", "Carla", "Diane", "Emma", "Frank", "Grace", "Hugo", "Irene", "Jack",
+            "Kate", "Luis", "Maria", "Nora", "Oscar", "Paula", "Rosa", "Sofia", "Tom", "Woody"};
+    private static final String[] LAST_NAMES = {
+            "Allen", "Brown", "Coppola", "Cruz", "Davis", "Evans", "Garcia", "Hill", "Johansson", "Keaton",
+            "Lopez", "Murray", "Novak", "Ortiz", "Perez", "Quinn", "Smith", "Turner", "Vidal", "Wilson"};
+    private static final String[] TITLE_WORDS = {
+            "Lost", "Midnight", "Barcelona", "Manhattan", "Translation", "Summer", "Shadow", "River",
+            "Blue", "Last", "Night", "City", "Dream", "Road", "Silent", "Winter", "Love", "Stranger"};
+
+    private final long scale;
+    private final long seed;
+    private int numThreads;
+    private int batchSize;
+    private double castAlpha;
+    private int minCast;
+    private int maxCast;
+    private double actorSkew;
+    private double directorSkew;
+    private double directorsRatio;
+    private double yearSkew;
+
+    private long numMovies;
+    private long numPeople;
+    private long[] movieOids;
+    private long[] peopleOids;
+
+    /**
+     * The type and attribute identifiers of the schema.
+     */
+    private static class Schema {
+        int movieType;
+        int peopleType;
+        int castType;
+        int directsType;
+        int idAttr;
+        int titleAttr;
+        int yearAttr;
+        int nameAttr;
+        int characterAttr;
+    }
+
+    /**
+     * A batch of generated data, written by a single thread.
+     */
+    private interface Batch {
+        void write(Graph g, Schema schema, Value value);
+    }
+
+    /**
+     * @param scale [in] The scale factor, the number of nodes and edges grows linearly with it.
+     * @param seed [in] The seed of all the random values.
+     */
+    public MovieGraphGenerator( long scale, long seed ) {
+        this.scale = scale;
+        this.seed = seed;
+        this.numThreads = Runtime.getRuntime().availableProcessors();
+        this.batchSize = 100000;
+        this.castAlpha = 2.5;
+        this.minCast = 4;
+        this.maxCast = 500;
+        this.actorSkew = 3.0;
+        this.directorSkew = 2.0;
+        this.directorsRatio = 0.05;
+        this.yearSkew = 2.0;
+    }
+
+    /**
+     * @param numThreads [in] The number of threads generating the batches.
+     */
+    public void setNumThreads( int numThreads ) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * A different batch size generates a different graph with the same seed.
+     * @param batchSize [in] The number of nodes or movies of each batch and transaction.
+     */
+    public void setBatchSize( int batchSize ) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * The cast size of a movie follows a Pareto distribution: P(size >= k) = (minCast / k)^(alpha - 1).
+     * @param alpha [in] The power-law exponent, greater than 1 (lower values give larger casts).
+     * @param minCast [in] The minimum cast size.
+     * @param maxCast [in] The maximum cast size.
+     */
+    public void setCastDistribution( double alpha, int minCast, int maxCast ) {
+        if ((alpha <= 1.0) || (minCast < 0) || (maxCast < minCast)) {
+            throw new IllegalArgumentException("Invalid cast distribution: alpha="+alpha+", min="+minCast+", max="+maxCast);
+        }
+        this.castAlpha = alpha;
+        this.minCast = minCast;
+        this.maxCast = maxCast;
+    }
+
+    /**
+     * The people are chosen with the index n * u^skew for a uniform u, so a skew of 1 is uniform and
+     * greater values concentrate the edges in fewer popular people.
+     * @param actorSkew [in] The skew of the actors of the CAST edges.
+     * @param directorSkew [in] The skew of the directors of the DIRECTS edges.
+     * @param directorsRatio [in] The part of the people that are directors (between 0 and 1).
+     */
+    public void setPopularitySkew( double actorSkew, double directorSkew, double directorsRatio ) {
+        if ((actorSkew < 1.0) || (directorSkew < 1.0) || (directorsRatio <= 0.0) || (directorsRatio > 1.0)) {
+            throw new IllegalArgumentException("Invalid popularity skew: actors="+actorSkew+
+                    ", directors="+directorSkew+", directors ratio="+directorsRatio);
+        }
+        this.actorSkew = actorSkew;
+        this.directorSkew = directorSkew;
+        this.directorsRatio = directorsRatio;
+    }
+
+    /**
+     * @param rnd [in/out] The random generator.
+     * @param n [in] The number of elements.
+     * @param skew [in] The skew (1 for uniform).
+     * @return Returns an index between 0 and n - 1, more likely the lower ones.
+     */
+    static long skewedIndex( SplittableRandom rnd, long n, double skew ) {
+        return Math.min(n - 1, (long) (n * Math.pow(rnd.nextDouble(), skew)));
+    }
+
+    /**
+     * @param rnd [in/out] The random generator.
+     * @param alpha [in] The power-law exponent, greater than 1.
+     * @param min [in] The minimum value.
+     * @param max [in] The maximum value.
+     * @return Returns a value of a bounded Pareto distribution.
+     */
+    static int powerLawValue( SplittableRandom rnd, double alpha, int min, int max ) {
+        double u = rnd.nextDouble();
+        double value = Math.max(1, min) * Math.pow(1.0 - u, -1.0 / (alpha - 1.0));
+        return (int) Math.min(max, Math.max(min, Math.floor(value)));
+    }
+
+    private SplittableRandom batchRandom( int phase, long batch ) {
+        return new SplittableRandom(seed ^ (phase * 0xC2B2AE3D27D4EB4FL) ^ (batch * 0x9E3779B97F4A7C15L));
+    }
+
+    /**
+     * Generates the graph in the given database, which must be empty.
+     * @param sess [in] A session of the database used to write all the data.
+     */
+    public void generate( Session sess ) throws InterruptedException {
+        numMovies = MOVIES_PER_SCALE * scale;
+        numPeople = PEOPLE_PER_SCALE * scale;
+        if ((numMovies > Integer.MAX_VALUE - 8) || (numPeople > Integer.MAX_VALUE - 8)) {
+            throw new IllegalArgumentException("The scale factor "+scale+" is too large");
+        }
+        movieOids = new long[(int) numMovies];
+        peopleOids = new long[(int) numPeople];
+        Graph g = sess.getGraph();
+        Schema schema = createSchema(sess, g);
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            long start = System.currentTimeMillis();
+            runBatches(executor, sess, g, schema, numPeople, new BatchFactory() {
+                @Override
+                public Batch create(long batch, long first, long last) {
+                    return peopleBatch(batch, first, last);
+                }
+            });
+            logger.info(numPeople+" PEOPLE nodes in "+(System.currentTimeMillis()-start)+" ms");
+            start = System.currentTimeMillis();
+            runBatches(executor, sess, g, schema, numMovies, new BatchFactory() {
+                @Override
+                public Batch create(long batch, long first, long last) {
+                    return moviesBatch(batch, first, last);
+                }
+            });
+            logger.info(numMovies+" MOVIE nodes in "+(System.currentTimeMillis()-start)+" ms");
+            start = System.currentTimeMillis();
+            runBatches(executor, sess, g, schema, numMovies, new BatchFactory() {
+                @Override
+                public Batch create(long batch, long first, long last) {
+                    return edgesBatch(batch, first, last);
+                }
+            });
+            logger.info("CAST and DIRECTS edges in "+(System.currentTimeMillis()-start)+" ms");
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private interface BatchFactory {
+        Batch create(long batch, long first, long last);
+    }
+
+    /**
+     * Generates the batches with the executor threads and writes them in order, keeping at most
+     * two batches per thread in memory.
+     */
+    private void runBatches( ExecutorService executor, final Session sess, final Graph g, final Schema schema,
+                             final long count, final BatchFactory factory ) throws InterruptedException {
+        long numBatches = (count + batchSize - 1) / batchSize;
+        final Value value = new Value();
+        OrderedBatches.run(executor, 2 * numThreads, numBatches, new OrderedBatches.Producer<Batch>() {
+            @Override
+            public Batch produce(long batch) {
+                long first = batch * batchSize;
+                return factory.create(batch, first, Math.min(count, first + batchSize));
+            }
+        }, new OrderedBatches.Consumer<Batch>() {
+            @Override
+            public void consume(Batch batch) {
+                sess.beginUpdate();
+                batch.write(g, schema, value);
+                sess.commit();
+            }
+        });
+    }
+
+    private Schema createSchema( Session sess, Graph g ) {
+        sess.beginUpdate();
+        Schema schema = new Schema();
+        schema.movieType = g.newNodeType("MOVIE");
+        schema.idAttr = g.newAttribute(Type.GlobalType, "ID", DataType.Long, AttributeKind.Unique);
+        schema.titleAttr = g.newAttribute(Type.GlobalType, "TITLE", DataType.String, AttributeKind.Indexed);
+        schema.yearAttr = g.newAttribute(Type.GlobalType, "YEAR", DataType.Integer, AttributeKind.Indexed);
+        schema.peopleType = g.newNodeType("PEOPLE");
+        schema.nameAttr = g.newAttribute(Type.GlobalType, "NAME", DataType.String, AttributeKind.Indexed);
+        schema.castType = g.newEdgeType("CAST", false, false);
+        schema.characterAttr = g.newAttribute(Type.GlobalType, "CHARACTER", DataType.String, AttributeKind.Basic);
+        schema.directsType = g.newRestrictedEdgeType("DIRECTS", schema.peopleType, schema.movieType, false);
+        sess.commit();
+        return schema;
+    }
+
+    private Batch peopleBatch( long batch, final long first, final long last ) {
+        SplittableRandom rnd = batchRandom(1, batch);
+        final String[] names = new String[(int) (last - first)];
+        for (int ii = 0; ii < names.length; ii++) {
+            names[ii] = FIRST_NAMES[rnd.nextInt(FIRST_NAMES.length)] + " " +
+                    LAST_NAMES[rnd.nextInt(LAST_NAMES.length)] + " " + (first + ii);
+        }
+        return new Batch() {
+            @Override
+            public void write(Graph g, Schema schema, Value value) {
+                for (int ii = 0; ii < names.length; ii++) {
+                    long oid = g.newNode(schema.peopleType);
+                    g.setAttribute(oid, schema.idAttr, value.setLong(numMovies + first + ii + 1));
+                    g.setAttribute(oid, schema.nameAttr, value.setString(names[ii]));
+                    peopleOids[(int) (first + ii)] = oid;
+                }
+            }
+        };
+    }
+
+    private Batch moviesBatch( long batch, final long first, final long last ) {
+        SplittableRandom rnd = batchRandom(2, batch);
+        final String[] titles = new String[(int) (last - first)];
+        final int[] years = new int[titles.length];
+        for (int ii = 0; ii < titles.length; ii++) {
+            titles[ii] = TITLE_WORDS[rnd.nextInt(TITLE_WORDS.length)] + " " +
+                    TITLE_WORDS[rnd.nextInt(TITLE_WORDS.length)] + " " + (first + ii);
+            // More recent movies
+            years[ii] = LAST_YEAR - (int) skewedIndex(rnd, LAST_YEAR - FIRST_YEAR + 1, yearSkew);
+        }
+        return new Batch() {
+            @Override
+            public void write(Graph g, Schema schema, Value value) {
+                for (int ii = 0; ii < titles.length; ii++) {
+                    long oid = g.newNode(schema.movieType);
+                    g.setAttribute(oid, schema.idAttr, value.setLong(first + ii + 1));
+                    g.setAttribute(oid, schema.titleAttr, value.setString(titles[ii]));
+                    g.setAttribute(oid, schema.yearAttr, value.setInteger(years[ii]));
+                    movieOids[(int) (first + ii)] = oid;
+                }
+            }
+        };
+    }
+
+    private Batch edgesBatch( long batch, final long first, final long last ) {
+        SplittableRandom rnd = batchRandom(3, batch);
+        final int numInBatch = (int) (last - first);
+        final int[] castStart = new int[numInBatch + 1];
+        int[] castSizes = new int[numInBatch];
+        int totalCast = 0;
+        for (int ii = 0; ii < numInBatch; ii++) {
+            castSizes[ii] = (int) Math.min(numPeople, powerLawValue(rnd, castAlpha, minCast, maxCast));
+            castStart[ii] = totalCast;
+            totalCast += castSizes[ii];
+        }
+        castStart[numInBatch] = totalCast;
+        final int[] actors = new int[totalCast];
+        final String[] characters = new String[totalCast];
+        final int[] directors = new int[numInBatch];
+        long numDirectors = Math.max(1L, (long) (numPeople * directorsRatio));
+        for (int ii = 0; ii < numInBatch; ii++) {
+            for (int jj = castStart[ii]; jj < castStart[ii + 1]; jj++) {
+                // The actors are the people after the directors, so the popular ones are not directors
+                actors[jj] = (int) ((numDirectors + skewedIndex(rnd, numPeople, actorSkew)) % numPeople);
+                characters[jj] = FIRST_NAMES[rnd.nextInt(FIRST_NAMES.length)];
+            }
+            directors[ii] = (int) skewedIndex(rnd, numDirectors, directorSkew);
+        }
+        return new Batch() {
+            @Override
+            public void write(Graph g, Schema schema, Value value) {
+                for (int ii = 0; ii < numInBatch; ii++) {
+                    long movie = movieOids[(int) (first + ii)];
+                    for (int jj = castStart[ii]; jj < castStart[ii + 1]; jj++) {
+                        long edge = g.newEdge(schema.castType, movie, peopleOids[actors[jj]]);
+                        g.setAttribute(edge, schema.characterAttr, value.setString(characters[jj]));
+                    }
+                    g.newEdge(schema.directsType, peopleOids[directors[ii]], movie);
+                }
+            }
+        };
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Options options = new Options();
+        Option dbFile = Option.builder("db")
+                .required(true)
+                .longOpt("database")
+                .desc( "The Sparksee database file to create." )
+                .hasArg()
+                .build();
+        options.addOption( dbFile );
+        Option scaleOpt = Option.builder("s")
+                .required(false)
+                .longOpt("scale")
+                .desc( "The scale factor, about 1.8 million nodes and edges each (default: 1)." )
+                .hasArg()
+                .build();
+        options.addOption( scaleOpt );
+        Option seedOpt = Option.builder("seed")
+                .required(false)
+                .desc( "The random seed (default: 42)." )
+                .hasArg()
+                .build();
+        options.addOption( seedOpt );
+        Option threadsOpt = Option.builder("t")
+                .required(false)
+                .longOpt("threads")
+                .desc( "The number of generator threads (default: the number of available processors)." )
+                .hasArg()
+                .build();
+        options.addOption( threadsOpt );
+        Option batchOpt = Option.builder("b")
+                .required(false)
+                .longOpt("batch")
+                .desc( "The number of nodes or movies of each batch and transaction (default: 100000)." )
+                .hasArg()
+                .build();
+        options.addOption( batchOpt );
+        Option castOpt = Option.builder("ca")
+                .required(false)
+                .longOpt("castAlpha")
+                .desc( "The power-law exponent of the cast sizes (default: 2.5)." )
+                .hasArg()
+                .build();
+        options.addOption( castOpt );
+        Option skewOpt = Option.builder("sk")
+                .required(false)
+                .longOpt("skew")
+                .desc( "The popularity skew of the actors and the directors, 1 for uniform (default: 3 and 2)." )
+                .numberOfArgs(2)
+                .build();
+        options.addOption( skewOpt );
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine line;
+        try {
+            line = parser.parse( options, args );
+        }
+        catch( ParseException exp ) {
+            System.err.println( "Parsing failed.  Reason: " + exp.getMessage() );
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("SparkseePGQL.MovieGraphGenerator", options);
+            System.exit(1);
+            return;
+        }
+
+        MovieGraphGenerator generator = new MovieGraphGenerator(
+                Long.parseLong(line.getOptionValue("s", "1")), Long.parseLong(line.getOptionValue("seed", "42")));
+        if (line.hasOption("t")) {
+            generator.setNumThreads(Integer.parseInt(line.getOptionValue("t")));
+        }
+        if (line.hasOption("b")) {
+            generator.setBatchSize(Integer.parseInt(line.getOptionValue("b")));
+        }
+        if (line.hasOption("ca")) {
+            generator.setCastDistribution(Double.parseDouble(line.getOptionValue("ca")), generator.minCast, generator.maxCast);
+        }
+        if (line.hasOption("sk")) {
+            String[] skews = line.getOptionValues("sk");
+            generator.setPopularitySkew(Double.parseDouble(skews[0]), Double.parseDouble(skews[1]), generator.directorsRatio);
+        }
+
+        String databaseFilePath = line.getOptionValue("db");
+        SparkseeConfig cfg = new SparkseeConfig();
+        // Nothing to recover if the generation fails, the database is created again
+        cfg.setRecoveryEnabled(false);
+        Sparksee sparksee = new Sparksee(cfg);
+        Database db;
+        try {
+            db = sparksee.create(databaseFilePath, "SparkseePGQLMovieGraph");
+        } catch (java.io.FileNotFoundException ex) {
+            System.err.println("Error creating Sparksee database \""+databaseFilePath+"\": "+ex.getMessage());
+            sparksee.close();
+            System.exit(1);
+            return;
+        }
+        Session sess = db.newSession();
+        try {
+            long start = System.currentTimeMillis();
+            generator.generate(sess);
+            System.out.println("Movie graph generated in "+(System.currentTimeMillis()-start)+" ms");
+        }
+        finally {
+            sess.close();
+            db.close();
+            sparksee.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.sparsity.SparkseePGQL;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Produces batches in parallel and consumes them one by one in the batch order.
+ * A Sparksee database has a single writer at a time, so the data loaders prepare the
+ * batches (generating or parsing the data) with several threads and write them with a
+ * single session. Only a bounded number of batches are kept in memory.
+ */
+class OrderedBatches {
+
+    interface Producer<B> {
+        /**
+         * @param batch [in] The batch number.
+         * @return Returns the batch contents. It's called from the executor threads.
+         */
+        B produce(long batch) throws Exception;
+    }
+
+    interface Consumer<B> {
+        /**
+         * @param batch [in] The batch contents. It's called from the calling thread, in the batch order.
+         */
+        void consume(B batch);
+    }
+
+    private OrderedBatches() {
+    }
+
+    /**
+     * @param executor [in] The threads producing the batches.
+     * @param maxPending [in] The maximum number of batches produced but not consumed yet.
+     * @param numBatches [in] The number of batches.
+     * @param producer [in] The batch producer.
+     * @param consumer [in] The batch consumer.
+     * @throws InterruptedException If the thread is interrupted while waiting for a batch.
+     */
+    static <B> void run( ExecutorService executor, int maxPending, long numBatches,
+                         final Producer<B> producer, Consumer<B> consumer ) throws InterruptedException {
+        ArrayDeque<Future<B>> pending = new ArrayDeque<Future<B>>();
+        long nextBatch = 0;
+        try {
+            while ((nextBatch < numBatches) || !pending.isEmpty()) {
+                while ((nextBatch < numBatches) && (pending.size() < Math.max(1, maxPending))) {
+                    final long batch = nextBatch++;
+                    pending.add(executor.submit(new Callable<B>() {
+                        @Override
+                        public B call() throws Exception {
+                            return producer.produce(batch);
+                        }
+                    }));
+                }
+                B batch;
+                try {
+                    batch = pending.poll().get();
+                }
+                catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) ex.getCause();
+                    }
+                    throw new RuntimeException("Error preparing a batch: "+ex.getCause().getMessage(), ex.getCause());
+                }
+                consumer.consume(batch);
+            }
+        }
+        finally {
+            for (Future<B> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.sparsity.SparkseePGQL;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * Reads the PGQL queries of a script file.
+ * Each query may use several lines and it's ended by a "?" character.
+ * The lines starting with "#" are comments.
+ */
+public class PGQLScriptReader implements Closeable {
+
+    private final BufferedReader br;
+
+    public PGQLScriptReader( String queriesFile ) throws IOException {
+        br = new BufferedReader(new FileReader(queriesFile));
+    }
+
+    /**
+     * @param reader [in] The script contents (for example a resource stream). It's closed with this reader.
+     */
+    public PGQLScriptReader( Reader reader ) {
+        br = new BufferedReader(reader);
+    }
+
+    /**
+     * @return Returns the next query of the script or null at the end of the file.
+     * @throws IOException
+     */
+    public String nextQuery() throws IOException {
+        String line;
+        Boolean queryReady = false;
+        StringBuilder pgqlQueryString = new StringBuilder();
+        while ((line = br.readLine()) != null) {
+            // process the line.
+//            line.replace("\n", " ");
+//            line.replace("\r", "");
+            if (line.compareTo("?")==0)
+            {
+                queryReady = true;
+            }
+            else if (line.startsWith("#"))
+            {
+                continue;
+            }
+            else if (line.endsWith("?"))
+            {
+                pgqlQueryString.append(line.substring(0,line.length()-2));
+                queryReady = true;
+            }
+            else {
+                if ( pgqlQueryString.length() > 0 ) {
+                    pgqlQueryString.append(" ");
+                }
+                pgqlQueryString.append(line);
+            }
+            if (queryReady)
+            {
+                return pgqlQueryString.toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads all the queries of a script file.
+     * @param queriesFile [in] The script file path.
+     * @return Returns the queries in the same order they are found in the file.
+     * @throws IOException
+     */
+    public static ArrayList<String> readAll( String queriesFile ) throws IOException {
+        return readAll(new FileReader(queriesFile));
+    }
+
+    /**
+     * Reads all the queries of a script.
+     * @param script [in] The script contents. It's closed at the end.
+     * @return Returns the queries in the same order they are found in the script.
+     * @throws IOException
+     */
+    public static ArrayList<String> readAll( Reader script ) throws IOException {
+        ArrayList<String> queries = new ArrayList<String>();
+        try (PGQLScriptReader reader = new PGQLScriptReader(script)) {
+            String query;
+            while ((query = reader.nextQuery()) != null) {
+                queries.add(query);
+            }
+        }
+        return queries;
+    }
+
+    @Override
+    public void close() throws IOException {
+        br.close();
+    }
+}
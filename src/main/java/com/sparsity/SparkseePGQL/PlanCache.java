@@ -0,0 +1,136 @@
+package com.sparsity.SparkseePGQL;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of translated queries.
+ * The key is the normalized PGQL query text and the value its translation (the final Sparksee Query
+ * Algebra string or a TopKQuery), so a repeated query skips the parsing and the planning entirely.
+ * @param <V> The type of the cached translations.
+ */
+public class PlanCache<V> {
+
+    private final int capacity;
+    private final LinkedHashMap<String, V> plans;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+
+    /**
+     * @param capacity [in] The maximum number of plans kept in the cache.
+     */
+    public PlanCache( int capacity ) {
+        assert(capacity > 0);
+        this.capacity = capacity;
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+        // Access ordered, so the eldest entry is always the least recently used one
+        this.plans = new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                if (size() > PlanCache.this.capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Normalizes a PGQL query text so the same query written with a different layout
+     * gets the same cache key. Any run of white spaces outside a quoted literal is
+     * replaced by a single space and the leading and trailing spaces are removed.
+     * @param query [in] The PGQL query string
+     * @return Returns the normalized query string.
+     */
+    public static String normalize( String query ) {
+        StringBuilder normalized = new StringBuilder(query.length());
+        char quote = 0;
+        boolean pendingSpace = false;
+        for (int ii = 0; ii < query.length(); ii++) {
+            char c = query.charAt(ii);
+            if (quote != 0) {
+                normalized.append(c);
+                if (c == '\\' && ii+1 < query.length()) {
+                    normalized.append(query.charAt(++ii));
+                }
+                else if (c == quote) {
+                    quote = 0;
+                }
+            }
+            else if (Character.isWhitespace(c)) {
+                pendingSpace = true;
+            }
+            else {
+                if (pendingSpace && normalized.length() > 0) {
+                    normalized.append(' ');
+                }
+                pendingSpace = false;
+                if (c == '\'' || c == '"') {
+                    quote = c;
+                }
+                normalized.append(c);
+            }
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * @param key [in] The normalized query.
+     * @return Returns the cached translation or null if it's not in the cache.
+     */
+    public synchronized V get( String key ) {
+        V plan = plans.get(key);
+        if (plan != null) {
+            hits.incrementAndGet();
+        }
+        else {
+            misses.incrementAndGet();
+        }
+        return plan;
+    }
+
+    public synchronized void put( String key, V plan ) {
+        plans.put(key, plan);
+    }
+
+    public synchronized void clear() {
+        plans.clear();
+    }
+
+    public synchronized int size() {
+        return plans.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PlanCache{" +
+                "capacity=" + capacity +
+                ", size=" + size() +
+                ", hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", evictions=" + getEvictions() +
+                '}';
+    }
+}
@@ -0,0 +1,376 @@
+package com.sparsity.SparkseePGQL;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A PGQL query with named parameters ($name) that is translated once and then
+ * completed with the bound values for each execution.
+ *
+ * The translation is done replacing each parameter with an unique sentinel literal of the same
+ * kind as the bound value, so the translator builds exactly the same plan it would build for a
+ * literal. Then the sentinels found in the algebra string are extracted as template slots.
+ * A template is kept for each combination of parameter kinds, so binding values of the same kinds
+ * again only needs to concatenate the template segments and the formatted values.
+ */
+public class PreparedPGQLQuery {
+
+    public enum ParameterKind {
+        STRING, INTEGER, DECIMAL, BOOLEAN
+    }
+
+    private enum SlotFormat {
+        STRING, INTEGER, DECIMAL_SELECT, DECIMAL_EXPRESSION
+    }
+
+    private static class Slot {
+        private final int param;
+        private final SlotFormat format;
+
+        Slot(int param, SlotFormat format) {
+            this.param = param;
+            this.format = format;
+        }
+    }
+
+    private static class Sentinel {
+        private final String text;
+        private final Slot slot;
+
+        Sentinel(String text, Slot slot) {
+            this.text = text;
+            this.slot = slot;
+        }
+    }
+
+    private static class Template {
+        private final long planEpoch;
+        private final long statisticsVersion;
+        private final ArrayList<Object> segments; // String or Slot
+
+        Template(long planEpoch, long statisticsVersion, ArrayList<Object> segments) {
+            this.planEpoch = planEpoch;
+            this.statisticsVersion = statisticsVersion;
+            this.segments = segments;
+        }
+    }
+
+    private static final long INTEGER_SENTINEL_BASE = 7100000000000000000L;
+    private static final double DECIMAL_SENTINEL_BASE = 9000000.125;
+
+    private final SparkseePGQL translator;
+    private final String query;
+    private final ArrayList<String> paramNames;
+    private final long nonce; // Makes the sentinels of this query unique
+    // The template for each parameter kinds signature, with the settings and statistics it was built with
+    private final ConcurrentHashMap<String, Template> templates;
+
+
+    PreparedPGQLQuery( SparkseePGQL translator, String query ) {
+        this.translator = translator;
+        this.query = query;
+        this.paramNames = new ArrayList<String>();
+        this.templates = new ConcurrentHashMap<String, Template>();
+        for (String name : parseParameters(query).values()) {
+            if (!paramNames.contains(name)) {
+                paramNames.add(name);
+            }
+        }
+        // The sentinels must not be confused with anything already written in the query
+        Random random = new Random();
+        long candidate;
+        do {
+            candidate = random.nextInt(1000);
+        } while (sentinelsAppearIn(query, candidate));
+        this.nonce = candidate;
+    }
+
+    private boolean sentinelsAppearIn( String text, long candidate ) {
+        for (int param = 0; param < paramNames.size(); param++) {
+            if (text.contains("PGQLPARAM"+candidate+"X") ||
+                    text.contains(String.valueOf(INTEGER_SENTINEL_BASE + candidate*1000 + param)) ||
+                    text.contains(ExpressionInfo.sqaDecimalExpression(DECIMAL_SENTINEL_BASE + candidate*1000 + param))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * @return Returns the parameter names in the order they first appear in the query.
+     */
+    public List<String> getParameterNames() {
+        return Collections.unmodifiableList(paramNames);
+    }
+
+    /**
+     * Finds the parameters ($name) written outside the quoted literals.
+     * @param query [in] The PGQL query string.
+     * @return Returns the parameter names indexed by the position of its '$' character.
+     */
+    private static TreeMap<Integer, String> parseParameters( String query ) {
+        TreeMap<Integer, String> params = new TreeMap<Integer, String>();
+        char quote = 0;
+        for (int ii = 0; ii < query.length(); ii++) {
+            char c = query.charAt(ii);
+            if (quote != 0) {
+                if (c == '\\') {
+                    ii++;
+                }
+                else if (c == quote) {
+                    quote = 0;
+                }
+            }
+            else if (c == '\'' || c == '"') {
+                quote = c;
+            }
+            else if (c == '$') {
+                int end = ii+1;
+                while (end < query.length() &&
+                        (Character.isLetterOrDigit(query.charAt(end)) || query.charAt(end) == '_')) {
+                    end++;
+                }
+                if (end > ii+1) {
+                    params.put(ii, query.substring(ii+1, end));
+                }
+                ii = end-1;
+            }
+        }
+        return params;
+    }
+
+    public static ParameterKind getParameterKind( Object value ) {
+        if (value instanceof String) {
+            return ParameterKind.STRING;
+        }
+        else if ((value instanceof Long) || (value instanceof Integer) ||
+                (value instanceof Short) || (value instanceof Byte)) {
+            return ParameterKind.INTEGER;
+        }
+        else if ((value instanceof Double) || (value instanceof Float)) {
+            return ParameterKind.DECIMAL;
+        }
+        else if (value instanceof Boolean) {
+            return ParameterKind.BOOLEAN;
+        }
+        throw new IllegalArgumentException("Unsupported PGQL parameter value: "+value);
+    }
+
+    private String getSignature( Object[] values ) {
+        StringBuilder signature = new StringBuilder();
+        for (Object value : values) {
+            ParameterKind kind = getParameterKind(value);
+            signature.append(kind.name().charAt(0));
+            if (kind == ParameterKind.BOOLEAN) {
+                // A boolean literal has only two possible translations, so it's part of the template
+                signature.append(((Boolean) value)? '1' : '0');
+            }
+        }
+        return signature.toString();
+    }
+
+    /**
+     * Checks if a literal of a translated query is the sentinel of a parameter of the prepared query
+     * being translated, so the planner can avoid using its value to estimate the selectivity.
+     * @param sentinels [in] The sentinels of the translated query (String, Long and Double values).
+     * @param value [in] A String, Number or Boolean literal value.
+     * @return Returns true if the value is a parameter sentinel.
+     */
+    static boolean isParameterSentinel( Set<Object> sentinels, Object value ) {
+        if (sentinels.isEmpty() || (value == null)) {
+            return false;
+        }
+        if ((value instanceof Integer) || (value instanceof Short) || (value instanceof Byte)) {
+            value = ((Number) value).longValue();
+        }
+        else if (value instanceof Float) {
+            value = ((Number) value).doubleValue();
+        }
+        return sentinels.contains(value);
+    }
+
+    private String getStringSentinel( int param ) {
+        return "PGQLPARAM"+nonce+"X"+param+"X";
+    }
+
+    private long getIntegerSentinel( int param ) {
+        return INTEGER_SENTINEL_BASE + nonce*1000 + param;
+    }
+
+    private double getDecimalSentinel( int param ) {
+        return DECIMAL_SENTINEL_BASE + nonce*1000 + param;
+    }
+
+    /**
+     * Translates the query with a sentinel literal for each parameter and splits the
+     * result algebra into template segments.
+     * @param values [in] The parameter values (only their kinds are used).
+     * @return Returns the template segments or null if the query can't be translated.
+     */
+    private ArrayList<Object> compile( Object[] values ) {
+        ArrayList<Sentinel> sentinels = new ArrayList<Sentinel>();
+        // The sentinel values, so the translator recognizes them in the parsed query
+        HashSet<Object> sentinelValues = new HashSet<Object>();
+        String[] literals = new String[values.length];
+        for (int param = 0; param < values.length; param++) {
+            switch (getParameterKind(values[param])) {
+                case STRING:
+                    literals[param] = "'"+getStringSentinel(param)+"'";
+                    sentinels.add(new Sentinel(getStringSentinel(param), new Slot(param, SlotFormat.STRING)));
+                    sentinelValues.add(getStringSentinel(param));
+                    break;
+                case INTEGER:
+                    literals[param] = String.valueOf(getIntegerSentinel(param));
+                    sentinels.add(new Sentinel(literals[param], new Slot(param, SlotFormat.INTEGER)));
+                    sentinelValues.add(getIntegerSentinel(param));
+                    break;
+                case DECIMAL:
+                    double sentinel = getDecimalSentinel(param);
+                    literals[param] = String.valueOf(sentinel);
+                    sentinels.add(new Sentinel(ConstraintInfo.sqaDecimalSelectValue(sentinel),
+                            new Slot(param, SlotFormat.DECIMAL_SELECT)));
+                    sentinels.add(new Sentinel(ExpressionInfo.sqaDecimalExpression(sentinel),
+                            new Slot(param, SlotFormat.DECIMAL_EXPRESSION)));
+                    sentinelValues.add(sentinel);
+                    break;
+                case BOOLEAN:
+                    literals[param] = ((Boolean) values[param])? "true" : "false";
+                    break;
+            }
+        }
+        // The longest sentinels first, so a sentinel is never matched by a prefix of another one
+        Collections.sort(sentinels, new Comparator<Sentinel>() {
+            @Override
+            public int compare(Sentinel s1, Sentinel s2) {
+                return s2.text.length() - s1.text.length();
+            }
+        });
+
+        // Replace the parameters by the sentinel literals
+        StringBuilder pgqlQuery = new StringBuilder();
+        int last = 0;
+        for (Map.Entry<Integer, String> paramEntry : parseParameters(query).entrySet()) {
+            pgqlQuery.append(query, last, paramEntry.getKey());
+            pgqlQuery.append(literals[paramNames.indexOf(paramEntry.getValue())]);
+            last = paramEntry.getKey() + 1 + paramEntry.getValue().length();
+        }
+        pgqlQuery.append(query.substring(last));
+
+        String sqaQuery = translator.translatePGQLQuery(pgqlQuery.toString(), sentinelValues);
+        if (sqaQuery == null) {
+            return null;
+        }
+
+        // Extract the sentinels as template slots
+        ArrayList<Object> segments = new ArrayList<Object>();
+        int segmentStart = 0;
+        int pos = 0;
+        while (pos < sqaQuery.length()) {
+            Sentinel found = null;
+            for (Sentinel sentinel : sentinels) {
+                if (sqaQuery.startsWith(sentinel.text, pos)) {
+                    found = sentinel;
+                    break;
+                }
+            }
+            if (found != null) {
+                if (pos > segmentStart) {
+                    segments.add(sqaQuery.substring(segmentStart, pos));
+                }
+                segments.add(found.slot);
+                pos += found.text.length();
+                segmentStart = pos;
+            }
+            else {
+                pos++;
+            }
+        }
+        if (segmentStart < sqaQuery.length()) {
+            segments.add(sqaQuery.substring(segmentStart));
+        }
+        return segments;
+    }
+
+    private static String formatValue( Object value, SlotFormat format ) {
+        switch (format) {
+            case STRING:
+                String text = (String) value;
+                // The value is written between the quotes of the slot, so it can't close them
+                if ((text.indexOf('\'') >= 0) || (text.indexOf('\\') >= 0)) {
+                    throw new IllegalArgumentException("A PGQL string parameter can't contain quotes or backslashes: "+text);
+                }
+                return text;
+            case INTEGER:
+                return String.valueOf(((Number) value).longValue());
+            case DECIMAL_SELECT:
+                return ConstraintInfo.sqaDecimalSelectValue(((Number) value).doubleValue());
+            case DECIMAL_EXPRESSION:
+                return ExpressionInfo.sqaDecimalExpression(((Number) value).doubleValue());
+        }
+        assert(false);
+        return null;
+    }
+
+    /**
+     * Binds the parameter values in the order returned by getParameterNames.
+     * @param values [in] The parameter values (String, Integer, Long, Float, Double or Boolean).
+     *               The strings can't contain quotes or backslashes.
+     * @return Returns the Sparksee Query Algebra string or null if the query can't be translated.
+     */
+    public String bind( Object... values ) {
+        if (values.length != paramNames.size()) {
+            throw new IllegalArgumentException("The query expects "+paramNames.size()+
+                    " parameters but "+values.length+" were given.");
+        }
+        // Read before translating, so a template built while the settings change is built again later
+        long planEpoch = translator.getPlanEpoch();
+        long statisticsVersion = translator.getStatisticsVersion();
+        String signature = getSignature(values);
+        Template template = templates.get(signature);
+        ArrayList<Object> segments;
+        if ((template != null) && (template.planEpoch == planEpoch) &&
+                (template.statisticsVersion == statisticsVersion)) {
+            segments = template.segments;
+        }
+        else {
+            // The plan may be different with the new settings or statistics
+            segments = compile(values);
+            if (segments == null) {
+                return null;
+            }
+            templates.put(signature, new Template(planEpoch, statisticsVersion, segments));
+        }
+
+        StringBuilder sqaQuery = new StringBuilder();
+        for (Object segment : segments) {
+            if (segment instanceof Slot) {
+                Slot slot = (Slot) segment;
+                sqaQuery.append(formatValue(values[slot.param], slot.format));
+            }
+            else {
+                sqaQuery.append((String) segment);
+            }
+        }
+        return sqaQuery.toString();
+    }
+
+    /**
+     * Binds the parameter values by name.
+     * @param values [in] The value of each parameter.
+     * @return Returns the Sparksee Query Algebra string or null if the query can't be translated.
+     */
+    public String bind( Map<String, Object> values ) {
+        Object[] orderedValues = new Object[paramNames.size()];
+        for (int param = 0; param < paramNames.size(); param++) {
+            if (!values.containsKey(paramNames.get(param))) {
+                throw new IllegalArgumentException("Missing value for parameter $"+paramNames.get(param));
+            }
+            orderedValues[param] = values.get(paramNames.get(param));
+        }
+        return bind(orderedValues);
+    }
+}
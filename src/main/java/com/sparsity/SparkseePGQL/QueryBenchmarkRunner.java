@@ -0,0 +1,443 @@
+package com.sparsity.SparkseePGQL;
+
+import com.sparsity.sparksee.gdb.*;
+import org.apache.commons.cli.*;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs a suite of PGQL queries against a Sparksee database to measure them end to end.
+ * Each query is translated and run several times after some warm up runs, reading all the
+ * result rows, and the translation and the execution times are kept apart. The results
+ * (p50, p95 and p99 latencies and returned rows of each query) are written as JSON or CSV
+ * to compare different runs.
+ */
+public class QueryBenchmarkRunner {
+
+    /**
+     * The measures of a single query.
+     */
+    public static class QueryResult {
+        private final int index;
+        private final String query;
+        private long rows;
+        private long[] translationNanos;
+        private long[] executionNanos;
+        private long[] totalNanos;
+        private String error;
+
+        QueryResult(int index, String query) {
+            this.index = index;
+            this.query = query;
+            this.rows = -1;
+            this.translationNanos = new long[0];
+            this.executionNanos = new long[0];
+            this.totalNanos = new long[0];
+            this.error = null;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        /**
+         * @return Returns the number of rows returned by the query or -1 if it failed.
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return Returns the error message or null if the query could be run.
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return Returns the translation time of each measured iteration, sorted.
+         */
+        public long[] getTranslationNanos() {
+            return translationNanos;
+        }
+
+        /**
+         * @return Returns the execution time of each measured iteration (reading all the rows), sorted.
+         */
+        public long[] getExecutionNanos() {
+            return executionNanos;
+        }
+
+        /**
+         * @return Returns the translation plus the execution time of each measured iteration, sorted.
+         */
+        public long[] getTotalNanos() {
+            return totalNanos;
+        }
+    }
+
+    private final Session sess;
+    private final SparkseePGQL spgql;
+
+    /**
+     * @param sess [in] The session used to run the queries.
+     * @param statistics [in] The database statistics used to plan the queries or null.
+     */
+    public QueryBenchmarkRunner( Session sess, StatisticsCatalog statistics ) {
+        this.sess = sess;
+        // The plan cache is disabled so each iteration translates the query again
+        this.spgql = new SparkseePGQL(0);
+        if (statistics != null) {
+            spgql.setStatisticsCatalog(statistics);
+        }
+    }
+
+    /**
+     * @param supported [in] True if the Sparksee engine can run the bounded SORT of the ORDER BY ... LIMIT queries.
+     */
+    public void setTopKSortSupported( boolean supported ) {
+        spgql.setTopKSortSupported(supported);
+    }
+
+    /**
+     * Runs a query.
+     * @param index [in] The position of the query in the suite.
+     * @param pgqlQuery [in] The PGQL query.
+     * @param warmupIterations [in] The number of runs before measuring.
+     * @param iterations [in] The number of measured runs.
+     * @return Returns the measures of the query.
+     */
+    public QueryResult run( int index, String pgqlQuery, int warmupIterations, int iterations ) {
+        QueryResult result = new QueryResult(index, pgqlQuery);
+        long[] translation = new long[iterations];
+        long[] execution = new long[iterations];
+        long[] total = new long[iterations];
+        for (int ii = 0; ii < warmupIterations + iterations; ii++) {
+            long start = System.nanoTime();
+            String sqaQuery = spgql.ProcessPGQLQuery(pgqlQuery);
+            long translated = System.nanoTime();
+            if (sqaQuery == null) {
+                result.error = "The query could not be translated";
+                return result;
+            }
+            long rows = 0;
+            Query query = sess.newQuery();
+            try {
+                ResultSet rs = query.execute(sqaQuery);
+                while (rs.next()) {
+                    rows++;
+                }
+                rs.close();
+            }
+            catch (RuntimeException ex) {
+                result.error = "The query could not be run: "+ex.getMessage();
+                return result;
+            }
+            finally {
+                query.close();
+            }
+            long executed = System.nanoTime();
+            result.rows = rows;
+            if (ii >= warmupIterations) {
+                translation[ii - warmupIterations] = translated - start;
+                execution[ii - warmupIterations] = executed - translated;
+                total[ii - warmupIterations] = executed - start;
+            }
+        }
+        Arrays.sort(translation);
+        Arrays.sort(execution);
+        Arrays.sort(total);
+        result.translationNanos = translation;
+        result.executionNanos = execution;
+        result.totalNanos = total;
+        return result;
+    }
+
+    /**
+     * Runs all the queries of a suite, one after the other.
+     * @param queries [in] The PGQL queries.
+     * @param warmupIterations [in] The number of runs of each query before measuring it.
+     * @param iterations [in] The number of measured runs of each query.
+     * @return Returns the measures of each query.
+     */
+    public List<QueryResult> runSuite( List<String> queries, int warmupIterations, int iterations ) {
+        ArrayList<QueryResult> results = new ArrayList<QueryResult>();
+        for (int ii = 0; ii < queries.size(); ii++) {
+            QueryResult result = run(ii, queries.get(ii), warmupIterations, iterations);
+            if (result.getError() != null) {
+                System.err.println("Query "+ii+": "+result.getError());
+            }
+            else {
+                System.err.println("Query "+ii+": "+result.getRows()+" rows, p50 "+
+                        millis(percentile(result.getTotalNanos(), 0.5))+" ms (translation "+
+                        millis(percentile(result.getTranslationNanos(), 0.5))+" ms)");
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * @param sorted [in] The sorted values.
+     * @param quantile [in] The quantile between 0 and 1.
+     * @return Returns the nearest rank percentile or 0 if there are no values.
+     */
+    static long percentile( long[] sorted, double quantile ) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.min(sorted.length, Math.max(1, rank)) - 1];
+    }
+
+    private static String millis( long nanos ) {
+        return String.format(java.util.Locale.ROOT, "%.3f", nanos / 1000000.0);
+    }
+
+    private static String jsonString( String str ) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : str.toCharArray()) {
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append("\"").toString();
+    }
+
+    private static String jsonLatencies( long[] sorted ) {
+        return "{\"p50Ms\": "+millis(percentile(sorted, 0.5))+
+                ", \"p95Ms\": "+millis(percentile(sorted, 0.95))+
+                ", \"p99Ms\": "+millis(percentile(sorted, 0.99))+
+                ", \"maxMs\": "+millis(percentile(sorted, 1.0))+"}";
+    }
+
+    /**
+     * @param results [in] The measures of the queries.
+     * @param database [in] The database file name.
+     * @param warmupIterations [in] The number of warm up runs of each query.
+     * @param iterations [in] The number of measured runs of each query.
+     * @return Returns the results as a JSON document.
+     */
+    public static String toJSON( List<QueryResult> results, String database, int warmupIterations, int iterations ) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"database\": ").append(jsonString(database)).append(",\n");
+        sb.append("  \"warmupIterations\": ").append(warmupIterations).append(",\n");
+        sb.append("  \"iterations\": ").append(iterations).append(",\n");
+        sb.append("  \"queries\": [");
+        for (int ii = 0; ii < results.size(); ii++) {
+            QueryResult result = results.get(ii);
+            sb.append((ii == 0)? "\n" : ",\n");
+            sb.append("    {\"index\": ").append(result.getIndex());
+            sb.append(", \"query\": ").append(jsonString(result.getQuery()));
+            if (result.getError() != null) {
+                sb.append(", \"error\": ").append(jsonString(result.getError()));
+            }
+            else {
+                sb.append(", \"rows\": ").append(result.getRows());
+                sb.append(",\n     \"translation\": ").append(jsonLatencies(result.getTranslationNanos()));
+                sb.append(",\n     \"execution\": ").append(jsonLatencies(result.getExecutionNanos()));
+                sb.append(",\n     \"total\": ").append(jsonLatencies(result.getTotalNanos()));
+            }
+            sb.append("}");
+        }
+        sb.append("\n  ]\n}\n");
+        return sb.toString();
+    }
+
+    /**
+     * @param results [in] The measures of the queries.
+     * @return Returns the results as CSV, one line for each query.
+     */
+    public static String toCSV( List<QueryResult> results ) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("index,rows,translation_p50_ms,translation_p95_ms,translation_p99_ms,")
+                .append("execution_p50_ms,execution_p95_ms,execution_p99_ms,")
+                .append("total_p50_ms,total_p95_ms,total_p99_ms,error,query\n");
+        for (QueryResult result : results) {
+            sb.append(result.getIndex()).append(",").append(result.getRows());
+            for (long[] sorted : new long[][] {result.getTranslationNanos(), result.getExecutionNanos(), result.getTotalNanos()}) {
+                for (double quantile : new double[] {0.5, 0.95, 0.99}) {
+                    sb.append(",").append(millis(percentile(sorted, quantile)));
+                }
+            }
+            sb.append(",").append(csvString((result.getError() != null)? result.getError() : ""));
+            sb.append(",").append(csvString(result.getQuery())).append("\n");
+        }
+        return sb.toString();
+    }
+
+    private static String csvString( String str ) {
+        return "\"" + str.replace("\"", "\"\"").replace('\n', ' ').replace('\r', ' ') + "\"";
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        Option dbFile = Option.builder("db")
+                .required(true)
+                .longOpt("database")
+                .desc( "The Sparksee database file." )
+                .hasArg()
+                .build();
+        options.addOption( dbFile );
+        Option createDB = new Option( "c", "createDB", false, "Create the database with the sample data" );
+        options.addOption( createDB );
+        Option generateOpt = Option.builder("g")
+                .required(false)
+                .longOpt("generate")
+                .desc( "Create the database with a generated movie graph of the given scale factor." )
+                .hasArg()
+                .build();
+        options.addOption( generateOpt );
+        Option queriesFile = Option.builder("f")
+                .required(true)
+                .longOpt("file")
+                .desc( "A file with the source PGQL queries ended with a \"?\" character." )
+                .hasArg()
+                .build();
+        options.addOption( queriesFile );
+        Option warmupOpt = Option.builder("w")
+                .required(false)
+                .longOpt("warmup")
+                .desc( "The number of warm up runs of each query (default: 3)." )
+                .hasArg()
+                .build();
+        options.addOption( warmupOpt );
+        Option iterationsOpt = Option.builder("i")
+                .required(false)
+                .longOpt("iterations")
+                .desc( "The number of measured runs of each query (default: 10)." )
+                .hasArg()
+                .build();
+        options.addOption( iterationsOpt );
+        Option outputOpt = Option.builder("o")
+                .required(false)
+                .longOpt("output")
+                .desc( "The results file, CSV if its name ends with \".csv\" or JSON otherwise (default: the standard output)." )
+                .hasArg()
+                .build();
+        options.addOption( outputOpt );
+        Option topKSort = new Option( "tk", "topKSort", false,
+                "The Sparksee engine supports the bounded SORT of the ORDER BY ... LIMIT queries" );
+        options.addOption( topKSort );
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine line;
+        try {
+            line = parser.parse( options, args );
+        }
+        catch( ParseException exp ) {
+            System.err.println( "Parsing failed.  Reason: " + exp.getMessage() );
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("SparkseePGQL.QueryBenchmarkRunner", options);
+            System.exit(1);
+            return;
+        }
+
+        ArrayList<String> queries;
+        try {
+            queries = PGQLScriptReader.readAll(line.getOptionValue("f"));
+        } catch (IOException ex) {
+            System.err.println("Error reading input file \""+line.getOptionValue("f")+"\".");
+            System.exit(1);
+            return;
+        }
+        int warmupIterations = Integer.parseInt(line.getOptionValue("w", "3"));
+        int iterations = Integer.parseInt(line.getOptionValue("i", "10"));
+        String databaseFilePath = line.getOptionValue("db");
+
+        Sparksee sparksee = new Sparksee(new SparkseeConfig());
+        Database db;
+        try {
+            if (line.hasOption("g")) {
+                db = sparksee.create(databaseFilePath, "SparkseePGQLBenchmarkDB");
+                Session loadSess = db.newSession();
+                try {
+                    new MovieGraphGenerator(Long.parseLong(line.getOptionValue("g")), 42).generate(loadSess);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    System.err.println("The database generation was interrupted");
+                    System.exit(1);
+                    return;
+                }
+                finally {
+                    loadSess.close();
+                }
+            }
+            else if (line.hasOption("c")) {
+                db = sparksee.create(databaseFilePath, "SparkseePGQLBenchmarkDB");
+                Session loadSess = db.newSession();
+                Client.loadData(loadSess.getGraph());
+                loadSess.close();
+            }
+            else {
+                db = sparksee.open(databaseFilePath, true);
+            }
+        } catch (java.io.FileNotFoundException ex) {
+            System.err.println("Error opening Sparksee database \""+databaseFilePath+"\": "+ex.getMessage());
+            sparksee.close();
+            System.exit(1);
+            return;
+        }
+        StatisticsCatalog statistics = new StatisticsCatalog(db);
+        statistics.refresh();
+        Session sess = db.newSession();
+        List<QueryResult> results;
+        try {
+            QueryBenchmarkRunner runner = new QueryBenchmarkRunner(sess, statistics);
+            runner.setTopKSortSupported(line.hasOption("tk"));
+            results = runner.runSuite(queries, warmupIterations, iterations);
+        }
+        finally {
+            sess.close();
+            statistics.close();
+            db.close();
+            sparksee.close();
+        }
+
+        String output = line.getOptionValue("o");
+        boolean csv = (output != null) && output.toLowerCase().endsWith(".csv");
+        String report = csv? toCSV(results) : toJSON(results, databaseFilePath, warmupIterations, iterations);
+        if (output == null) {
+            System.out.print(report);
+            return;
+        }
+        try (PrintWriter writer = new PrintWriter(new FileWriter(output))) {
+            writer.print(report);
+        } catch (IOException ex) {
+            System.err.println("Error writing the results file \""+output+"\": "+ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package com.sparsity.SparkseePGQL;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs PGQL queries in parallel, one thread for each session of a SessionPool.
+ * Each task translates its query with the shared SparkseePGQL translator, checks out a session,
+ * runs the translation and passes the result to a ResultHandler, and returns the session.
+ * It's meant for independent read-only queries: the tasks don't see each other's updates in any order.
+ * <p>
+ * The asynchronous methods return a CompletableFuture that can be cancelled and may have a time limit.
+ * Sparksee can't stop a running query from another thread, so the cancellation is cooperative: the
+ * future is completed at once, and the thread running the query closes its Query and ResultSet
+ * when the handler asks for the next row (ResultCursor.next fails with a CancellationException).
+ * A query stopped while the engine is still computing its result keeps its thread and its session
+ * until the engine returns, and it's counted by getStuckQueries meanwhile.
+ * <p>
+ * With an AdmissionController, each query is planned and admitted before it gets a session, and
+ * the queries over the memory budget fail with an AdmissionController.QueryRejectedException.
+ * A query waiting to be admitted doesn't keep an executor thread: it's run by an executor thread
+ * when it's admitted.
+ */
+public class QueryExecutor implements Closeable {
+
+    /**
+     * Reads the result of a query in the executor thread.
+     */
+    public interface ResultHandler<T> {
+        /**
+         * @param cursor [in] The query result, closed after the handler returns.
+         * @return Returns the value of the task Future.
+         */
+        T handle( ResultCursor cursor ) throws Exception;
+    }
+
+    private static final AtomicInteger executorNumber = new AtomicInteger();
+    // How often a query waiting for a session checks if it has been cancelled
+    private static final long SESSION_WAIT_MILLIS = 100;
+
+    private final SparkseePGQL spgql;
+    private final SessionPool pool;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private volatile AdmissionController admission;
+    private final AtomicInteger stuckQueries;
+
+    /**
+     * @param spgql [in] The translator, shared by all the threads.
+     * @param pool [in] The session pool. The executor has one thread for each session.
+     */
+    public QueryExecutor( SparkseePGQL spgql, SessionPool pool ) {
+        this.spgql = spgql;
+        this.pool = pool;
+        this.stuckQueries = new AtomicInteger();
+        final int number = executorNumber.incrementAndGet();
+        this.executor = Executors.newFixedThreadPool(pool.getMaxSessions(), new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "QueryExecutor-"+number+"-"+threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "QueryExecutor-"+number+"-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * An asynchronous query, to cancel it from other threads and to know when it's stuck in the engine.
+     */
+    private class RunningQuery {
+        private final long timeoutMillis;
+        private final long deadline;        // System.nanoTime() deadline
+        private ResultCursor cursor;
+        private boolean executing;
+        private boolean stopped;
+        private boolean stuck;
+
+        /**
+         * @param timeout [in] The time limit from now, or a negative value for no limit.
+         * @param unit [in] The time unit.
+         */
+        RunningQuery( long timeout, TimeUnit unit ) {
+            this.timeoutMillis = (timeout < 0)? -1 : unit.toMillis(timeout);
+            this.deadline = (timeout < 0)? 0 : System.nanoTime() + unit.toNanos(timeout);
+        }
+
+        boolean isExpired() {
+            return (timeoutMillis >= 0) && (System.nanoTime() - deadline > 0);
+        }
+
+        TimeoutException timeoutException() {
+            return new TimeoutException("The query exceeded its time limit of "+timeoutMillis+" ms");
+        }
+
+        /**
+         * The thread starts running the query in the engine.
+         */
+        synchronized void start() {
+            executing = true;
+        }
+
+        synchronized void set( ResultCursor cursor ) {
+            this.cursor = cursor;
+            if (stopped) {
+                cursor.cancel();
+            }
+        }
+
+        /**
+         * The query result is no longer needed.
+         */
+        synchronized void stop() {
+            stopped = true;
+            if (cursor != null) {
+                cursor.cancel();
+            }
+            if (executing && !stuck) {
+                stuck = true;
+                stuckQueries.incrementAndGet();
+            }
+        }
+
+        /**
+         * The thread has finished with the query and its session.
+         */
+        synchronized void finish() {
+            executing = false;
+            cursor = null;
+            if (stuck) {
+                stuck = false;
+                stuckQueries.decrementAndGet();
+            }
+        }
+    }
+
+    public SessionPool getSessionPool() {
+        return pool;
+    }
+
+    /**
+     * @param admission [in] The admission control of the PGQL queries, or null to run all of them.
+     *                  The controlled queries are translated without the plan cache, because it
+     *                  only keeps the algebra. The queries already translated are not controlled.
+     */
+    public void setAdmissionController( AdmissionController admission ) {
+        this.admission = admission;
+    }
+
+    public AdmissionController getAdmissionController() {
+        return admission;
+    }
+
+    /**
+     * @return Returns the number of asynchronous queries cancelled or timed out whose thread is still
+     *         waiting for the engine, keeping an executor thread and a session.
+     */
+    public int getStuckQueries() {
+        return stuckQueries.get();
+    }
+
+    /**
+     * Translates and runs a PGQL query.
+     * @param pgqlQuery [in] The PGQL query.
+     * @param handler [in] Reads the result.
+     * @return Returns the value of the handler. It fails with an IllegalArgumentException if the query can't be translated.
+     */
+    public <T> Future<T> submit( final String pgqlQuery, final ResultHandler<T> handler ) {
+        if (admission != null) {
+            // Queued without keeping a thread
+            return submitAsync(pgqlQuery, handler);
+        }
+        return executor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return run(translate(pgqlQuery), handler);
+            }
+        });
+    }
+
+    /**
+     * Runs a query already translated to the Sparksee algebra.
+     * @param algebra [in] The Sparksee algebra query.
+     * @param handler [in] Reads the result.
+     * @return Returns the value of the handler.
+     */
+    public <T> Future<T> submitAlgebra( final String algebra, final ResultHandler<T> handler ) {
+        return executor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return run(algebra, handler);
+            }
+        });
+    }
+
+    /**
+     * Translates a PGQL query in an executor thread.
+     * @param pgqlQuery [in] The PGQL query.
+     * @return Returns the Sparksee algebra query. It fails with an IllegalArgumentException if the query can't be translated.
+     */
+    public CompletableFuture<String> translateAsync( final String pgqlQuery ) {
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    future.complete(translate(pgqlQuery));
+                }
+                catch (Throwable ex) {
+                    future.completeExceptionally(ex);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Translates and runs a PGQL query without a time limit.
+     * @param pgqlQuery [in] The PGQL query.
+     * @param handler [in] Reads the result.
+     * @return Returns the value of the handler.
+     */
+    public <T> CompletableFuture<T> submitAsync( String pgqlQuery, ResultHandler<T> handler ) {
+        return submitAsync(pgqlQuery, handler, -1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Translates and runs a PGQL query. Cancelling the future stops the query.
+     * The time limit is checked before the query gets a session and before it's run, and then while
+     * its rows are read. Sparksee can't interrupt the execution of a query, so a query that times out
+     * or is cancelled while the engine computes its result completes its future at once, but it keeps
+     * its executor thread and its session until the engine returns (see getStuckQueries).
+     * @param pgqlQuery [in] The PGQL query.
+     * @param handler [in] Reads the result. It runs in an executor thread.
+     * @param timeout [in] The maximum time from now to get the result, including the time waiting for a thread
+     *                and a session, or a negative value for no limit.
+     * @param unit [in] The time unit.
+     * @return Returns the value of the handler. It fails with a TimeoutException if the time is over.
+     */
+    public <T> CompletableFuture<T> submitAsync( final String pgqlQuery, final ResultHandler<T> handler,
+                                                 final long timeout, final TimeUnit unit ) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        final RunningQuery running = new RunningQuery(timeout, unit);
+        final ScheduledFuture<?> timeoutTask = (timeout < 0)? null : timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                future.completeExceptionally(running.timeoutException());
+            }
+        }, timeout, unit);
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T result, Throwable ex) {
+                // Completed, cancelled or timed out: nobody waits for the rows any more
+                running.stop();
+                if (timeoutTask != null) {
+                    timeoutTask.cancel(false);
+                }
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    AdmissionController controller = admission;
+                    if (controller == null) {
+                        execute(translate(pgqlQuery), handler, future, running, null);
+                    }
+                    else {
+                        admit(controller, plan(pgqlQuery), handler, future, running);
+                    }
+                }
+                catch (Throwable ex) {
+                    future.completeExceptionally(ex);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Queues a query of submitAsync in the admission control, and runs it in an executor thread
+     * when it's admitted. The query leaves the queue when its future is done.
+     */
+    private <T> void admit( final AdmissionController controller, final SQAOperator plan, final ResultHandler<T> handler,
+                            final CompletableFuture<T> future, final RunningQuery running ) {
+        final AdmissionController.Estimate estimate = controller.estimate(plan);
+        final CompletableFuture<AdmissionController.Ticket> admitted = controller.admitAsync(estimate);
+        if (admitted.isDone()) {
+            execute(plan.toAlgebra(), handler, future, running, admitted.join());
+            return;
+        }
+        final long startNanos = System.nanoTime();
+        final long timeoutMillis = controller.getQueueTimeoutMillis();
+        final ScheduledFuture<?> timeoutTask = (timeoutMillis < 0)? null : timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!admitted.isDone()) {
+                    admitted.completeExceptionally(controller.busy(estimate,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T result, Throwable ex) {
+                // Cancelled or timed out while queued
+                admitted.cancel(false);
+            }
+        });
+        admitted.whenComplete(new BiConsumer<AdmissionController.Ticket, Throwable>() {
+            @Override
+            public void accept(final AdmissionController.Ticket ticket, Throwable ex) {
+                if (timeoutTask != null) {
+                    timeoutTask.cancel(false);
+                }
+                if (ex != null) {
+                    future.completeExceptionally(ex);
+                    return;
+                }
+                // Run by an executor thread, not by the thread that released the memory
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            execute(plan.toAlgebra(), handler, future, running, ticket);
+                        }
+                    });
+                }
+                catch (RejectedExecutionException closed) {
+                    ticket.close();
+                    future.completeExceptionally(closed);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a query of submitAsync in the calling executor thread and completes its future.
+     * @param ticket [in] The admission of the query, closed when it ends, or null.
+     */
+    private <T> void execute( String algebra, ResultHandler<T> handler, CompletableFuture<T> future,
+                              RunningQuery running, AdmissionController.Ticket ticket ) {
+        try {
+            if (isStopped(future, running)) {
+                return;
+            }
+            SessionPool.PooledSession sess;
+            while ((sess = pool.checkout(SESSION_WAIT_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                if (isStopped(future, running)) {
+                    return;
+                }
+            }
+            T result;
+            try {
+                // The last chance to stop it before the engine can't be interrupted
+                if (isStopped(future, running)) {
+                    return;
+                }
+                running.start();
+                ResultCursor cursor = sess.execute(algebra);
+                running.set(cursor);
+                result = handler.handle(cursor);
+            }
+            finally {
+                running.finish();
+                sess.close();
+            }
+            future.complete(result);
+        }
+        catch (Throwable ex) {
+            future.completeExceptionally(ex);
+        }
+        finally {
+            if (ticket != null) {
+                ticket.close();
+            }
+        }
+    }
+
+    /**
+     * @return Returns true if the future of the query is done, completing it if its time is over.
+     */
+    private static boolean isStopped( CompletableFuture<?> future, RunningQuery running ) {
+        if (!future.isDone() && running.isExpired()) {
+            future.completeExceptionally(running.timeoutException());
+        }
+        return future.isDone();
+    }
+
+    private SQAOperator plan( String pgqlQuery ) {
+        SQAOperator plan = spgql.ExplainPGQLQuery(pgqlQuery);
+        if (plan == null) {
+            throw new IllegalArgumentException("The query could not be translated");
+        }
+        return plan;
+    }
+
+    private String translate( String pgqlQuery ) {
+        String algebra = spgql.ProcessPGQLQuery(pgqlQuery);
+        if (algebra == null) {
+            throw new IllegalArgumentException("The query could not be translated");
+        }
+        return algebra;
+    }
+
+    /**
+     * Runs a query in the calling thread with a session of the pool.
+     * @param algebra [in] The Sparksee algebra query.
+     * @param handler [in] Reads the result.
+     * @return Returns the value of the handler.
+     */
+    public <T> T run( String algebra, ResultHandler<T> handler ) throws Exception {
+        try (SessionPool.PooledSession sess = pool.checkout()) {
+            try (ResultCursor cursor = sess.execute(algebra)) {
+                return handler.handle(cursor);
+            }
+        }
+    }
+
+    /**
+     * Waits for the submitted queries and stops the threads. The session pool is not closed.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // Keep waiting for the running queries
+            }
+        }
+        catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.sparsity.SparkseePGQL;
+
+import com.sparsity.sparksee.gdb.Query;
+import com.sparsity.sparksee.gdb.ResultSet;
+import com.sparsity.sparksee.gdb.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Runs a translated query to get the actual rows and time of each operator (EXPLAIN ANALYZE).
+ * The Sparksee query engine doesn't report the work of each operator, so each sub-plan is run
+ * on its own, bottom up, reading all its rows. The time of an operator is the time of its
+ * sub-plan minus the time of the sub-plans of its children, so it's an approximation and the
+ * whole query is run once for each level of the tree.
+ */
+public class QueryProfiler {
+    final Logger logger = LoggerFactory.getLogger(QueryProfiler.class);
+
+    /**
+     * The measures of a single operator.
+     */
+    public static class OperatorProfile {
+        private final long rows;
+        private final long totalNanos;
+        private final long selfNanos;
+
+        OperatorProfile(long rows, long totalNanos, long selfNanos) {
+            this.rows = rows;
+            this.totalNanos = totalNanos;
+            this.selfNanos = selfNanos;
+        }
+
+        /**
+         * @return Returns the number of output rows.
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return Returns the wall time of the operator and all its children.
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /**
+         * @return Returns the wall time of the operator without its children.
+         */
+        public long getSelfNanos() {
+            return selfNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "(actual rows="+rows+", time="+formatMillis(selfNanos)+" ms, total="+formatMillis(totalNanos)+" ms)";
+        }
+
+        private static String formatMillis(long nanos) {
+            return String.format("%.3f", nanos / 1000000.0);
+        }
+    }
+
+    private final Session sess;
+
+    /**
+     * @param sess [in] The session used to run the sub-plans.
+     */
+    public QueryProfiler( Session sess ) {
+        this.sess = sess;
+    }
+
+    /**
+     * Runs all the sub-plans of the given operator tree.
+     * @param root [in] The root of the query plan.
+     * @return Returns the measures of each operator.
+     */
+    public Map<SQAOperator, OperatorProfile> profile( SQAOperator root ) {
+        IdentityHashMap<SQAOperator, OperatorProfile> profiles = new IdentityHashMap<SQAOperator, OperatorProfile>();
+        profileOperator(root, profiles);
+        return profiles;
+    }
+
+    /**
+     * @param root [in] The root of the query plan.
+     * @return Returns the operator tree with the estimated and the actual rows and time of each operator.
+     */
+    public String explainAnalyze( SQAOperator root ) {
+        Map<SQAOperator, OperatorProfile> profiles = profile(root);
+        IdentityHashMap<SQAOperator, String> details = new IdentityHashMap<SQAOperator, String>();
+        for (Map.Entry<SQAOperator, OperatorProfile> entry : profiles.entrySet()) {
+            details.put(entry.getKey(), entry.getValue().toString());
+        }
+        return root.explain(details);
+    }
+
+    private OperatorProfile profileOperator( SQAOperator op, Map<SQAOperator, OperatorProfile> profiles ) {
+        long childrenNanos = 0;
+        for (SQAOperator child : op.getChildren()) {
+            childrenNanos += profileOperator(child, profiles).getTotalNanos();
+        }
+        String algebra = op.toAlgebra();
+        long start = System.nanoTime();
+        long rows = 0;
+        Query query = sess.newQuery();
+        try {
+            ResultSet rs = query.execute(algebra);
+            while (rs.next()) {
+                rows++;
+            }
+            rs.close();
+        }
+        finally {
+            query.close();
+        }
+        long totalNanos = System.nanoTime() - start;
+        logger.debug("Profiled "+op.describe()+": "+rows+" rows in "+totalNanos+" ns");
+        OperatorProfile profile = new OperatorProfile(rows, totalNanos, Math.max(0L, totalNanos - childrenNanos));
+        profiles.put(op, profile);
+        return profile;
+    }
+}
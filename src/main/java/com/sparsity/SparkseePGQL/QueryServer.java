@@ -0,0 +1,880 @@
+package com.sparsity.SparkseePGQL;
+
+import com.sparsity.sparksee.gdb.*;
+import org.apache.commons.cli.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * A long running server that translates and runs PGQL queries on an open database for
+ * local clients, so they don't pay the database opening and the cache warm up.
+ * One selector thread reads the requests and writes the responses of all the connections
+ * with non-blocking sockets, and the queries run in worker threads with the sessions of a
+ * SessionPool. The queries of a connection run one after the other, in the order they are received.
+ * An optional AdmissionController queues or rejects (with an ERROR frame) the queries that would
+ * need too much memory. A queued query doesn't keep a worker thread: it's translated by a worker,
+ * waits in the admission queue, and it's run by a worker when a running query releases its memory.
+ * <p>
+ * Each message is a frame: the payload length (int), the frame type (byte) and the payload.
+ * All the numbers are big endian and the strings are an int length and the UTF-8 bytes.
+ * <ul>
+ * <li>QUERY (client): the maximum rows of each batch (int, 0 for the default) and the PGQL query
+ *     (the rest of the payload, UTF-8).</li>
+ * <li>HEADER: the number of columns (int) and the name (string) and the type code (byte) of each column.</li>
+ * <li>BATCH: the number of rows (int) and the values of each row. Each value is its type code
+ *     (byte), VALUE_NULL for NULL, followed by the value: a byte for a boolean, an int for an integer,
+ *     a long for a long, an OID or a timestamp (milliseconds), a double or a string.</li>
+ * <li>END: the total number of rows (long). It's the last frame of a successful query.</li>
+ * <li>ERROR: the error message (string). It's the last frame of a failed query.</li>
+ * </ul>
+ */
+public class QueryServer implements Closeable {
+    final Logger logger = LoggerFactory.getLogger(QueryServer.class);
+
+    public static final int DEFAULT_PORT = 7700;
+    public static final int DEFAULT_BATCH_ROWS = 1000;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    // The response bytes of a connection waiting to be sent before a query waits for the client
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+    // The admission control defaults when it's enabled
+    public static final long DEFAULT_HEAVY_MEGABYTES = 256;
+    public static final int DEFAULT_HEAVY_QUERIES = 1;
+
+    // Frame types
+    public static final byte FRAME_QUERY = 1;
+    public static final byte FRAME_HEADER = 16;
+    public static final byte FRAME_BATCH = 17;
+    public static final byte FRAME_END = 18;
+    public static final byte FRAME_ERROR = 19;
+
+    // Value type codes
+    public static final byte VALUE_NULL = 0;
+    public static final byte VALUE_BOOLEAN = 1;
+    public static final byte VALUE_INTEGER = 2;
+    public static final byte VALUE_LONG = 3;
+    public static final byte VALUE_DOUBLE = 4;
+    public static final byte VALUE_TIMESTAMP = 5;
+    public static final byte VALUE_STRING = 6;
+    public static final byte VALUE_OID = 7;
+
+    private static final AtomicInteger serverNumber = new AtomicInteger();
+
+    /**
+     * A query received from a connection.
+     */
+    private static class Request {
+        String query;
+        int batchRows;
+    }
+
+    /**
+     * The state of a client connection.
+     */
+    private class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        final ByteBuffer frameHeader = ByteBuffer.allocate(5);
+        byte frameType;
+        ByteBuffer payload;
+        // The responses to send, written by the selector thread
+        final ArrayDeque<ByteBuffer> outbox = new ArrayDeque<ByteBuffer>();
+        long outboxBytes;
+        // The received queries waiting for the running one
+        final ArrayDeque<Request> requests = new ArrayDeque<Request>();
+        boolean running;
+        boolean closed;
+        // The admission of the running query while it's queued by the admission control
+        CompletableFuture<AdmissionController.Ticket> pendingAdmission;
+
+        Connection( SocketChannel channel ) {
+            this.channel = channel;
+        }
+
+        /**
+         * Queues a response frame, waiting while the client doesn't read the previous ones.
+         * @param frame [in] The frame ready to be read.
+         * @param wait [in] False to queue the frame even if there are too many pending bytes.
+         * @throws IOException If the connection is closed.
+         */
+        void send( ByteBuffer frame, boolean wait ) throws IOException {
+            synchronized (this) {
+                while (wait && !closed && (outboxBytes > MAX_PENDING_BYTES)) {
+                    try {
+                        this.wait();
+                    }
+                    catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while sending a response");
+                    }
+                }
+                if (closed) {
+                    throw new IOException("The connection is closed");
+                }
+                outbox.add(frame);
+                outboxBytes += frame.remaining();
+            }
+            writeRequests.add(this);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * A frame being built, growing as needed.
+     */
+    private static class FrameBuffer {
+        private ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+
+        FrameBuffer begin( byte type ) {
+            buf.clear();
+            buf.putInt(0);
+            buf.put(type);
+            return this;
+        }
+
+        private void ensure( int bytes ) {
+            if (buf.remaining() < bytes) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * buf.capacity(), buf.position() + bytes));
+                buf.flip();
+                bigger.put(buf);
+                buf = bigger;
+            }
+        }
+
+        int size() {
+            return buf.position();
+        }
+
+        FrameBuffer putByte( byte value ) {
+            ensure(1);
+            buf.put(value);
+            return this;
+        }
+
+        FrameBuffer putInt( int value ) {
+            ensure(4);
+            buf.putInt(value);
+            return this;
+        }
+
+        FrameBuffer putLong( long value ) {
+            ensure(8);
+            buf.putLong(value);
+            return this;
+        }
+
+        FrameBuffer putDouble( double value ) {
+            ensure(8);
+            buf.putDouble(value);
+            return this;
+        }
+
+        FrameBuffer putString( String value ) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensure(4 + bytes.length);
+            buf.putInt(bytes.length);
+            buf.put(bytes);
+            return this;
+        }
+
+        void putInt( int position, int value ) {
+            buf.putInt(position, value);
+        }
+
+        /**
+         * @return Returns a copy of the frame, ready to be written.
+         */
+        ByteBuffer finish() {
+            buf.putInt(0, buf.position() - 5);
+            ByteBuffer frame = ByteBuffer.allocate(buf.position());
+            buf.flip();
+            frame.put(buf);
+            frame.flip();
+            return frame;
+        }
+    }
+
+    private final SparkseePGQL spgql;
+    private final SessionPool pool;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ExecutorService workers;
+    // Rejects the queries that wait too long to be admitted
+    private final ScheduledExecutorService admissionTimer;
+    private final ConcurrentLinkedQueue<Connection> writeRequests;
+    private final Thread selectorThread;
+    private volatile boolean running;
+    private volatile AdmissionController admission;
+
+    /**
+     * Opens the server socket and starts accepting connections.
+     * @param spgql [in] The translator.
+     * @param pool [in] The sessions of the database. There is a worker thread for each session.
+     * @param address [in] The address to listen to, usually a loopback address.
+     * @throws IOException If the server socket can't be opened.
+     */
+    public QueryServer( SparkseePGQL spgql, SessionPool pool, InetSocketAddress address ) throws IOException {
+        this.spgql = spgql;
+        this.pool = pool;
+        this.writeRequests = new ConcurrentLinkedQueue<Connection>();
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        try {
+            server.bind(address);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        }
+        catch (IOException ex) {
+            server.close();
+            selector.close();
+            throw ex;
+        }
+        final int number = serverNumber.incrementAndGet();
+        this.workers = Executors.newFixedThreadPool(pool.getMaxSessions(), new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "QueryServer-"+number+"-worker-"+threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.admissionTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "QueryServer-"+number+"-admission-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.running = true;
+        this.selectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                selectLoop();
+            }
+        }, "QueryServer-"+number+"-selector");
+        selectorThread.start();
+        logger.info("Listening to "+server.getLocalAddress());
+    }
+
+    /**
+     * @param admission [in] The admission control of the queries, or null to run all of them.
+     */
+    public void setAdmissionController( AdmissionController admission ) {
+        this.admission = admission;
+    }
+
+    /**
+     * @return Returns the port the server listens to.
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    private void selectLoop() {
+        while (running) {
+            try {
+                selector.select();
+                Connection conn;
+                while ((conn = writeRequests.poll()) != null) {
+                    if (conn.key.isValid()) {
+                        conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    conn = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(conn);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(conn);
+                        }
+                    }
+                    catch (IOException ex) {
+                        logger.debug("Connection error: "+ex.getMessage());
+                        closeConnection(conn);
+                    }
+                }
+            }
+            catch (IOException ex) {
+                logger.error("Server error: "+ex.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        Connection conn = new Connection(channel);
+        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        logger.debug("Accepted connection from "+channel.getRemoteAddress());
+    }
+
+    private void read( Connection conn ) throws IOException {
+        while (true) {
+            ByteBuffer target = (conn.payload == null)? conn.frameHeader : conn.payload;
+            if (conn.channel.read(target) < 0) {
+                closeConnection(conn);
+                return;
+            }
+            if (target.hasRemaining()) {
+                return;
+            }
+            if (conn.payload == null) {
+                conn.frameHeader.flip();
+                int length = conn.frameHeader.getInt();
+                conn.frameType = conn.frameHeader.get();
+                conn.frameHeader.clear();
+                if ((length < 0) || (length > MAX_FRAME_SIZE)) {
+                    throw new IOException("Invalid frame length "+length);
+                }
+                conn.payload = ByteBuffer.allocate(length);
+            }
+            if (!conn.payload.hasRemaining()) {
+                conn.payload.flip();
+                ByteBuffer payload = conn.payload;
+                conn.payload = null;
+                handleFrame(conn, conn.frameType, payload);
+            }
+        }
+    }
+
+    private void handleFrame( Connection conn, byte type, ByteBuffer payload ) throws IOException {
+        if ((type != FRAME_QUERY) || (payload.remaining() < 4)) {
+            conn.send(new FrameBuffer().begin(FRAME_ERROR).putString("Invalid frame type "+type).finish(), false);
+            return;
+        }
+        Request request = new Request();
+        request.batchRows = payload.getInt();
+        if (request.batchRows <= 0) {
+            request.batchRows = DEFAULT_BATCH_ROWS;
+        }
+        request.query = StandardCharsets.UTF_8.decode(payload).toString();
+        synchronized (conn) {
+            conn.requests.add(request);
+        }
+        startNext(conn);
+    }
+
+    private void write( Connection conn ) throws IOException {
+        synchronized (conn) {
+            while (!conn.outbox.isEmpty()) {
+                ByteBuffer frame = conn.outbox.peek();
+                int written = conn.channel.write(frame);
+                conn.outboxBytes -= written;
+                if (frame.hasRemaining()) {
+                    break;
+                }
+                conn.outbox.poll();
+            }
+            if (conn.outbox.isEmpty()) {
+                conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            conn.notifyAll();
+        }
+    }
+
+    private void closeConnection( Connection conn ) {
+        CompletableFuture<AdmissionController.Ticket> pendingAdmission;
+        synchronized (conn) {
+            conn.closed = true;
+            conn.requests.clear();
+            conn.outbox.clear();
+            conn.notifyAll();
+            pendingAdmission = conn.pendingAdmission;
+        }
+        if (pendingAdmission != null) {
+            // The queued query leaves the admission queue
+            pendingAdmission.cancel(false);
+        }
+        conn.key.cancel();
+        try {
+            conn.channel.close();
+        }
+        catch (IOException ex) {
+            logger.debug("Error closing a connection: "+ex.getMessage());
+        }
+    }
+
+    /**
+     * Starts the next query of the connection if there is no query running.
+     */
+    private void startNext( final Connection conn ) {
+        final Request request;
+        synchronized (conn) {
+            if (conn.running || conn.closed || conn.requests.isEmpty()) {
+                return;
+            }
+            conn.running = true;
+            request = conn.requests.poll();
+        }
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                startQuery(conn, request);
+            }
+        });
+    }
+
+    /**
+     * Ends the running query of the connection and starts the next one.
+     */
+    private void endQuery( Connection conn ) {
+        synchronized (conn) {
+            conn.running = false;
+            conn.pendingAdmission = null;
+        }
+        startNext(conn);
+    }
+
+    /**
+     * Translates a query and runs it, or with the admission control queues it until it's admitted
+     * without keeping the worker thread.
+     */
+    private void startQuery( final Connection conn, final Request request ) {
+        boolean queued = false;
+        try {
+            final AdmissionController controller = admission;
+            if (controller == null) {
+                String algebra = spgql.ProcessPGQLQuery(request.query);
+                if (algebra == null) {
+                    sendError(conn, "The query could not be translated");
+                    return;
+                }
+                runQuery(conn, request, algebra);
+                return;
+            }
+            final SQAOperator plan = spgql.ExplainPGQLQuery(request.query);
+            if (plan == null) {
+                sendError(conn, "The query could not be translated");
+                return;
+            }
+            final AdmissionController.Estimate estimate = controller.estimate(plan);
+            final CompletableFuture<AdmissionController.Ticket> admitted;
+            try {
+                admitted = controller.admitAsync(estimate);
+            }
+            catch (AdmissionController.QueryRejectedException ex) {
+                sendError(conn, "The query was rejected: "+ex.getMessage());
+                return;
+            }
+            if (admitted.isDone()) {
+                AdmissionController.Ticket ticket = admitted.join();
+                try {
+                    runQuery(conn, request, plan.toAlgebra());
+                }
+                finally {
+                    ticket.close();
+                }
+                return;
+            }
+            synchronized (conn) {
+                conn.pendingAdmission = admitted;
+                if (conn.closed) {
+                    admitted.cancel(false);
+                }
+            }
+            final long startNanos = System.nanoTime();
+            final long timeoutMillis = controller.getQueueTimeoutMillis();
+            final ScheduledFuture<?> timeoutTask = (timeoutMillis < 0)? null : admissionTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!admitted.isDone()) {
+                        admitted.completeExceptionally(controller.busy(estimate,
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            admitted.whenComplete(new BiConsumer<AdmissionController.Ticket, Throwable>() {
+                @Override
+                public void accept(final AdmissionController.Ticket ticket, final Throwable ex) {
+                    if (timeoutTask != null) {
+                        timeoutTask.cancel(false);
+                    }
+                    // Continued by a worker, not by the thread that released the memory or gave up
+                    try {
+                        workers.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (ex != null) {
+                                    sendError(conn, "The query was rejected: "+ex.getMessage());
+                                    endQuery(conn);
+                                }
+                                else {
+                                    runQuery(conn, request, plan.toAlgebra(), ticket);
+                                }
+                            }
+                        });
+                    }
+                    catch (RejectedExecutionException closed) {
+                        // The server is closed
+                        if (ticket != null) {
+                            ticket.close();
+                        }
+                    }
+                }
+            });
+            queued = true;
+        }
+        catch (RuntimeException ex) {
+            logger.error("Error running a query: "+ex.getMessage());
+            sendError(conn, "Error running the query: "+ex.getMessage());
+        }
+        finally {
+            if (!queued) {
+                endQuery(conn);
+            }
+        }
+    }
+
+    /**
+     * Runs an admitted query and ends it.
+     */
+    private void runQuery( Connection conn, Request request, String algebra, AdmissionController.Ticket ticket ) {
+        try {
+            runQuery(conn, request, algebra);
+        }
+        finally {
+            ticket.close();
+            endQuery(conn);
+        }
+    }
+
+    private void runQuery( Connection conn, Request request, String algebra ) {
+        FrameBuffer frame = new FrameBuffer();
+        try (SessionPool.PooledSession sess = pool.checkout()) {
+            ResultCursor cursor;
+            try {
+                cursor = sess.execute(algebra);
+            }
+            catch (RuntimeException ex) {
+                conn.send(frame.begin(FRAME_ERROR).putString("The query could not be run: "+ex.getMessage()).finish(), true);
+                return;
+            }
+            int numColumns = cursor.getNumColumns();
+            frame.begin(FRAME_HEADER).putInt(numColumns);
+            for (int col = 0; col < numColumns; col++) {
+                frame.putString(cursor.getColumnName(col)).putByte(typeCode(cursor.getColumnDataType(col)));
+            }
+            conn.send(frame.finish(), true);
+            long totalRows = 0;
+            int rows = 0;
+            frame.begin(FRAME_BATCH).putInt(0);
+            while (cursor.next()) {
+                for (int col = 0; col < numColumns; col++) {
+                    putValue(frame, cursor.getValue(col));
+                }
+                rows++;
+                totalRows++;
+                if ((rows == request.batchRows) || (frame.size() > MAX_FRAME_SIZE / 2)) {
+                    frame.putInt(5, rows);
+                    conn.send(frame.finish(), true);
+                    rows = 0;
+                    frame.begin(FRAME_BATCH).putInt(0);
+                }
+            }
+            if (rows > 0) {
+                frame.putInt(5, rows);
+                conn.send(frame.finish(), true);
+            }
+            conn.send(frame.begin(FRAME_END).putLong(totalRows).finish(), true);
+        }
+        catch (IOException ex) {
+            // The client closed the connection, the query result is closed with the session
+            logger.debug("Query abandoned: "+ex.getMessage());
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        catch (RuntimeException ex) {
+            logger.error("Error running a query: "+ex.getMessage());
+            sendError(conn, "Error running the query: "+ex.getMessage());
+        }
+    }
+
+    /**
+     * Sends the ERROR frame that ends a query.
+     */
+    private void sendError( Connection conn, String message ) {
+        try {
+            conn.send(new FrameBuffer().begin(FRAME_ERROR).putString(message).finish(), true);
+        }
+        catch (IOException closed) {
+            logger.debug("Query abandoned: "+closed.getMessage());
+        }
+    }
+
+    static byte typeCode( DataType type ) {
+        switch (type) {
+            case Boolean:
+                return VALUE_BOOLEAN;
+            case Integer:
+                return VALUE_INTEGER;
+            case Long:
+                return VALUE_LONG;
+            case Double:
+                return VALUE_DOUBLE;
+            case Timestamp:
+                return VALUE_TIMESTAMP;
+            case OID:
+                return VALUE_OID;
+            default:
+                return VALUE_STRING;
+        }
+    }
+
+    private static void putValue( FrameBuffer frame, Value v ) {
+        if (v.isNull()) {
+            frame.putByte(VALUE_NULL);
+            return;
+        }
+        byte code = typeCode(v.getDataType());
+        frame.putByte(code);
+        switch (code) {
+            case VALUE_BOOLEAN:
+                frame.putByte((byte) (v.getBoolean()? 1 : 0));
+                break;
+            case VALUE_INTEGER:
+                frame.putInt(v.getInteger());
+                break;
+            case VALUE_LONG:
+                frame.putLong(v.getLong());
+                break;
+            case VALUE_DOUBLE:
+                frame.putDouble(v.getDouble());
+                break;
+            case VALUE_TIMESTAMP:
+                frame.putLong(v.getTimestamp().getTime());
+                break;
+            case VALUE_OID:
+                frame.putLong(v.getOID());
+                break;
+            default:
+                frame.putString(v.getString());
+        }
+    }
+
+    /**
+     * Waits until the server is closed.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void join() throws InterruptedException {
+        selectorThread.join();
+    }
+
+    /**
+     * Stops accepting connections, closes the open ones and stops the running queries.
+     * The session pool is not closed.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                closeConnection((Connection) key.attachment());
+            }
+        }
+        admissionTimer.shutdownNow();
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            server.close();
+            selector.close();
+        }
+        catch (IOException ex) {
+            logger.error("Error closing the server: "+ex.getMessage());
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Options options = new Options();
+        Option dbFile = Option.builder("db")
+                .required(true)
+                .longOpt("database")
+                .desc( "The Sparksee database file, opened as read-only." )
+                .hasArg()
+                .build();
+        options.addOption( dbFile );
+        Option hostOpt = Option.builder("host")
+                .required(false)
+                .desc( "The address to listen to (default: the loopback address)." )
+                .hasArg()
+                .build();
+        options.addOption( hostOpt );
+        Option portOpt = Option.builder("port")
+                .required(false)
+                .desc( "The port to listen to (default: "+DEFAULT_PORT+")." )
+                .hasArg()
+                .build();
+        options.addOption( portOpt );
+        Option sessionsOpt = Option.builder("s")
+                .required(false)
+                .longOpt("sessions")
+                .desc( "The number of sessions and queries running at the same time (default: the number of available processors)." )
+                .hasArg()
+                .build();
+        options.addOption( sessionsOpt );
+        Option statsRefresh = Option.builder("sr")
+                .required(false)
+                .longOpt("statsRefresh")
+                .desc( "Refresh the database statistics used to plan the queries every given seconds." )
+                .hasArg()
+                .build();
+        options.addOption( statsRefresh );
+        Option topKSort = new Option( "tk", "topKSort", false,
+                "The Sparksee engine supports the bounded SORT of the ORDER BY ... LIMIT queries" );
+        options.addOption( topKSort );
+        Option queryMemory = Option.builder("qm")
+                .required(false)
+                .longOpt("queryMemory")
+                .desc( "Reject the queries estimated to need more than the given megabytes." )
+                .hasArg()
+                .build();
+        options.addOption( queryMemory );
+        Option totalMemory = Option.builder("tm")
+                .required(false)
+                .longOpt("totalMemory")
+                .desc( "Queue the queries while the running ones are estimated to need more than the given megabytes." )
+                .hasArg()
+                .build();
+        options.addOption( totalMemory );
+        Option heavyQueries = Option.builder("hq")
+                .required(false)
+                .longOpt("heavyQueries")
+                .desc( "The maximum number of heavy queries running at the same time (default: "+DEFAULT_HEAVY_QUERIES+")." )
+                .hasArg()
+                .build();
+        options.addOption( heavyQueries );
+        Option heavyMemory = Option.builder("hm")
+                .required(false)
+                .longOpt("heavyMemory")
+                .desc( "The estimated megabytes from which a query is heavy (default: "+DEFAULT_HEAVY_MEGABYTES+")." )
+                .hasArg()
+                .build();
+        options.addOption( heavyMemory );
+        Option admissionWait = Option.builder("aw")
+                .required(false)
+                .longOpt("admissionWait")
+                .desc( "Reject the queries that wait more than the given seconds to be admitted (default: no limit)." )
+                .hasArg()
+                .build();
+        options.addOption( admissionWait );
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine line;
+        try {
+            line = parser.parse( options, args );
+        }
+        catch( ParseException exp ) {
+            System.err.println( "Parsing failed.  Reason: " + exp.getMessage() );
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("SparkseePGQL.QueryServer", options);
+            System.exit(1);
+            return;
+        }
+
+        String databaseFilePath = line.getOptionValue("db");
+        final Sparksee sparksee = new Sparksee(new SparkseeConfig());
+        final Database db;
+        try {
+            db = sparksee.open(databaseFilePath, true);
+        } catch (java.io.FileNotFoundException ex) {
+            System.err.println("Error opening Sparksee database \""+databaseFilePath+"\": "+ex.getMessage());
+            sparksee.close();
+            System.exit(1);
+            return;
+        }
+        final StatisticsCatalog statistics = new StatisticsCatalog(db);
+        statistics.refresh();
+        if (line.hasOption("sr")) {
+            statistics.scheduleRefresh(Long.parseLong(line.getOptionValue("sr")), TimeUnit.SECONDS);
+        }
+        SparkseePGQL spgql = new SparkseePGQL();
+        spgql.setStatisticsCatalog(statistics);
+        spgql.setTopKSortSupported(line.hasOption("tk"));
+        final SessionPool pool = new SessionPool(db, Integer.parseInt(line.getOptionValue("s",
+                String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        InetAddress host = line.hasOption("host")? InetAddress.getByName(line.getOptionValue("host")) :
+                InetAddress.getLoopbackAddress();
+        int port = Integer.parseInt(line.getOptionValue("port", String.valueOf(DEFAULT_PORT)));
+        final QueryServer queryServer = new QueryServer(spgql, pool, new InetSocketAddress(host, port));
+        if (line.hasOption("qm") || line.hasOption("tm") || line.hasOption("hq") || line.hasOption("hm")) {
+            long megabyte = 1024L * 1024L;
+            AdmissionController admission = new AdmissionController(
+                    line.hasOption("qm")? Long.parseLong(line.getOptionValue("qm")) * megabyte : Long.MAX_VALUE,
+                    Long.parseLong(line.getOptionValue("hm", String.valueOf(DEFAULT_HEAVY_MEGABYTES))) * megabyte,
+                    Integer.parseInt(line.getOptionValue("hq", String.valueOf(DEFAULT_HEAVY_QUERIES))));
+            if (line.hasOption("tm")) {
+                admission.setTotalBudget(Long.parseLong(line.getOptionValue("tm")) * megabyte);
+            }
+            if (line.hasOption("aw")) {
+                admission.setQueueTimeout(Long.parseLong(line.getOptionValue("aw")), TimeUnit.SECONDS);
+            }
+            admission.setStatisticsCatalog(statistics);
+            queryServer.setAdmissionController(admission);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queryServer.close();
+                statistics.close();
+                pool.close();
+                db.close();
+                sparksee.close();
+            }
+        }));
+        System.out.println("SparkseePGQL query server listening to "+host.getHostAddress()+":"+queryServer.getPort());
+        queryServer.join();
+    }
+}
@@ -0,0 +1,332 @@
+package com.sparsity.SparkseePGQL;
+
+import com.sparsity.sparksee.gdb.*;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the rows of a Sparksee query result one by one, without building the whole result.
+ * The values of the current row are read from the ResultSet when they are accessed, so the
+ * memory used doesn't depend on the number of rows. The rows can also be read in pages
+ * of a fixed number of rows with nextPage.
+ */
+public class ResultCursor implements Closeable {
+
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private final Query query;
+    private final boolean closeQuery;
+    private final ResultSet rs;
+    private final int numColumns;
+    private final String[] columnNames;
+    private final DataType[] columnTypes;
+    private final Value[] values;
+    private final boolean[] loaded;
+    private long rowNumber;
+    private boolean closed;
+    private int pageSize;
+    private volatile boolean cancelled;
+    private boolean hasDeadline;
+    private long deadline;      // System.nanoTime() deadline
+
+    /**
+     * Runs a query and opens a cursor on its result.
+     * @param sess [in] The Sparksee session.
+     * @param algebra [in] The Sparksee algebra query.
+     */
+    public ResultCursor( Session sess, String algebra ) {
+        this(sess.newQuery(), algebra, true);
+    }
+
+    /**
+     * Runs a query with an existing Query and opens a cursor on its result.
+     * @param query [in] The Sparksee query, without an open result.
+     * @param algebra [in] The Sparksee algebra query.
+     * @param closeQuery [in] True to close the query with the cursor.
+     */
+    public ResultCursor( Query query, String algebra, boolean closeQuery ) {
+        this.query = query;
+        this.closeQuery = closeQuery;
+        try {
+            this.rs = query.execute(algebra);
+        }
+        catch (RuntimeException ex) {
+            if (closeQuery) {
+                query.close();
+            }
+            throw ex;
+        }
+        this.numColumns = rs.getNumColumns();
+        // Kept to be available after closing the result
+        this.columnNames = new String[numColumns];
+        this.columnTypes = new DataType[numColumns];
+        this.values = new Value[numColumns];
+        for (int col = 0; col < numColumns; col++) {
+            columnNames[col] = rs.getColumnName(col);
+            columnTypes[col] = rs.getColumnDataType(col);
+            values[col] = new Value();
+        }
+        this.loaded = new boolean[numColumns];
+        this.rowNumber = 0;
+        this.closed = false;
+        this.pageSize = DEFAULT_PAGE_SIZE;
+        this.cancelled = false;
+        this.hasDeadline = false;
+        this.deadline = 0;
+    }
+
+    /**
+     * @param pageSize [in] The maximum number of rows returned by nextPage.
+     */
+    public void setPageSize( int pageSize ) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("The page size must be positive: "+pageSize);
+        }
+        this.pageSize = pageSize;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the maximum time to read the result, from now. The next row read after it fails.
+     * @param timeout [in] The maximum time.
+     * @param unit [in] The time unit.
+     */
+    public void setTimeout( long timeout, TimeUnit unit ) {
+        deadline = System.nanoTime() + unit.toNanos(timeout);
+        hasDeadline = true;
+    }
+
+    /**
+     * Asks the thread reading the result to stop. It can be called from any thread: the thread
+     * reading the result closes it when it asks for the next row, which fails.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Moves to the next row.
+     * @return Returns false if there are no more rows. The cursor is closed then.
+     * @throws CancellationException If the cursor has been cancelled or its time is over. The cursor is closed then.
+     */
+    public boolean next() {
+        if (closed) {
+            return false;
+        }
+        if (cancelled || (hasDeadline && (System.nanoTime() - deadline > 0))) {
+            close();
+            throw new CancellationException(cancelled? "The query has been cancelled" :
+                    "The query exceeded its time limit");
+        }
+        if (!rs.next()) {
+            close();
+            return false;
+        }
+        rowNumber++;
+        for (int col = 0; col < numColumns; col++) {
+            loaded[col] = false;
+        }
+        return true;
+    }
+
+    /**
+     * @return Returns the number of rows read (the current row number starting from 1).
+     */
+    public long getRowNumber() {
+        return rowNumber;
+    }
+
+    public int getNumColumns() {
+        return numColumns;
+    }
+
+    /**
+     * @param col [in] The column index starting from 0.
+     * @return Returns the column name.
+     */
+    public String getColumnName( int col ) {
+        checkColumn(col);
+        return columnNames[col];
+    }
+
+    /**
+     * @param col [in] The column index starting from 0.
+     * @return Returns the column data type.
+     */
+    public DataType getColumnDataType( int col ) {
+        checkColumn(col);
+        return columnTypes[col];
+    }
+
+    /**
+     * @return Returns the names of all the columns.
+     */
+    public List<String> getColumnNames() {
+        return Arrays.asList(columnNames.clone());
+    }
+
+    /**
+     * @param name [in] The column name.
+     * @return Returns the index of the column or -1 if it doesn't exist.
+     */
+    public int findColumn( String name ) {
+        for (int col = 0; col < numColumns; col++) {
+            if (columnNames[col].equals(name)) {
+                return col;
+            }
+        }
+        return -1;
+    }
+
+    private void checkColumn( int col ) {
+        if ((col < 0) || (col >= numColumns)) {
+            throw new IndexOutOfBoundsException("Invalid column "+col+" of "+numColumns);
+        }
+    }
+
+    /**
+     * @param col [in] The column index starting from 0.
+     * @return Returns the value of the column in the current row. It's reused for the next rows.
+     */
+    public Value getValue( int col ) {
+        checkColumn(col);
+        if (closed || (rowNumber == 0)) {
+            throw new IllegalStateException("The cursor is not on a row");
+        }
+        if (!loaded[col]) {
+            rs.getColumn(col, values[col]);
+            loaded[col] = true;
+        }
+        return values[col];
+    }
+
+    public boolean isNull( int col ) {
+        return getValue(col).isNull();
+    }
+
+    public boolean getBoolean( int col ) {
+        return getValue(col).getBoolean();
+    }
+
+    public int getInteger( int col ) {
+        return getValue(col).getInteger();
+    }
+
+    /**
+     * @return Returns the value of an Integer or a Long column as a long.
+     */
+    public long getLong( int col ) {
+        Value v = getValue(col);
+        return (v.getDataType() == DataType.Integer)? v.getInteger() : v.getLong();
+    }
+
+    /**
+     * @return Returns the value of any numeric column as a double.
+     */
+    public double getDouble( int col ) {
+        Value v = getValue(col);
+        switch (v.getDataType()) {
+            case Integer:
+                return v.getInteger();
+            case Long:
+                return v.getLong();
+            default:
+                return v.getDouble();
+        }
+    }
+
+    public String getString( int col ) {
+        Value v = getValue(col);
+        return v.isNull()? null : v.getString();
+    }
+
+    public Date getTimestamp( int col ) {
+        return getValue(col).getTimestamp();
+    }
+
+    public long getOID( int col ) {
+        return getValue(col).getOID();
+    }
+
+    /**
+     * @param col [in] The column index starting from 0.
+     * @return Returns the value as a Java object to be kept after reading the next row, or null.
+     * The Integer values are returned as Long.
+     */
+    public Object getObject( int col ) {
+        Value v = getValue(col);
+        if (v.isNull()) {
+            return null;
+        }
+        switch (v.getDataType()) {
+            case Boolean:
+                return v.getBoolean();
+            case Integer:
+                return (long) v.getInteger();
+            case Long:
+                return v.getLong();
+            case Double:
+                return v.getDouble();
+            case Timestamp:
+                return v.getTimestamp();
+            case OID:
+                return v.getOID();
+            default:
+                return v.getString();
+        }
+    }
+
+    /**
+     * @return Returns the values of the current row as Java objects.
+     */
+    public Object[] getRow() {
+        Object[] row = new Object[numColumns];
+        for (int col = 0; col < numColumns; col++) {
+            row[col] = getObject(col);
+        }
+        return row;
+    }
+
+    /**
+     * Reads the next rows.
+     * @return Returns up to the page size rows, or an empty list when there are no more rows.
+     */
+    public List<Object[]> nextPage() {
+        ArrayList<Object[]> page = new ArrayList<Object[]>(pageSize);
+        while ((page.size() < pageSize) && next()) {
+            page.add(getRow());
+        }
+        return page;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the result, and the query if it's owned by the cursor. It's also done after reading the last row.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            rs.close();
+            if (closeQuery) {
+                query.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,702 @@
+package com.sparsity.SparkseePGQL;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A node of the logical operator tree of a Sparksee Query Algebra query.
+ * The translation builds the tree bottom up and the algebra string is written only
+ * once at the end, so the translation time is linear in the plan size.
+ */
+public abstract class SQAOperator {
+
+    public enum OperatorKind {
+        SCAN, GRAPH_SELECT, SELECT, EXPLODE, ADJACENT, GET, GET_TYPE, EXTEND,
+        JOIN, PRODUCT, GROUP, SORT, TOP_K, PROJECT, SLICE
+    }
+
+    /**
+     * An output column of an operator.
+     */
+    public static class Column {
+        private final String name;
+        private final SQAQueryBuilder.ColumnType type;
+
+        public Column(String name, SQAQueryBuilder.ColumnType type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public SQAQueryBuilder.ColumnType getType() {
+            return type;
+        }
+
+        @Override
+        public String toString() {
+            return name + ":" + type;
+        }
+    }
+
+    private final OperatorKind kind;
+    protected final ArrayList<SQAOperator> children;
+    private List<Column> schema;
+    private double estimatedRows;
+
+    protected SQAOperator(OperatorKind kind, SQAOperator... children) {
+        this.kind = kind;
+        this.children = new ArrayList<SQAOperator>();
+        for (SQAOperator child : children) {
+            this.children.add(child);
+        }
+        this.schema = Collections.emptyList();
+        this.estimatedRows = -1;
+    }
+
+    public OperatorKind getKind() {
+        return kind;
+    }
+
+    public List<SQAOperator> getChildren() {
+        return Collections.unmodifiableList(children);
+    }
+
+    public SQAOperator getChild() {
+        return children.get(0);
+    }
+
+    public void setChild(int index, SQAOperator child) {
+        children.set(index, child);
+    }
+
+    /**
+     * @return Returns the output columns of the operator.
+     */
+    public List<Column> getSchema() {
+        return schema;
+    }
+
+    void setSchema(List<Column> schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * @return Returns the estimated number of output rows or a negative number if it's unknown.
+     */
+    public double getEstimatedRows() {
+        return estimatedRows;
+    }
+
+    public void setEstimatedRows(double estimatedRows) {
+        this.estimatedRows = estimatedRows;
+    }
+
+    /**
+     * Writes the Sparksee Query Algebra of this operator and all its children.
+     * @param sb [in/out] The algebra string being built.
+     */
+    public abstract void appendAlgebra(StringBuilder sb);
+
+    /**
+     * @return Returns a short description of this operator (without its children) for the logs and plans.
+     */
+    public abstract String describe();
+
+    public String toAlgebra() {
+        StringBuilder sb = new StringBuilder();
+        appendAlgebra(sb);
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return describe();
+    }
+
+    /**
+     * @return Returns the operator tree, one operator per line with its estimated rows.
+     */
+    public String explain() {
+        return explain(null);
+    }
+
+    /**
+     * @param details [in] The extra text to show for each operator (it may not contain all of them) or null.
+     * @return Returns the operator tree, one operator per line with its estimated rows and details.
+     */
+    public String explain(Map<SQAOperator, String> details) {
+        StringBuilder sb = new StringBuilder();
+        appendExplain(sb, "", details);
+        return sb.toString();
+    }
+
+    private void appendExplain(StringBuilder sb, String indent, Map<SQAOperator, String> details) {
+        sb.append(indent).append(describe());
+        sb.append("  (estimated rows=");
+        sb.append((estimatedRows < 0)? "?" : String.valueOf(Math.round(estimatedRows))).append(")");
+        if ((details != null) && details.containsKey(this)) {
+            sb.append("  ").append(details.get(this));
+        }
+        sb.append("\n");
+        for (SQAOperator child : children) {
+            child.appendExplain(sb, indent + "  ", details);
+        }
+    }
+
+    protected static void appendColumnList(StringBuilder sb, List<Integer> columns) {
+        sb.append("[ ");
+        boolean first = true;
+        for (Integer numCol : columns) {
+            if (!first) {
+                sb.append(", ");
+            }
+            sb.append(numCol);
+            first = false;
+        }
+        sb.append(" ]");
+    }
+
+    protected static String columnListString(List<Integer> columns) {
+        StringBuilder sb = new StringBuilder();
+        appendColumnList(sb, columns);
+        return sb.toString();
+    }
+
+
+    /**
+     * GRAPH::SCAN(NODES) or GRAPH::SCAN('LABEL')
+     */
+    public static class Scan extends SQAOperator {
+        private final String label; // null to scan all the nodes
+
+        public Scan(String label) {
+            super(OperatorKind.SCAN);
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        @Override
+        public void appendAlgebra(StringBuilder sb) {
+            if (label == null) {
+                sb.append("GRAPH::SCAN(NODES)");
+            }
+            else {
+                sb.append("GRAPH::SCAN('").append(label).append("')");
+            }
+        }
+
+        @Override
+        public String describe() {
+            return (label == null)? "SCAN(NODES)" : "SCAN('"+label+"')";
+        }
+    }
+
+    /**
+     * GRAPH::SELECT( condition ) where the condition is an attribute comparison that may use the indexes.
+     */
+    public static class GraphSelect extends SQAOperator {
+        private final String condition;
+
+        public GraphSelect(String condition) {
+            super(OperatorKind.GRAPH_SELECT);
+            this.condition = condition;
+        }
+
+        public String getCondition() {
+            return condition;
+        }
+
+        @Override
+        public void appendAlgebra(StringBuilder sb) {
+            sb.append("GRAPH::SELECT( ").append(condition).append(" )");
+        }
+
+        @Override
+        public String describe() {
+            return "GRAPH::SELECT( "+condition+" )";
+        }
+    }
+
+    /**
+     * SELECT( child, expression )
+     */
+    public static class Select extends SQAOperator {
+        private final String expression;
+
+        public Select(SQAOperator child, String expression) {
+            super(OperatorKind.SELECT, child);
+            this.expression = expression;
+        }
+
+        public String getExpression() {
+            return expression;
+        }
+
+        @Override
+        public void appendAlgebra(StringBuilder sb) {
+            sb.append("SELECT( ");
+            getChild().appendAlgebra(sb);
+            sb.append(", ").append(expression).append(" )");
+        }
+
+        @Override
+        public String describe() {
+            return "SELECT( "+expression+" )";
+        }
+    }
+
+    /**
+     * GRAPH::EXPLODE( child, column, [ ALL direction ], {'neighbor'=true} ) or
+     * GRAPH::EXPLODE( child, column, [ 'TYPE' direction, ... ], {'neighbor'=true} ) to navigate only some edge types.
+     * Adds the edge and the neighbor node columns.
+     */
+    public static class Explode extends SQAOperator {
+        private final int column;
+        private final String direction;
+        private final ArrayList<String> edgeTypes; // null for all the edge types
+
+        public Explode(SQAOperator child, int column, String direction, List<String> edgeTypes) {
+            super(OperatorKind.EXPLODE, child);
+            this.column = column;
+            this.direction = direction;
+            this.edgeTypes = (edgeTypes != null)? new ArrayList<String>(edgeTypes) : null;
+        }
+
+        public int getColumn() {
+            return column;
+        }
+
+        public String getDirection() {
+            return direction;
+        }
+
+        /**
+         * @return Returns the navigated edge types or null if all the edge types are navigated.
+         */
+        public List<String> getEdgeTypes() {
+            return edgeTypes;
+        }
+
+        private void appendEdgeTypes(StringBuilder sb) {
+            sb.append("[ ");
+            if (edgeTypes == null) {
+                sb.append("ALL ").append(direction);
+            }
+            else {
+                boolean first = true;
+                for (String edgeType : edgeTypes) {
+                    if (!first) {
+                        sb.append(", ");
+                    }
+                    sb.append("'").append(edgeType).append("' ").append(direction);
+                    first = false;
+                }
+            }
+            sb.append(" ]");
+        }
+
+        @Override
+        public void appendAlgebra(StringBuilder sb) {
+            sb.append("GRAPH::EXPLODE(");
+            getChild().appendAlgebra(sb);
+            sb.append(", ").append(column).append(", ");
+            appendEdgeTypes(sb);
+            sb.append(", {'neighbor'=true} )");
+        }
+
+        @Override
+        public String describe() {
+            StringBuilder sb = new StringBuilder("GRAPH::EXPLODE( "+column+", ");
+            appendEdgeTypes(sb);
+            return sb.append(" )").toString();
+        }
+    }
+
+    /**
+     * GRAPH::ADJACENT( child, column )
+     * Adds the source and the destination node columns of the edge.
+     */
+    public static class Adjacent extends SQAOperator {
+        private final int column;
+
+        public Adjacent(SQAOperator child, int column) {
+            super(OperatorKind.ADJACENT, child);
+            this.column = column;
+        }
+
+        public int getColumn() {
+            return column;
+        }
+
+        @Override
+        public void appendAlgebra(StringBuilder sb) {
+            sb.append("GRAPH::ADJACENT(");
+            getChild().appendAlgebra(sb);
+            sb.append(", ").append(column).append(")");
+        }
+
+        @Override
+        public String describe() {
+            return "GRAPH::ADJACENT( "+column+" )";
+        }
+    }
+
+    /**
+     * GRAPH::GET( child, column, [ GLOBAL 'attr', ... ] )
+     */
+    public static class Get extends SQAOperator {
+        private final int column;
+        private final ArrayList<String> attributes;
+
+        public Get(SQAOperator child, int column, List<String> attributes) {
+            super(OperatorKind.GET, child);
+            this.column = column;
+            this.attributes = new ArrayList<String>(attributes);
+        }
+
+        public int getColumn() {
+            return column;
+        }
+
+        public List<String> getAttributes() {
+            return attributes;
+        }
+
+        private void appendAttributes(StringBuilder sb) {
+            sb.append("[");
+            boolean first = true;
+            for (String attrName : attributes) {
+                // TODO: We only can use Sparksee GLOBAL attributes with PGQL
+                sb.append(first? " " : ", ").append("GLOBAL '").append(attrName).append("'");
+                first = false;
+            }
+            sb.append(" ]");
+        }
+
+        @Override
+        public void appendAlgebra(StringBuilder sb) {
+            sb.append("GRAPH::GET(");
+            getChild().appendAlgebra(sb);
+            sb.append(", ").append(column).append(", ");
+            appendAttributes(sb);
+            sb.append(")");
+        }
+
+        @Override
+        public String describe() {
+            StringBuilder sb = new StringBuilder("GRAPH::GET( "+column+", ");
+            appendAttributes(sb);
+            return sb.append(" )").toString();
+        }
+    }
+
+    /**
+     * GRAPH::GET_TYPE( child, column )
+     */
+    public static class GetType extends SQAOperator {
+        private final int column;
+
+        public GetType(SQAOperator child, int column) {
+            super(OperatorKind.GET_TYPE, child);
+            this.column = column;
+        }
+
+        public int getColumn() {
+            return column;
+        }
+
+        @Override
+        public void appendAlgebra(StringBuilder sb) {
+            sb.append("GRAPH::GET_TYPE( ");
+            getChild().appendAlgebra(sb);
+            sb.append(", ").append(column).append(" )");
+        }
+
+        @Override
+        public String describe() {
+            return "GRAPH::GET_TYPE( "+column+" )";
+        }
+    }
+
+    /**
+     * EXTEND( child, [ TYPE ], [ TYPE(expression) ] )
+     */
+    public static class Extend extends SQAOperator {
+        private final String type;
+        private final String expression;
+
+        public Extend(SQAOperator child, String type, String expression) {
+            super(OperatorKind.EXTEND, child);
+            this.type = type;
+            this.expression = expression;
+        }
+
+        public String getExpression() {
+            return expression;
+        }
+
+        @Override
+        public void appendAlgebra(StringBuilder sb) {
+            sb.append("EXTEND( ");
+            getChild().appendAlgebra(sb);
+            sb.append(", [ ").append(type).append(" ], [ ").append(type).append("(").append(expression).append(") ] )");
+        }
+
+        @Override
+        public String describe() {
+            return "EXTEND( "+type+"("+expression+") )";
+        }
+    }
+
+    /**
+     * JOIN( left, right, expression, {'type'='Inner'} )
+     */
+    public static class Join extends SQAOperator {
+        private final String expression;
+
+        public Join(SQAOperator left, SQAOperator right, String expression) {
+            super(OperatorKind.JOIN, left, right);
+            this.expression = expression;
+        }
+
+        public String getExpression() {
+            return expression;
+        }
+
+        @Override
+        public void appendAlgebra(StringBuilder sb) {
+            sb.append("JOIN( ");
+            children.get(0).appendAlgebra(sb);
+            sb.append(", ");
+            children.get(1).appendAlgebra(sb);
+            sb.append(", ").append(expression).append(", {'type'='Inner'} )");
+        }
+
+        @Override
+        public String describe() {
+            return "JOIN( "+expression+" )";
+        }
+    }
+
+    /**
+     * PRODUCT( left, right )
+     */
+    public static class Product extends SQAOperator {
+
+        public Product(SQAOperator left, SQAOperator right) {
+            super(OperatorKind.PRODUCT, left, right);
+        }
+
+        @Override
+        public void appendAlgebra(StringBuilder sb) {
+            sb.append("PRODUCT( ");
+            children.get(0).appendAlgebra(sb);
+            sb.append(", ");
+            children.get(1).appendAlgebra(sb);
+            sb.append(" )");
+        }
+
+        @Override
+        public String describe() {
+            return "PRODUCT";
+        }
+    }
+
+    /**
+     * GROUP( child, [ group columns ], [ aggregates ] )
+     */
+    public static class Group extends SQAOperator {
+        private final ArrayList<Integer> groupColumns;
+        private final ArrayList<String> aggregates;
+
+        public Group(SQAOperator child, List<Integer> groupColumns, List<String> aggregates) {
+            super(OperatorKind.GROUP, child);
+            this.groupColumns = new ArrayList<Integer>(groupColumns);
+            this.aggregates = new ArrayList<String>(aggregates);
+        }
+
+        public List<Integer> getGroupColumns() {
+            return groupColumns;
+        }
+
+        private void appendArguments(StringBuilder sb) {
+            appendColumnList(sb, groupColumns);
+            sb.append(", [ ");
+            if (aggregates.isEmpty()) {
+                sb.append("null");
+            }
+            else {
+                boolean first = true;
+                for (String aggregate : aggregates) {
+                    if (!first) {
+                        sb.append(", ");
+                    }
+                    sb.append(aggregate);
+                    first = false;
+                }
+            }
+            sb.append(" ]");
+        }
+
+        @Override
+        public void appendAlgebra(StringBuilder sb) {
+            sb.append("GROUP( ");
+            getChild().appendAlgebra(sb);
+            sb.append(", ");
+            appendArguments(sb);
+            sb.append(")");
+        }
+
+        @Override
+        public String describe() {
+            StringBuilder sb = new StringBuilder("GROUP( ");
+            appendArguments(sb);
+            return sb.append(" )").toString();
+        }
+    }
+
+    /**
+     * SORT( child, [ columns ] )
+     */
+    public static class Sort extends SQAOperator {
+        private final ArrayList<Integer> columns;
+
+        public Sort(SQAOperator child, List<Integer> columns) {
+            super(OperatorKind.SORT, child);
+            this.columns = new ArrayList<Integer>(columns);
+        }
+
+        public List<Integer> getColumns() {
+            return columns;
+        }
+
+        @Override
+        public void appendAlgebra(StringBuilder sb) {
+            sb.append("SORT(");
+            getChild().appendAlgebra(sb);
+            sb.append(", ");
+            appendColumnList(sb, columns);
+            sb.append(")");
+        }
+
+        @Override
+        public String describe() {
+            return "SORT( "+columnListString(columns)+" )";
+        }
+    }
+
+    /**
+     * SORT( child, [ columns ], {'limit'=rows} )
+     * A SORT that only keeps the first rows (the offset plus the limit of the SLICE over it), so
+     * the engine can keep them in a bounded heap instead of sorting all the rows.
+     */
+    public static class TopK extends SQAOperator {
+        private final ArrayList<Integer> columns;
+        private final long rows;
+
+        public TopK(SQAOperator child, List<Integer> columns, long rows) {
+            super(OperatorKind.TOP_K, child);
+            this.columns = new ArrayList<Integer>(columns);
+            this.rows = rows;
+        }
+
+        public List<Integer> getColumns() {
+            return columns;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        @Override
+        public void appendAlgebra(StringBuilder sb) {
+            sb.append("SORT(");
+            getChild().appendAlgebra(sb);
+            sb.append(", ");
+            appendColumnList(sb, columns);
+            sb.append(", {'limit'=").append(rows).append("} )");
+        }
+
+        @Override
+        public String describe() {
+            return "TOP-K( "+columnListString(columns)+", "+rows+" )";
+        }
+    }
+
+    /**
+     * PROJECT( child, [ columns ] )
+     */
+    public static class Project extends SQAOperator {
+        private final ArrayList<Integer> columns;
+
+        public Project(SQAOperator child, List<Integer> columns) {
+            super(OperatorKind.PROJECT, child);
+            this.columns = new ArrayList<Integer>(columns);
+        }
+
+        public List<Integer> getColumns() {
+            return columns;
+        }
+
+        @Override
+        public void appendAlgebra(StringBuilder sb) {
+            sb.append("PROJECT(");
+            getChild().appendAlgebra(sb);
+            sb.append(", ");
+            appendColumnList(sb, columns);
+            sb.append(")");
+        }
+
+        @Override
+        public String describe() {
+            return "PROJECT( "+columnListString(columns)+" )";
+        }
+    }
+
+    /**
+     * SLICE( child, offset, limit ) where a negative offset or limit is written as NULL.
+     */
+    public static class Slice extends SQAOperator {
+        private final long offset;
+        private final long limit;
+
+        public Slice(SQAOperator child, long offset, long limit) {
+            super(OperatorKind.SLICE, child);
+            this.offset = offset;
+            this.limit = limit;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLimit() {
+            return limit;
+        }
+
+        private String getArguments() {
+            return ((offset > -1L)? String.valueOf(offset) : "NULL") + ", " +
+                    ((limit > -1L)? String.valueOf(limit) : "NULL");
+        }
+
+        @Override
+        public void appendAlgebra(StringBuilder sb) {
+            sb.append("SLICE( ");
+            getChild().appendAlgebra(sb);
+            sb.append(", ").append(getArguments()).append(" )");
+        }
+
+        @Override
+        public String describe() {
+            return "SLICE( "+getArguments()+" )";
+        }
+    }
+}
@@ -6,9 +6,13 @@ import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
+ * Builds a Sparksee Query Algebra query as a tree of SQAOperator nodes and keeps the
+ * information of the columns of the current root operator.
  */
 public class SQAQueryBuilder {
     final Logger logger = LoggerFactory.getLogger(SQAQueryBuilder.class);
@@ -36,14 +40,14 @@ public class SQAQueryBuilder {
     private HashMap<String, ColumnData> nameToColumn;
     private HashMap<String, ColumnData> aliasToColumn;
 
-    private StringBuilder query;
+    private SQAOperator root;
 
     public SQAQueryBuilder()
     {
         this.columns = new ArrayList<ColumnData>();
         this.nameToColumn = new HashMap<String, ColumnData>();
         this.aliasToColumn = new HashMap<String, ColumnData>();
-        this.query = new StringBuilder();
+        this.root = null;
     }
 
     public String varNameToKey(String name) {
@@ -118,25 +122,71 @@ public class SQAQueryBuilder {
         setAlias( opName+"("+subExpr+")", column.position );
     }
 
-    void setQuery( String str )
+    /**
+     * Sets a new root operator. The new root usually has the previous root as a child and its
+     * columns are added after it's set, so the previous root gets the current columns as its schema.
+     * @param op [in] The new root operator.
+     */
+    void setRoot( SQAOperator op )
     {
-        query.setLength(0);
-        query.append( str );
+        finish();
+        root = op;
     }
 
-
-    void appendQuery(String str)
+    /**
+     * Sets the current columns as the schema of the root operator. It must be called when the
+     * query is complete, before its root is used as a child of another query or its schema is read.
+     */
+    void finish()
     {
-        query.append(str);
+        if (root != null) {
+            root.setSchema(getSchema());
+        }
     }
 
-    void preppendQuery(String str) {
-        query.insert(0, str);
+    /**
+     * @return Returns the root operator of the query.
+     */
+    SQAOperator getRoot()
+    {
+        return root;
     }
 
+    /**
+     * @return Returns the Sparksee Query Algebra string of the whole operator tree.
+     */
     String getQuery()
     {
-        return query.toString();
+        if (root == null) {
+            return "";
+        }
+        return root.toAlgebra();
+    }
+
+    /**
+     * @return Returns the name and the type of the current columns.
+     */
+    List<SQAOperator.Column> getSchema()
+    {
+        ArrayList<SQAOperator.Column> schema = new ArrayList<SQAOperator.Column>(columns.size());
+        for (ColumnData colData : columns) {
+            String name;
+            switch (colData.cType) {
+                case ATTR_COLUMN:
+                    name = colData.name+"."+colData.secondName;
+                    break;
+                case LABEL_COLUMN:
+                    name = "label("+colData.name+")";
+                    break;
+                case AGGREGATE_COLUMN:
+                    name = colData.secondName+"("+colData.name+")";
+                    break;
+                default:
+                    name = colData.name;
+            }
+            schema.add(new SQAOperator.Column(name, colData.cType));
+        }
+        return schema;
     }
 
     Boolean containsVariable( String name )
@@ -226,6 +276,37 @@ public class SQAQueryBuilder {
         }
     }
 
+    /**
+     * @param liveKeys [in] The keys of the variable, attribute and label columns that are still used.
+     * @return Returns the positions of the columns that must be kept. The expression and aggregate
+     * columns are always kept and the other columns (already checked duplicated variables) never.
+     */
+    public ArrayList<Integer> getLiveColumns( Set<String> liveKeys ) {
+        ArrayList<Integer> liveColumns = new ArrayList<Integer>();
+        for (ColumnData colData : columns) {
+            boolean live = false;
+            switch (colData.cType) {
+                case VAR_COLUMN:
+                    live = liveKeys.contains(varNameToKey(colData.name));
+                    break;
+                case ATTR_COLUMN:
+                    live = liveKeys.contains(attrNameToKey(colData.name, colData.secondName));
+                    break;
+                case LABEL_COLUMN:
+                    live = liveKeys.contains(labelNameToKey(colData.name));
+                    break;
+                case EXPRESSION_COLUMN:
+                case AGGREGATE_COLUMN:
+                    live = true;
+                    break;
+            }
+            if (live) {
+                liveColumns.add(colData.position);
+            }
+        }
+        return liveColumns;
+    }
+
     public void reduceColumns( ArrayList<Integer> keepColumns ) {
         int currColumn = 0;
         Iterator<ColumnData> colIt = columns.iterator();
@@ -0,0 +1,243 @@
+package com.sparsity.SparkseePGQL;
+
+import com.sparsity.sparksee.gdb.Database;
+import com.sparsity.sparksee.gdb.Query;
+import com.sparsity.sparksee.gdb.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of Sparksee sessions of a database.
+ * A Sparksee session can't be used by several threads at the same time, so each thread running
+ * queries checks out a session, uses it alone and returns it closing the PooledSession.
+ * The sessions are opened when they are needed, up to the maximum, and each one keeps a Query
+ * that is reused by all its executions.
+ */
+public class SessionPool implements Closeable {
+    final Logger logger = LoggerFactory.getLogger(SessionPool.class);
+
+    /**
+     * A session checked out from the pool.
+     */
+    public static class PooledSession implements Closeable {
+        private final SessionPool pool;
+        private final Session sess;
+        private Query query;
+        private ResultCursor cursor;
+        private boolean checkedOut;
+
+        private PooledSession( SessionPool pool, Session sess ) {
+            this.pool = pool;
+            this.sess = sess;
+            this.query = null;
+            this.cursor = null;
+            this.checkedOut = false;
+        }
+
+        /**
+         * @return Returns the Sparksee session, only to be used until the PooledSession is closed.
+         */
+        public Session getSession() {
+            checkCheckedOut();
+            return sess;
+        }
+
+        /**
+         * Runs a query with the Query of the session. The previous result of the session is closed.
+         * @param algebra [in] The Sparksee algebra query.
+         * @return Returns the cursor on the result.
+         */
+        public ResultCursor execute( String algebra ) {
+            checkCheckedOut();
+            closeCursor();
+            if (query == null) {
+                query = sess.newQuery();
+            }
+            cursor = new ResultCursor(query, algebra, false);
+            return cursor;
+        }
+
+        private void checkCheckedOut() {
+            if (!checkedOut) {
+                throw new IllegalStateException("The session has been returned to the pool");
+            }
+        }
+
+        private void closeCursor() {
+            if (cursor != null) {
+                cursor.close();
+                cursor = null;
+            }
+        }
+
+        private void closeSession() {
+            closeCursor();
+            if (query != null) {
+                query.close();
+                query = null;
+            }
+            sess.close();
+        }
+
+        /**
+         * Returns the session to the pool, closing its last result.
+         */
+        @Override
+        public void close() {
+            if (checkedOut) {
+                closeCursor();
+                checkedOut = false;
+                pool.release(this);
+            }
+        }
+    }
+
+    private final Database db;
+    private final int maxSessions;
+    private final ArrayDeque<PooledSession> idle;
+    private int openSessions;
+    private boolean closed;
+
+    /**
+     * @param db [in] The database.
+     * @param maxSessions [in] The maximum number of open sessions.
+     */
+    public SessionPool( Database db, int maxSessions ) {
+        if (maxSessions <= 0) {
+            throw new IllegalArgumentException("The maximum number of sessions must be positive: "+maxSessions);
+        }
+        this.db = db;
+        this.maxSessions = maxSessions;
+        this.idle = new ArrayDeque<PooledSession>();
+        this.openSessions = 0;
+        this.closed = false;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * @return Returns the number of open sessions, checked out or idle.
+     */
+    public synchronized int getOpenSessions() {
+        return openSessions;
+    }
+
+    /**
+     * @return Returns the number of open sessions waiting in the pool.
+     */
+    public synchronized int getIdleSessions() {
+        return idle.size();
+    }
+
+    /**
+     * Checks out a session, waiting until one is available.
+     * @return Returns the session. It must be returned closing it.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public PooledSession checkout() throws InterruptedException {
+        return checkout(-1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks out a session, waiting up to the given time until one is available.
+     * @param timeout [in] The maximum time to wait, or a negative value to wait without limit.
+     * @param unit [in] The time unit.
+     * @return Returns the session or null if none was available in time. It must be returned closing it.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public PooledSession checkout( long timeout, TimeUnit unit ) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(Math.max(0L, timeout));
+        PooledSession pooled;
+        synchronized (this) {
+            while (!closed && idle.isEmpty() && (openSessions >= maxSessions)) {
+                if (timeout < 0) {
+                    wait();
+                }
+                else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
+            if (closed) {
+                throw new IllegalStateException("The session pool is closed");
+            }
+            pooled = idle.poll();
+            if (pooled == null) {
+                // Counted before opening it, out of the lock
+                openSessions++;
+            }
+        }
+        if (pooled == null) {
+            try {
+                pooled = new PooledSession(this, db.newSession());
+            }
+            catch (RuntimeException ex) {
+                synchronized (this) {
+                    openSessions--;
+                    notifyAll();
+                }
+                throw ex;
+            }
+            logger.debug("Opened pooled session "+openSessions+" of "+maxSessions);
+        }
+        pooled.checkedOut = true;
+        return pooled;
+    }
+
+    private void release( PooledSession pooled ) {
+        synchronized (this) {
+            if (!closed) {
+                idle.push(pooled);
+                notifyAll();
+                return;
+            }
+        }
+        pooled.closeSession();
+        synchronized (this) {
+            openSessions--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Closes the idle sessions and waits until the checked out sessions are returned to close them.
+     * The database can be closed after it.
+     */
+    @Override
+    public void close() {
+        ArrayDeque<PooledSession> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayDeque<PooledSession>(idle);
+            openSessions -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        for (PooledSession pooled : toClose) {
+            pooled.closeSession();
+        }
+        boolean interrupted = false;
+        synchronized (this) {
+            while (openSessions > 0) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -10,34 +10,79 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
+ * Translates PGQL queries to the Sparksee Query Algebra.
+ * The state of each translation is kept in its own TranslationContext, so a single instance
+ * can be shared by several threads translating queries concurrently.
  */
 public class SparkseePGQL {
 
+    public static final int DEFAULT_PLAN_CACHE_CAPACITY = 1024;
+
+    /**
+     * Reading the attribute value of an object costs about as much as reading this number of
+     * objects from an attribute index, so an indexed constraint that returns less objects than
+     * this number of times the current rows is cheaper as an index JOIN than as a GET and SELECT.
+     */
+    static final double INDEX_INTERSECTION_RATIO = 3.0;
+
     SparkseePGQL()
     {
-        try {
-            pgql = new Pgql();
-        }
-        catch (PgqlException ex)
-        {
-        }
+        this(DEFAULT_PLAN_CACHE_CAPACITY);
+    }
+
+    /**
+     * @param planCacheCapacity [in] The maximum number of translated queries to keep cached,
+     *                          or 0 to disable the plan cache.
+     */
+    public SparkseePGQL(int planCacheCapacity)
+    {
+        planCache = (planCacheCapacity > 0)? new PlanCache<String>(planCacheCapacity) : null;
+        clientPlanCache = (planCacheCapacity > 0)? new PlanCache<TopKQuery>(planCacheCapacity) : null;
+        metrics = new TranslationMetrics(planCache);
     }
 
     final Logger logger = LoggerFactory.getLogger(SparkseePGQL.class);
 
-    private Pgql pgql;
-    private PgqlResult pgqlResult;
-    private GraphQuery pgqlGraphQuery;
+    // The PGQL parser is not thread safe, so each thread gets its own parser
+    private final ThreadLocal<Pgql> pgql = new ThreadLocal<Pgql>() {
+        @Override
+        protected Pgql initialValue() {
+            try {
+                return new Pgql();
+            }
+            catch (PgqlException ex)
+            {
+                logger.error("The PGQL parser could not be created: "+ex.getMessage());
+                return null;
+            }
+        }
+    };
+    private final PlanCache<String> planCache;
+    // The translations for a client that keeps the first rows itself, which differ from the plain ones
+    private final PlanCache<TopKQuery> clientPlanCache;
+    private final TranslationMetrics metrics;
+    private volatile StatisticsCatalog statisticsCatalog = null;
+    private volatile boolean topKSortSupported = false;
+    // Changed by each setting that changes the plans, so the prepared queries know their templates are stale
+    private final AtomicLong planEpoch = new AtomicLong();
+    // Discards the plans made with the old statistics, registered only in the current catalog
+    private final Runnable statisticsRefreshListener = new Runnable() {
+        @Override
+        public void run() {
+            clearPlanCaches();
+        }
+    };
 
-    private boolean setPGQLQuery(String query) throws PgqlException
+    boolean setPGQLQuery(TranslationContext ctx, String query) throws PgqlException
     {
-        pgqlResult= pgql.parse(query);
-        if (pgqlResult.isQueryValid())
+        ctx.pgqlResult= pgql.get().parse(query);
+        if (ctx.pgqlResult.isQueryValid())
         {
-            pgqlGraphQuery = pgqlResult.getGraphQuery();
+            ctx.pgqlGraphQuery = ctx.pgqlResult.getGraphQuery();
             //System.out.println(pgqlGraphQuery);
             return true;
         }
@@ -48,213 +93,332 @@ public class SparkseePGQL {
         }
     }
 
-    private void printPGQLQuery()
+    private void printPGQLQuery(TranslationContext ctx)
     {
-        if (pgqlResult.isQueryValid())
+        if (ctx.pgqlResult.isQueryValid())
         {
-            System.out.println(pgqlGraphQuery);
+            System.out.println(ctx.pgqlGraphQuery);
         }
         else
         {
-            System.out.println(pgqlResult.getErrorMessages());
+            System.out.println(ctx.pgqlResult.getErrorMessages());
         }
     }
 
 
-    private HashMap<String, VariableInfo> allVariables;
-    private ArrayList<ConnectionGroup> connGroups;
-    private ArrayList<ConstraintInfo> constraintInfoList;
-
-    private SQAQueryBuilder finalQuery;
-
-    private ArrayList<Integer> groupColumns;
-    private ArrayList<PostGroupExprColumnInfo> projectionColumns;
-    private ArrayList<AggregateInfo> aggregateInfos;
-    private ArrayList<PostGroupExprColumnInfo> orderColumns;
-    private ArrayList<Integer> selectedColumns;
-
 
     /**
-     * \brief Creates the allVariables and connGroups information for the current pgqlGraphQuery.
+     * \brief Creates the allVariables and connGroups information for the current pgqlGraphQuery of the context.
      */
-    protected void extractConnectionInfo()
+    protected void extractConnectionInfo(TranslationContext ctx)
     {
         // CONNECTIONS
         int counter = 0;
-        allVariables = new HashMap<String, VariableInfo>();
-        connGroups = new ArrayList<ConnectionGroup>();
-        for(VertexPairConnection conn : pgqlGraphQuery.getGraphPattern().getConnections()){
+        ctx.allVariables = new HashMap<String, VariableInfo>();
+        ctx.connGroups = new ArrayList<ConnectionGroup>();
+        for(VertexPairConnection conn : ctx.pgqlGraphQuery.getGraphPattern().getConnections()){
             String srcName = conn.getSrc().getName();
-            allVariables.put(srcName, new VariableInfo(srcName, conn.getSrc().isAnonymous(), true));
+            ctx.allVariables.put(srcName, new VariableInfo(srcName, conn.getSrc().isAnonymous(), true));
             String dstName = conn.getDst().getName();
-            allVariables.put(dstName, new VariableInfo(dstName, conn.getDst().isAnonymous(), true));
+            ctx.allVariables.put(dstName, new VariableInfo(dstName, conn.getDst().isAnonymous(), true));
             String edgeName = conn.getName();
-            allVariables.put(edgeName, new VariableInfo(edgeName, conn.isAnonymous(), false));
+            ctx.allVariables.put(edgeName, new VariableInfo(edgeName, conn.isAnonymous(), false));
 
             logger.debug("Connection "+counter+": Source \""+srcName+"\", Destination \""+dstName+"\", Edge \""+edgeName+"\".\n");
             ConnectionGroup connGroup = new ConnectionGroup();
             connGroup.add(conn);
-            connGroups.add(connGroup);
+            ctx.connGroups.add(connGroup);
             ++counter;
         }
     }
 
-    protected void groupConnections()
+    protected void groupConnections(TranslationContext ctx)
     {
         // DIRECT CONNECTION GROUPS
         int counter = 0;
         // Merge the connection groups that can be directly linked by variables used in the connections.
         // The connections in each group will be linked by simple explode/neighbors operations.
-        ConnectionGroup.groupConnections(connGroups);
+        ConnectionGroup.groupConnections(ctx.connGroups);
         // LOG the groups information
-        for(ConnectionGroup connGroup: connGroups)
+        for(ConnectionGroup connGroup: ctx.connGroups)
         {
             logger.debug("Connection GROUP "+counter+": "+connGroup.toString()+"\n");
             ++counter;
         }
     }
 
-    protected void addGroupsWithoutConnection() {
+    protected void addGroupsWithoutConnection(TranslationContext ctx) {
         // Other groups
         // This is required when there is a group without any connection like: (n)
         // We consider independent groups the variables that are not part of any connection.
         // TODO: Check this again when PATH support is added.
-        for ( QueryVertex qv: pgqlGraphQuery.getGraphPattern().getVertices() ) {
-            if (!qv.isAnonymous() && !allVariables.containsKey(qv.getName())) {
+        for ( QueryVertex qv: ctx.pgqlGraphQuery.getGraphPattern().getVertices() ) {
+            if (!qv.isAnonymous() && !ctx.allVariables.containsKey(qv.getName())) {
                 logger.debug("Variable that doesn't appear in any connection: "+qv.getName());
                 ConnectionGroup connGroup = new ConnectionGroup();
                 connGroup.setNodeOnlyGroup( qv.getName() );
-                connGroups.add(connGroup);
-                allVariables.put(qv.getName(), new VariableInfo(qv.getName(), false, true));
+                ctx.connGroups.add(connGroup);
+                ctx.allVariables.put(qv.getName(), new VariableInfo(qv.getName(), false, true));
             }
         }
     }
 
-    protected  void extractConstraintsInfo()
+    protected  void extractConstraintsInfo(TranslationContext ctx)
     {
         // CONSTRAINTS
         int counter = 0;
-        constraintInfoList = new ArrayList<ConstraintInfo>();
-        for(QueryExpression expr : pgqlGraphQuery.getGraphPattern().getConstraints()){
-            ConstraintInfo info = new ConstraintInfo(expr);
-            constraintInfoList.add(info);
+        ctx.constraintInfoList = new ArrayList<ConstraintInfo>();
+        for(QueryExpression expr : ctx.pgqlGraphQuery.getGraphPattern().getConstraints()){
+            ConstraintInfo info = new ConstraintInfo(expr, ctx.statistics, ctx.parameterSentinels);
+            ctx.constraintInfoList.add(info);
             logger.debug("Constraint "+counter+": "+ info.toString() );
             ++counter;
         }
+        // A lower and an upper bound of the same attribute will be a single ranged GRAPH::SELECT
+        ConstraintInfo.mergeRangeConstraints(ctx.constraintInfoList);
     }
 
-    protected  void linkConstraintsToGroups()
+    protected  void linkConstraintsToGroups(TranslationContext ctx)
     {
         // link the constraints to the groups that use the same variables
-        for (ConstraintInfo constraintInfo : constraintInfoList) {
-            constraintInfo.linkGroups(connGroups);
+        for (ConstraintInfo constraintInfo : ctx.constraintInfoList) {
+            constraintInfo.linkGroups(ctx.connGroups);
         }
     }
 
-    protected void translateGroups() {
+    /**
+     * Parses the GROUP BY, SELECT and ORDER BY expressions to know which variables, attributes
+     * and labels the result needs.
+     */
+    protected void extractResultExpressions(TranslationContext ctx)
+    {
+        if (ctx.pgqlGraphQuery.getProjection().getElements().isEmpty()) {
+            // All the columns are part of the result
+            ctx.resultExpressions = null;
+            return;
+        }
+        ctx.resultExpressions = new ArrayList<ExpressionInfo>();
+        for (Object element : ctx.pgqlGraphQuery.getGroupBy().getElements()) {
+            ctx.resultExpressions.add(new ExpressionInfo(((ExpAsVar) element).getExp(), true));
+        }
+        for (Object element : ctx.pgqlGraphQuery.getProjection().getElements()) {
+            ctx.resultExpressions.add(new ExpressionInfo(((ExpAsVar) element).getExp(), true));
+        }
+        for (Object element : ctx.pgqlGraphQuery.getOrderBy().getElements()) {
+            ctx.resultExpressions.add(new ExpressionInfo(((OrderByElem) element).getExp(), true));
+        }
+    }
+
+    /**
+     * Removes with a PROJECT the columns that no later operation uses: the duplicated variables
+     * already checked, the variables only needed by translated connections and the attributes
+     * only needed by applied constraints. The following operations (and specially the JOIN,
+     * PRODUCT and SORT) get narrower rows.
+     * @param ctx [in] The translation context.
+     * @param query [in/out] The query to update.
+     * @param pendingConnections [in] The connections of the group still not translated or null.
+     */
+    protected void pruneDeadColumns(TranslationContext ctx, SQAQueryBuilder query, Collection<VertexPairConnection> pendingConnections)
+    {
+        if (ctx.resultExpressions == null) {
+            return;
+        }
+        HashSet<String> liveKeys = new HashSet<String>();
+        for (ExpressionInfo exprInfo : ctx.resultExpressions) {
+            exprInfo.addRequiredColumnKeys(query, liveKeys);
+        }
+        for (ConstraintInfo cinfo : ctx.constraintInfoList) {
+            cinfo.addRequiredColumnKeys(query, liveKeys);
+        }
+        if (pendingConnections != null) {
+            for (VertexPairConnection vpConn : pendingConnections) {
+                liveKeys.add(query.varNameToKey(vpConn.getName()));
+                liveKeys.add(query.varNameToKey(vpConn.getSrc().getName()));
+                liveKeys.add(query.varNameToKey(vpConn.getDst().getName()));
+            }
+        }
+        ArrayList<Integer> liveColumns = query.getLiveColumns(liveKeys);
+        if (liveColumns.size() == query.getNumColumns()) {
+            return;
+        }
+        if (liveColumns.isEmpty()) {
+            // Only the number of rows is used (COUNT(*)), but a PROJECT needs a column
+            liveColumns.add(0);
+        }
+        double rows = query.getRoot().getEstimatedRows();
+        query.setRoot(new SQAOperator.Project(query.getRoot(), liveColumns));
+        query.reduceColumns(liveColumns);
+        query.getRoot().setEstimatedRows(rows);
+    }
+
+    protected void translateGroups(TranslationContext ctx) {
         // Translate each individual group to the sparksee algebra
-        for (ConnectionGroup connectionGroup : connGroups) {
+        for (ConnectionGroup connectionGroup : ctx.connGroups) {
             // Proves de traduccio a l'algebra
-            SQAQueryBuilder groupQuery = translateConnectionGroup(connectionGroup);
+            SQAQueryBuilder groupQuery = translateConnectionGroup(ctx, connectionGroup);
             connectionGroup.setSQAQuery(groupQuery);
-            logger.debug("TanslatedConnectionGroup: " + groupQuery.getQuery());
+            if (logger.isDebugEnabled()) {
+                logger.debug("TanslatedConnectionGroup: " + groupQuery.getQuery());
+            }
         }
     }
 
-    protected void joinGroupsByConstraint() {
-        // JOIN the group pairs that can be connected through a constraint
-        boolean groupsToJoin = true;
-        while (groupsToJoin) {
-            groupsToJoin = false;
-            Iterator<ConstraintInfo> cinfoIter = constraintInfoList.iterator();
-            while (cinfoIter.hasNext()) {
-                ConstraintInfo cinfo = cinfoIter.next();
+    /**
+     * Joins all the connection groups into a single one, two groups at a time.
+     * A JOIN through a constraint that links two groups is always preferred to a PRODUCT, and
+     * with statistics the join (or product) with the lowest estimated result is done first.
+     * After each step, the constraints whose groups have all been joined are applied at once, and
+     * the constraints linking more groups get closer to be usable as a JOIN condition.
+     */
+    protected void joinGroups(TranslationContext ctx) {
+        applyJoinedGroupsConstraints(ctx);
+        while (ctx.connGroups.size() > 1) {
+            ConnectionGroup g1 = null;
+            ConnectionGroup g2 = null;
+            ConstraintInfo joinConstraint = null;
+            double rows = 0;
+            for (ConstraintInfo cinfo : ctx.constraintInfoList) {
                 if (cinfo.getNumLinkedGroups() == 2) {
-                    // The two groups can be joined into one
-                    ConnectionGroup g1 = cinfo.getFirstLinkedGroup();
-                    ConnectionGroup g2 = cinfo.getGroups().get(1);
-                    // Apply the JOIN constraint
-                    cinfo.applyJOINConstraint(g1.getSQAQuery(), g2.getSQAQuery());
-                    // Add the g2 information to g1
-                    g1.merge(g2);
-                    // Remove the current constraint
-                    cinfoIter.remove();
-                    // The g2 group must be removed from the groups list and
-                    // replaced in any constraintInfo by g1 (or just removed if g1 was already used)
-                    connGroups.remove(g2);
-                    for (ConstraintInfo cginfo: constraintInfoList) {
-                        cginfo.mergedGroups(g1, g2);
+                    double joinRows = estimateJoinRows(ctx, cinfo);
+                    if ((joinConstraint == null) || (joinRows < rows)) {
+                        joinConstraint = cinfo;
+                        rows = joinRows;
                     }
-                    // More constraints may be joinable with this group reduction
-                    groupsToJoin = true; // Loop again
                 }
-                else if (cinfo.getNumLinkedGroups() == 1) {
-                    // This could only happen if this constraint was using the same groups of another constraint
-                    // that had already been joined into one group.
-                    // So this constraint can simply be applied now.
-                    cinfo.applyConstraint( cinfo.getFirstLinkedGroup().getSQAQuery() );
-                    // Remove the current constraint
-                    cinfoIter.remove();
+            }
+
+            if (joinConstraint != null) {
+                // The two groups can be joined into one
+                g1 = joinConstraint.getFirstLinkedGroup();
+                g2 = joinConstraint.getGroups().get(1);
+                // Apply the JOIN constraint
+                joinConstraint.applyJOINConstraint(g1.getSQAQuery(), g2.getSQAQuery());
+                ctx.constraintInfoList.remove(joinConstraint);
+            }
+            else {
+                // The remaining groups are unrelated, so they must be linked with a PRODUCT.
+                // The two smallest groups first, or in the list order without statistics.
+                g1 = ctx.connGroups.get(0);
+                g2 = ctx.connGroups.get(1);
+                if (ctx.statistics != null) {
+                    for (ConnectionGroup group : ctx.connGroups) {
+                        if ((group != g1) && (group != g2) && (getGroupRows(group) < Math.max(getGroupRows(g1), getGroupRows(g2)))) {
+                            if (getGroupRows(g1) > getGroupRows(g2)) {
+                                g1 = g2;
+                            }
+                            g2 = group;
+                        }
+                    }
+                    if (ctx.connGroups.indexOf(g2) < ctx.connGroups.indexOf(g1)) {
+                        // Keep the list order of the columns
+                        ConnectionGroup swap = g1;
+                        g1 = g2;
+                        g2 = swap;
+                    }
                 }
+                rows = getGroupRows(g1) * getGroupRows(g2);
+                SQAQueryBuilder sqaQuery = g1.getSQAQuery();
+                SQAQueryBuilder sqaQuery2 = g2.getSQAQuery();
+                sqaQuery2.finish();
+                sqaQuery.setRoot(new SQAOperator.Product(sqaQuery.getRoot(), sqaQuery2.getRoot()));
+                // Add to the final query all the columns of the second query
+                sqaQuery.addColumnsData(sqaQuery2);
+            }
+            if (ctx.statistics != null) {
+                g1.getSQAQuery().getRoot().setEstimatedRows(rows);
+            }
+
+            // Add the g2 information to g1
+            g1.merge(g2);
+            // The g2 group must be removed from the groups list and
+            // replaced in any constraintInfo by g1 (or just removed if g1 was already used)
+            ctx.connGroups.remove(g2);
+            for (ConstraintInfo cginfo: ctx.constraintInfoList) {
+                cginfo.mergedGroups(g1, g2);
+            }
+            // The constraints that only used these two groups can be applied now
+            applyJoinedGroupsConstraints(ctx);
+            if (ctx.connGroups.size() > 1) {
+                pruneDeadColumns(ctx, g1.getSQAQuery(), null);
             }
         }
+        assert(ctx.connGroups.size() == 1);
+        if (logger.isDebugEnabled()) {
+            logger.debug("FINAL GROUP ALGEBRA: " + ctx.connGroups.get(0).getSQAQuery().getQuery());
+        }
     }
 
-
-    protected void mergeGroupsWithProduct() {
-        // The final remaining unrelated groups will be linked using PRODUCT operations.
-        // If any constraint had more than 2 groups it can be linked with a product as well,
-        // but later the constraint must be applied.
-        if (connGroups.size() > 1) {
-            Iterator<ConnectionGroup> groupIter = connGroups.iterator();
-            assert (groupIter.hasNext());
-            ConnectionGroup first = groupIter.next();
-            SQAQueryBuilder sqaQuery = first.getSQAQuery();
-            while (groupIter.hasNext()) {
-                ConnectionGroup group = groupIter.next();
-                SQAQueryBuilder sqaQuery2 = group.getSQAQuery();
-                // Apply the constraint
-                sqaQuery.preppendQuery("PRODUCT( ");
-                sqaQuery.appendQuery(", " +sqaQuery2.getQuery()+" )" );
-                // Add to the final query all the columns of the second query
-                sqaQuery.addColumnsData(sqaQuery2);
-                // Add the g2 information to g1
-                first.merge(group);
-                // The second group must be removed from the groups list and
-                // replaced in any constraintInfo by the first one
-                groupIter.remove();
-                for (ConstraintInfo cginfo: constraintInfoList) {
-                    cginfo.mergedGroups(first, group);
+    /**
+     * Applies the constraints that only use variables of a single group.
+     * This could only happen if the constraint was using the same groups of another constraint
+     * that had already been joined into one group.
+     */
+    private void applyJoinedGroupsConstraints(TranslationContext ctx) {
+        Iterator<ConstraintInfo> cinfoIter = ctx.constraintInfoList.iterator();
+        while (cinfoIter.hasNext()) {
+            ConstraintInfo cinfo = cinfoIter.next();
+            if (cinfo.getNumLinkedGroups() == 1) {
+                SQAQueryBuilder query = cinfo.getFirstLinkedGroup().getSQAQuery();
+                double rows = query.getRoot().getEstimatedRows();
+                cinfo.applyConstraint(query);
+                if (ctx.statistics != null) {
+                    query.getRoot().setEstimatedRows(rows * cinfo.estimateSelectivity(ctx.statistics));
                 }
+                // Remove the current constraint
+                cinfoIter.remove();
             }
         }
-        assert(connGroups.size() == 1);
-        logger.debug("FINAL GROUP ALGEBRA: " + connGroups.get(0).getSQAQuery().getQuery());
     }
 
-    protected void applyMultipleGroupConstraints() {
-        // Any constraint that was using variables for more than 2 groups could not be joined
-        // but are now linked by a PRODUCT. So the remaining constraints can simply be applied.
-        Iterator<ConstraintInfo> cinfoIter = constraintInfoList.iterator();
+    /**
+     * @return Returns the estimated rows of the group query, or 1 when they are unknown so all the groups look alike.
+     */
+    private double getGroupRows(ConnectionGroup group) {
+        double rows = group.getSQAQuery().getRoot().getEstimatedRows();
+        return (rows < 0)? 1 : rows;
+    }
+
+    /**
+     * Estimates the rows of the JOIN of the two groups linked by the constraint.
+     * An equality is supposed to match each row of the smallest group with one row of the other.
+     * @param ctx [in] The translation context.
+     * @param cinfo [in] A constraint linked to two groups.
+     * @return Returns the estimated number of rows.
+     */
+    protected double estimateJoinRows(TranslationContext ctx, ConstraintInfo cinfo) {
+        double rows1 = getGroupRows(cinfo.getFirstLinkedGroup());
+        double rows2 = getGroupRows(cinfo.getGroups().get(1));
+        if (cinfo.getExpression().getExpType() == QueryExpression.ExpressionType.EQUAL) {
+            return Math.min(rows1, rows2);
+        }
+        return rows1 * rows2 * GraphStatistics.DEFAULT_RANGE_SELECTIVITY;
+    }
+
+    protected void applyMultipleGroupConstraints(TranslationContext ctx) {
+        // Any constraint still pending uses variables of the final group only,
+        // so the remaining constraints can simply be applied.
+        Iterator<ConstraintInfo> cinfoIter = ctx.constraintInfoList.iterator();
         while (cinfoIter.hasNext()) {
             ConstraintInfo cinfo = cinfoIter.next();
-            assert((cinfo.getNumLinkedGroups() == 1) && (connGroups.get(0) == cinfo.getFirstLinkedGroup()));
+            assert((cinfo.getNumLinkedGroups() == 1) && (ctx.connGroups.get(0) == cinfo.getFirstLinkedGroup()));
             cinfo.applyConstraint( cinfo.getFirstLinkedGroup().getSQAQuery() );
             // Remove the current constraint
             cinfoIter.remove();
         }
-        logger.debug("FINAL GROUP CONSTRAINED ALGEBRA: " + connGroups.get(0).getSQAQuery().getQuery() );
+        if (logger.isDebugEnabled()) {
+            logger.debug("FINAL GROUP CONSTRAINED ALGEBRA: " + ctx.connGroups.get(0).getSQAQuery().getQuery() );
+        }
     }
 
 
-    protected  void prepareGroupBy() {
+    protected  void prepareGroupBy(TranslationContext ctx) {
         // The GROUPBY can't be applied until the SELECT and ORDERBY are checked
         // because both the ORDERBY and the SELECT may contain aggregations that
         // we must know to write the SQA GROUP operation. But the GROUPBY must be
         // checked first anyway because the ORDERBY and SELECT may contain alias
         // defined in the GROUPBY.
-        GroupBy groupBy = pgqlGraphQuery.getGroupBy();
-        groupColumns = new ArrayList<Integer>();
+        GroupBy groupBy = ctx.pgqlGraphQuery.getGroupBy();
+        ctx.groupColumns = new ArrayList<Integer>();
         if(!groupBy.getElements().isEmpty()) {
             Iterator it = groupBy.getElements().iterator();
             while(it.hasNext()) {
@@ -265,9 +429,9 @@ public class SparkseePGQL {
                 logger.debug("Info groupby: "+ eInfo.toString());
 
                 assert( ! eInfo.hasAggregates() );
-                int colNumber = eInfo.addExpressionColumn( finalQuery, expAsVar.getName() );
-                assert( colNumber >= 0 && colNumber < finalQuery.getNumColumns() );
-                groupColumns.add( colNumber );
+                int colNumber = eInfo.addExpressionColumn( ctx.finalQuery, expAsVar.getName() );
+                assert( colNumber >= 0 && colNumber < ctx.finalQuery.getNumColumns() );
+                ctx.groupColumns.add( colNumber );
                 // Guardar la posició no es suficient perque si la columna del group by es una variable
                 // llavors atributs d'aquesta variable poden ser utilitzats a l'orderby o la projeccio.
                 // El problema es que el groupby de l'algebra haura eliminat totes les columnes
@@ -281,16 +445,18 @@ public class SparkseePGQL {
                 // al ColumnData del SQAQueryBuilder si es una variable o no.
             }
         }
-        logger.debug("FINAL GROUP EXPRESSIONS QUERY: " + finalQuery.getQuery() );
+        if (logger.isDebugEnabled()) {
+            logger.debug("FINAL GROUP EXPRESSIONS QUERY: " + ctx.finalQuery.getQuery() );
+        }
     }
 
-    protected void prepareSelect() {
+    protected void prepareSelect(TranslationContext ctx) {
         // The projection must be checked before the ORDERBY because the alias defined in the
         // SELECT can be used in the ORDERBY. And it can not be applied until the GROUPBY
         // is done because the SELECT may use aggregate operations.
-        Projection projection = pgqlGraphQuery.getProjection();
-        projectionColumns = new ArrayList<PostGroupExprColumnInfo>();
-        aggregateInfos = new ArrayList<AggregateInfo>();
+        Projection projection = ctx.pgqlGraphQuery.getProjection();
+        ctx.projectionColumns = new ArrayList<PostGroupExprColumnInfo>();
+        ctx.aggregateInfos = new ArrayList<AggregateInfo>();
         if(projection.getElements().isEmpty()) {
             // TODO: *
         } else {
@@ -302,18 +468,18 @@ public class SparkseePGQL {
                 // Get information from the projection
                 PostGroupExprColumnInfo pgInfo = new PostGroupExprColumnInfo(expAsVar.getExp());
                 logger.debug("Projection info: "+ pgInfo.toString());
-                pgInfo.extractAggregatesInfo( finalQuery, aggregateInfos );
+                pgInfo.extractAggregatesInfo( ctx.finalQuery, ctx.aggregateInfos );
                 // Keep the PostGroupExprColumnInfo for later, when the projection is really done
-                projectionColumns.add(pgInfo);
+                ctx.projectionColumns.add(pgInfo);
             }
         }
     }
 
-    protected void prepareOrderBy() {
+    protected void prepareOrderBy(TranslationContext ctx) {
         // It can not be applied until the GROUPBY is done because it may use aggregate operations
         // but it must be checked first to get it's requirements.
-        OrderBy orderBy = pgqlGraphQuery.getOrderBy();
-        orderColumns = new ArrayList<PostGroupExprColumnInfo>();
+        OrderBy orderBy = ctx.pgqlGraphQuery.getOrderBy();
+        ctx.orderColumns = new ArrayList<PostGroupExprColumnInfo>();
         if(!orderBy.getElements().isEmpty()) {
             Iterator it = orderBy.getElements().iterator();
             while(it.hasNext()) {
@@ -323,140 +489,275 @@ public class SparkseePGQL {
                 // Get OrderBy information
                 PostGroupExprColumnInfo pgInfo = new PostGroupExprColumnInfo(orderByElem.getExp());
                 logger.debug("OrderBy info: "+ pgInfo.toString());
-                pgInfo.extractAggregatesInfo( finalQuery, aggregateInfos );
+                pgInfo.extractAggregatesInfo( ctx.finalQuery, ctx.aggregateInfos );
                 // Keep the PostGroupExprColumnInfo for later, when the orderby is really done
-                orderColumns.add(pgInfo);
+                ctx.orderColumns.add(pgInfo);
             }
         }
     }
 
-    protected void applyGroupBy() {
-        if ( ! groupColumns.isEmpty() ) {
-            finalQuery.preppendQuery("GROUP( ");
-            finalQuery.appendQuery(", [ ");
-            boolean first = true;
-            for (Integer groupCol : groupColumns) {
-                if (!first) {
-                    finalQuery.appendQuery(", ");
-                }
-                finalQuery.appendQuery(groupCol.toString());
-                first = false;
+    protected void applyGroupBy(TranslationContext ctx) {
+        if ( ! ctx.groupColumns.isEmpty() ) {
+            ArrayList<String> aggregates = new ArrayList<String>();
+            for (AggregateInfo aggInfo : ctx.aggregateInfos) {
+                aggregates.add(aggInfo.getGroupSQAExpression());
             }
-            finalQuery.appendQuery(" ], [ ");
-            if (aggregateInfos.isEmpty()) {
-                finalQuery.appendQuery("null");
-            }
-            else {
-                first = true;
-                for (AggregateInfo aggInfo : aggregateInfos) {
-                    if (!first) {
-                        finalQuery.appendQuery(", ");
-                    }
-                    finalQuery.appendQuery(aggInfo.getGroupSQAExpression());
-                    first = false;
-                }
-            }
-            finalQuery.appendQuery(" ])");
+            ctx.finalQuery.setRoot(new SQAOperator.Group(ctx.finalQuery.getRoot(), ctx.groupColumns, aggregates));
             // Remove all the columns data in the SQAQueryBuilder except the group columns
-            finalQuery.reduceColumns(groupColumns);
+            ctx.finalQuery.reduceColumns(ctx.groupColumns);
             // Add the calculated aggregate columns
-            for (AggregateInfo aggInfo : aggregateInfos) {
-                finalQuery.addAggregateColumn(aggInfo.getType(), aggInfo.getSubexpr());
+            for (AggregateInfo aggInfo : ctx.aggregateInfos) {
+                ctx.finalQuery.addAggregateColumn(aggInfo.getType(), aggInfo.getSubexpr());
             }
         }
     }
 
-    protected void addProjectionExpressionColumns() {
+    protected void addProjectionExpressionColumns(TranslationContext ctx) {
         // We must create all the projection columns and consider every
         // "column expression" as an alias.
         // Later we will order them and finally we will remove the not wanted columns.
-        selectedColumns = new ArrayList<Integer>();
-        for (PostGroupExprColumnInfo postExpr : projectionColumns) {
-            // We need to parse the expression but without going in the aggregate expressions
-            postExpr.parseQueryExpression();
-            // Add the new column or find the existing one
-            int numCol = postExpr.addExpressionColumn(finalQuery, null);
-            finalQuery.setAlias(postExpr.expression.toString(), numCol);
-            logger.debug("Adding projection alias: \""+postExpr.expression.toString()+"\" col "+numCol);
-            selectedColumns.add(numCol);
+        // But the columns that the ORDER BY does not use are added after the SORT and the LIMIT
+        // (in addLateProjectionExpressionColumns), so their attributes are only read for the result rows.
+        ctx.selectedColumns = new ArrayList<Integer>();
+        ctx.lateProjectionColumns = new ArrayList<Integer>();
+        HashSet<String> orderRefs = new HashSet<String>();
+        HashSet<String> orderExprs = new HashSet<String>();
+        for (PostGroupExprColumnInfo orderExpr : ctx.orderColumns) {
+            orderRefs.addAll(new ExpressionInfo(orderExpr.expression, true).varRefs);
+            orderExprs.add(orderExpr.expression.toString());
+        }
+        List projection = ctx.pgqlGraphQuery.getProjection().getElements();
+        for (int ii = 0; ii < ctx.projectionColumns.size(); ii++) {
+            PostGroupExprColumnInfo postExpr = ctx.projectionColumns.get(ii);
+            String name = ((ExpAsVar) projection.get(ii)).getName();
+            if (!ctx.orderColumns.isEmpty() && !orderRefs.contains(name) &&
+                    !orderExprs.contains(postExpr.expression.toString())) {
+                ctx.lateProjectionColumns.add(ii);
+                ctx.selectedColumns.add(-1);
+                continue;
+            }
+            ctx.selectedColumns.add(addProjectionExpressionColumn(ctx, postExpr));
+        }
+    }
+
+    protected void addLateProjectionExpressionColumns(TranslationContext ctx) {
+        for (int ii : ctx.lateProjectionColumns) {
+            ctx.selectedColumns.set(ii, addProjectionExpressionColumn(ctx, ctx.projectionColumns.get(ii)));
         }
     }
 
-    protected void applyOrderBy() {
+    private int addProjectionExpressionColumn(TranslationContext ctx, PostGroupExprColumnInfo postExpr) {
+        // We need to parse the expression but without going in the aggregate expressions
+        postExpr.parseQueryExpression();
+        // Add the new column or find the existing one
+        int numCol = postExpr.addExpressionColumn(ctx.finalQuery, null);
+        ctx.finalQuery.setAlias(postExpr.expression.toString(), numCol);
+        logger.debug("Adding projection alias: \""+postExpr.expression.toString()+"\" col "+numCol);
+        return numCol;
+    }
+
+    protected void applyOrderBy(TranslationContext ctx) {
         ArrayList<Integer> sortColumns = new ArrayList<Integer>();;
-        for (PostGroupExprColumnInfo postExpr : orderColumns) {
+        for (PostGroupExprColumnInfo postExpr : ctx.orderColumns) {
             // We need to parse the expression but without going in the aggregate expressions
             postExpr.parseQueryExpression();
             // Add the new column or find the existing one
-            int numCol = postExpr.addExpressionColumn(finalQuery, null);
+            int numCol = postExpr.addExpressionColumn(ctx.finalQuery, null);
             logger.debug("Order by expression: \""+postExpr.expression.toString()+"\" col "+numCol);
             assert(numCol >= 0);
             sortColumns.add(numCol);
         }
         if (!sortColumns.isEmpty()) {
-            finalQuery.preppendQuery("SORT(");
-            finalQuery.appendQuery(", [ ");
-            boolean firstColumn = true;
-            for (Integer numCol : sortColumns) {
-                if (!firstColumn) {
-                    finalQuery.appendQuery(", ");
-                }
-                finalQuery.appendQuery( numCol.toString() );
-                firstColumn = false;
+            if (ctx.clientTopK && isTopKLimit(ctx)) {
+                // The client keeps the first rows while it reads them, so they are not sorted here
+                ctx.topKSortColumns = sortColumns;
+            }
+            else {
+                ctx.finalQuery.setRoot(new SQAOperator.Sort(ctx.finalQuery.getRoot(), sortColumns));
             }
-            finalQuery.appendQuery( " ])");
         }
     }
 
-    protected void applySelect() {
-        if (!selectedColumns.isEmpty()) {
-            finalQuery.preppendQuery("PROJECT(");
-            finalQuery.appendQuery(", [ ");
-            boolean firstColumn = true;
-            for (Integer numCol : selectedColumns) {
-                if (!firstColumn) {
-                    finalQuery.appendQuery(", ");
+    /**
+     * @return Returns true if the query has a LIMIT that can bound a SORT.
+     */
+    private boolean isTopKLimit(TranslationContext ctx) {
+        long limit = ctx.pgqlGraphQuery.getLimit();
+        long offset = ctx.pgqlGraphQuery.getOffset();
+        // The offset plus the limit can't be calculated for a prepared query parameter
+        return (limit > -1L) && !PreparedPGQLQuery.isParameterSentinel(ctx.parameterSentinels, limit) &&
+                !PreparedPGQLQuery.isParameterSentinel(ctx.parameterSentinels, offset);
+    }
+
+    protected void applySelect(TranslationContext ctx) {
+        ArrayList<Integer> columns = ctx.selectedColumns;
+        if (ctx.topKSortColumns != null) {
+            // The client needs the sort columns after the selected ones
+            columns = new ArrayList<Integer>(columns);
+            if (columns.isEmpty()) {
+                for (int ii = 0; ii < ctx.finalQuery.getNumColumns(); ii++) {
+                    columns.add(ii);
                 }
-                finalQuery.appendQuery( numCol.toString() );
-                firstColumn = false;
             }
-            finalQuery.appendQuery(" ])");
-            finalQuery.reduceColumns(selectedColumns);
+            ctx.topKResultColumns = columns.size();
+            columns.addAll(ctx.topKSortColumns);
+        }
+        if (!columns.isEmpty() && !isIdentityProjection(ctx.finalQuery, columns)) {
+            ctx.finalQuery.setRoot(new SQAOperator.Project(ctx.finalQuery.getRoot(), columns));
+            ctx.finalQuery.reduceColumns(columns);
             // TODO: Set the right names to the result columns
         }
     }
 
-    protected void limitAndOffset() {
-        long limit = pgqlGraphQuery.getLimit();
-        long offset = pgqlGraphQuery.getOffset();
-        if ((limit > -1L) && (offset > -1L)) {
-            finalQuery.preppendQuery("SLICE( ");
-            finalQuery.appendQuery(", "+offset+", "+limit+" )");
+    /**
+     * @return Returns true if the columns are all the query columns in the same order, so
+     * the PROJECT would not change anything (the dead columns may have been already removed).
+     */
+    private boolean isIdentityProjection(SQAQueryBuilder query, ArrayList<Integer> columns) {
+        if (columns.size() != query.getNumColumns()) {
+            return false;
+        }
+        for (int ii = 0; ii < columns.size(); ii++) {
+            if (columns.get(ii) != ii) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected void limitAndOffset(TranslationContext ctx) {
+        if (ctx.topKSortColumns != null) {
+            // The client applies them while sorting
+            return;
         }
-        else if (limit > -1L) {
-            finalQuery.preppendQuery("SLICE( ");
-            finalQuery.appendQuery(", NULL, "+limit+" )");
+        long limit = ctx.pgqlGraphQuery.getLimit();
+        long offset = ctx.pgqlGraphQuery.getOffset();
+        if ((limit > -1L) || (offset > -1L)) {
+            if (ctx.topKSortSupported && isTopKLimit(ctx)) {
+                fuseTopK(ctx, Math.max(0L, offset) + limit);
+            }
+            if (isLimitPushdownAllowed(ctx)) {
+                pushDownSlice(ctx, offset, limit);
+            }
+            else {
+                ctx.finalQuery.setRoot(new SQAOperator.Slice(ctx.finalQuery.getRoot(), offset, limit));
+            }
         }
-        else if (offset > -1L) {
-            finalQuery.preppendQuery("SLICE( ");
-            finalQuery.appendQuery(", "+offset+", NULL )");
+    }
+
+    /**
+     * Without ORDER BY, GROUP BY or aggregates the rows are not reordered or merged after the
+     * matching, so any N rows are a valid result and the SLICE can be applied before the result
+     * columns are calculated.
+     * @param ctx [in] The translation context.
+     * @return Returns true if the SLICE can be moved below the top of the query.
+     */
+    private boolean isLimitPushdownAllowed(TranslationContext ctx) {
+        return ctx.groupColumns.isEmpty() && ctx.aggregateInfos.isEmpty() && ctx.orderColumns.isEmpty();
+    }
+
+    /**
+     * Adds the SLICE below all the operators on the top of the query that keep one output row
+     * for each input row (PROJECT, EXTEND, GET and GET_TYPE), so the attributes and the expressions
+     * are only calculated for the returned rows. The SLICE stops at the first operator that can
+     * filter or multiply the rows.
+     * @param ctx [in/out] The translation context.
+     * @param offset [in] The number of first rows to skip or -1.
+     * @param limit [in] The maximum number of rows or -1.
+     */
+    private void pushDownSlice(TranslationContext ctx, long offset, long limit) {
+        ArrayList<SQAOperator> path = new ArrayList<SQAOperator>();
+        ctx.finalQuery.finish();
+        SQAOperator op = ctx.finalQuery.getRoot();
+        while (isRowPreserving(op)) {
+            path.add(op);
+            op = op.getChild();
+        }
+        SQAOperator slice = new SQAOperator.Slice(op, offset, limit);
+        slice.setSchema(op.getSchema());
+        double rows = op.getEstimatedRows();
+        if ((limit > -1L) && !PreparedPGQLQuery.isParameterSentinel(ctx.parameterSentinels, limit) &&
+                !PreparedPGQLQuery.isParameterSentinel(ctx.parameterSentinels, offset)) {
+            rows = (rows < 0)? limit : Math.min(limit, Math.max(0, rows - Math.max(0L, offset)));
+        }
+        slice.setEstimatedRows(rows);
+        if (path.isEmpty()) {
+            ctx.finalQuery.setRoot(slice);
+            return;
+        }
+        path.get(path.size()-1).setChild(0, slice);
+        for (SQAOperator parent : path) {
+            parent.setEstimatedRows(rows);
+        }
+        logger.debug("LIMIT pushed below "+path.size()+" operators");
+    }
+
+    private static boolean isRowPreserving(SQAOperator op) {
+        switch (op.getKind()) {
+            case PROJECT:
+            case EXTEND:
+            case GET:
+            case GET_TYPE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Replaces the SORT just below the SLICE (there may be the final PROJECT between them)
+     * with a SORT that only keeps the rows used by the SLICE.
+     * @param ctx [in/out] The translation context.
+     * @param rows [in] The offset plus the limit.
+     */
+    private void fuseTopK(TranslationContext ctx, long rows) {
+        SQAOperator parent = null;
+        ctx.finalQuery.finish();
+        SQAOperator sort = ctx.finalQuery.getRoot();
+        if (sort.getKind() == SQAOperator.OperatorKind.PROJECT) {
+            parent = sort;
+            sort = sort.getChild();
+        }
+        if (sort.getKind() != SQAOperator.OperatorKind.SORT) {
+            return;
+        }
+        SQAOperator topK = new SQAOperator.TopK(sort.getChild(), ((SQAOperator.Sort) sort).getColumns(), rows);
+        topK.setSchema(sort.getSchema());
+        double sortRows = sort.getEstimatedRows();
+        topK.setEstimatedRows((sortRows < 0)? rows : Math.min(sortRows, rows));
+        if (parent == null) {
+            ctx.finalQuery.setRoot(topK);
+        }
+        else {
+            parent.setChild(0, topK);
         }
     }
 
-    protected ConstraintInfo findBestInitialConstraint( ConnectionGroup connGroup)
+    protected ConstraintInfo findBestInitialConstraint(TranslationContext ctx, ConnectionGroup connGroup)
     {
         ConstraintInfo best = null;
-        for (ConstraintInfo constraintInfo : constraintInfoList) {
-            //TODO: A size estimation would be useful
+        double bestCost = 0;
+        for (ConstraintInfo constraintInfo : ctx.constraintInfoList) {
             if ( constraintInfo.isABasicOperation() ) {
                 // Only one variable to check
                 String name = constraintInfo.getFirstVariableName();
                 if (connGroup.containsVariable(name))
                 {
-                    if (best == null) {
+                    if (ctx.statistics != null) {
+                        // The most selective operation, or an edge one when the estimation is the same
+                        double cost = constraintInfo.estimateBasicOperationCost(ctx.statistics);
+                        logger.debug("Estimated cost "+cost+" for the initial constraint "+constraintInfo);
+                        if ((best == null) || (cost < bestCost) ||
+                                ((cost == bestCost) && ctx.allVariables.get(name).isEdge() &&
+                                        ctx.allVariables.get(best.getFirstVariableName()).isNode())) {
+                            best = constraintInfo;
+                            bestCost = cost;
+                        }
+                    }
+                    else if (best == null) {
                         best = constraintInfo;
                     }
-                    else if (allVariables.get(name).isEdge() && allVariables.get(best.getFirstVariableName()).isNode()) {
+                    else if (ctx.allVariables.get(name).isEdge() && ctx.allVariables.get(best.getFirstVariableName()).isNode()) {
                         best = constraintInfo;
                     }
                 }
@@ -478,8 +779,7 @@ public class SparkseePGQL {
         boolean filterDst = false;
         int initialNumColumns = query.getNumColumns();
         ArrayList<String> addedVariableColumns = new ArrayList<String>();
-        query.preppendQuery("GRAPH::ADJACENT(");
-        query.appendQuery(", "+query.getVariableColumnIndex(vpConn.getName())+")");
+        query.setRoot(new SQAOperator.Adjacent(query.getRoot(), query.getVariableColumnIndex(vpConn.getName())));
         if (query.containsVariable(vpConn.getSrc().getName())) {
             // The first new column is a variable that we already have, so it should be added
             // as other and removed later
@@ -505,23 +805,18 @@ public class SparkseePGQL {
         if ( filterSrc && filterDst )
         {
             // Select all in a single SELECT operation
-            query.preppendQuery("SELECT(");
-            query.appendQuery(", (%"+
+            query.setRoot(new SQAOperator.Select(query.getRoot(), "(%"+
                     query.getVariableColumnIndex(vpConn.getSrc().getName())+"=%"+initialNumColumns+
                     ") AND (%"+query.getVariableColumnIndex(vpConn.getDst().getName())+"=%"+(initialNumColumns+1)+
-                    ") )");
+                    ")"));
         }
         else if (filterSrc) {
-            query.preppendQuery("SELECT(");
-            query.appendQuery(", %"+
-                    query.getVariableColumnIndex(vpConn.getSrc().getName())+"=%"+initialNumColumns+
-                    " )");
+            query.setRoot(new SQAOperator.Select(query.getRoot(), "%"+
+                    query.getVariableColumnIndex(vpConn.getSrc().getName())+"=%"+initialNumColumns));
         }
         else if (filterDst) {
-            query.preppendQuery("SELECT(");
-            query.appendQuery(", %"+
-                    query.getVariableColumnIndex(vpConn.getDst().getName())+"=%"+(initialNumColumns+1)+
-                    " )");
+            query.setRoot(new SQAOperator.Select(query.getRoot(), "%"+
+                    query.getVariableColumnIndex(vpConn.getDst().getName())+"=%"+(initialNumColumns+1)));
         }
 
         return addedVariableColumns;
@@ -531,12 +826,15 @@ public class SparkseePGQL {
     /**
      *
      * Updates the query to add the given connection using one of the nodes.
+     * A constraint that only restricts the labels of a new edge is done by the GRAPH::EXPLODE itself,
+     * so only the adjacency lists of those edge types are navigated, and it's removed from the constraints.
+     * @param ctx [in/out] The translation context.
      * @param query [in/out] The query to update
      * @param vpConn [in] The new connection
      * @param bySrc [in] True if the source node is used or false to use the destination
      * @return  Rerturns an array with the name of the added variable columns
      */
-    protected ArrayList<String>  translateConnectionByNode(SQAQueryBuilder query, VertexPairConnection vpConn, boolean bySrc)
+    protected ArrayList<String>  translateConnectionByNode(TranslationContext ctx, SQAQueryBuilder query, VertexPairConnection vpConn, boolean bySrc)
     {
         boolean filterEdge = false;
         boolean filterPeer = false;
@@ -547,10 +845,19 @@ public class SparkseePGQL {
         String peerName = (bySrc? vpConn.getDst().getName() : vpConn.getSrc().getName());
         String direction = (bySrc? "OUTGOING" : "INGOING");
 
-        query.preppendQuery("GRAPH::EXPLODE(");
-        query.appendQuery(", "+query.getVariableColumnIndex(startName)+
-                        ", [ ALL "+direction+" ]"+
-                        ", {'neighbor'=true} )");
+        ArrayList<String> edgeLabels = null;
+        if (!query.containsVariable(vpConn.getName())) {
+            Iterator<ConstraintInfo> cinfoIter = ctx.constraintInfoList.iterator();
+            while (cinfoIter.hasNext()) {
+                edgeLabels = cinfoIter.next().getEdgeLabels(vpConn.getName());
+                if (edgeLabels != null) {
+                    cinfoIter.remove();
+                    break;
+                }
+            }
+        }
+
+        query.setRoot(new SQAOperator.Explode(query.getRoot(), query.getVariableColumnIndex(startName), direction, edgeLabels));
         if (query.containsVariable(vpConn.getName())) {
             // The first new column (the edge) is a variable that we already have, so it should be added
             // as other and removed later
@@ -576,23 +883,18 @@ public class SparkseePGQL {
         if ( filterEdge && filterPeer )
         {
             // Select all in a single SELECT operation
-            query.preppendQuery("SELECT(");
-            query.appendQuery(", (%"+
+            query.setRoot(new SQAOperator.Select(query.getRoot(), "(%"+
                     query.getVariableColumnIndex(vpConn.getName())+"=%"+initialNumColumns+
                     ") AND (%"+query.getVariableColumnIndex(peerName)+"=%"+(initialNumColumns+1)+
-                    ") )");
+                    ")"));
         }
         else if (filterEdge) {
-            query.preppendQuery("SELECT(");
-            query.appendQuery(", %"+
-                    query.getVariableColumnIndex(vpConn.getName())+"=%"+initialNumColumns+
-                    " )");
+            query.setRoot(new SQAOperator.Select(query.getRoot(), "%"+
+                    query.getVariableColumnIndex(vpConn.getName())+"=%"+initialNumColumns));
         }
         else if (filterPeer) {
-            query.preppendQuery("SELECT(");
-            query.appendQuery(", %"+
-                    query.getVariableColumnIndex(peerName)+"=%"+(initialNumColumns+1)+
-                    " )");
+            query.setRoot(new SQAOperator.Select(query.getRoot(), "%"+
+                    query.getVariableColumnIndex(peerName)+"=%"+(initialNumColumns+1)));
         }
 
         return addedVariableColumns;
@@ -607,23 +909,201 @@ public class SparkseePGQL {
      * @param addedVars [in] The new variables already available.
      * @param group [in] the current group.
      */
-    protected void updateAndApplyConstraintVarsInGroup(SQAQueryBuilder query, ArrayList<String>  addedVars, ConnectionGroup group) {
+    protected void updateAndApplyConstraintVarsInGroup(TranslationContext ctx, SQAQueryBuilder query, ArrayList<String>  addedVars, ConnectionGroup group) {
         if (addedVars != null) {
             // All the constraints that use only variables used in the query can already be applied
-            Iterator<ConstraintInfo> cinfoIter = constraintInfoList.iterator();
+            ArrayList<ConstraintInfo> readyConstraints = new ArrayList<ConstraintInfo>();
+            Iterator<ConstraintInfo> cinfoIter = ctx.constraintInfoList.iterator();
             while (cinfoIter.hasNext()) {
                 ConstraintInfo cinfo = cinfoIter.next();
                 cinfo.updatePendingVariables(addedVars);
                 if (cinfo.getNumPendingVariables() == 0) {
                     // All the variables used in the constraint are already available
                     if ( (cinfo.getNumLinkedGroups() == 1) && (cinfo.getFirstLinkedGroup() == group)) {
-                        cinfo.applyConstraint(query);
+                        readyConstraints.add(cinfo);
                         // Remove the constraint
                         cinfoIter.remove();
                     }
                 }
             }
+            if (ctx.statistics != null) {
+                // The most selective first, so the attributes of the next ones are read for less rows
+                final GraphStatistics stats = ctx.statistics;
+                Collections.sort(readyConstraints, new Comparator<ConstraintInfo>() {
+                    @Override
+                    public int compare(ConstraintInfo c1, ConstraintInfo c2) {
+                        return Double.compare(c1.estimateSelectivity(stats), c2.estimateSelectivity(stats));
+                    }
+                });
+            }
+            for (ConstraintInfo cinfo : readyConstraints) {
+                cinfo.applyConstraint(query);
+            }
+        }
+    }
+
+    /**
+     * Applies the other indexed constraints of the initial variable with the attribute index
+     * instead of reading the attribute of each row. Each one is a GRAPH::SELECT joined by oid with
+     * the initial operation, so the intersection is done with the index sets.
+     * @param ctx [in/out] The translation context.
+     * @param query [in/out] The initial operation query. It only has the variable column.
+     * @param varName [in] The initial variable.
+     */
+    protected void intersectIndexedConstraints(TranslationContext ctx, SQAQueryBuilder query, String varName)
+    {
+        double rows = query.getRoot().getEstimatedRows();
+        Iterator<ConstraintInfo> cinfoIter = ctx.constraintInfoList.iterator();
+        while (cinfoIter.hasNext()) {
+            ConstraintInfo cinfo = cinfoIter.next();
+            if (!cinfo.isABasicOperation() || !cinfo.getFirstVariableName().equals(varName) ||
+                    (cinfo.getExpression().getExpType() == QueryExpression.ExpressionType.NOT_EQUAL) ||
+                    !cinfo.isIndexedBasicOperation(ctx.statistics)) {
+                continue;
+            }
+            long indexRows = cinfo.estimateBasicOperationRows(ctx.statistics);
+            if (indexRows >= INDEX_INTERSECTION_RATIO * rows) {
+                continue;
+            }
+            logger.debug("Intersecting the index of the constraint "+cinfo);
+            SQAQueryBuilder indexQuery = cinfo.getAsBasicSQAOperation();
+            indexQuery.finish();
+            query.setRoot(new SQAOperator.Join(query.getRoot(), indexQuery.getRoot(), "%0=%1"));
+            query.addOtherColumn("VARIABLE_DUPLICADA:"+varName);
+            ArrayList<Integer> keepColumns = new ArrayList<Integer>();
+            keepColumns.add(0);
+            query.setRoot(new SQAOperator.Project(query.getRoot(), keepColumns));
+            query.reduceColumns(keepColumns);
+            rows = rows * cinfo.estimateSelectivity(ctx.statistics);
+            query.getRoot().setEstimatedRows(rows);
+            cinfoIter.remove();
+        }
+    }
+
+    /**
+     * The ways to add a connection to a query that already has some of its variables.
+     */
+    private enum ExpansionMode {
+        BY_EDGE, BY_SOURCE, BY_DESTINATION
+    }
+
+    private boolean isExpansionPossible(SQAQueryBuilder query, VertexPairConnection vpConn, ExpansionMode mode) {
+        switch (mode) {
+            case BY_EDGE:
+                return query.containsVariable(vpConn.getName());
+            case BY_SOURCE:
+                return query.containsVariable(vpConn.getSrc().getName());
+            default:
+                return query.containsVariable(vpConn.getDst().getName());
+        }
+    }
+
+    /**
+     * @param ctx [in] The translation context with the statistics.
+     * @param varName [in] The node variable the edges are navigated from.
+     * @return Returns the number of nodes of the label of the variable or all the nodes if it has no known label.
+     */
+    private long estimateSourceNodes(TranslationContext ctx, String varName) {
+        for (ConstraintInfo cinfo : ctx.constraintInfoList) {
+            String label = cinfo.getNodeLabel(varName);
+            if (label != null) {
+                GraphStatistics.TypeStatistics type = ctx.statistics.getType(label);
+                if ((type != null) && type.isNode()) {
+                    return type.getCount();
+                }
+            }
         }
+        return ctx.statistics.getNumNodes();
+    }
+
+    /**
+     * Estimates the number of rows of the query after adding the connection and applying the
+     * constraints of the group that can be applied with the new variables.
+     * GRAPH::ADJACENT returns one row for each edge and GRAPH::EXPLODE the average degree of the
+     * edge types among the source nodes (when its labels are restricted by a constraint) or of all the edges. A new variable that
+     * must match a variable already in the query (closing a cycle) is a very selective filter.
+     * @param ctx [in] The translation context with the statistics.
+     * @param query [in] The current query.
+     * @param group [in] The current group.
+     * @param vpConn [in] The connection to add.
+     * @param mode [in] How the connection would be added.
+     * @param rows [in] The estimated rows of the current query.
+     * @return Returns the estimated number of rows.
+     */
+    protected double estimateExpansionRows(TranslationContext ctx, SQAQueryBuilder query, ConnectionGroup group,
+                                           VertexPairConnection vpConn, ExpansionMode mode, double rows) {
+        GraphStatistics stats = ctx.statistics;
+        double numNodes = Math.max(1L, stats.getNumNodes());
+        double numEdges = Math.max(1L, stats.getNumEdges());
+        HashSet<String> newVars = new HashSet<String>();
+        ConstraintInfo labelConstraint = null;
+        double fanout;
+        if (mode == ExpansionMode.BY_EDGE) {
+            fanout = 1;
+            for (String name : new String[]{ vpConn.getSrc().getName(), vpConn.getDst().getName() }) {
+                if (query.containsVariable(name)) {
+                    fanout /= numNodes;
+                }
+                else {
+                    newVars.add(name);
+                }
+            }
+        }
+        else {
+            boolean outgoing = (mode == ExpansionMode.BY_SOURCE);
+            String peerName = outgoing? vpConn.getDst().getName() : vpConn.getSrc().getName();
+            fanout = stats.getAverageDegree();
+            for (ConstraintInfo cinfo : ctx.constraintInfoList) {
+                ArrayList<String> edgeLabels = cinfo.getEdgeLabels(vpConn.getName());
+                if ((edgeLabels != null) && !cinfo.hasParameterLabel(edgeLabels)) {
+                    long sourceNodes = estimateSourceNodes(ctx, outgoing? vpConn.getSrc().getName() :
+                            vpConn.getDst().getName());
+                    fanout = 0;
+                    for (String label : edgeLabels) {
+                        GraphStatistics.TypeStatistics type = stats.getType(label);
+                        if (type != null) {
+                            fanout += type.getAverageDegree(outgoing, sourceNodes);
+                        }
+                    }
+                    labelConstraint = cinfo;
+                    break;
+                }
+            }
+            if (query.containsVariable(vpConn.getName())) {
+                fanout /= numEdges;
+            }
+            else {
+                newVars.add(vpConn.getName());
+            }
+            if (query.containsVariable(peerName)) {
+                fanout /= numNodes;
+            }
+            else {
+                newVars.add(peerName);
+            }
+        }
+
+        double selectivity = 1;
+        for (ConstraintInfo cinfo : ctx.constraintInfoList) {
+            if ((cinfo == labelConstraint) || (cinfo.getNumLinkedGroups() != 1) || (cinfo.getFirstLinkedGroup() != group)) {
+                continue;
+            }
+            boolean applicable = true;
+            boolean usesNewVars = false;
+            for (String varName : cinfo.getVariablesKeySet()) {
+                if (newVars.contains(varName)) {
+                    usesNewVars = true;
+                }
+                else if (!query.containsVariable(varName)) {
+                    applicable = false;
+                    break;
+                }
+            }
+            if (applicable && usesNewVars) {
+                selectivity *= cinfo.estimateSelectivity(stats);
+            }
+        }
+        return rows * fanout * selectivity;
     }
 
     /**
@@ -633,163 +1113,527 @@ public class SparkseePGQL {
      * @param group [in] The connection group to translate
      * @return Returns a Sparksee Query Algebra for the group connections and exclusive constraints
      */
-    protected SQAQueryBuilder translateConnectionGroup( ConnectionGroup group )
+    protected SQAQueryBuilder translateConnectionGroup(TranslationContext ctx, ConnectionGroup group )
     {
         SQAQueryBuilder query = null;
-        ConstraintInfo bestInitialConstraint = findBestInitialConstraint(group);
+        ConstraintInfo bestInitialConstraint = findBestInitialConstraint(ctx, group);
         if (bestInitialConstraint == null) {
             logger.debug("Starting with a simple scan.");
             String varName = null;
             for (String currVar : group.getVariables()) {
-                if (allVariables.get(currVar).isNode()) {
+                if (ctx.allVariables.get(currVar).isNode()) {
                     varName = currVar;
                     break;
                 }
             }
             assert (varName != null);
             query = new SQAQueryBuilder();
-            query.appendQuery("GRAPH::SCAN(NODES)");
+            query.setRoot(new SQAOperator.Scan(null));
+            if (ctx.statistics != null) {
+                query.getRoot().setEstimatedRows(ctx.statistics.getNumNodes());
+            }
             query.addVariableColumn(varName);
         } else {
             query = bestInitialConstraint.getAsBasicSQAOperation();
-            logger.debug("Best Basic OP: " + query.getQuery() + "\n");
+            if (ctx.statistics != null) {
+                query.getRoot().setEstimatedRows(bestInitialConstraint.estimateBasicOperationRows(ctx.statistics));
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Best Basic OP: " + query.getQuery() + "\n");
+            }
             // Remove the constraint from the list
-            constraintInfoList.remove(bestInitialConstraint);
+            ctx.constraintInfoList.remove(bestInitialConstraint);
+            if (ctx.statistics != null) {
+                intersectIndexedConstraints(ctx, query, bestInitialConstraint.getFirstVariableName());
+            }
         }
 
         // The first variable is available, so other simple constraints may be applied before checking any connection
-        updateAndApplyConstraintVarsInGroup( query, query.getVariables(), group);
+        updateAndApplyConstraintVarsInGroup(ctx, query, query.getVariables(), group);
 
         // Iterate the connections / constraints to complete the independent group complete query
         ArrayList<VertexPairConnection> connections = new ArrayList<VertexPairConnection>( group.getConnections()) ;
+        pruneDeadColumns(ctx, query, connections);
+        double rows = query.getRoot().getEstimatedRows();
         while (!connections.isEmpty())
         {
             ArrayList<String>  addedVars = null;
-            int numConnections = connections.size(); // Just for the assert
-
+            VertexPairConnection nextConn = null;
+            ExpansionMode nextMode = null;
+            double nextRows = 0;
             for (VertexPairConnection vpConn: connections) {
-                if ( query.containsVariable(vpConn.getName())) {
+                for (ExpansionMode mode : ExpansionMode.values()) {
+                    if (!isExpansionPossible(query, vpConn, mode)) {
+                        continue;
+                    }
+                    if (ctx.statistics == null) {
+                        // Without statistics the first possible connection is used
+                        nextConn = vpConn;
+                        nextMode = mode;
+                        break;
+                    }
+                    // The connection that produces less rows after its filters
+                    double expansionRows = estimateExpansionRows(ctx, query, group, vpConn, mode, rows);
+                    if ((nextConn == null) || (expansionRows < nextRows)) {
+                        nextConn = vpConn;
+                        nextMode = mode;
+                        nextRows = expansionRows;
+                    }
+                }
+                if ((ctx.statistics == null) && (nextConn != null)) {
+                    break;
+                }
+            }
+            assert(nextConn != null); // To avoid an infinite loop while testing
+
+            switch (nextMode) {
+                case BY_EDGE:
                     // The connection can be processed through the edge
                     // If we have the edge, we can easily get the other nodes or check them if we already
                     // had variables that must match the edge peers.
-                    addedVars = translateConnectionByEdge(query, vpConn);
-                    connections.remove(vpConn);
+                    addedVars = translateConnectionByEdge(query, nextConn);
                     break;
-                }
-                else if (query.containsVariable(vpConn.getSrc().getName())) {
+                case BY_SOURCE:
                     // The connection can be processed through the source node
-                    addedVars = translateConnectionByNode(query, vpConn, true);
-                    connections.remove(vpConn);
+                    addedVars = translateConnectionByNode(ctx, query, nextConn, true);
                     break;
-                }
-                else if (query.containsVariable(vpConn.getDst().getName())) {
+                case BY_DESTINATION:
                     // The connection can be processed through the destination node
-                    addedVars = translateConnectionByNode(query, vpConn, false);
-                    connections.remove(vpConn);
+                    addedVars = translateConnectionByNode(ctx, query, nextConn, false);
                     break;
-                }
-
             }
-            assert(connections.size() < numConnections); // To avoid an infinite loop while testing
+            connections.remove(nextConn);
 
             if (addedVars != null) {
                 // All the constraints that use only variables used in the query can already be applied
-                updateAndApplyConstraintVarsInGroup( query, addedVars, group);
+                updateAndApplyConstraintVarsInGroup(ctx, query, addedVars, group);
+            }
+            if (ctx.statistics != null) {
+                rows = nextRows;
+                query.getRoot().setEstimatedRows(rows);
             }
+            pruneDeadColumns(ctx, query, connections);
         }
 
         return query;
     }
 
 
+    /**
+     * @return Returns the plan cache or null if it's disabled.
+     */
+    public PlanCache<String> getPlanCache() {
+        return planCache;
+    }
+
+    /**
+     * @return Returns the counters and the latencies of the translations.
+     */
+    public TranslationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the statistics used to choose the query plans.
+     * The cached plans are discarded each time the statistics are refreshed.
+     * @param catalog [in] The statistics catalog of the database or null to plan without statistics.
+     */
+    public synchronized void setStatisticsCatalog(StatisticsCatalog catalog) {
+        StatisticsCatalog previous = statisticsCatalog;
+        if (previous == catalog) {
+            return;
+        }
+        if (previous != null) {
+            previous.removeRefreshListener(statisticsRefreshListener);
+        }
+        statisticsCatalog = catalog;
+        if (catalog != null) {
+            catalog.addRefreshListener(statisticsRefreshListener);
+        }
+        planEpoch.incrementAndGet();
+        clearPlanCaches();
+    }
+
+    public StatisticsCatalog getStatisticsCatalog() {
+        return statisticsCatalog;
+    }
+
+    /**
+     * Sets if the Sparksee engine can run a SORT that only keeps its first rows. Then the
+     * ORDER BY ... LIMIT queries are translated with it instead of sorting all the rows.
+     * Otherwise the client can do it with ProcessPGQLClientQuery or ProcessPGQLTopKQuery.
+     * The prepared queries translate their templates again the next time they are bound.
+     * @param supported [in] True if the engine supports the bounded SORT.
+     */
+    public void setTopKSortSupported(boolean supported) {
+        topKSortSupported = supported;
+        planEpoch.incrementAndGet();
+        clearPlanCaches();
+    }
+
+    private void clearPlanCaches() {
+        if (planCache != null) {
+            planCache.clear();
+            clientPlanCache.clear();
+        }
+    }
+
+    public boolean isTopKSortSupported() {
+        return topKSortSupported;
+    }
+
+    /**
+     * @return Returns the version of the translation settings (statistics catalog and top-k SORT support),
+     * changed each time one of them is set.
+     */
+    long getPlanEpoch() {
+        return planEpoch.get();
+    }
+
+    /**
+     * @return Returns the version of the statistics used for the new translations (0 if there are no statistics).
+     */
+    long getStatisticsVersion() {
+        StatisticsCatalog catalog = statisticsCatalog;
+        GraphStatistics stats = (catalog != null)? catalog.getStatistics() : null;
+        return (stats != null)? stats.getVersion() : 0;
+    }
+
+    /**
+     * Prepares a PGQL query with named parameters written as $name, for example:
+     * "SELECT n.TITLE WHERE (n), n.YEAR > $year".
+     * The query is translated once for each combination of parameter kinds and then the values
+     * are just written in the algebra template when they are bound.
+     * @param query [in] The PGQL query string with the parameters.
+     * @return Returns the prepared query.
+     */
+    public PreparedPGQLQuery prepare(String query) {
+        return new PreparedPGQLQuery(this, query);
+    }
+
     /**
      * Translate the given PGQL query to Sparksee Query Algebra.
+     * The translation is taken from the plan cache when the same query has already been translated.
      * @param query [in] The PGQL query string
      * @return Returns a String with the SQA query translation.
      */
     public String ProcessPGQLQuery(String query) {
+        if (planCache == null) {
+            return translatePGQLQuery(query);
+        }
+        String key = PlanCache.normalize(query);
+        String sqaQuery = planCache.get(key);
+        if (sqaQuery != null) {
+            logger.debug("Plan cache hit for query \""+query+"\"");
+            metrics.recordCacheHit();
+            return sqaQuery;
+        }
+        long statisticsVersion = getStatisticsVersion();
+        sqaQuery = translatePGQLQuery(query);
+        if ((sqaQuery != null) && (statisticsVersion == getStatisticsVersion())) {
+            // Invalid queries are not cached, neither the plans made with statistics refreshed meanwhile
+            planCache.put(key, sqaQuery);
+        }
+        return sqaQuery;
+    }
+
+    /**
+     * Translates an ORDER BY ... LIMIT query leaving the SORT and the LIMIT to the client,
+     * for an engine without the bounded SORT. The client keeps the first rows with a TopKCollector
+     * while reading the unsorted rows, instead of the engine sorting all of them.
+     * @param query [in] The PGQL query string
+     * @return Returns the translation or null if the query is not valid or it's not an ORDER BY ... LIMIT query.
+     */
+    public TopKQuery ProcessPGQLTopKQuery(String query) {
+        TranslationContext ctx = translate(query, true);
+        if ((ctx == null) || (ctx.topKSortColumns == null)) {
+            return null;
+        }
+        return createClientQuery(ctx);
+    }
+
+    /**
+     * Translates a query to be run by a client that keeps the first rows of the ORDER BY ... LIMIT
+     * queries itself when the engine doesn't support the bounded SORT. The query is translated only
+     * once and the result tells if it's run as a top-k query or as a plain one.
+     * The translation is taken from the plan cache when the same query has already been translated.
+     * @param query [in] The PGQL query string
+     * @return Returns the translation or null if the query is not valid. Its isClientTopK
+     *         is true when the client has to sort and limit the rows.
+     */
+    public TopKQuery ProcessPGQLClientQuery(String query) {
+        if (topKSortSupported) {
+            String sqaQuery = ProcessPGQLQuery(query);
+            return (sqaQuery != null)? new TopKQuery(sqaQuery) : null;
+        }
+        String key = null;
+        if (clientPlanCache != null) {
+            key = PlanCache.normalize(query);
+            TopKQuery clientQuery = clientPlanCache.get(key);
+            if (clientQuery != null) {
+                logger.debug("Plan cache hit for query \""+query+"\"");
+                metrics.recordCacheHit();
+                return clientQuery;
+            }
+        }
+        long statisticsVersion = getStatisticsVersion();
+        TranslationContext ctx = translate(query, true);
+        if (ctx == null) {
+            return null;
+        }
+        TopKQuery clientQuery = createClientQuery(ctx);
+        if ((key != null) && (statisticsVersion == getStatisticsVersion())) {
+            clientPlanCache.put(key, clientQuery);
+        }
+        return clientQuery;
+    }
+
+    /**
+     * @param ctx [in] The translation context of a query translated for a client top-k.
+     * @return Returns the translation, a top-k one if the SORT and the LIMIT were left to the client.
+     */
+    private TopKQuery createClientQuery(TranslationContext ctx) {
+        if (ctx.topKSortColumns == null) {
+            return new TopKQuery(emitQuery(ctx));
+        }
+        ArrayList<Integer> sortColumns = new ArrayList<Integer>();
+        for (int ii = 0; ii < ctx.topKSortColumns.size(); ii++) {
+            sortColumns.add(ctx.topKResultColumns + ii);
+        }
+        return new TopKQuery(emitQuery(ctx), ctx.topKResultColumns, sortColumns,
+                ctx.pgqlGraphQuery.getOffset(), ctx.pgqlGraphQuery.getLimit());
+    }
+
+    /**
+     * Translates the given PGQL query to show its plan (EXPLAIN). The plan cache is not used
+     * because it only keeps the algebra strings.
+     * @param query [in] The PGQL query string
+     * @return Returns the root of the operator tree with the estimated rows or null if the query is not valid.
+     */
+    public SQAOperator ExplainPGQLQuery(String query) {
+        TranslationContext ctx = translate(query, false);
+        if (ctx == null) {
+            return null;
+        }
+        recordTranslation(ctx);
+        return ctx.finalQuery.getRoot();
+    }
+
+    /**
+     * Translate the given PGQL query to Sparksee Query Algebra without using the plan cache.
+     * @param query [in] The PGQL query string
+     * @return Returns a String with the SQA query translation.
+     */
+    protected String translatePGQLQuery(String query) {
+        return translatePGQLQuery(query, Collections.emptySet());
+    }
+
+    /**
+     * Translate the given PGQL query of a prepared query to Sparksee Query Algebra without using the plan cache.
+     * @param query [in] The PGQL query string with the parameter sentinels.
+     * @param parameterSentinels [in] The sentinel literals of the parameters.
+     * @return Returns a String with the SQA query translation.
+     */
+    String translatePGQLQuery(String query, Set<Object> parameterSentinels) {
+        TranslationContext ctx = translate(query, false, parameterSentinels);
+        if (ctx == null) {
+            return null;
+        }
+        logger.debug("--------------------------------------------------");
+        logger.debug("SPARKSEE ALGEBRA QUERY:");
+        String sqaQuery = emitQuery(ctx);
+        logger.debug(sqaQuery);
+        logger.debug("--------------------------------------------------");
+        return sqaQuery;
+    }
+
+    /**
+     * Writes the algebra string of a translated query and records the translation metrics.
+     * @param ctx [in] The translation context.
+     * @return Returns the SQA query translation.
+     */
+    private String emitQuery(TranslationContext ctx) {
+        long start = System.nanoTime();
+        String sqaQuery = ctx.finalQuery.getQuery();
+        metrics.recordPhase(TranslationMetrics.Phase.EMIT, System.nanoTime() - start);
+        recordTranslation(ctx);
+        return sqaQuery;
+    }
+
+    private void recordTranslation(TranslationContext ctx) {
+        GraphQuery graphQuery = ctx.pgqlGraphQuery;
+        String shape = TranslationMetrics.shapeTag(graphQuery.getGraphPattern().getConnections().size(),
+                ctx.numInitialGroups, !graphQuery.getGroupBy().getElements().isEmpty(),
+                !graphQuery.getOrderBy().getElements().isEmpty(), graphQuery.getLimit() > -1L);
+        metrics.recordTranslation(shape, System.nanoTime() - ctx.startNanos);
+    }
+
+    /**
+     * @param phase [in] The finished phase.
+     * @param phaseStart [in] The time when the phase started.
+     * @return Returns the current time, when the next phase starts.
+     */
+    private long endPhase(TranslationMetrics.Phase phase, long phaseStart) {
+        long now = System.nanoTime();
+        metrics.recordPhase(phase, now - phaseStart);
+        return now;
+    }
+
+    /**
+     * Translates the given PGQL query.
+     * @param query [in] The PGQL query string
+     * @param clientTopK [in] True to leave the SORT and the LIMIT of an ORDER BY ... LIMIT query to the client.
+     * @return Returns the translation context with the final query or null if the query is not valid.
+     */
+    protected TranslationContext translate(String query, boolean clientTopK) {
+        return translate(query, clientTopK, Collections.emptySet());
+    }
+
+    /**
+     * Translates the given PGQL query.
+     * @param query [in] The PGQL query string
+     * @param clientTopK [in] True to leave the SORT and the LIMIT of an ORDER BY ... LIMIT query to the client.
+     * @param parameterSentinels [in] The literals that stand for the parameters of a prepared query.
+     * @return Returns the translation context with the final query or null if the query is not valid.
+     */
+    protected TranslationContext translate(String query, boolean clientTopK, Set<Object> parameterSentinels) {
         logger.debug("--------------------------------------------------");
         logger.debug("Will process query \""+query+"\"");
+        TranslationContext ctx = createContext(clientTopK, parameterSentinels);
         try {
-            if (!setPGQLQuery(query)) {
-                printPGQLQuery();
+            if (!setPGQLQuery(ctx, query)) {
+                printPGQLQuery(ctx);
+                metrics.recordFailure(System.nanoTime() - ctx.startNanos);
                 return null;
             }
         } catch (PgqlException ex) {
+            metrics.recordFailure(System.nanoTime() - ctx.startNanos);
             return null;
         }
+        long phaseStart = endPhase(TranslationMetrics.Phase.PARSE, ctx.startNanos);
 
-        // --------------------------------------------------
-        // Build connection groups and constraints
-        // --------------------------------------------------
-        extractConnectionInfo();
-        groupConnections();
-        addGroupsWithoutConnection();
-        extractConstraintsInfo();
-        linkConstraintsToGroups();
+        buildConnectionGroups(ctx);
+        phaseStart = endPhase(TranslationMetrics.Phase.CONNECTIONS, phaseStart);
+        buildConstraints(ctx);
+        phaseStart = endPhase(TranslationMetrics.Phase.CONSTRAINTS, phaseStart);
+        // Translate each individual group to the sparksee algebra
+        translateGroups(ctx);
+        phaseStart = endPhase(TranslationMetrics.Phase.TRANSLATE_GROUPS, phaseStart);
+        buildBaseQuery(ctx);
+        phaseStart = endPhase(TranslationMetrics.Phase.JOIN_GROUPS, phaseStart);
+        buildResult(ctx);
+        endPhase(TranslationMetrics.Phase.RESULT, phaseStart);
+
+        return ctx;
+    }
+
+    /**
+     * Creates the context of a new translation, with the current statistics and settings of the translator.
+     * @param clientTopK [in] True to leave the SORT and the LIMIT of an ORDER BY ... LIMIT query to the client.
+     * @param parameterSentinels [in] The sentinel literals of the parameters of a prepared query.
+     * @return Returns the context, without the PGQL query yet.
+     */
+    TranslationContext createContext(boolean clientTopK, Set<Object> parameterSentinels) {
+        TranslationContext ctx = new TranslationContext();
+        StatisticsCatalog catalog = statisticsCatalog;
+        ctx.statistics = (catalog != null)? catalog.getStatistics() : null;
+        ctx.clientTopK = clientTopK;
+        ctx.parameterSentinels = parameterSentinels;
+        ctx.topKSortSupported = topKSortSupported;
+        ctx.startNanos = System.nanoTime();
+        return ctx;
+    }
+
+    /**
+     * Builds the connection groups of the parsed query of the context.
+     */
+    void buildConnectionGroups(TranslationContext ctx) {
+        extractConnectionInfo(ctx);
+        groupConnections(ctx);
+        addGroupsWithoutConnection(ctx);
+        ctx.numInitialGroups = ctx.connGroups.size();
+    }
+
+    /**
+     * Builds the constraints of the query and links them to the connection groups.
+     */
+    void buildConstraints(TranslationContext ctx) {
+        extractConstraintsInfo(ctx);
+        linkConstraintsToGroups(ctx);
+        extractResultExpressions(ctx);
 
         // --------------------------------------------------
         // LOG the variables information
         // --------------------------------------------------
         int counter = 0;
-        for (Map.Entry<String, VariableInfo> varEntry : allVariables.entrySet()) {
+        for (Map.Entry<String, VariableInfo> varEntry : ctx.allVariables.entrySet()) {
             logger.debug("Variable " + counter + ": " + varEntry.getValue().toString() + "\n");
             ++counter;
         }
+    }
 
-        // --------------------------------------------------
-        // Merge groups into a single base algebra query
-        // --------------------------------------------------
-        // Translate each individual group to the sparksee algebra
-        translateGroups();
-        // JOIN the group pairs that can be connected through a constraint
-        joinGroupsByConstraint();
-        // Link the remaining unrelated groups using PRODUCT operations
-        mergeGroupsWithProduct();
+    /**
+     * Merges the translated groups into a single base algebra query, the final query of the context.
+     */
+    void buildBaseQuery(TranslationContext ctx) {
+        // JOIN the groups that can be connected through a constraint and link
+        // the unrelated ones with PRODUCT operations
+        joinGroups(ctx);
         // Apply the remaining constraints
-        applyMultipleGroupConstraints();
+        applyMultipleGroupConstraints(ctx);
         // The only group remaining query algebra builder will became our final query
-        finalQuery = connGroups.get(0).getSQAQuery();
+        ctx.finalQuery = ctx.connGroups.get(0).getSQAQuery();
+        // Only the columns used by the result are kept
+        pruneDeadColumns(ctx, ctx.finalQuery, null);
+    }
 
+    /**
+     * Adds the GROUP BY, the SELECT, the ORDER BY and the LIMIT to the final query of the context.
+     */
+    void buildResult(TranslationContext ctx) {
         // --------------------------------------------------
         // Prepare the GROUP BY
         // --------------------------------------------------
-        prepareGroupBy();
-        prepareSelect();
-        prepareOrderBy();
+        prepareGroupBy(ctx);
+        prepareSelect(ctx);
+        prepareOrderBy(ctx);
 
         // --------------------------------------------------
         // Apply the GROUP BY
         // --------------------------------------------------
-        applyGroupBy();
+        applyGroupBy(ctx);
 
         // --------------------------------------------------
         // Add the final PROJECTION expression columns before the OrderBy
         // --------------------------------------------------
-        addProjectionExpressionColumns();
+        addProjectionExpressionColumns(ctx);
 
         // --------------------------------------------------
         // Apply the ORDER BY
         // --------------------------------------------------
-        applyOrderBy();
-
-        // --------------------------------------------------
-        // Apply the FINAL PROJECTION
-        // --------------------------------------------------
-        applySelect();
-
-        // --------------------------------------------------
-        // LIMIT and OFFSET
-        // --------------------------------------------------
-        limitAndOffset();
-
-
-
-        logger.debug("--------------------------------------------------");
-        logger.debug("SPARKSEE ALGEBRA QUERY:");
-        logger.debug(finalQuery.getQuery());
-        logger.debug("--------------------------------------------------");
-        return finalQuery.getQuery();
+        applyOrderBy(ctx);
+
+        if (ctx.lateProjectionColumns.isEmpty()) {
+            // --------------------------------------------------
+            // Apply the FINAL PROJECTION
+            // --------------------------------------------------
+            applySelect(ctx);
+
+            // --------------------------------------------------
+            // LIMIT and OFFSET
+            // --------------------------------------------------
+            limitAndOffset(ctx);
+        }
+        else {
+            // --------------------------------------------------
+            // LIMIT and OFFSET of the sorted rows, and then the
+            // rest of the FINAL PROJECTION
+            // --------------------------------------------------
+            limitAndOffset(ctx);
+            addLateProjectionExpressionColumns(ctx);
+            applySelect(ctx);
+        }
+        ctx.finalQuery.finish();
     }
 
 }
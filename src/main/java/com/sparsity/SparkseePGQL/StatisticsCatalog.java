@@ -0,0 +1,131 @@
+package com.sparsity.SparkseePGQL;
+
+import com.sparsity.sparksee.gdb.Database;
+import com.sparsity.sparksee.gdb.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the current GraphStatistics of a Sparksee database.
+ * The statistics are collected with a session of its own, on demand with refresh() or
+ * periodically after scheduleRefresh(). The translations read the current snapshot, so
+ * a refresh never blocks a translation.
+ */
+public class StatisticsCatalog implements Closeable {
+    final Logger logger = LoggerFactory.getLogger(StatisticsCatalog.class);
+
+    private final Database db;
+    private volatile GraphStatistics statistics;
+    private long nextVersion;
+    private final CopyOnWriteArrayList<Runnable> refreshListeners;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param db [in] The database. No statistics are available until the first refresh.
+     */
+    public StatisticsCatalog( Database db ) {
+        this.db = db;
+        this.statistics = null;
+        this.nextVersion = 1;
+        this.refreshListeners = new CopyOnWriteArrayList<Runnable>();
+        this.scheduler = null;
+    }
+
+    /**
+     * @return Returns the current statistics or null if they have never been collected.
+     */
+    public GraphStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Adds an action to run after each refresh (for example to discard the plans built with the old statistics).
+     * @param listener [in] The action to run.
+     */
+    public void addRefreshListener( Runnable listener ) {
+        refreshListeners.add(listener);
+    }
+
+    /**
+     * Removes an action added with addRefreshListener.
+     * @param listener [in] The action to remove.
+     */
+    public void removeRefreshListener( Runnable listener ) {
+        refreshListeners.remove(listener);
+    }
+
+    /**
+     * Collects the statistics of the database again.
+     * @return Returns the new statistics.
+     */
+    public synchronized GraphStatistics refresh() {
+        long startTime = System.nanoTime();
+        Session sess = db.newSession();
+        try {
+            sess.begin();
+            try {
+                statistics = GraphStatistics.collect(sess.getGraph(), nextVersion++);
+            }
+            finally {
+                sess.commit();
+            }
+        }
+        finally {
+            sess.close();
+        }
+        logger.debug("Statistics refreshed in "+(System.nanoTime()-startTime)/1000000+" ms: "+statistics);
+        for (Runnable listener : refreshListeners) {
+            listener.run();
+        }
+        return statistics;
+    }
+
+    /**
+     * Refreshes the statistics periodically in a background thread.
+     * @param period [in] The time between refreshes.
+     * @param unit [in] The time unit of the period.
+     */
+    public synchronized void scheduleRefresh( long period, TimeUnit unit ) {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "StatisticsCatalog-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                }
+                catch (RuntimeException ex) {
+                    // Keep the previous statistics and try again in the next period
+                    logger.error("The statistics could not be refreshed: "+ex.getMessage());
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stops the scheduled refreshes. The statistics are kept.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.sparsity.SparkseePGQL;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the first rows of an ORDER BY ... LIMIT query while the unsorted rows are read.
+ * Only offset + limit rows are kept in a bounded heap, so reading n rows needs O(n log k)
+ * time and O(k) memory instead of sorting all of them. It's used by the client when the
+ * Sparksee engine can't run the bounded SORT itself.
+ * The rows that compare equal keep the order in which they were added.
+ * @param <T> The row type.
+ */
+public class TopKCollector<T> {
+
+    private static class Entry<T> {
+        private final T row;
+        private final long sequence;
+
+        Entry(T row, long sequence) {
+            this.row = row;
+            this.sequence = sequence;
+        }
+    }
+
+    private final long offset;
+    private final int capacity;
+    private final Comparator<Entry<T>> order;
+    private final PriorityQueue<Entry<T>> heap; // The last kept row at the head
+    private long added;
+
+    /**
+     * @param comparator [in] The order of the rows.
+     * @param offset [in] The number of first rows to skip (or a negative number for none).
+     * @param limit [in] The maximum number of rows of the result.
+     */
+    public TopKCollector(final Comparator<? super T> comparator, long offset, long limit) {
+        this.offset = Math.max(0L, offset);
+        long rows = this.offset + Math.max(0L, limit);
+        if (rows >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many rows for a top-k collector: "+rows);
+        }
+        this.capacity = (int) rows;
+        this.order = new Comparator<Entry<T>>() {
+            @Override
+            public int compare(Entry<T> e1, Entry<T> e2) {
+                int cmp = comparator.compare(e1.row, e2.row);
+                return (cmp != 0)? cmp : Long.compare(e1.sequence, e2.sequence);
+            }
+        };
+        this.heap = new PriorityQueue<Entry<T>>(Math.max(1, capacity), Collections.reverseOrder(order));
+        this.added = 0;
+    }
+
+    /**
+     * @param row [in] The next row.
+     * @return Returns true if the row is kept (by now).
+     */
+    public boolean add(T row) {
+        Entry<T> entry = new Entry<T>(row, added++);
+        if (heap.size() < capacity) {
+            heap.add(entry);
+            return true;
+        }
+        if ((capacity == 0) || (order.compare(entry, heap.peek()) >= 0)) {
+            return false;
+        }
+        heap.poll();
+        heap.add(entry);
+        return true;
+    }
+
+    /**
+     * @return Returns the number of rows added.
+     */
+    public long getNumAdded() {
+        return added;
+    }
+
+    /**
+     * @return Returns the sorted rows after the offset.
+     */
+    public List<T> getResult() {
+        ArrayList<Entry<T>> entries = new ArrayList<Entry<T>>(heap);
+        Collections.sort(entries, order);
+        ArrayList<T> result = new ArrayList<T>();
+        for (int ii = (int) Math.min(offset, entries.size()); ii < entries.size(); ii++) {
+            result.add(entries.get(ii).row);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,71 @@
+package com.sparsity.SparkseePGQL;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The translation of an ORDER BY ... LIMIT query where the client sorts and limits the rows.
+ * The algebra returns the unsorted result columns followed by the sort columns.
+ * The translations of ProcessPGQLClientQuery that are not top-k queries just have the algebra to run.
+ */
+public class TopKQuery {
+    private final String algebra;
+    private final int numResultColumns;
+    private final List<Integer> sortColumns;
+    private final long offset;
+    private final long limit;
+
+    TopKQuery(String algebra, int numResultColumns, List<Integer> sortColumns, long offset, long limit) {
+        this.algebra = algebra;
+        this.numResultColumns = numResultColumns;
+        this.sortColumns = Collections.unmodifiableList(sortColumns);
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    /**
+     * @param algebra [in] The algebra of a query run without sorting its rows in the client.
+     */
+    TopKQuery(String algebra) {
+        this(algebra, -1, Collections.<Integer>emptyList(), -1, -1);
+    }
+
+    /**
+     * @return Returns true if the client has to sort and limit the rows, false to just return them.
+     */
+    public boolean isClientTopK() {
+        return !sortColumns.isEmpty();
+    }
+
+    /**
+     * @return Returns the Sparksee Query Algebra, without the SORT and the SLICE of a client top-k query.
+     */
+    public String getAlgebra() {
+        return algebra;
+    }
+
+    /**
+     * @return Returns the number of the first columns that are the query result or -1 if it's not a client top-k query.
+     */
+    public int getNumResultColumns() {
+        return numResultColumns;
+    }
+
+    /**
+     * @return Returns the positions of the columns to sort by, in order.
+     */
+    public List<Integer> getSortColumns() {
+        return sortColumns;
+    }
+
+    /**
+     * @return Returns the number of first sorted rows to skip or -1.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,52 @@
+package com.sparsity.SparkseePGQL;
+
+import oracle.pgql.lang.PgqlResult;
+import oracle.pgql.lang.ir.GraphQuery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * All the state of a single PGQL query translation.
+ * A new context is created for each translated query, so the translator itself has no
+ * per query state and can be used by several threads at the same time.
+ */
+class TranslationContext {
+    PgqlResult pgqlResult;
+    GraphQuery pgqlGraphQuery;
+
+    // The statistics snapshot used during all the translation (null without statistics)
+    GraphStatistics statistics;
+    // The engine can run a SORT bounded to the rows of the LIMIT
+    boolean topKSortSupported;
+    // The SORT and the LIMIT of an ORDER BY ... LIMIT query are left to the client
+    boolean clientTopK;
+    // The literals that stand for the parameters of the prepared query being translated (empty for other queries)
+    Set<Object> parameterSentinels;
+
+    // When the translation started and the number of connection groups before joining them, for the metrics
+    long startNanos;
+    int numInitialGroups;
+
+    HashMap<String, VariableInfo> allVariables;
+    ArrayList<ConnectionGroup> connGroups;
+    ArrayList<ConstraintInfo> constraintInfoList;
+
+    // The GROUP BY, SELECT and ORDER BY expressions, to know which columns are still used
+    // (null when all the columns are selected)
+    ArrayList<ExpressionInfo> resultExpressions;
+
+    SQAQueryBuilder finalQuery;
+
+    ArrayList<Integer> groupColumns;
+    ArrayList<PostGroupExprColumnInfo> projectionColumns;
+    ArrayList<AggregateInfo> aggregateInfos;
+    ArrayList<PostGroupExprColumnInfo> orderColumns;
+    ArrayList<Integer> selectedColumns;
+    // The positions in projectionColumns of the columns calculated after the ORDER BY
+    ArrayList<Integer> lateProjectionColumns;
+    // The sort columns and the number of result columns when the client does the ORDER BY ... LIMIT
+    ArrayList<Integer> topKSortColumns;
+    int topKResultColumns;
+}
@@ -0,0 +1,349 @@
+package com.sparsity.SparkseePGQL;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the translations done by a SparkseePGQL instance.
+ * Each translation phase has its own histogram and the total latency is also kept for each
+ * query shape (the number of hops and groups and the GROUP BY, ORDER BY and LIMIT clauses),
+ * so it can be seen whether the parsing or the planning dominates the slow translations.
+ * The metrics can be read with getters, registered as a JMX MBean or exported in the
+ * Prometheus text format by a MetricsHttpServer.
+ */
+public class TranslationMetrics {
+
+    /**
+     * The timed phases of a translation.
+     */
+    public enum Phase {
+        PARSE("parse"),
+        CONNECTIONS("connections"),         // The connections and their groups
+        CONSTRAINTS("constraints"),         // The constraints and the result expressions
+        TRANSLATE_GROUPS("translate_groups"),
+        JOIN_GROUPS("join_groups"),         // Join the groups and apply the remaining constraints
+        RESULT("result"),                   // GROUP BY, SELECT, ORDER BY and LIMIT
+        EMIT("emit"),                       // Write the algebra string
+        TOTAL("total");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    // The number of different shapes is bounded, the rest are added to OTHER_SHAPE
+    static final int MAX_SHAPES = 256;
+    static final String OTHER_SHAPE = "other";
+    private static final int MAX_SHAPE_HOPS = 6;
+    private static final int MAX_SHAPE_GROUPS = 4;
+
+    private final LatencyHistogram[] phases;
+    private final ConcurrentHashMap<String, LatencyHistogram> shapes;
+    private final LongAdder translations;
+    private final LongAdder failures;
+    private final LongAdder cacheHits;
+    private final PlanCache<?> planCache;
+
+    /**
+     * @param planCache [in] The plan cache of the translator to export its counters, or null.
+     */
+    public TranslationMetrics( PlanCache<?> planCache ) {
+        this.phases = new LatencyHistogram[Phase.values().length];
+        for (int ii = 0; ii < phases.length; ii++) {
+            phases[ii] = new LatencyHistogram();
+        }
+        this.shapes = new ConcurrentHashMap<String, LatencyHistogram>();
+        this.translations = new LongAdder();
+        this.failures = new LongAdder();
+        this.cacheHits = new LongAdder();
+        this.planCache = planCache;
+    }
+
+    /**
+     * @param numHops [in] The number of connections of the query.
+     * @param numGroups [in] The number of connection groups of the query.
+     * @param groupBy [in] True if the query has a GROUP BY.
+     * @param orderBy [in] True if the query has an ORDER BY.
+     * @param limit [in] True if the query has a LIMIT.
+     * @return Returns the shape tag of a query.
+     */
+    public static String shapeTag( int numHops, int numGroups, boolean groupBy, boolean orderBy, boolean limit ) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("hops=").append((numHops >= MAX_SHAPE_HOPS)? MAX_SHAPE_HOPS+"+" : String.valueOf(numHops));
+        sb.append(",groups=").append((numGroups >= MAX_SHAPE_GROUPS)? MAX_SHAPE_GROUPS+"+" : String.valueOf(numGroups));
+        if (groupBy) {
+            sb.append(",groupby");
+        }
+        if (orderBy) {
+            sb.append(",orderby");
+        }
+        if (limit) {
+            sb.append(",limit");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param phase [in] The translation phase.
+     * @param nanos [in] The time spent in the phase.
+     */
+    public void recordPhase( Phase phase, long nanos ) {
+        phases[phase.ordinal()].record(nanos);
+    }
+
+    /**
+     * Records a finished translation.
+     * @param shape [in] The shape tag of the query.
+     * @param totalNanos [in] The time of all the translation.
+     */
+    public void recordTranslation( String shape, long totalNanos ) {
+        translations.increment();
+        phases[Phase.TOTAL.ordinal()].record(totalNanos);
+        LatencyHistogram histogram = shapes.get(shape);
+        if (histogram == null) {
+            if (shapes.size() >= MAX_SHAPES) {
+                shape = OTHER_SHAPE;
+            }
+            histogram = new LatencyHistogram();
+            LatencyHistogram previous = shapes.putIfAbsent(shape, histogram);
+            if (previous != null) {
+                histogram = previous;
+            }
+        }
+        histogram.record(totalNanos);
+    }
+
+    /**
+     * Records a query that could not be translated.
+     * @param parseNanos [in] The time spent until the query was rejected.
+     */
+    public void recordFailure( long parseNanos ) {
+        failures.increment();
+        phases[Phase.PARSE.ordinal()].record(parseNanos);
+    }
+
+    /**
+     * Records a query taken from the plan cache without translating it.
+     */
+    public void recordCacheHit() {
+        cacheHits.increment();
+    }
+
+    public long getTranslations() {
+        return translations.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @param phase [in] The translation phase.
+     * @return Returns the latency histogram of the phase.
+     */
+    public LatencyHistogram getPhaseHistogram( Phase phase ) {
+        return phases[phase.ordinal()];
+    }
+
+    /**
+     * @return Returns the total latency histogram of each query shape, sorted by shape.
+     */
+    public Map<String, LatencyHistogram> getShapeHistograms() {
+        return new TreeMap<String, LatencyHistogram>(shapes);
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : phases) {
+            histogram.reset();
+        }
+        shapes.clear();
+        translations.reset();
+        failures.reset();
+        cacheHits.reset();
+    }
+
+    /**
+     * @return Returns all the metrics in the Prometheus text exposition format.
+     */
+    public String toPrometheusText() {
+        StringBuilder sb = new StringBuilder();
+        appendCounter(sb, "sparkseepgql_translations_total", "Translated queries", getTranslations());
+        appendCounter(sb, "sparkseepgql_translation_failures_total", "Queries that could not be translated", getFailures());
+        appendCounter(sb, "sparkseepgql_plan_cache_hits_total", "Queries taken from the plan cache", getCacheHits());
+        if (planCache != null) {
+            appendCounter(sb, "sparkseepgql_plan_cache_evictions_total", "Plans evicted from the plan cache", planCache.getEvictions());
+            sb.append("# HELP sparkseepgql_plan_cache_size Plans in the plan cache\n");
+            sb.append("# TYPE sparkseepgql_plan_cache_size gauge\n");
+            sb.append("sparkseepgql_plan_cache_size ").append(planCache.size()).append("\n");
+        }
+        sb.append("# HELP sparkseepgql_phase_seconds Latency of each translation phase\n");
+        sb.append("# TYPE sparkseepgql_phase_seconds summary\n");
+        for (Phase phase : Phase.values()) {
+            appendSummary(sb, "sparkseepgql_phase_seconds", "phase", phase.getLabel(), phases[phase.ordinal()]);
+        }
+        sb.append("# HELP sparkseepgql_shape_seconds Total translation latency of each query shape\n");
+        sb.append("# TYPE sparkseepgql_shape_seconds summary\n");
+        for (Map.Entry<String, LatencyHistogram> entry : getShapeHistograms().entrySet()) {
+            appendSummary(sb, "sparkseepgql_shape_seconds", "shape", entry.getKey(), entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    private static void appendCounter( StringBuilder sb, String name, String help, long value ) {
+        sb.append("# HELP ").append(name).append(" ").append(help).append("\n");
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(" ").append(value).append("\n");
+    }
+
+    private static void appendSummary( StringBuilder sb, String name, String label, String labelValue, LatencyHistogram histogram ) {
+        String labels = label + "=\"" + labelValue + "\"";
+        for (double quantile : new double[] {0.5, 0.95, 0.99}) {
+            sb.append(name).append("{").append(labels).append(",quantile=\"").append(quantile).append("\"} ");
+            sb.append(seconds(histogram.getPercentile(quantile))).append("\n");
+        }
+        sb.append(name).append("_sum{").append(labels).append("} ").append(seconds(histogram.getSum())).append("\n");
+        sb.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append("\n");
+    }
+
+    private static String seconds( long nanos ) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server as
+     * "com.sparsity.SparkseePGQL:type=TranslationMetrics,name=<name>".
+     * Each phase has the attributes "<phase>Count", "<phase>MeanMicros", "<phase>P50Micros",
+     * "<phase>P95Micros", "<phase>P99Micros" and "<phase>MaxMicros".
+     * @param name [in] The name of the translator.
+     * @return Returns the registered MBean name.
+     * @throws JMException If the MBean can not be registered.
+     */
+    public ObjectName registerMBean( String name ) throws JMException {
+        ObjectName objectName = new ObjectName("com.sparsity.SparkseePGQL:type=TranslationMetrics,name="+ObjectName.quote(name));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new MetricsMBean(), objectName);
+        return objectName;
+    }
+
+    private static String camelCase( String label ) {
+        StringBuilder sb = new StringBuilder();
+        boolean upper = true;
+        for (char c : label.toCharArray()) {
+            if (c == '_') {
+                upper = true;
+            }
+            else {
+                sb.append(upper? Character.toUpperCase(c) : c);
+                upper = false;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return Returns the values of the MBean attributes by name.
+     */
+    Map<String, Object> getAttributes() {
+        TreeMap<String, Object> attributes = new TreeMap<String, Object>();
+        attributes.put("Translations", getTranslations());
+        attributes.put("Failures", getFailures());
+        attributes.put("CacheHits", getCacheHits());
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram histogram = phases[phase.ordinal()];
+            String prefix = camelCase(phase.getLabel());
+            attributes.put(prefix+"Count", histogram.getCount());
+            attributes.put(prefix+"MeanMicros", histogram.getMean() / 1000.0);
+            attributes.put(prefix+"P50Micros", histogram.getPercentile(0.5) / 1000.0);
+            attributes.put(prefix+"P95Micros", histogram.getPercentile(0.95) / 1000.0);
+            attributes.put(prefix+"P99Micros", histogram.getPercentile(0.99) / 1000.0);
+            attributes.put(prefix+"MaxMicros", histogram.getMax() / 1000.0);
+        }
+        return attributes;
+    }
+
+    /**
+     * The read only JMX view of the metrics, with a "reset" operation.
+     */
+    private class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute( String attribute ) throws AttributeNotFoundException {
+            Object value = TranslationMetrics.this.getAttributes().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute( Attribute attribute ) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("The attribute "+attribute.getName()+" is read only");
+        }
+
+        @Override
+        public AttributeList getAttributes( String[] attributes ) {
+            Map<String, Object> values = TranslationMetrics.this.getAttributes();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes( AttributeList attributes ) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke( String actionName, Object[] params, String[] signature ) throws ReflectionException {
+            if ("reset".equals(actionName)) {
+                reset();
+                return null;
+            }
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Object> values = TranslationMetrics.this.getAttributes();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int ii = 0;
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                attributes[ii++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false);
+            }
+            MBeanOperationInfo[] operations = new MBeanOperationInfo[] {
+                    new MBeanOperationInfo("reset", "Clears all the metrics", null, "void", MBeanOperationInfo.ACTION)
+            };
+            return new MBeanInfo(TranslationMetrics.class.getName(), "PGQL translation metrics",
+                    attributes, null, operations, null);
+        }
+    }
+}
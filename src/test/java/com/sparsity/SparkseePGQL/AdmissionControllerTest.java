@@ -0,0 +1,82 @@
+package com.sparsity.SparkseePGQL;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The queued queries are admitted in order, so the lighter queries don't starve a heavy one.
+ */
+public class AdmissionControllerTest {
+
+    // A scan result of 1000 rows is 32000 bytes, heavy from 10000 bytes and only one heavy query at a time
+    private static AdmissionController controller() {
+        return new AdmissionController(1000000, 10000, 1);
+    }
+
+    private static AdmissionController.Estimate scan(AdmissionController controller, double rows) {
+        SQAOperator scan = new SQAOperator.Scan(null);
+        scan.setEstimatedRows(rows);
+        return controller.estimate(scan);
+    }
+
+    @Test
+    public void queuedHeavyQueryIsAdmittedBeforeALaterLightOne() {
+        AdmissionController controller = controller();
+        AdmissionController.Ticket running = controller.admitAsync(scan(controller, 1000)).join();
+        assertTrue(running.isHeavy());
+
+        CompletableFuture<AdmissionController.Ticket> heavy = controller.admitAsync(scan(controller, 1000));
+        CompletableFuture<AdmissionController.Ticket> light = controller.admitAsync(scan(controller, 10));
+        // The light query could run, but it waits behind the heavy one
+        assertFalse(heavy.isDone());
+        assertFalse(light.isDone());
+        assertEquals(2, controller.getWaitingQueries());
+
+        running.close();
+        assertTrue(heavy.isDone());
+        assertTrue(light.isDone());
+        assertEquals(0, controller.getWaitingQueries());
+        heavy.join().close();
+        light.join().close();
+        assertEquals(0, controller.getRunningQueries());
+    }
+
+    @Test
+    public void blockingAdmissionWaitsBehindTheQueue() throws InterruptedException {
+        AdmissionController controller = controller();
+        AdmissionController.Ticket running = controller.admitAsync(scan(controller, 1000)).join();
+        CompletableFuture<AdmissionController.Ticket> heavy = controller.admitAsync(scan(controller, 1000));
+
+        assertNull(controller.tryAdmit(scan(controller, 10), 10, TimeUnit.MILLISECONDS));
+        assertEquals(1, controller.getWaitingQueries());
+
+        running.close();
+        heavy.join().close();
+        AdmissionController.Ticket light = controller.tryAdmit(scan(controller, 10), 0, TimeUnit.MILLISECONDS);
+        assertFalse(light == null);
+        light.close();
+    }
+
+    @Test
+    public void cancelledQueryLeavesTheQueue() {
+        AdmissionController controller = controller();
+        AdmissionController.Ticket running = controller.admitAsync(scan(controller, 1000)).join();
+        CompletableFuture<AdmissionController.Ticket> heavy = controller.admitAsync(scan(controller, 1000));
+        CompletableFuture<AdmissionController.Ticket> light = controller.admitAsync(scan(controller, 10));
+
+        // The light query behind it can run along with the running heavy one
+        heavy.cancel(false);
+        assertTrue(light.isDone());
+        light.join().close();
+        running.close();
+        assertEquals(0, controller.getWaitingQueries());
+        assertEquals(0, controller.getRunningQueries());
+    }
+}
@@ -0,0 +1,46 @@
+package com.sparsity.SparkseePGQL;
+
+import com.sparsity.sparksee.gdb.AttributeKind;
+import com.sparsity.sparksee.gdb.DataType;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A fixed statistics snapshot, the tests don't use a database.
+ */
+class FixedStatisticsCatalog extends StatisticsCatalog {
+    private final GraphStatistics fixed;
+
+    FixedStatisticsCatalog(GraphStatistics fixed) {
+        super(null);
+        this.fixed = fixed;
+    }
+
+    @Override
+    public GraphStatistics getStatistics() {
+        return fixed;
+    }
+
+    /**
+     * @return Returns a translator with the statistics of 100000 MOVIE nodes with the attributes
+     * YEAR (Integer 1900-2020), ID (Long), RATING (Double 0-10) and TITLE (String).
+     */
+    static SparkseePGQL movieTranslator() {
+        Map<String, GraphStatistics.TypeStatistics> types = new HashMap<String, GraphStatistics.TypeStatistics>();
+        types.put("MOVIE", new GraphStatistics.TypeStatistics("MOVIE", true, true, 100000, 0, 0));
+        Map<String, GraphStatistics.AttributeStatistics> attributes = new HashMap<String, GraphStatistics.AttributeStatistics>();
+        attributes.put("YEAR", new GraphStatistics.AttributeStatistics("YEAR", AttributeKind.Indexed, DataType.Integer,
+                100000, 0, 120, 1900, 2020, null));
+        attributes.put("ID", new GraphStatistics.AttributeStatistics("ID", AttributeKind.Unique, DataType.Long,
+                100000, 0, 100000, 1, 100000, null));
+        attributes.put("RATING", new GraphStatistics.AttributeStatistics("RATING", AttributeKind.Indexed, DataType.Double,
+                100000, 0, 100, 0, 10, null));
+        attributes.put("TITLE", new GraphStatistics.AttributeStatistics("TITLE", AttributeKind.Indexed, DataType.String,
+                100000, 0, 99000, 0, 0, null));
+        SparkseePGQL translator = new SparkseePGQL(0);
+        translator.setStatisticsCatalog(new FixedStatisticsCatalog(
+                new GraphStatistics(1, 100000, 0, types, attributes)));
+        return translator;
+    }
+}
@@ -0,0 +1,42 @@
+package com.sparsity.SparkseePGQL;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The average degree of an edge type counts the source nodes without edges of the type.
+ */
+public class GraphStatisticsTest {
+
+    // 100000 directed edges from 20000 of the 100000 source nodes to 100000 nodes
+    private static final GraphStatistics.TypeStatistics DIRECTS =
+            new GraphStatistics.TypeStatistics("DIRECTS", false, true, 100000, 20000, 100000);
+
+    @Test
+    public void degreeOfTheNodesWithEdges() {
+        assertEquals(5.0, DIRECTS.getAverageDegree(true), 1e-9);
+        assertEquals(1.0, DIRECTS.getAverageDegree(false), 1e-9);
+    }
+
+    @Test
+    public void degreeOfTheSourceDomain() {
+        // Only one of each five source nodes has outgoing edges
+        assertEquals(1.0, DIRECTS.getAverageDegree(true, 100000), 1e-9);
+        assertEquals(0.1, DIRECTS.getAverageDegree(true, 1000000), 1e-9);
+        assertEquals(1.0, DIRECTS.getAverageDegree(false, 100000), 1e-9);
+    }
+
+    @Test
+    public void degreeWithAnUnknownSourceDomain() {
+        assertEquals(5.0, DIRECTS.getAverageDegree(true, 0), 1e-9);
+    }
+
+    @Test
+    public void degreeOfAnUndirectedType() {
+        GraphStatistics.TypeStatistics cast =
+                new GraphStatistics.TypeStatistics("CAST", false, false, 3000000, 100000, 900000);
+        assertEquals(6.0, cast.getAverageDegree(true), 1e-9);
+        assertEquals(3.0, cast.getAverageDegree(true, 2000000), 1e-9);
+    }
+}
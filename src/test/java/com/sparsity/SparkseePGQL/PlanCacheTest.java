@@ -0,0 +1,80 @@
+package com.sparsity.SparkseePGQL;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The cache key ignores the layout of the query but not the contents of its literals, and the
+ * least recently used plan is the one evicted.
+ */
+public class PlanCacheTest {
+
+    @Test
+    public void runsOfWhiteSpacesAreCollapsed() {
+        assertEquals("SELECT n.TITLE WHERE (n), n.YEAR > 2000",
+                PlanCache.normalize("  SELECT   n.TITLE\n\tWHERE (n),\r\n  n.YEAR >  2000 \n"));
+    }
+
+    @Test
+    public void quotedLiteralsKeepTheirSpaces() {
+        assertEquals("SELECT n WHERE (n), n.NAME = 'Woody   Allen'",
+                PlanCache.normalize("SELECT n  WHERE (n),   n.NAME = 'Woody   Allen'"));
+        assertEquals("SELECT n WHERE (n), n.NAME = \"  two\tspaces  \"",
+                PlanCache.normalize("SELECT n WHERE (n), n.NAME =   \"  two\tspaces  \""));
+    }
+
+    @Test
+    public void escapedQuotesDontEndTheLiteral() {
+        assertEquals("SELECT n WHERE (n), n.NAME = 'it\\'s   here' LIMIT 1",
+                PlanCache.normalize("SELECT n WHERE (n), n.NAME = 'it\\'s   here'   LIMIT 1"));
+    }
+
+    @Test
+    public void queriesWithDifferentLiteralSpacesHaveDifferentKeys() {
+        assertNotEquals(PlanCache.normalize("SELECT n WHERE (n), n.NAME = 'a  b'"),
+                PlanCache.normalize("SELECT n WHERE (n), n.NAME = 'a b'"));
+    }
+
+    @Test
+    public void leastRecentlyUsedPlanIsEvicted() {
+        PlanCache<String> cache = new PlanCache<String>(2);
+        cache.put("q1", "plan1");
+        cache.put("q2", "plan2");
+        // q1 is used, so q2 is the least recently used one
+        assertEquals("plan1", cache.get("q1"));
+        cache.put("q3", "plan3");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get("q2"));
+        assertEquals("plan1", cache.get("q1"));
+        assertEquals("plan3", cache.get("q3"));
+    }
+
+    @Test
+    public void hitsAndMissesAreCounted() {
+        PlanCache<String> cache = new PlanCache<String>(2);
+        assertNull(cache.get("q1"));
+        cache.put("q1", "plan1");
+        cache.get("q1");
+        cache.get("q1");
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void replacingAPlanIsNotAnEviction() {
+        PlanCache<String> cache = new PlanCache<String>(1);
+        cache.put("q1", "plan1");
+        cache.put("q1", "plan1b");
+        assertEquals(0, cache.getEvictions());
+        cache.put("q2", "plan2");
+        assertEquals(1, cache.getEvictions());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getEvictions());
+    }
+}
@@ -0,0 +1,115 @@
+package com.sparsity.SparkseePGQL;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A bound prepared query is the same algebra as the query translated with the values written as
+ * literals, whatever the kind of the values and the format of the slots they are written in.
+ */
+public class PreparedPGQLQueryTest {
+
+    private static String translate(SparkseePGQL translator, String query) {
+        String algebra = translator.ProcessPGQLQuery(query);
+        assertNotNull("The query could not be translated: "+query, algebra);
+        return algebra;
+    }
+
+    private static String bind(PreparedPGQLQuery prepared, Object... values) {
+        String algebra = prepared.bind(values);
+        assertNotNull("The query could not be translated: "+prepared.getQuery(), algebra);
+        return algebra;
+    }
+
+    @Test
+    public void stringParameterIsBoundAsALiteral() {
+        SparkseePGQL translator = FixedStatisticsCatalog.movieTranslator();
+        PreparedPGQLQuery prepared = translator.prepare("SELECT n.TITLE WHERE (n), n.TITLE = $title");
+        assertEquals(translate(translator, "SELECT n.TITLE WHERE (n), n.TITLE = 'Manhattan'"),
+                bind(prepared, "Manhattan"));
+        assertEquals(translate(translator, "SELECT n.TITLE WHERE (n), n.TITLE = 'Zelig'"),
+                bind(prepared, "Zelig"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stringParameterWithAQuoteIsRejected() {
+        SparkseePGQL translator = FixedStatisticsCatalog.movieTranslator();
+        translator.prepare("SELECT n.TITLE WHERE (n), n.TITLE = $title").bind("x' ) OR ( 1 = 1");
+    }
+
+    @Test
+    public void integerAndLongValuesShareTheTemplate() {
+        SparkseePGQL translator = FixedStatisticsCatalog.movieTranslator();
+        PreparedPGQLQuery prepared = translator.prepare("SELECT n.TITLE WHERE (n), n.YEAR > $year");
+        String expected = translate(translator, "SELECT n.TITLE WHERE (n), n.YEAR > 2000");
+        assertEquals(expected, bind(prepared, 2000));
+        assertEquals(expected, bind(prepared, 2000L));
+    }
+
+    @Test
+    public void decimalParameterIsBoundInTheSelectFormat() {
+        SparkseePGQL translator = FixedStatisticsCatalog.movieTranslator();
+        PreparedPGQLQuery prepared = translator.prepare("SELECT n.TITLE WHERE (n), n.RATING > $rating");
+        String algebra = bind(prepared, 7.5);
+        assertEquals(translate(translator, "SELECT n.TITLE WHERE (n), n.RATING > 7.5"), algebra);
+        assertTrue(algebra, algebra.contains(ConstraintInfo.sqaDecimalSelectValue(7.5)));
+    }
+
+    @Test
+    public void decimalParameterIsBoundInEachSlotFormat() {
+        // The expression format of the sentinel is a prefix of its select format, so the
+        // longest sentinel must be matched first or the select slot would be split
+        SparkseePGQL translator = FixedStatisticsCatalog.movieTranslator();
+        PreparedPGQLQuery prepared = translator.prepare(
+                "SELECT n.TITLE, n.RATING + $rating WHERE (n), n.RATING > $rating");
+        String algebra = bind(prepared, 0.333);
+        assertEquals(translate(translator, "SELECT n.TITLE, n.RATING + 0.333 WHERE (n), n.RATING > 0.333"), algebra);
+        assertTrue(algebra, algebra.contains(ConstraintInfo.sqaDecimalSelectValue(0.333)));
+        assertTrue(algebra, algebra.contains(ExpressionInfo.sqaDecimalExpression(0.333)));
+    }
+
+    @Test
+    public void inclusiveParameterBoundsAreMergedWithTheBoundValues() {
+        SparkseePGQL translator = FixedStatisticsCatalog.movieTranslator();
+        PreparedPGQLQuery prepared = translator.prepare("SELECT n.TITLE WHERE (n), n.YEAR >= $low, n.YEAR <= $high");
+        String algebra = bind(prepared, 2000, 2009);
+        assertTrue(algebra, algebra.contains("GLOBAL 'YEAR' BETWEEN 2000 AND 2009"));
+        algebra = bind(prepared, 1950, 1959);
+        assertTrue(algebra, algebra.contains("GLOBAL 'YEAR' BETWEEN 1950 AND 1959"));
+    }
+
+    @Test
+    public void inclusiveDecimalParameterBoundsAreMerged() {
+        SparkseePGQL translator = FixedStatisticsCatalog.movieTranslator();
+        PreparedPGQLQuery prepared = translator.prepare("SELECT n.TITLE WHERE (n), n.RATING >= $low, n.RATING <= $high");
+        assertEquals(translate(translator, "SELECT n.TITLE WHERE (n), n.RATING >= 3.5, n.RATING <= 7.25"),
+                bind(prepared, 3.5, 7.25));
+    }
+
+    @Test
+    public void strictParameterBoundsAreWrittenAsTheyAre() {
+        // Moving a strict bound to the next integer would change the slot value
+        SparkseePGQL translator = FixedStatisticsCatalog.movieTranslator();
+        PreparedPGQLQuery prepared = translator.prepare("SELECT n.TITLE WHERE (n), n.YEAR > $low, n.YEAR < $high");
+        String algebra = bind(prepared, 1999, 2010);
+        assertFalse(algebra, algebra.contains("BETWEEN"));
+        assertTrue(algebra, algebra.contains("GLOBAL 'YEAR' > 1999"));
+        assertTrue(algebra, algebra.contains("GLOBAL 'YEAR' < 2010"));
+    }
+
+    @Test
+    public void templatesAreRebuiltWhenTheTopKSortSupportChanges() {
+        SparkseePGQL translator = FixedStatisticsCatalog.movieTranslator();
+        PreparedPGQLQuery prepared = translator.prepare("SELECT n.TITLE WHERE (n), n.YEAR > $year ORDER BY n.YEAR LIMIT 10");
+        String fullSort = bind(prepared, 2000);
+        translator.setTopKSortSupported(true);
+        String topKSort = bind(prepared, 2000);
+        assertNotEquals(fullSort, topKSort);
+        assertEquals(translate(translator, "SELECT n.TITLE WHERE (n), n.YEAR > 2000 ORDER BY n.YEAR LIMIT 10"), topKSort);
+    }
+}
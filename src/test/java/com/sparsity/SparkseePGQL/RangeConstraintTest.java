@@ -0,0 +1,61 @@
+package com.sparsity.SparkseePGQL;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The lower and upper bounds of an attribute are merged into a single BETWEEN, and the strict
+ * integer bounds are only moved to the next integer when the attribute type allows it.
+ */
+public class RangeConstraintTest {
+
+    private static SparkseePGQL translatorWithStatistics() {
+        return FixedStatisticsCatalog.movieTranslator();
+    }
+
+    private static String translate(SparkseePGQL translator, String query) {
+        String algebra = translator.ProcessPGQLQuery(query);
+        assertNotNull("The query could not be translated: "+query, algebra);
+        return algebra;
+    }
+
+    @Test
+    public void strictBoundsOfAnIntegerAttributeAreMerged() {
+        String algebra = translate(translatorWithStatistics(), "SELECT n.TITLE WHERE (n), n.YEAR > 1999, n.YEAR < 2010");
+        assertTrue(algebra, algebra.contains("GLOBAL 'YEAR' BETWEEN 2000 AND 2009"));
+    }
+
+    @Test
+    public void strictBoundsOfALongAttributeAreMerged() {
+        String algebra = translate(translatorWithStatistics(), "SELECT n.TITLE WHERE (n), n.ID > 10, n.ID < 20");
+        assertTrue(algebra, algebra.contains("GLOBAL 'ID' BETWEEN 11 AND 19"));
+    }
+
+    @Test
+    public void strictIntegerBoundsOfADoubleAttributeAreNotMerged() {
+        // RATING 3.5 is in the range, it would be lost with a BETWEEN 4 AND 4
+        String algebra = translate(translatorWithStatistics(), "SELECT n.TITLE WHERE (n), n.RATING > 3, n.RATING < 5");
+        assertFalse(algebra, algebra.contains("BETWEEN"));
+    }
+
+    @Test
+    public void inclusiveBoundsOfADoubleAttributeAreMerged() {
+        String algebra = translate(translatorWithStatistics(), "SELECT n.TITLE WHERE (n), n.RATING >= 3, n.RATING <= 5");
+        assertTrue(algebra, algebra.contains("GLOBAL 'RATING' BETWEEN 3 AND 5"));
+    }
+
+    @Test
+    public void strictBoundAtTheTypeLimitIsNotMerged() {
+        String algebra = translate(translatorWithStatistics(), "SELECT n.TITLE WHERE (n), n.YEAR > 2147483647, n.YEAR <= 3000000000");
+        assertFalse(algebra, algebra.contains("BETWEEN"));
+    }
+
+    @Test
+    public void strictBoundsWithoutStatisticsAreNotMerged() {
+        String algebra = translate(new SparkseePGQL(0), "SELECT n.TITLE WHERE (n), n.YEAR > 1999, n.YEAR < 2010");
+        assertFalse(algebra, algebra.contains("BETWEEN"));
+    }
+}
@@ -0,0 +1,127 @@
+package com.sparsity.SparkseePGQL;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The collector keeps only offset + limit rows, returns them as a full sort would and keeps
+ * the rows that compare equal in the order they were added.
+ */
+public class TopKCollectorTest {
+
+    // The rows are {key, position} and only the key is compared
+    private static final Comparator<int[]> BY_KEY = new Comparator<int[]>() {
+        @Override
+        public int compare(int[] row1, int[] row2) {
+            return Integer.compare(row1[0], row2[0]);
+        }
+    };
+
+    private static List<String> keys(List<int[]> rows) {
+        ArrayList<String> keys = new ArrayList<String>();
+        for (int[] row : rows) {
+            keys.add(row[0]+"/"+row[1]);
+        }
+        return keys;
+    }
+
+    @Test
+    public void keepsTheFirstRowsOfTheOrder() {
+        ArrayList<int[]> rows = new ArrayList<int[]>();
+        for (int ii = 0; ii < 100; ii++) {
+            rows.add(new int[]{ ii, ii });
+        }
+        Collections.shuffle(rows, new Random(7));
+        TopKCollector<int[]> collector = new TopKCollector<int[]>(BY_KEY, -1, 5);
+        for (int[] row : rows) {
+            collector.add(row);
+        }
+        assertEquals(Arrays.asList("0/0", "1/1", "2/2", "3/3", "4/4"), keys(collector.getResult()));
+        assertEquals(100, collector.getNumAdded());
+    }
+
+    @Test
+    public void heapIsBoundedByTheLimit() {
+        TopKCollector<int[]> collector = new TopKCollector<int[]>(BY_KEY, -1, 3);
+        assertTrue(collector.add(new int[]{ 10, 0 }));
+        assertTrue(collector.add(new int[]{ 20, 1 }));
+        assertTrue(collector.add(new int[]{ 30, 2 }));
+        // Full: a row after the last kept one is dropped and a row before it replaces it
+        assertFalse(collector.add(new int[]{ 40, 3 }));
+        assertTrue(collector.add(new int[]{ 5, 4 }));
+        assertEquals(Arrays.asList("5/4", "10/0", "20/1"), keys(collector.getResult()));
+    }
+
+    @Test
+    public void equalRowsKeepTheirAddOrder() {
+        TopKCollector<int[]> collector = new TopKCollector<int[]>(BY_KEY, -1, 3);
+        for (int ii = 0; ii < 5; ii++) {
+            // A later equal row never replaces an earlier one
+            assertEquals(ii < 3, collector.add(new int[]{ 1, ii }));
+        }
+        assertTrue(collector.add(new int[]{ 0, 5 }));
+        assertEquals(Arrays.asList("0/5", "1/0", "1/1"), keys(collector.getResult()));
+    }
+
+    @Test
+    public void offsetSkipsTheFirstRows() {
+        TopKCollector<int[]> collector = new TopKCollector<int[]>(BY_KEY, 2, 3);
+        for (int ii = 9; ii >= 0; ii--) {
+            collector.add(new int[]{ ii, ii });
+        }
+        assertEquals(Arrays.asList("2/2", "3/3", "4/4"), keys(collector.getResult()));
+    }
+
+    @Test
+    public void offsetAfterTheLastRowReturnsNoRows() {
+        TopKCollector<int[]> collector = new TopKCollector<int[]>(BY_KEY, 5, 3);
+        for (int ii = 0; ii < 4; ii++) {
+            collector.add(new int[]{ ii, ii });
+        }
+        assertTrue(collector.getResult().isEmpty());
+    }
+
+    @Test
+    public void zeroLimitKeepsNoRows() {
+        TopKCollector<int[]> collector = new TopKCollector<int[]>(BY_KEY, -1, 0);
+        assertFalse(collector.add(new int[]{ 1, 0 }));
+        assertTrue(collector.getResult().isEmpty());
+        assertEquals(1, collector.getNumAdded());
+    }
+
+    @Test
+    public void resultIsTheSameAsAStableSort() {
+        Random random = new Random(1);
+        for (int run = 0; run < 200; run++) {
+            int numRows = random.nextInt(50);
+            long offset = random.nextInt(5) - 1;
+            long limit = random.nextInt(10);
+            ArrayList<int[]> rows = new ArrayList<int[]>();
+            TopKCollector<int[]> collector = new TopKCollector<int[]>(BY_KEY, offset, limit);
+            for (int ii = 0; ii < numRows; ii++) {
+                int[] row = new int[]{ random.nextInt(6), ii };
+                rows.add(row);
+                collector.add(row);
+            }
+            Collections.sort(rows, BY_KEY);
+            int from = (int) Math.min(Math.max(0L, offset), rows.size());
+            int to = (int) Math.min(rows.size(), Math.max(0L, offset) + limit);
+            assertEquals(keys(rows.subList(from, to)), keys(collector.getResult()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyRowsAreRejected() {
+        new TopKCollector<int[]>(BY_KEY, 10, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,61 @@
+package com.sparsity.SparkseePGQL;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * An ORDER BY ... LIMIT query translated for the client leaves the SORT and the SLICE out of the
+ * algebra and returns the sort columns after the result columns, with its offset and limit.
+ */
+public class TopKQueryTest {
+
+    private static final String TOP_K_QUERY = "SELECT n.TITLE WHERE (n), n.YEAR > 2000 ORDER BY n.YEAR LIMIT 10";
+
+    @Test
+    public void clientTopKLeavesOutTheSortAndTheSlice() {
+        TopKQuery topK = FixedStatisticsCatalog.movieTranslator().ProcessPGQLTopKQuery(TOP_K_QUERY);
+        assertNotNull(topK);
+        assertTrue(topK.isClientTopK());
+        assertFalse(topK.getAlgebra(), topK.getAlgebra().contains("SORT"));
+        assertFalse(topK.getAlgebra(), topK.getAlgebra().contains("SLICE"));
+        assertEquals(1, topK.getNumResultColumns());
+        assertEquals(Collections.singletonList(1), topK.getSortColumns());
+        assertEquals(-1, topK.getOffset());
+        assertEquals(10, topK.getLimit());
+    }
+
+    @Test
+    public void clientTopKKeepsTheOffset() {
+        TopKQuery topK = FixedStatisticsCatalog.movieTranslator().ProcessPGQLTopKQuery(TOP_K_QUERY+" OFFSET 5");
+        assertNotNull(topK);
+        assertEquals(5, topK.getOffset());
+        assertEquals(10, topK.getLimit());
+    }
+
+    @Test
+    public void queryWithoutLimitIsNotAClientTopK() {
+        SparkseePGQL translator = FixedStatisticsCatalog.movieTranslator();
+        String query = "SELECT n.TITLE WHERE (n), n.YEAR > 2000";
+        assertNull(translator.ProcessPGQLTopKQuery(query));
+        TopKQuery clientQuery = translator.ProcessPGQLClientQuery(query);
+        assertFalse(clientQuery.isClientTopK());
+        assertEquals(translator.ProcessPGQLQuery(query), clientQuery.getAlgebra());
+    }
+
+    @Test
+    public void clientQueryIsPlainWhenTheEngineSortsTheFirstRows() {
+        SparkseePGQL translator = FixedStatisticsCatalog.movieTranslator();
+        translator.setTopKSortSupported(true);
+        TopKQuery clientQuery = translator.ProcessPGQLClientQuery(TOP_K_QUERY);
+        assertFalse(clientQuery.isClientTopK());
+        assertEquals(-1, clientQuery.getNumResultColumns());
+        assertEquals(translator.ProcessPGQLQuery(TOP_K_QUERY), clientQuery.getAlgebra());
+    }
+}